@@ -1,18 +1,36 @@
 package au.edu.adelaide.aggregationserver;
 
+import au.edu.adelaide.aggregationserver.DataManager.PersistenceMode;
 import au.edu.adelaide.aggregationserver.data.AggregatedWeatherUpdates;
 import au.edu.adelaide.aggregationserver.data.WeatherUpdate;
+import au.edu.adelaide.aggregationserver.data.WeatherUpdateSubscriptions;
+import au.edu.adelaide.aggregationserver.persistence.WriteAheadLog;
+import au.edu.adelaide.aggregationserver.persistence.WriteBehindQueue;
+import au.edu.adelaide.aggregationserver.persistence.WriteAheadLog.FsyncPolicy;
 import au.edu.adelaide.aggregationserver.requesthandlers.HTTPRequestHandler;
+import au.edu.adelaide.aggregationserver.requesthandlers.HTTPResponseHandler;
 
+import http.HTTPServer;
+import http.HTTPServer.ExecutionMode;
 import util.CLI;
+import util.IOUtility;
+import util.HybridLogicalClock;
 import util.LamportClock;
+import util.LogicalClock;
 
 import static au.edu.adelaide.aggregationserver.AggregationServerConstants.*;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -23,14 +41,36 @@ import java.util.logging.Logger;
 public class AggregationServer {
     private AggregatedWeatherUpdates aggregatedWeatherUpdates;
     private DataManager dataManager;
-    public LamportClock lamportClock;
+    private final WeatherUpdateSubscriptions subscriptions = new WeatherUpdateSubscriptions();
+    public final LogicalClock logicalClock;
     private static final Logger logger = Logger.getLogger(AggregationServer.class.getName());
 
     /**
      * Initializes a new instance of the Aggregation Server.
      */
     public AggregationServer() {
-        this.dataManager = new DataManager();
+        this(new DataManager());
+    }
+
+    /**
+     * Initializes a new instance of the Aggregation Server which persists through the given data manager.
+     *
+     * @param dataManager The data manager used to load and persist weather updates.
+     */
+    public AggregationServer(DataManager dataManager) {
+        this(dataManager, new LamportClock());
+    }
+
+    /**
+     * Initializes a new instance of the Aggregation Server which persists through the given data
+     * manager and orders updates with the given clock.
+     *
+     * @param dataManager  The data manager used to load and persist weather updates.
+     * @param logicalClock The clock PUT requests are ordered by.
+     */
+    public AggregationServer(DataManager dataManager, LogicalClock logicalClock) {
+        this.dataManager = dataManager;
+        this.logicalClock = logicalClock;
         initialiseResources();
     }
 
@@ -41,27 +81,75 @@ public class AggregationServer {
         this.aggregatedWeatherUpdates = new AggregatedWeatherUpdates();
         dataManager.loadDataForAggregationServer(this.aggregatedWeatherUpdates);
         dataManager.startCleanupScheduler(this.aggregatedWeatherUpdates);
-        this.lamportClock = new LamportClock();
+        dataManager.startSnapshotScheduler(this.aggregatedWeatherUpdates);
+        // Start the clock past every recovered update, so newer PUTs are never ordered before them
+        WeatherUpdate newestUpdate = aggregatedWeatherUpdates.getMostRecentUpdate("recent");
+        if (newestUpdate != null) {
+            try {
+                this.logicalClock.processReceivedTimestamp(newestUpdate.lamportTimestamp);
+            } catch (HybridLogicalClock.TimestampAheadException e) {
+                // The clock is not moved that far ahead, so newer PUTs to the station lose to it until wall-clock time catches up
+                logger.log(Level.WARNING, "Recovered update of station " + newestUpdate.weatherStationId
+                                          + " is ahead of the clock: " + e.getMessage());
+            }
+        }
     }
     
     /**
-     * Adds a new weather update and persists it.
+     * Adds a new weather update once it has been written to the write-ahead log.
      *
      * @param weatherUpdate The new weather update.
      * @throws IOException if an I/O error occurs during persistence.
      */
     public void addWeatherUpdate(WeatherUpdate weatherUpdate) throws IOException {
-        aggregatedWeatherUpdates.addUpdate(weatherUpdate, weatherUpdate.weatherStationId);
-        dataManager.persistNewestData(this.aggregatedWeatherUpdates, weatherUpdate.contentServerUUID);
+        // Encoded before the update becomes visible, so GETs never build it
+        HTTPResponseHandler.getEncodedResponse(weatherUpdate);
+        dataManager.recordUpdate(this.aggregatedWeatherUpdates, weatherUpdate);
+        subscriptions.publish(weatherUpdate);
     }
 
     /**
-     * Checks if the provided weather update is more recent than the last update.
+     * Adds a batch of weather updates, logged together in one group write.
+     *
+     * @param weatherUpdates The new weather updates, in the order they were received.
+     * @throws IOException if an I/O error occurs during persistence.
+     */
+    public void addWeatherUpdates(List<WeatherUpdate> weatherUpdates) throws IOException {
+        WriteAheadLog.awaitDurable(addWeatherUpdatesAsync(weatherUpdates));
+    }
+
+    /**
+     * Adds a batch of weather updates without waiting for them to become durable.
+     * The updates are logged when this returns, and become visible to readers and wake
+     * subscribers once they are durable.
+     *
+     * @param weatherUpdates The new weather updates, in the order they were received.
+     * @return A future completed once the updates are durable and visible.
+     * @throws IOException if the write-ahead log is not accepting records.
+     */
+    public CompletableFuture<Void> addWeatherUpdatesAsync(List<WeatherUpdate> weatherUpdates) throws IOException {
+        for (WeatherUpdate weatherUpdate : weatherUpdates) {
+            HTTPResponseHandler.getEncodedResponse(weatherUpdate);
+        }
+        return dataManager.recordUpdatesAsync(this.aggregatedWeatherUpdates, weatherUpdates).thenRun(() -> {
+            for (WeatherUpdate weatherUpdate : weatherUpdates) {
+                subscriptions.publish(weatherUpdate);
+            }
+        });
+    }
+
+    /**
+     * Checks if the provided weather update is more recent than the last update of its station.
+     * Under a hybrid logical clock the logical timestamps alone decide, since they are unique
+     * and close to wall-clock time; under a Lamport clock the observation times are compared.
      *
      * @param weatherUpdate The weather update to check.
      * @return {@code true} if the update is more recent, otherwise {@code false}.
      */
     public boolean isUpdateMoreRecent(WeatherUpdate weatherUpdate) {
+        if (logicalClock.tracksPhysicalTime()) {
+            return aggregatedWeatherUpdates.isLogicalTimestampMoreRecent(weatherUpdate);
+        }
         return aggregatedWeatherUpdates.isUpdateMoreRecent(weatherUpdate);
     }
 
@@ -76,13 +164,145 @@ public class AggregationServer {
     }
 
     /**
-     * Removes stale content server data and its associated data file.
+     * Retrieves the stations each content server currently feeds.
+     *
+     * @return The sorted station ids of every content server.
+     */
+    public Map<UUID, Set<String>> getStationsByContentServer() {
+        return aggregatedWeatherUpdates.getStationsByContentServer();
+    }
+
+    /**
+     * Retrieves how updates are persisted before a PUT is answered.
+     *
+     * @return The persistence mode.
+     */
+    public PersistenceMode getPersistenceMode() {
+        return dataManager.getPersistenceMode();
+    }
+
+    /**
+     * Retrieves the depth, coalescing and flush lag of the write-behind queue.
+     *
+     * @return The queue's metrics, or null when updates are not persisted write-behind.
+     */
+    public WriteBehindQueue.Metrics getWriteBehindMetrics() {
+        return dataManager.getWriteBehindMetrics();
+    }
+
+    /**
+     * Retrieves the encoded GET response for the most recent update of a given station.
+     *
+     * @param weatherStationId The ID of the weather station, or "recent".
+     * @return The complete response as UTF-8 bytes; must not be modified.
+     */
+    public byte[] getMostRecentUpdateResponse(String weatherStationId) {
+        return getMostRecentUpdateResponse(weatherStationId, null);
+    }
+
+    /**
+     * Retrieves the encoded GET response for the most recent update of a given station,
+     * or a 304 response if the client already holds that update.
+     *
+     * @param weatherStationId The ID of the weather station, or "recent".
+     * @param ifNoneMatch      The request's If-None-Match header, or null if it had none.
+     * @return The complete response as UTF-8 bytes; must not be modified.
+     */
+    public byte[] getMostRecentUpdateResponse(String weatherStationId, String ifNoneMatch) {
+        WeatherUpdate weatherUpdate = aggregatedWeatherUpdates.getMostRecentUpdate(weatherStationId);
+        if (weatherUpdate == null) {
+            throw new IllegalArgumentException("No weather data for station: " + weatherStationId);
+        }
+        return HTTPResponseHandler.getEncodedResponse(weatherUpdate, ifNoneMatch);
+    }
+
+    /**
+     * Waits for the most recent update of a given station to differ from the one the client
+     * holds, as named by its If-None-Match header. Completes at once if it already differs,
+     * and otherwise when a matching update arrives or the timeout passes. No thread is held
+     * while waiting.
+     *
+     * @param weatherStationId The ID of the weather station, or "recent".
+     * @param ifNoneMatch      The request's If-None-Match header, or null if it had none.
+     * @param timeoutMillis    How long to wait for a newer update.
+     * @return A future completed with the encoded response; a 304 response if nothing changed in time.
+     */
+    public CompletableFuture<byte[]> awaitUpdateResponse(String weatherStationId, String ifNoneMatch, long timeoutMillis) {
+        CompletableFuture<byte[]> response = new CompletableFuture<>();
+        awaitUpdateResponse(weatherStationId, ifNoneMatch, System.currentTimeMillis() + timeoutMillis, response);
+        return response;
+    }
+
+    private void awaitUpdateResponse(String weatherStationId, String ifNoneMatch, long deadlineMillis,
+                                     CompletableFuture<byte[]> response) {
+        // Registered before checking, so an update arriving in between still wakes the waiter
+        CompletableFuture<Void> nextUpdate = subscriptions.nextUpdate(weatherStationId);
+        long remainingMillis = deadlineMillis - System.currentTimeMillis();
+        boolean changed = completeIfChanged(weatherStationId, ifNoneMatch, response);
+        if (changed || remainingMillis <= 0) {
+            subscriptions.cancel(weatherStationId, nextUpdate);
+            if (!changed) {
+                response.complete(getNotModifiedResponse(weatherStationId));
+            }
+            return;
+        }
+        nextUpdate.orTimeout(remainingMillis, TimeUnit.MILLISECONDS).whenComplete((ignored, timeout) -> {
+            if (timeout == null) {
+                awaitUpdateResponse(weatherStationId, ifNoneMatch, deadlineMillis, response);
+                return;
+            }
+            subscriptions.cancel(weatherStationId, nextUpdate);
+            if (!completeIfChanged(weatherStationId, ifNoneMatch, response)) {
+                response.complete(getNotModifiedResponse(weatherStationId));
+            }
+        });
+    }
+
+    /**
+     * Completes a pending response with the station's most recent update, unless the client's
+     * If-None-Match header already names it.
+     *
+     * @return true if the response was completed.
+     */
+    private boolean completeIfChanged(String weatherStationId, String ifNoneMatch, CompletableFuture<byte[]> response) {
+        WeatherUpdate weatherUpdate = aggregatedWeatherUpdates.getMostRecentUpdate(weatherStationId);
+        if (weatherUpdate == null) {
+            return false;
+        }
+        byte[] encodedResponse = HTTPResponseHandler.getEncodedResponse(weatherUpdate, ifNoneMatch);
+        return encodedResponse != weatherUpdate.encodedNotModifiedResponse && response.complete(encodedResponse);
+    }
+
+    /**
+     * Builds the response for a wait which ended without a newer update: the 304 response of
+     * the station's current update, or a bare 304 if the station has no data yet.
+     */
+    private byte[] getNotModifiedResponse(String weatherStationId) {
+        WeatherUpdate weatherUpdate = aggregatedWeatherUpdates.getMostRecentUpdate(weatherStationId);
+        if (weatherUpdate == null) {
+            return HTTPResponseHandler.buildResponse(NOT_MODIFIED_STATUS_CODE, "").getBytes(StandardCharsets.UTF_8);
+        }
+        HTTPResponseHandler.getEncodedResponse(weatherUpdate);
+        return weatherUpdate.encodedNotModifiedResponse;
+    }
+
+    /**
+     * Counts the clients currently waiting for a weather update.
+     *
+     * @return The number of waiting clients.
+     */
+    public int getSubscriberCount() {
+        return subscriptions.getWaiterCount();
+    }
+
+    /**
+     * Removes stale content server data once its removal is durable; its data file is deleted
+     * by the next snapshot.
      *
      * @param uuid The UUID of the content server.
      */
     public void removeStaleContentServerData(UUID uuid) {
-        aggregatedWeatherUpdates.removeStaleContentServer(uuid);
-        dataManager.deleteContentServerDataFile(uuid);
+        dataManager.removeContentServer(this.aggregatedWeatherUpdates, uuid);
     }
 
     /**
@@ -122,18 +342,169 @@ public class AggregationServer {
      * @param argMap A map of command-line arguments.
      */
     private static void startAggregationServer(Map<String, String> argMap) {
-        Integer port = Integer.parseInt(argMap.getOrDefault("port", DEFAULT_PORT));
-        AggregationServer aggregationServer = new AggregationServer();
-        try (ServerSocket serverSocket = new ServerSocket(port);
-             HTTPRequestHandler httpRequestHandler = new HTTPRequestHandler(serverSocket, aggregationServer)) {
+        Integer port;
+        Integer poolSize;
+        ExecutionMode executionMode;
+        FsyncPolicy fsyncPolicy;
+        long fsyncInterval;
+        LogicalClock logicalClock;
+        long clockMaxOffset;
+        PersistenceMode persistenceMode;
+        int writeBehindQueue;
+        long writeBehindInterval;
+        int stationShards;
+        try {
+            port = Integer.parseInt(argMap.getOrDefault("port", DEFAULT_PORT));
+            poolSize = Integer.parseInt(argMap.getOrDefault("pool-size", DEFAULT_POOL_SIZE));
+            executionMode = parseExecutionMode(argMap.getOrDefault("engine", DEFAULT_ENGINE));
+            fsyncPolicy = parseFsyncPolicy(argMap.getOrDefault("fsync", DEFAULT_FSYNC));
+            fsyncInterval = Long.parseLong(argMap.getOrDefault("fsync-interval", DEFAULT_FSYNC_INTERVAL));
+            if (fsyncInterval < 0) {
+                throw new IllegalArgumentException("Fsync interval must not be negative: " + fsyncInterval);
+            }
+            clockMaxOffset = Long.parseLong(argMap.getOrDefault("clock-max-offset", DEFAULT_CLOCK_MAX_OFFSET));
+            if (clockMaxOffset < 0) {
+                throw new IllegalArgumentException("Clock max offset must not be negative: " + clockMaxOffset);
+            }
+            logicalClock = parseClock(argMap.getOrDefault("clock", DEFAULT_CLOCK), clockMaxOffset);
+            persistenceMode = parsePersistenceMode(argMap.getOrDefault("persistence", DEFAULT_PERSISTENCE));
+            writeBehindQueue = Integer.parseInt(argMap.getOrDefault("write-behind-queue", DEFAULT_WRITE_BEHIND_QUEUE));
+            if (writeBehindQueue < 1) {
+                throw new IllegalArgumentException("Write-behind queue must hold at least one update: " + writeBehindQueue);
+            }
+            writeBehindInterval = Long.parseLong(argMap.getOrDefault("write-behind-interval", DEFAULT_WRITE_BEHIND_INTERVAL));
+            if (writeBehindInterval < 0) {
+                throw new IllegalArgumentException("Write-behind interval must not be negative: " + writeBehindInterval);
+            }
+            stationShards = Integer.parseInt(argMap.getOrDefault("station-shards", DEFAULT_STATION_SHARDS));
+            if (stationShards < 1) {
+                throw new IllegalArgumentException("Station shard count must be positive: " + stationShards);
+            }
+        } catch (IllegalArgumentException iae) {
+            logger.log(Level.SEVERE, "Invalid server option", iae);
+            return;
+        }
+
+        AggregationServer aggregationServer = new AggregationServer(new DataManager(new IOUtility(), fsyncPolicy, fsyncInterval,
+                                                                                    persistenceMode, writeBehindQueue, writeBehindInterval,
+                                                                                    stationShards),
+                                                                        logicalClock);
+        try (ServerSocket serverSocket = openServerSocket(port, executionMode);
+             HTTPRequestHandler httpRequestHandler = new HTTPRequestHandler(serverSocket, aggregationServer,
+                                                                            executionMode, poolSize)) {
                 
                 httpRequestHandler.run();
-        } catch (NumberFormatException nfe) {
-            logger.log(Level.SEVERE, "Invalid port number", nfe);
         } catch (IOException ioe) {
             logger.log(Level.SEVERE, "Failed to initialize server socket", ioe);
+        } catch (UnsupportedOperationException uoe) {
+            logger.log(Level.SEVERE, "Selected engine is not available on this JVM: " + uoe.getMessage());
         } catch (Exception e) {
             logger.log(Level.SEVERE, "An unexpected error occurred", e);
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * Maps the {@code --engine} option onto an execution mode.
+     *
+     * @param engine The engine name given on the command line.
+     * @return The matching execution mode.
+     * @throws IllegalArgumentException if the engine name is unknown, or names virtual threads on a JVM without them.
+     */
+    private static ExecutionMode parseExecutionMode(String engine) {
+        switch (engine) {
+            case ENGINE_SELECTOR:
+                return ExecutionMode.SELECTOR;
+            case ENGINE_THREAD_POOL:
+                return ExecutionMode.THREAD_POOL;
+            case ENGINE_VIRTUAL_THREADS:
+                if (!HTTPServer.areVirtualThreadsSupported()) {
+                    throw new IllegalArgumentException("The " + ENGINE_VIRTUAL_THREADS + " engine requires Java "
+                                                       + HTTPServer.VIRTUAL_THREADS_JAVA_VERSION + " or later; this JVM is Java "
+                                                       + Runtime.version().feature() + ". Use --engine " + ENGINE_SELECTOR
+                                                       + " or " + ENGINE_THREAD_POOL + ".");
+                }
+                return ExecutionMode.VIRTUAL_THREADS;
+            default:
+                throw new IllegalArgumentException("Unknown engine: " + engine);
+        }
+    }
+
+    /**
+     * Maps the {@code --fsync} option onto a write-ahead log fsync policy.
+     *
+     * @param fsync The fsync mode given on the command line.
+     * @return The matching fsync policy.
+     * @throws IllegalArgumentException if the fsync mode is unknown.
+     */
+    private static FsyncPolicy parseFsyncPolicy(String fsync) {
+        switch (fsync) {
+            case FSYNC_PER_REQUEST:
+                return FsyncPolicy.PER_REQUEST;
+            case FSYNC_BATCHED:
+                return FsyncPolicy.BATCHED;
+            case FSYNC_OS:
+                return FsyncPolicy.OS;
+            default:
+                throw new IllegalArgumentException("Unknown fsync mode: " + fsync);
+        }
+    }
+
+    /**
+     * Maps the {@code --persistence} option onto how updates are persisted before a PUT is answered.
+     *
+     * @param persistence The persistence mode given on the command line.
+     * @return The matching persistence mode.
+     * @throws IllegalArgumentException if the persistence mode is unknown.
+     */
+    private static PersistenceMode parsePersistenceMode(String persistence) {
+        switch (persistence) {
+            case PERSISTENCE_WAL:
+                return PersistenceMode.WAL;
+            case PERSISTENCE_WRITE_BEHIND:
+                return PersistenceMode.WRITE_BEHIND;
+            default:
+                throw new IllegalArgumentException("Unknown persistence mode: " + persistence);
+        }
+    }
+
+    /**
+     * Maps the {@code --clock} option onto the logical clock PUT requests are ordered by.
+     *
+     * @param clock           The clock name given on the command line.
+     * @param maxOffsetMillis How far ahead of wall-clock time a hybrid timestamp may be.
+     * @return A new clock of the matching kind.
+     * @throws IllegalArgumentException if the clock name is unknown.
+     */
+    private static LogicalClock parseClock(String clock, long maxOffsetMillis) {
+        switch (clock) {
+            case CLOCK_LAMPORT:
+                return new LamportClock();
+            case CLOCK_HYBRID:
+                return new HybridLogicalClock(maxOffsetMillis);
+            default:
+                throw new IllegalArgumentException("Unknown clock: " + clock);
+        }
+    }
+
+    /**
+     * Opens the listening socket. The selector engine needs one backed by a non-blocking channel.
+     *
+     * @param port          The port to listen on.
+     * @param executionMode The execution mode the socket will be served with.
+     * @return The bound server socket.
+     * @throws IOException if the socket cannot be bound.
+     */
+    private static ServerSocket openServerSocket(int port, ExecutionMode executionMode) throws IOException {
+        if (executionMode != ExecutionMode.SELECTOR) {
+            return new ServerSocket(port);
+        }
+        ServerSocketChannel serverChannel = ServerSocketChannel.open();
+        try {
+            serverChannel.bind(new InetSocketAddress(port));
+        } catch (IOException e) {
+            serverChannel.close();
+            throw e;
+        }
+        return serverChannel.socket();
+    }
+}
@@ -4,21 +4,53 @@ public class AggregationServerConstants {
 
     // AGGREGATION SERVER DEFAULTS
     public static final String DEFAULT_PORT = "4567";
+    public static final String ENGINE_SELECTOR = "selector";
+    public static final String ENGINE_THREAD_POOL = "pool";
+    public static final String ENGINE_VIRTUAL_THREADS = "virtual";
+    public static final String DEFAULT_ENGINE = ENGINE_SELECTOR;
+    public static final String DEFAULT_POOL_SIZE = "10";
+    public static final String FSYNC_PER_REQUEST = "request";
+    public static final String FSYNC_BATCHED = "batch";
+    public static final String FSYNC_OS = "os";
+    public static final String DEFAULT_FSYNC = FSYNC_BATCHED;
+    public static final String DEFAULT_FSYNC_INTERVAL = "5"; // milliseconds
+    public static final String CLOCK_LAMPORT = "lamport";
+    public static final String CLOCK_HYBRID = "hlc";
+    public static final String DEFAULT_CLOCK = CLOCK_LAMPORT;
+    public static final String DEFAULT_CLOCK_MAX_OFFSET = "10000"; // milliseconds
+    public static final String PERSISTENCE_WAL = "wal";
+    public static final String PERSISTENCE_WRITE_BEHIND = "writebehind";
+    public static final String DEFAULT_PERSISTENCE = PERSISTENCE_WAL;
+    public static final String DEFAULT_WRITE_BEHIND_QUEUE = "10000"; // updates
+    public static final String DEFAULT_WRITE_BEHIND_INTERVAL = "1000"; // milliseconds
+    public static final String DEFAULT_STATION_SHARDS = "16";
     public static final String URI_PREFIX = "/data/";
     public static final String BASE_STORAGE_PATH = "src/main/resources";
     public static final String FILE_EXTENSION = ".weather";
+    public static final String TEMP_SUFFIX = ".tmp";
+    // The single station file written before stations were sharded, only read on startup
     public static final String STATION_FILE = BASE_STORAGE_PATH + URI_PREFIX + "weatherUpdatesByStation" + FILE_EXTENSION;
+    public static final String STATION_SHARD_DIRECTORY = BASE_STORAGE_PATH + URI_PREFIX + "stations/";
+    public static final String WAL_DIRECTORY = BASE_STORAGE_PATH + "/wal/";
+    public static final String QUARANTINE_DIRECTORY = BASE_STORAGE_PATH + "/quarantine/";
     public static final String PROGRAM_HELP_FILE_PATH = "/help/AggregationServerHelp.txt";
     public static final Integer MAX_CONTENT_SERVER_UPDATES = 20;
-    public static final Integer CLEANUP_SCHEDULE_INTERVAL = 15; // seconds
-    public static final Integer CLEANUP_SCHEDULE_DELAY = 10; // seconds
     public static final Integer STALE_DATA_THRESHOLD = 30; // seconds
+    public static final Integer SNAPSHOT_SCHEDULE_INTERVAL = 60; // seconds
+    public static final Integer SUBSCRIPTION_TIMEOUT = 30; // seconds
     // AGGREGATION HTTP STATUS CODES
     public static final String INTERNAL_SERVER_ERROR_STATUS_CODE = "500 Internal_server_error";
     public static final String METHOD_NOT_IMPLEMENTED_STATUS_CODE = "400 Method_not_implemented";
     public static final String EMPTY_REQUEST_BODY_STATUS_CODE = "204 Empty_Request_Body";
     public static final String HTTP_CREATED_STATUS_CODE = "201 HTTP_CREATED";
     public static final String OK_STATUS_CODE = "200 OK";
+    public static final String NOT_MODIFIED_STATUS_CODE = "304 Not_Modified";
+    public static final String SERVICE_UNAVAILABLE_STATUS_CODE = "503 Service_unavailable";
+    public static final String TIMESTAMP_AHEAD_STATUS_CODE = "400 Timestamp_ahead_of_clock";
+    // Statuses of individual items in a batch PUT
+    public static final String INVALID_WEATHER_DATA_STATUS_CODE = "400 Invalid_weather_data";
+    public static final String OUTDATED_UPDATE_STATUS_CODE = "409 Outdated_update";
+    public static final String SUPERSEDED_UPDATE_STATUS_CODE = "409 Superseded_update";
     // AGGREGATION SERVER RESPONSES
     public static final String HEARTBEAT_RESPONSE = "Aggregation Server successfully received heartbeat at ";
     public static final String SHUTDOWN_RESPONSE = "Aggregation Server successfully received shutdown request at ";
@@ -26,5 +58,7 @@ public class AggregationServerConstants {
     public static final String POST_RESPONSE = "Aggregation Server does not support POST requests";
     public static final String DELETE_RESPONSE = "Aggregation Server does not support DELETE requests";
     public static final String ERROR_RESPONSE = "Aggregation Server failed to process request at ";
+    public static final String BUSY_RESPONSE = "Aggregation Server is busy persisting updates, retry at ";
+    public static final String TIMESTAMP_AHEAD_RESPONSE = "Aggregation Server rejected a timestamp too far ahead of its clock at ";
 
 }
@@ -2,16 +2,31 @@ package au.edu.adelaide.aggregationserver;
 
 import static au.edu.adelaide.aggregationserver.AggregationServerConstants.*;
 
-import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.LinkedList;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Optional;
+import java.util.Set;
+import java.util.TreeMap;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
@@ -20,19 +35,112 @@ import java.util.logging.Logger;
 
 import au.edu.adelaide.aggregationserver.data.AggregatedWeatherUpdates;
 import au.edu.adelaide.aggregationserver.data.WeatherUpdate;
+import au.edu.adelaide.aggregationserver.data.WeatherUpdateHistory;
+import au.edu.adelaide.aggregationserver.persistence.MappedStationSnapshot;
+import au.edu.adelaide.aggregationserver.persistence.SnapshotRecovery;
+import au.edu.adelaide.aggregationserver.persistence.StationShards;
+import au.edu.adelaide.aggregationserver.persistence.WeatherRecordCodec;
+import au.edu.adelaide.aggregationserver.persistence.WriteBehindQueue;
+import au.edu.adelaide.aggregationserver.persistence.WriteAheadLog;
+import au.edu.adelaide.aggregationserver.persistence.WriteAheadLog.FsyncPolicy;
 import util.IOUtility;
 
 /**
  * Manages data related operations for the AggregationServer, such as loading, persisting, and cleanup tasks.
+ * Every change is appended to a write-ahead log as it is accepted; the per content server and station
+ * files are only rewritten as periodic snapshots, after which the log segments they cover are dropped.
+ * Content server files are written with {@link WeatherRecordCodec}. The stations are split
+ * between {@link StationShards} by the hash of their id, and only the shards holding a changed
+ * station are rewritten, in parallel, each as a {@link MappedStationSnapshot} which is mapped on
+ * startup so station data is only parsed when first used. Every file is written to a temporary
+ * file, fsynced and renamed into place. On startup the snapshot is loaded by {@link SnapshotRecovery}, which converts files
+ * left in the older Java serialization format and quarantines files it cannot read.
+ * <p>
+ * Each known content server has one pending expiry task on the scheduler, due when it becomes stale.
+ * Updates and heartbeats only move the content server's last-seen time; a task which finds the
+ * deadline moved reschedules itself for the new one, so expiry fires close to the threshold
+ * without scanning every content server.
+ * <p>
+ * A logged change is only applied to the in-memory data once the log batch holding it is durable,
+ * so readers never see an update which a failed write would lose. Changes wait in log order and
+ * are applied in that order by a single thread, or by a snapshot before it copies the data.
+ * <p>
+ * Under {@link PersistenceMode#WRITE_BEHIND}, updates are still appended to the write-ahead log but
+ * a PUT is not held until the log is durable. Each change is instead queued on a bounded
+ * {@link WriteBehindQueue}, whose writer rewrites the changed files every flush interval rather
+ * than every snapshot interval; a PUT arriving while the queue is full is rejected.
  */
 public class DataManager {
     private static final Logger LOGGER = Logger.getLogger(DataManager.class.getName());
     private IOUtility ioUtility;
     private boolean fileCreated = false;
     private ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(1);
+    // Applies changes once durable; never the log's committer, which a snapshot holding the persistence lock may wait for
+    private final ExecutorService applier = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "wal-apply");
+        thread.setDaemon(true);
+        return thread;
+    });
+    // Orders log appends with the in-memory changes they describe, so snapshots and the log agree
+    private final Object persistenceLock = new Object();
+    // Logged changes waiting for their batch to become durable, in log order
+    private final Deque<PendingChange> pendingChanges = new ArrayDeque<>();
+    private final Set<UUID> dirtyContentServers = new HashSet<>();
+    // Content servers with a pending expiry task
+    private final Set<UUID> scheduledExpiries = ConcurrentHashMap.newKeySet();
+    // Station shards changed since the last snapshot
+    private final BitSet dirtyStationShards = new BitSet();
+    // The ids of the stations in each shard, so a snapshot copies a changed shard without scanning every station
+    private final List<Set<String>> stationsByShard;
+    // Station files of an older layout, deleted once the next snapshot has written every shard
+    private final List<String> staleStationFiles = new ArrayList<>();
+    private final int stationShards;
+    // Where each kind of file is kept, under the storage directory
+    private final Path dataDirectory;
+    private final Path stationFile;
+    private final Path stationShardDirectory;
+    private final Path walDirectory;
+    private final Path quarantineDirectory;
+    // Held for a whole snapshot, so the write-behind writer and the scheduled snapshot never checkpoint past each other's files
+    private final Object snapshotLock = new Object();
+    private WriteAheadLog writeAheadLog;
+    private final FsyncPolicy fsyncPolicy;
+    private final long fsyncIntervalMillis;
+    private final PersistenceMode persistenceMode;
+    private final int writeBehindCapacity;
+    private final long writeBehindIntervalMillis;
+    private volatile WriteBehindQueue writeBehindQueue;
+
+    /**
+     * How accepted updates are persisted before a PUT is answered.
+     */
+    public enum PersistenceMode {
+        // Answered once the write-ahead log holding the update is durable
+        WAL,
+        // Answered once the update is applied and queued for the data files
+        WRITE_BEHIND
+    }
+
+    /**
+     * A logged change and what applying it to the in-memory data does.
+     */
+    private static final class PendingChange {
+        private final CompletableFuture<Void> durable;
+        // Only run holding the persistence lock
+        private final Runnable apply;
+        // The content servers whose updates the change applies
+        private final Set<UUID> updatedContentServers;
+        private final CompletableFuture<Void> applied = new CompletableFuture<>();
+
+        private PendingChange(CompletableFuture<Void> durable, Runnable apply, Set<UUID> updatedContentServers) {
+            this.durable = durable;
+            this.apply = apply;
+            this.updatedContentServers = updatedContentServers;
+        }
+    }
 
     public DataManager() {
-        this.ioUtility = new IOUtility();
+        this(new IOUtility());
     }
 
     /**
@@ -40,137 +148,633 @@ public class DataManager {
      * @param ioUtility An IOUtility instance for performing IO operations.
      */
     public DataManager(IOUtility ioUtility) {
+        this(ioUtility, FsyncPolicy.BATCHED, Long.parseLong(DEFAULT_FSYNC_INTERVAL));
+    }
+
+    /**
+     * Constructs a DataManager instance with the given durability settings.
+     * @param ioUtility           An IOUtility instance for performing IO operations.
+     * @param fsyncPolicy         When logged updates are forced to stable storage.
+     * @param fsyncIntervalMillis How long updates are gathered per fsync under {@link FsyncPolicy#BATCHED}.
+     */
+    public DataManager(IOUtility ioUtility, FsyncPolicy fsyncPolicy, long fsyncIntervalMillis) {
+        this(ioUtility, fsyncPolicy, fsyncIntervalMillis, PersistenceMode.WAL,
+             Integer.parseInt(DEFAULT_WRITE_BEHIND_QUEUE), Long.parseLong(DEFAULT_WRITE_BEHIND_INTERVAL),
+             Integer.parseInt(DEFAULT_STATION_SHARDS));
+    }
+
+    /**
+     * Constructs a DataManager instance with the given durability and persistence settings.
+     * @param ioUtility                 An IOUtility instance for performing IO operations.
+     * @param fsyncPolicy               When logged updates are forced to stable storage.
+     * @param fsyncIntervalMillis       How long updates are gathered per fsync under {@link FsyncPolicy#BATCHED}.
+     * @param persistenceMode           Whether PUTs wait for the write-ahead log or only for the write-behind queue.
+     * @param writeBehindCapacity       How many updates may wait for the write-behind writer.
+     * @param writeBehindIntervalMillis How long the write-behind writer gathers changes per flush.
+     * @param stationShards             How many files the stations are split between.
+     */
+    public DataManager(IOUtility ioUtility, FsyncPolicy fsyncPolicy, long fsyncIntervalMillis,
+                       PersistenceMode persistenceMode, int writeBehindCapacity, long writeBehindIntervalMillis,
+                       int stationShards) {
+        this(ioUtility, fsyncPolicy, fsyncIntervalMillis, persistenceMode, writeBehindCapacity, writeBehindIntervalMillis,
+             stationShards, Paths.get(BASE_STORAGE_PATH));
+    }
+
+    /**
+     * Constructs a DataManager instance keeping its files under the given storage directory
+     * rather than {@value AggregationServerConstants#BASE_STORAGE_PATH}.
+     * @param ioUtility                 An IOUtility instance for performing IO operations.
+     * @param fsyncPolicy               When logged updates are forced to stable storage.
+     * @param fsyncIntervalMillis       How long updates are gathered per fsync under {@link FsyncPolicy#BATCHED}.
+     * @param persistenceMode           Whether PUTs wait for the write-ahead log or only for the write-behind queue.
+     * @param writeBehindCapacity       How many updates may wait for the write-behind writer.
+     * @param writeBehindIntervalMillis How long the write-behind writer gathers changes per flush.
+     * @param stationShards             How many files the stations are split between.
+     * @param storageDirectory          The directory holding the data files and the write-ahead log.
+     */
+    public DataManager(IOUtility ioUtility, FsyncPolicy fsyncPolicy, long fsyncIntervalMillis,
+                       PersistenceMode persistenceMode, int writeBehindCapacity, long writeBehindIntervalMillis,
+                       int stationShards, Path storageDirectory) {
+        if (stationShards < 1) {
+            throw new IllegalArgumentException("Station shard count must be positive: " + stationShards);
+        }
         this.ioUtility = ioUtility;
+        this.fsyncPolicy = fsyncPolicy;
+        this.fsyncIntervalMillis = fsyncIntervalMillis;
+        this.persistenceMode = persistenceMode;
+        this.writeBehindCapacity = writeBehindCapacity;
+        this.writeBehindIntervalMillis = writeBehindIntervalMillis;
+        this.stationShards = stationShards;
+        this.stationsByShard = new ArrayList<>(stationShards);
+        for (int shard = 0; shard < stationShards; shard++) {
+            stationsByShard.add(new HashSet<>());
+        }
+        this.dataDirectory = underStorageDirectory(storageDirectory, BASE_STORAGE_PATH + URI_PREFIX);
+        this.stationFile = underStorageDirectory(storageDirectory, STATION_FILE);
+        this.stationShardDirectory = underStorageDirectory(storageDirectory, STATION_SHARD_DIRECTORY);
+        this.walDirectory = underStorageDirectory(storageDirectory, WAL_DIRECTORY);
+        this.quarantineDirectory = underStorageDirectory(storageDirectory, QUARANTINE_DIRECTORY);
     }
 
     /**
-     * Loads data for the AggregationServer.
+     * Moves one of the default storage paths under the given storage directory.
+     */
+    private static Path underStorageDirectory(Path storageDirectory, String defaultPath) {
+        return storageDirectory.resolve(Paths.get(BASE_STORAGE_PATH).relativize(Paths.get(defaultPath)));
+    }
+
+    /**
+     * Loads data for the AggregationServer: the last snapshot, then the write-ahead log over it.
      * @param aggregatedWeatherUpdates The container for the loaded data.
+     * @return What was recovered, with the time each phase of startup took.
      */
-    public void loadDataForAggregationServer(AggregatedWeatherUpdates aggregatedWeatherUpdates) {
-        loadContentServerData(aggregatedWeatherUpdates);
-        loadStationData(aggregatedWeatherUpdates);
+    public SnapshotRecovery.Report loadDataForAggregationServer(AggregatedWeatherUpdates aggregatedWeatherUpdates) {
+        SnapshotRecovery snapshotRecovery = new SnapshotRecovery(dataDirectory, stationFile, stationShardDirectory,
+                quarantineDirectory, Runtime.getRuntime().availableProcessors());
+        SnapshotRecovery.Report report = snapshotRecovery.recover(aggregatedWeatherUpdates);
+        indexStationShards(aggregatedWeatherUpdates);
+        findStaleStationFiles();
+        long phaseStart = System.nanoTime();
+        recoverFromWriteAheadLog(aggregatedWeatherUpdates);
+        report.recordPhase("write-ahead log", phaseStart);
+        LOGGER.log(report.quarantinedFiles.isEmpty() ? Level.INFO : Level.WARNING, report.toString());
+        return report;
     }
     
     /**
-     * Starts services for the AggregationServer.
+     * Starts expiring stale content servers, beginning with those loaded from storage.
      * @param aggregatedWeatherUpdates The container for the data.
      */
     public void startCleanupScheduler(AggregatedWeatherUpdates aggregatedWeatherUpdates) {
-        scheduler.scheduleAtFixedRate(() -> runCleanupTask(aggregatedWeatherUpdates), CLEANUP_SCHEDULE_DELAY, CLEANUP_SCHEDULE_INTERVAL, TimeUnit.SECONDS);
+        for (UUID contentServerUUID : aggregatedWeatherUpdates.contentServerUpdates.keySet()) {
+            scheduleExpiry(aggregatedWeatherUpdates, contentServerUUID);
+        }
     }
     
     /**
-     * Persists the newest data for a content server.
+     * Starts writing periodic snapshots, which keep the write-ahead log short, and under
+     * {@link PersistenceMode#WRITE_BEHIND} starts the writer flushing queued changes.
+     * @param aggregatedWeatherUpdates The container for the data.
+     */
+    public void startSnapshotScheduler(AggregatedWeatherUpdates aggregatedWeatherUpdates) {
+        if (persistenceMode == PersistenceMode.WRITE_BEHIND) {
+            writeBehindQueue = new WriteBehindQueue(writeBehindCapacity, writeBehindIntervalMillis,
+                                                    () -> writeSnapshot(aggregatedWeatherUpdates));
+        }
+        scheduler.scheduleAtFixedRate(() -> runSnapshotTask(aggregatedWeatherUpdates), SNAPSHOT_SCHEDULE_INTERVAL, SNAPSHOT_SCHEDULE_INTERVAL, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Returns the metrics of the write-behind queue.
+     * @return The queue's metrics, or null unless the persistence mode is {@link PersistenceMode#WRITE_BEHIND}.
+     */
+    public WriteBehindQueue.Metrics getWriteBehindMetrics() {
+        WriteBehindQueue queue = writeBehindQueue;
+        return queue == null ? null : queue.metrics();
+    }
+
+    public PersistenceMode getPersistenceMode() {
+        return persistenceMode;
+    }
+
+    /**
+     * Logs a new weather update, waits until the log batch holding it is durable and applies it
+     * to the in-memory data. Concurrent callers share one write and fsync.
      *
-     * @param aggregatedWeatherUpdates Data that needs to be persisted.
-     * @param contentServerUUID        The UUID of the content server.
-     * @param ioUtility                The utility to perform IO operations.
-     * @throws IOException If an I/O error occurs.
+     * @param aggregatedWeatherUpdates The container the update is added to.
+     * @param weatherUpdate            The accepted weather update.
+     * @throws IOException If the update cannot be written to the write-ahead log.
      */
-    public void persistNewestData(AggregatedWeatherUpdates aggregatedWeatherUpdates, UUID contentServerUUID) throws IOException {
-        String serverSpecificFile = buildFilePath(contentServerUUID);
-        
-        fileCreated = ioUtility.createFileIfNotExists(serverSpecificFile);
+    public void recordUpdate(AggregatedWeatherUpdates aggregatedWeatherUpdates, WeatherUpdate weatherUpdate) throws IOException {
+        recordUpdates(aggregatedWeatherUpdates, Collections.singletonList(weatherUpdate));
+    }
 
-        // Persist the newest data for the content server.
-        ioUtility.saveToFile(aggregatedWeatherUpdates.contentServerUpdates.get(contentServerUUID), serverSpecificFile);
-        ioUtility.saveToFile(aggregatedWeatherUpdates.mostRecentUpdatesByStation, STATION_FILE);
+    /**
+     * Logs a batch of weather updates as one group in the same log batch, waits once until they
+     * are durable and applies them to the in-memory data in order.
+     *
+     * @param aggregatedWeatherUpdates The container the updates are added to.
+     * @param weatherUpdates           The accepted weather updates, in the order they were received.
+     * @throws IOException If the updates cannot be written to the write-ahead log.
+     */
+    public void recordUpdates(AggregatedWeatherUpdates aggregatedWeatherUpdates, List<WeatherUpdate> weatherUpdates) throws IOException {
+        WriteAheadLog.awaitDurable(recordUpdatesAsync(aggregatedWeatherUpdates, weatherUpdates));
     }
 
     /**
-     * Deletes the data file for a given content server.
-     * @param contentServerUUID The UUID of the content server.
+     * Logs a batch of weather updates like {@link #recordUpdates}, but returns without waiting
+     * for them to become durable. The updates are applied to the in-memory data, after every
+     * change logged before them, once the log batch holding them is durable; if it cannot be
+     * written they are never applied. Under {@link PersistenceMode#WRITE_BEHIND} the updates
+     * are instead applied and queued for the writer at once, and the returned future is
+     * already complete.
+     *
+     * @param aggregatedWeatherUpdates The container the updates are added to.
+     * @param weatherUpdates           The accepted weather updates, in the order they were received.
+     * @return A future completed once the updates are durable and applied.
+     * @throws IOException If the log is not accepting records, or the write-behind queue is full,
+     *                     in which case the updates are not applied.
      */
-    public void deleteContentServerDataFile(UUID contentServerUUID) {
-        String filePath = BASE_STORAGE_PATH + URI_PREFIX + contentServerUUID + FILE_EXTENSION;
-        try {
-            ioUtility.deleteFile(filePath);
-        } catch (Exception e) {
-            LOGGER.log(Level.WARNING, "An error occurred while deleting file: " + filePath, e);
+    public CompletableFuture<Void> recordUpdatesAsync(AggregatedWeatherUpdates aggregatedWeatherUpdates, List<WeatherUpdate> weatherUpdates) throws IOException {
+        if (weatherUpdates.isEmpty()) {
+            return CompletableFuture.completedFuture(null);
         }
+        Set<UUID> contentServers = new HashSet<>();
+        for (WeatherUpdate weatherUpdate : weatherUpdates) {
+            contentServers.add(weatherUpdate.contentServerUUID);
+        }
+        Runnable apply = () -> {
+            for (WeatherUpdate weatherUpdate : weatherUpdates) {
+                aggregatedWeatherUpdates.addUpdate(weatherUpdate, weatherUpdate.weatherStationId);
+                dirtyContentServers.add(weatherUpdate.contentServerUUID);
+                markStationDirty(weatherUpdate.weatherStationId);
+            }
+            // Scheduled once applied, since an expiry finding no data for its content server is dropped
+            for (UUID contentServerUUID : contentServers) {
+                scheduleExpiry(aggregatedWeatherUpdates, contentServerUUID);
+            }
+        };
+        WriteBehindQueue queue = writeBehindQueue;
+        CompletableFuture<Void> applied;
+        synchronized (persistenceLock) {
+            WriteAheadLog log = requireWriteAheadLog();
+            UUID firstContentServer = weatherUpdates.get(0).contentServerUUID;
+            fileCreated = !aggregatedWeatherUpdates.contentServerUpdates.containsKey(firstContentServer)
+                          && !hasPendingUpdates(firstContentServer);
+            if (queue != null) {
+                // Room is taken before logging, so a rejected PUT is never replayed
+                queue.reserve(weatherUpdates.size());
+                CompletableFuture<Void> durable;
+                try {
+                    durable = log.appendUpdates(weatherUpdates);
+                } catch (IOException | RuntimeException e) {
+                    queue.release(weatherUpdates.size());
+                    throw e;
+                }
+                apply.run();
+                queue.enqueueReserved(contentServers, weatherUpdates.size());
+                durable.exceptionally(e -> {
+                    LOGGER.log(Level.WARNING, "Failed to log write-behind updates", e);
+                    return null;
+                });
+                applied = CompletableFuture.completedFuture(null);
+            } else {
+                applied = addPendingChange(log.appendUpdates(weatherUpdates), apply, contentServers);
+            }
+        }
+        return applied;
     }
 
-    private void loadStationData(AggregatedWeatherUpdates aggregatedWeatherUpdates) {
-        try {
-            Object loadedData = ioUtility.loadFromFile(STATION_FILE);
-            if(loadedData instanceof Map) {
-                @SuppressWarnings("unchecked")
-                Map<String, WeatherUpdate> stationUpdates = (Map<String, WeatherUpdate>) loadedData;
-                Optional.ofNullable(stationUpdates)
-                        .ifPresent(updates -> aggregatedWeatherUpdates.mostRecentUpdatesByStation = updates);
-            } else {
-                LOGGER.log(Level.WARNING, "Unexpected data type loaded from file: " + STATION_FILE);
+    /**
+     * Queues a logged change to be applied once it is durable. Must be called holding the
+     * persistence lock, in the order the changes were logged.
+     *
+     * @return A future completed once the change is applied, or with the error which kept its batch from being written.
+     */
+    private CompletableFuture<Void> addPendingChange(CompletableFuture<Void> durable, Runnable apply, Set<UUID> updatedContentServers) {
+        PendingChange change = new PendingChange(durable, apply, updatedContentServers);
+        pendingChanges.add(change);
+        durable.whenCompleteAsync((ignored, e) -> runApplyTask(), applier);
+        return change.applied;
+    }
+
+    /**
+     * Checks whether logged updates from a content server are still waiting to be applied.
+     * Must be called holding the persistence lock.
+     */
+    private boolean hasPendingUpdates(UUID contentServerUUID) {
+        return lastPendingUpdate(contentServerUUID) != null;
+    }
+
+    /**
+     * Finds the last logged change with updates from a content server which is still waiting to
+     * be applied. Must be called holding the persistence lock.
+     *
+     * @return A future completed once the change is applied or dropped, or null if there is none.
+     */
+    private CompletableFuture<Void> lastPendingUpdate(UUID contentServerUUID) {
+        CompletableFuture<Void> last = null;
+        for (PendingChange change : pendingChanges) {
+            if (change.updatedContentServers.contains(contentServerUUID)) {
+                last = change.applied;
             }
-        } catch (FileNotFoundException fnf) {
-            LOGGER.log(Level.INFO, "No station data found. Skipping load.");
-        } catch (Exception e) {
-            LOGGER.log(Level.WARNING, "An unexpected error occurred while loading station data: " + STATION_FILE);
         }
+        return last;
     }
 
-    private void loadContentServerData(AggregatedWeatherUpdates aggregatedWeatherUpdates) {
-        File serverDataDir = new File(BASE_STORAGE_PATH + URI_PREFIX);
-        if (serverDataDir.exists() && serverDataDir.isDirectory()) {
-            Optional.ofNullable(serverDataDir.listFiles())
-                    .ifPresent(files -> processFiles(files, aggregatedWeatherUpdates));
+    /**
+     * Applies, in log order, the pending changes whose batches are durable, and drops those
+     * whose batches failed. Must be called holding the persistence lock; the returned changes
+     * are completed with {@link #completeAppliedChanges} once it is released.
+     *
+     * @return The changes taken from the pending queue.
+     */
+    private List<PendingChange> applyDurableChanges() {
+        List<PendingChange> finished = new ArrayList<>();
+        // Batches are written in order, so a batch still being written holds back every later change
+        while (!pendingChanges.isEmpty() && pendingChanges.peek().durable.isDone()) {
+            PendingChange change = pendingChanges.poll();
+            if (!change.durable.isCompletedExceptionally()) {
+                change.apply.run();
+            }
+            finished.add(change);
+        }
+        return finished;
+    }
+
+    private static void completeAppliedChanges(List<PendingChange> changes) {
+        for (PendingChange change : changes) {
+            change.durable.whenComplete((ignored, e) -> {
+                if (e == null) {
+                    change.applied.complete(null);
+                } else {
+                    change.applied.completeExceptionally(e);
+                }
+            });
         }
     }
 
-    private void processFiles(File[] files, AggregatedWeatherUpdates aggregatedWeatherUpdates) {
-        for (File file : files) {
-            String uuidStr = file.getName().replace(FILE_EXTENSION, "");
+    private void runApplyTask() {
+        List<PendingChange> finished;
+        synchronized (persistenceLock) {
+            finished = applyDurableChanges();
+        }
+        completeAppliedChanges(finished);
+    }
+
+    /**
+     * Logs the removal of a content server and, once the removal is durable, removes its data
+     * from memory. Its data file is deleted by the next snapshot, as a version of the file like
+     * any other, so a snapshot written before the removal never brings it back.
+     *
+     * @param aggregatedWeatherUpdates The container the content server is removed from.
+     * @param contentServerUUID        The UUID of the content server.
+     */
+    public void removeContentServer(AggregatedWeatherUpdates aggregatedWeatherUpdates, UUID contentServerUUID) {
+        removeContentServer(aggregatedWeatherUpdates, contentServerUUID, false);
+    }
+
+    /**
+     * Removes a content server, optionally only if it is still stale once PUTs are held off.
+     *
+     * @return true if the content server was removed.
+     */
+    private boolean removeContentServer(AggregatedWeatherUpdates aggregatedWeatherUpdates, UUID contentServerUUID, boolean onlyIfStale) {
+        CompletableFuture<Void> removed = null;
+        Runnable apply;
+        synchronized (persistenceLock) {
+            // An update may have arrived since the content server was found to be stale
+            if (onlyIfStale && (!aggregatedWeatherUpdates.isContentServerStale(contentServerUUID)
+                                || hasPendingUpdates(contentServerUUID))) {
+                return false;
+            }
+            apply = () -> {
+                for (String weatherStationId : aggregatedWeatherUpdates.getContentServerStations(contentServerUUID)) {
+                    markStationDirty(weatherStationId);
+                }
+                aggregatedWeatherUpdates.removeStaleContentServer(contentServerUUID);
+                // Kept dirty so a snapshot racing with this removal deletes the file again
+                dirtyContentServers.add(contentServerUUID);
+            };
+            CompletableFuture<Void> durable = null;
+            try {
+                durable = requireWriteAheadLog().appendContentServerRemoval(contentServerUUID);
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Failed to log removal of content server: " + contentServerUUID, e);
+            }
+            if (durable != null && persistenceMode == PersistenceMode.WAL) {
+                // Applied after the updates logged before it
+                removed = addPendingChange(durable, apply, Collections.emptySet());
+            } else {
+                apply.run();
+            }
+        }
+        if (removed != null) {
             try {
-                UUID serverUuid = UUID.fromString(uuidStr);
-                Object loadedData = ioUtility.loadFromFile(file.getAbsolutePath());
-                
-                if(loadedData instanceof LinkedList) {
-                    @SuppressWarnings("unchecked")
-                    LinkedList<WeatherUpdate> updates = (LinkedList<WeatherUpdate>) loadedData;
-                    Optional.ofNullable(updates)
-                            .ifPresent(updateList -> {
-                                aggregatedWeatherUpdates.contentServerUpdates.put(serverUuid, updateList);
-                                LOGGER.log(Level.INFO, "Loaded content server data for: " + serverUuid);
-                            });
+                WriteAheadLog.awaitDurable(removed);
+            } catch (IOException e) {
+                // Removed from memory anyway, as when the removal cannot be appended; after a restart it expires again
+                LOGGER.log(Level.WARNING, "Failed to log removal of content server: " + contentServerUUID, e);
+                synchronized (persistenceLock) {
+                    apply.run();
+                }
+            }
+        }
+        WriteBehindQueue queue = writeBehindQueue;
+        if (queue != null) {
+            try {
+                queue.enqueue(Collections.singleton(contentServerUUID), 1);
+            } catch (WriteBehindQueue.QueueFullException e) {
+                // The content server and its stations' shards are still marked dirty, so the next flush or snapshot writes them
+                LOGGER.log(Level.FINE, "Write-behind queue full; removal of " + contentServerUUID + " left to the next flush");
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Writes the content server files and station shards changed since the last snapshot, then
+     * checkpoints the write-ahead log so the segments they cover can be deleted. Snapshots are
+     * written one at a time: a later snapshot checkpointing while an earlier one was still writing
+     * its files would delete the only log records of the changes those files hold.
+     *
+     * @param aggregatedWeatherUpdates The data to snapshot.
+     * @return The number of files written or deleted.
+     * @throws IOException If the snapshot or checkpoint cannot be written.
+     */
+    public int writeSnapshot(AggregatedWeatherUpdates aggregatedWeatherUpdates) throws IOException {
+        synchronized (snapshotLock) {
+            return writeSnapshotFiles(aggregatedWeatherUpdates);
+        }
+    }
+
+    /**
+     * Writes one snapshot. Must be called holding the snapshot lock.
+     */
+    private int writeSnapshotFiles(AggregatedWeatherUpdates aggregatedWeatherUpdates) throws IOException {
+        long firstNeededSegment;
+        Map<UUID, WeatherUpdateHistory> contentServerSnapshot = new HashMap<>();
+        Set<UUID> removedContentServers = new HashSet<>();
+        Map<Integer, Map<String, WeatherUpdate>> shardSnapshots = new TreeMap<>();
+        List<String> staleFiles;
+        List<PendingChange> appliedChanges;
+        synchronized (persistenceLock) {
+            if (writeAheadLog == null || (dirtyContentServers.isEmpty() && dirtyStationShards.isEmpty())) {
+                return 0;
+            }
+            firstNeededSegment = writeAheadLog.rollSegment();
+            // Rolling wrote every pending batch, so the changes in the covered segments are applied before copying
+            appliedChanges = applyDurableChanges();
+            for (UUID uuid : dirtyContentServers) {
+                // Histories serialize a consistent copy of themselves, so they are written without copying here
+                WeatherUpdateHistory updates = aggregatedWeatherUpdates.contentServerUpdates.get(uuid);
+                if (updates != null) {
+                    contentServerSnapshot.put(uuid, updates);
                 } else {
-                    LOGGER.log(Level.WARNING, "Unexpected data type loaded from file: " + file.getAbsolutePath());
+                    removedContentServers.add(uuid);
+                }
+            }
+            for (int shard = dirtyStationShards.nextSetBit(0); shard >= 0; shard = dirtyStationShards.nextSetBit(shard + 1)) {
+                Map<String, WeatherUpdate> shardSnapshot = new LinkedHashMap<>();
+                Iterator<String> weatherStationIds = stationsByShard.get(shard).iterator();
+                while (weatherStationIds.hasNext()) {
+                    String weatherStationId = weatherStationIds.next();
+                    WeatherUpdate weatherUpdate = aggregatedWeatherUpdates.mostRecentUpdatesByStation.get(weatherStationId);
+                    if (weatherUpdate != null) {
+                        shardSnapshot.put(weatherStationId, weatherUpdate);
+                    } else {
+                        // Every content server which fed the station was removed
+                        weatherStationIds.remove();
+                    }
                 }
-            } catch (Exception e) {
-                LOGGER.log(Level.WARNING, "Skipping file with invalid UUID: " + file.getName());
+                shardSnapshots.put(shard, shardSnapshot);
             }
+            // Older station files are only deleted by a snapshot writing every shard
+            staleFiles = shardSnapshots.size() == stationShards ? new ArrayList<>(staleStationFiles) : Collections.emptyList();
+            staleStationFiles.removeAll(staleFiles);
+            dirtyContentServers.clear();
+            dirtyStationShards.clear();
+        }
+        completeAppliedChanges(appliedChanges);
+
+        // Files are written outside the lock so PUT requests are not held up by the snapshot.
+        // They must be durable before the checkpoint drops the log segments they replace.
+        // Each file is replaced by a rename, so a crash never leaves it half-written, and carries
+        // the snapshot's segment as its version, so it is never replaced by an older copy.
+        boolean sync = fsyncPolicy != FsyncPolicy.OS;
+        try {
+            Files.createDirectories(dataDirectory);
+            for (Map.Entry<UUID, WeatherUpdateHistory> entry : contentServerSnapshot.entrySet()) {
+                ioUtility.replaceFileWithBytes(WeatherRecordCodec.encodeHistory(entry.getValue()), buildFilePath(entry.getKey()),
+                                               sync, firstNeededSegment);
+            }
+            for (UUID uuid : removedContentServers) {
+                ioUtility.deleteFile(buildFilePath(uuid), sync, firstNeededSegment);
+            }
+            repairDamagedStations(aggregatedWeatherUpdates, writeStationShards(shardSnapshots, sync, firstNeededSegment));
+            for (String staleFile : staleFiles) {
+                ioUtility.deleteFile(staleFile, sync, firstNeededSegment);
+            }
+            writeAheadLog.checkpoint(firstNeededSegment);
+            return contentServerSnapshot.size() + removedContentServers.size() + shardSnapshots.size() + staleFiles.size();
+        } catch (IOException e) {
+            synchronized (persistenceLock) {
+                dirtyContentServers.addAll(contentServerSnapshot.keySet());
+                dirtyContentServers.addAll(removedContentServers);
+                for (int shard : shardSnapshots.keySet()) {
+                    dirtyStationShards.set(shard);
+                }
+                staleStationFiles.addAll(staleFiles);
+            }
+            throw e;
+        } finally {
+            ioUtility.forgetVersionsBefore(Long.MAX_VALUE);
         }
     }
 
-    private void runCleanupTask(AggregatedWeatherUpdates aggregatedWeatherUpdates) {
-        LOGGER.log(Level.INFO, "Running cleanup task");
+    /**
+     * Writes station shards in parallel, deleting the file of a shard left without stations.
+     *
+     * @return The entries left out because their stored data was damaged, keyed by station id.
+     */
+    private Map<String, WeatherUpdate> writeStationShards(Map<Integer, Map<String, WeatherUpdate>> shardSnapshots, boolean sync, long version) throws IOException {
+        Map<String, WeatherUpdate> damagedStations = new ConcurrentHashMap<>();
+        if (shardSnapshots.isEmpty()) {
+            return damagedStations;
+        }
+        Files.createDirectories(stationShardDirectory);
+        List<CompletableFuture<Void>> writes = new ArrayList<>();
+        for (Map.Entry<Integer, Map<String, WeatherUpdate>> entry : shardSnapshots.entrySet()) {
+            String shardFile = stationShardDirectory.resolve(StationShards.fileName(entry.getKey(), stationShards)).toString();
+            writes.add(CompletableFuture.runAsync(() -> {
+                try {
+                    List<String> damaged = new ArrayList<>();
+                    byte[] shard = MappedStationSnapshot.encode(entry.getValue(), damaged);
+                    if (damaged.size() == entry.getValue().size()) {
+                        ioUtility.deleteFile(shardFile, sync, version);
+                    } else {
+                        // Replaced by a rename, since the file loaded at startup may still be mapped
+                        ioUtility.replaceFileWithBytes(shard, shardFile, sync, version);
+                    }
+                    for (String weatherStationId : damaged) {
+                        damagedStations.put(weatherStationId, entry.getValue().get(weatherStationId));
+                    }
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }));
+        }
         try {
-            removeStaleContentServers(aggregatedWeatherUpdates);
-            clearStationDataIfNeeded(aggregatedWeatherUpdates);
-        } catch (Exception e) {
-            LOGGER.log(Level.SEVERE, "An error occurred during the cleanup task.", e);
+            CompletableFuture.allOf(writes.toArray(new CompletableFuture<?>[0])).join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof UncheckedIOException) {
+                throw ((UncheckedIOException) e.getCause()).getCause();
+            }
+            throw e;
         }
+        return damagedStations;
     }
-    
-    private List<UUID> removeStaleContentServers(AggregatedWeatherUpdates aggregatedWeatherUpdates) {
-        List<UUID> staleContentServers = aggregatedWeatherUpdates.getStaleContentServerUUIDs();
-    
-        for(UUID uuid : staleContentServers) {
-            try {
-                LOGGER.log(Level.INFO, "Removing stale content server data for: " + uuid);
-                aggregatedWeatherUpdates.removeStaleContentServer(uuid);
-                ioUtility.deleteFile(buildFilePath(uuid));
-            } catch (Exception e) {
-                LOGGER.log(Level.WARNING, "An error occurred while removing stale content server data for: " + uuid, e);
+
+    /**
+     * Rebuilds the entries of stations whose stored data was damaged from the content server
+     * histories, and marks them changed so the next snapshot writes the rebuilt entries.
+     */
+    private void repairDamagedStations(AggregatedWeatherUpdates aggregatedWeatherUpdates, Map<String, WeatherUpdate> damagedStations) {
+        if (damagedStations.isEmpty()) {
+            return;
+        }
+        synchronized (persistenceLock) {
+            for (Map.Entry<String, WeatherUpdate> entry : damagedStations.entrySet()) {
+                WeatherUpdate repaired = aggregatedWeatherUpdates.repairStationUpdate(entry.getKey(), entry.getValue());
+                LOGGER.log(Level.WARNING, "Damaged data for station " + entry.getKey() + " left out of the snapshot; "
+                        + (repaired == null ? "station removed" : "entry restored from sequence number " + repaired.sequenceNumber));
+                markStationDirty(entry.getKey());
             }
         }
-        
-        return staleContentServers;
     }
-    
-    private void clearStationDataIfNeeded(AggregatedWeatherUpdates aggregatedWeatherUpdates) throws IOException {
-        if (Files.exists(Paths.get(STATION_FILE)) && aggregatedWeatherUpdates.mostRecentUpdatesByStation.isEmpty()) {
-            LOGGER.log(Level.INFO, "No content servers exist. Clearing station data");
-            ioUtility.deleteFile(STATION_FILE);
+
+    /**
+     * Marks the shard holding a station as changed. Must be called holding the persistence lock.
+     */
+    private void markStationDirty(String weatherStationId) {
+        int shard = StationShards.shardOf(weatherStationId, stationShards);
+        stationsByShard.get(shard).add(weatherStationId);
+        dirtyStationShards.set(shard);
+    }
+
+    /**
+     * Records the shard of every station loaded from the snapshot. Stations added later are
+     * recorded as they are marked changed.
+     */
+    private void indexStationShards(AggregatedWeatherUpdates aggregatedWeatherUpdates) {
+        synchronized (persistenceLock) {
+            for (String weatherStationId : aggregatedWeatherUpdates.mostRecentUpdatesByStation.keySet()) {
+                stationsByShard.get(StationShards.shardOf(weatherStationId, stationShards)).add(weatherStationId);
+            }
+        }
+    }
+
+    /**
+     * Finds station files written with another layout: the single station file of older
+     * versions and shards written with another shard count. When there are any, every shard is
+     * marked changed so the next snapshot writes the current layout in full and deletes them.
+     */
+    private void findStaleStationFiles() {
+        synchronized (persistenceLock) {
+            if (Files.exists(stationFile)) {
+                staleStationFiles.add(stationFile.toString());
+            }
+            Set<String> shardFiles = new HashSet<>();
+            for (int shard = 0; shard < stationShards; shard++) {
+                shardFiles.add(StationShards.fileName(shard, stationShards));
+            }
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(stationShardDirectory, "*" + FILE_EXTENSION)) {
+                for (Path file : files) {
+                    if (!shardFiles.contains(file.getFileName().toString())) {
+                        staleStationFiles.add(file.toString());
+                    }
+                }
+            } catch (NoSuchFileException e) {
+                // No shards written yet
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Failed to list station directory: " + stationShardDirectory, e);
+            }
+            if (!staleStationFiles.isEmpty()) {
+                LOGGER.log(Level.INFO, "Rewriting stations into " + stationShards + " shard(s), replacing " + staleStationFiles);
+                dirtyStationShards.set(0, stationShards);
+            }
+        }
+    }
+
+    /**
+     * Schedules the expiry of a content server unless one is already pending.
+     */
+    private void scheduleExpiry(AggregatedWeatherUpdates aggregatedWeatherUpdates, UUID contentServerUUID) {
+        if (scheduledExpiries.add(contentServerUUID)) {
+            scheduleExpiryAt(aggregatedWeatherUpdates, contentServerUUID,
+                             aggregatedWeatherUpdates.getStaleAtMillis(contentServerUUID));
+        }
+    }
+
+    private void scheduleExpiryAt(AggregatedWeatherUpdates aggregatedWeatherUpdates, UUID contentServerUUID, long staleAtMillis) {
+        long delayMillis = Math.max(0, staleAtMillis - System.currentTimeMillis());
+        scheduler.schedule(() -> runExpiryTask(aggregatedWeatherUpdates, contentServerUUID), delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void runExpiryTask(AggregatedWeatherUpdates aggregatedWeatherUpdates, UUID contentServerUUID) {
+        try {
+            long staleAtMillis = aggregatedWeatherUpdates.getStaleAtMillis(contentServerUUID);
+            if (staleAtMillis > System.currentTimeMillis()) {
+                // Contact was made since this task was scheduled
+                scheduleExpiryAt(aggregatedWeatherUpdates, contentServerUUID, staleAtMillis);
+                return;
+            }
+            CompletableFuture<Void> pending;
+            synchronized (persistenceLock) {
+                pending = lastPendingUpdate(contentServerUUID);
+            }
+            if (pending != null) {
+                // Retried once the updates are applied or dropped, rather than at once until then
+                pending.whenComplete((ignored, e) -> scheduleExpiryAt(aggregatedWeatherUpdates, contentServerUUID, 0));
+                return;
+            }
+            if (staleAtMillis >= 0) {
+                if (removeContentServer(aggregatedWeatherUpdates, contentServerUUID, true)) {
+                    LOGGER.log(Level.INFO, "Removed stale content server data for: " + contentServerUUID);
+                } else {
+                    // An update arrived just before the removal
+                    scheduleExpiryAt(aggregatedWeatherUpdates, contentServerUUID,
+                                     aggregatedWeatherUpdates.getStaleAtMillis(contentServerUUID));
+                    return;
+                }
+            }
+        } catch (Exception e) {
+            LOGGER.log(Level.WARNING, "An error occurred while removing stale content server data for: " + contentServerUUID, e);
+        }
+        scheduledExpiries.remove(contentServerUUID);
+        // An update which arrived while this task was finishing found it still pending
+        if (aggregatedWeatherUpdates.contentServerUpdates.containsKey(contentServerUUID)) {
+            scheduleExpiry(aggregatedWeatherUpdates, contentServerUUID);
         }
     }
 
@@ -181,7 +785,53 @@ public class DataManager {
      * @return Path as a string.
      */
     private String buildFilePath(UUID contentServerUUID) {
-        return BASE_STORAGE_PATH + URI_PREFIX + contentServerUUID + FILE_EXTENSION;
+        return dataDirectory.resolve(contentServerUUID + FILE_EXTENSION).toString();
+    }
+
+    /**
+     * Replays the write-ahead log over the loaded snapshot. Records already contained in the
+     * snapshot are recognised by their sequence numbers and skipped.
+     */
+    private void recoverFromWriteAheadLog(AggregatedWeatherUpdates aggregatedWeatherUpdates) {
+        try {
+            writeAheadLog = WriteAheadLog.open(walDirectory.toString(), fsyncPolicy, fsyncIntervalMillis);
+            writeAheadLog.replay(new WriteAheadLog.RecordHandler() {
+                @Override
+                public void onUpdate(WeatherUpdate weatherUpdate) {
+                    aggregatedWeatherUpdates.replayUpdate(weatherUpdate);
+                    dirtyContentServers.add(weatherUpdate.contentServerUUID);
+                    markStationDirty(weatherUpdate.weatherStationId);
+                }
+
+                @Override
+                public void onContentServerRemoved(long sequenceNumber, UUID contentServerUUID) {
+                    for (String weatherStationId : aggregatedWeatherUpdates.getContentServerStations(contentServerUUID)) {
+                        markStationDirty(weatherStationId);
+                    }
+                    aggregatedWeatherUpdates.replayContentServerRemoval(contentServerUUID, sequenceNumber);
+                    dirtyContentServers.add(contentServerUUID);
+                }
+            });
+            writeAheadLog.startNewSegment();
+        } catch (IOException e) {
+            LOGGER.log(Level.SEVERE, "Failed to open write-ahead log: " + walDirectory, e);
+            writeAheadLog = null;
+        }
+    }
+
+    private void runSnapshotTask(AggregatedWeatherUpdates aggregatedWeatherUpdates) {
+        try {
+            writeSnapshot(aggregatedWeatherUpdates);
+        } catch (Exception e) {
+            LOGGER.log(Level.SEVERE, "An error occurred while writing the data snapshot.", e);
+        }
+    }
+
+    private WriteAheadLog requireWriteAheadLog() throws IOException {
+        if (writeAheadLog == null) {
+            throw new IOException("Write-ahead log unavailable");
+        }
+        return writeAheadLog;
     }
 
     public boolean wasNewFileCreated() {
@@ -3,44 +3,349 @@ package au.edu.adelaide.aggregationserver.data;
 import static au.edu.adelaide.aggregationserver.AggregationServerConstants.*;
 
 import java.io.Serializable;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.stream.Collectors;
-import java.util.LinkedList;
 import java.util.List;
-import java.util.LinkedHashMap;
-import java.time.ZonedDateTime;
 
 
+/**
+ * Thread-safe store of the weather updates received from every content server.
+ * Both maps are concurrent, so GET requests never block. Every change belonging to one content
+ * server runs inside {@link ConcurrentHashMap#compute} on its history entry, so adding and
+ * removing data for the same content server never interleave, while different content servers
+ * proceed in parallel. Running inside compute also gives each history a single writer, so
+ * readers copy histories without locking.
+ * <p>
+ * The current entry of every station is also indexed by {@link Recency} in a skip list, and a
+ * single reference points at the globally newest one, so a "recent" request is one volatile read.
+ * Each station entry is replaced inside compute on its own key, which keeps the entry, its
+ * recency and the index in step; replacing or removing the newest entry re-reads the last
+ * key of the index, which is O(log n).
+ * <p>
+ * The stations each content server currently owns are tracked as well, so removing a content
+ * server only visits its own stations.
+ * <p>
+ * Station entries restored from a snapshot can be read at once, while their recency index and
+ * owners are built on a background thread; changes to station entries wait for it first.
+ */
 public class AggregatedWeatherUpdates implements Serializable {
     private static final long serialVersionUID = 1L;
-    public Map<UUID, LinkedList<WeatherUpdate>> contentServerUpdates = new HashMap<>();
-    public Map<String, WeatherUpdate> mostRecentUpdatesByStation = new LinkedHashMap<>();
+    public final Map<UUID, WeatherUpdateHistory> contentServerUpdates = new ConcurrentHashMap<>();
+    public final Map<String, WeatherUpdate> mostRecentUpdatesByStation = new ConcurrentHashMap<>();
+    private final Map<UUID, Set<String>> stationsByContentServer = new ConcurrentHashMap<>();
+    private final Map<String, Recency> stationRecency = new ConcurrentHashMap<>();
+    private final ConcurrentSkipListMap<Recency, WeatherUpdate> updatesByRecency = new ConcurrentSkipListMap<>();
+    private final AtomicReference<WeatherUpdate> mostRecentUpdate = new AtomicReference<>();
+    // Indexes the loaded station entries, or null if none were loaded; see loadStationUpdates
+    private transient volatile CompletableFuture<Void> stationIndexBuild;
+    private final long staleThresholdMillis;
+
+    public AggregatedWeatherUpdates() {
+        this(TimeUnit.SECONDS.toMillis(STALE_DATA_THRESHOLD));
+    }
+
+    /**
+     * Constructs an AggregatedWeatherUpdates instance whose content servers become stale after
+     * the given time without contact.
+     *
+     * @param staleThresholdMillis How long a content server may go without contact, in milliseconds.
+     */
+    public AggregatedWeatherUpdates(long staleThresholdMillis) {
+        this.staleThresholdMillis = staleThresholdMillis;
+    }
 
     public void addUpdate(WeatherUpdate update, String weatherStationId) {
-        addContentServerUpdate(update);
-        addStationUpdate(weatherStationId, update);
+        awaitStationIndex();
+        contentServerUpdates.compute(update.contentServerUUID, (uuid, updates) -> {
+            updates = addToHistory(updates, update);
+            addStationUpdate(weatherStationId, update);
+            return updates;
+        });
     }
 
     public void addContentServerUpdate(WeatherUpdate update) {
-        LinkedList<WeatherUpdate> updates = contentServerUpdates.getOrDefault(update.contentServerUUID, new LinkedList<>());
-        updates.addFirst(update);
-        if (updates.size() > MAX_CONTENT_SERVER_UPDATES) {
-            updates.removeLast();
+        contentServerUpdates.compute(update.contentServerUUID, (uuid, updates) -> addToHistory(updates, update));
+    }
+
+    private static WeatherUpdateHistory addToHistory(WeatherUpdateHistory updates, WeatherUpdate update) {
+        if (updates == null) {
+            updates = new WeatherUpdateHistory(MAX_CONTENT_SERVER_UPDATES);
+        }
+        updates.add(update);
+        updates.markSeen();
+        return updates;
+    }
+
+    /**
+     * Re-applies an update read back from the write-ahead log. Updates the loaded snapshot
+     * already contains have a sequence number no newer than the data they would replace and are skipped.
+     *
+     * @param update The logged update.
+     */
+    public void replayUpdate(WeatherUpdate update) {
+        awaitStationIndex();
+        contentServerUpdates.compute(update.contentServerUUID, (uuid, updates) -> {
+            WeatherUpdate latest = updates == null ? null : updates.latest();
+            if (latest == null || latest.sequenceNumber < update.sequenceNumber) {
+                updates = addToHistory(updates, update);
+            }
+            WeatherUpdate stationUpdate = mostRecentUpdatesByStation.get(update.weatherStationId);
+            if (stationUpdate == null || stationUpdate.sequenceNumber < update.sequenceNumber) {
+                addStationUpdate(update.weatherStationId, update);
+            }
+            return updates;
+        });
+    }
+
+    /**
+     * Re-applies a content server removal read back from the write-ahead log, keeping any
+     * data the content server sent after it was removed.
+     *
+     * @param uuid           The UUID of the removed content server.
+     * @param sequenceNumber The log position of the removal.
+     */
+    public void replayContentServerRemoval(UUID uuid, long sequenceNumber) {
+        awaitStationIndex();
+        contentServerUpdates.compute(uuid, (key, updates) -> {
+            removeStationUpdates(uuid, sequenceNumber);
+            if (updates == null) {
+                return null;
+            }
+            updates.removeOlderThan(sequenceNumber);
+            return updates.isEmpty() ? null : updates;
+        });
+    }
+
+    /**
+     * Restores the station entries of a loaded snapshot, before any other station entry is added.
+     * The entries and the newest update can be read as soon as this returns. Indexing them by
+     * recency and owner is left to a background thread, so a snapshot of many stations does not
+     * hold up the first GET request; the methods which change or list station entries wait for it.
+     *
+     * @param stationUpdates The most recent update of each station.
+     */
+    public void loadStationUpdates(Map<String, WeatherUpdate> stationUpdates) {
+        awaitStationIndex();
+        Recency[] recencies = new Recency[stationUpdates.size()];
+        WeatherUpdate[] updates = new WeatherUpdate[recencies.length];
+        int count = 0;
+        Recency newest = null;
+        for (Map.Entry<String, WeatherUpdate> entry : stationUpdates.entrySet()) {
+            recencies[count] = new Recency(entry.getValue(), entry.getKey());
+            updates[count] = entry.getValue();
+            mostRecentUpdatesByStation.put(entry.getKey(), entry.getValue());
+            if (newest == null || recencies[count].compareTo(newest) > 0) {
+                newest = recencies[count];
+                mostRecentUpdate.set(entry.getValue());
+            }
+            count++;
+        }
+        int loaded = count;
+        stationIndexBuild = CompletableFuture.runAsync(() -> indexLoadedStations(recencies, updates, loaded), task -> {
+            Thread thread = new Thread(task, "station-index");
+            thread.setDaemon(true);
+            thread.start();
+        });
+    }
+
+    /**
+     * Brings the loaded station entries in line with the loaded content server histories. Every
+     * update in a history was the entry of its station when accepted, so an entry older than a
+     * history's update for the same station is replaced by it. Stations without an entry are
+     * only restored on request, as when the station file could not be loaded: otherwise their
+     * absence means the content server which last fed them was removed.
+     *
+     * @param restoreMissingStations Whether stations without an entry are restored from the histories.
+     * @return The number of station entries restored or replaced.
+     */
+    public int reconcileStationUpdates(boolean restoreMissingStations) {
+        Map<String, WeatherUpdate> newestByStation = new HashMap<>();
+        for (WeatherUpdateHistory history : contentServerUpdates.values()) {
+            for (WeatherUpdate update : history.snapshot()) {
+                newestByStation.merge(update.weatherStationId, update,
+                        (current, candidate) -> candidate.sequenceNumber > current.sequenceNumber ? candidate : current);
+            }
+        }
+        List<WeatherUpdate> reconciled = new ArrayList<>();
+        for (WeatherUpdate update : newestByStation.values()) {
+            WeatherUpdate current = mostRecentUpdatesByStation.get(update.weatherStationId);
+            if (current == null ? restoreMissingStations : current.sequenceNumber < update.sequenceNumber) {
+                reconciled.add(update);
+            }
+        }
+        // Usually nothing differs, so startup only waits for the station index when it must
+        if (!reconciled.isEmpty()) {
+            awaitStationIndex();
+            for (WeatherUpdate update : reconciled) {
+                contentServerUpdates.computeIfPresent(update.contentServerUUID, (uuid, updates) -> {
+                    addStationUpdate(update.weatherStationId, update);
+                    return updates;
+                });
+            }
+        }
+        return reconciled.size();
+    }
+
+    /**
+     * Replaces a station entry whose stored data turned out to be damaged with the newest update
+     * of the station in the content server histories, or removes the entry when no history holds
+     * one. Nothing changes if the station's entry was replaced since the damage was found.
+     *
+     * @param weatherStationId The ID of the weather station.
+     * @param damaged          The entry whose data could not be read.
+     * @return The update now held for the station, or null if it has none.
+     */
+    public WeatherUpdate repairStationUpdate(String weatherStationId, WeatherUpdate damaged) {
+        awaitStationIndex();
+        WeatherUpdate newest = null;
+        for (WeatherUpdateHistory history : contentServerUpdates.values()) {
+            for (WeatherUpdate update : history.snapshot()) {
+                if (update != damaged && update.weatherStationId.equals(weatherStationId)
+                        && (newest == null || update.sequenceNumber > newest.sequenceNumber)) {
+                    newest = update;
+                }
+            }
+        }
+        WeatherUpdate current = mostRecentUpdatesByStation.get(weatherStationId);
+        if (current != damaged) {
+            return current;
+        }
+        if (newest != null) {
+            addStationUpdate(weatherStationId, newest);
+            return newest;
+        }
+        mostRecentUpdatesByStation.computeIfPresent(weatherStationId, (key, update) -> {
+            if (update != damaged) {
+                return update;
+            }
+            Set<String> ownedStations = stationsByContentServer.get(update.contentServerUUID);
+            if (ownedStations != null) {
+                ownedStations.remove(weatherStationId);
+            }
+            updatesByRecency.remove(stationRecency.remove(weatherStationId));
+            return null;
+        });
+        refreshMostRecentUpdate();
+        return mostRecentUpdatesByStation.get(weatherStationId);
+    }
+
+    private void indexLoadedStations(Recency[] recencies, WeatherUpdate[] updates, int count) {
+        for (int i = 0; i < count; i++) {
+            stationRecency.put(recencies[i].weatherStationId, recencies[i]);
+            updatesByRecency.put(recencies[i], updates[i]);
+            stationsByContentServer.computeIfAbsent(updates[i].contentServerUUID, uuid -> ConcurrentHashMap.newKeySet())
+                                   .add(recencies[i].weatherStationId);
+        }
+    }
+
+    /**
+     * Waits until the station entries restored by {@link #loadStationUpdates} are indexed.
+     * Called before entering compute, so the wait never holds up another map entry.
+     */
+    private void awaitStationIndex() {
+        CompletableFuture<Void> build = stationIndexBuild;
+        if (build != null) {
+            build.join();
         }
-        contentServerUpdates.put(update.contentServerUUID, updates);
     }
 
     private void addStationUpdate(String weatherStationId, WeatherUpdate update) {
-        mostRecentUpdatesByStation.put(weatherStationId, update);
+        mostRecentUpdatesByStation.compute(weatherStationId, (key, previous) -> {
+            Recency recency = new Recency(update, weatherStationId);
+            Recency previousRecency = stationRecency.put(weatherStationId, recency);
+            if (previousRecency != null) {
+                updatesByRecency.remove(previousRecency);
+            }
+            updatesByRecency.put(recency, update);
+            if (previous != null && !previous.contentServerUUID.equals(update.contentServerUUID)) {
+                Set<String> previousOwnerStations = stationsByContentServer.get(previous.contentServerUUID);
+                if (previousOwnerStations != null) {
+                    previousOwnerStations.remove(weatherStationId);
+                }
+            }
+            stationsByContentServer.computeIfAbsent(update.contentServerUUID, uuid -> ConcurrentHashMap.newKeySet())
+                                   .add(weatherStationId);
+            return update;
+        });
+        refreshMostRecentUpdate();
+    }
+
+    /**
+     * Removes the station entries still owned by a content server. Must run inside compute on
+     * the content server's history entry, so no new station can be assigned to it meanwhile.
+     *
+     * @param uuid           The UUID of the content server.
+     * @param sequenceNumber Only entries logged before this position are removed.
+     */
+    private void removeStationUpdates(UUID uuid, long sequenceNumber) {
+        Set<String> ownedStations = stationsByContentServer.get(uuid);
+        if (ownedStations == null) {
+            return;
+        }
+        for (String weatherStationId : ownedStations) {
+            mostRecentUpdatesByStation.computeIfPresent(weatherStationId, (key, update) -> {
+                // Another content server may have taken the station over since the set was read
+                if (!update.contentServerUUID.equals(uuid) || update.sequenceNumber >= sequenceNumber) {
+                    return update;
+                }
+                ownedStations.remove(weatherStationId);
+                updatesByRecency.remove(stationRecency.remove(weatherStationId));
+                return null;
+            });
+        }
+        if (ownedStations.isEmpty()) {
+            stationsByContentServer.remove(uuid, ownedStations);
+        }
+        refreshMostRecentUpdate();
+    }
+
+    /**
+     * Points the most recent update at the last entry of the recency index.
+     * Every change to the index is followed by this call, and a thread which moves the pointer
+     * checks the index again, so the pointer settles on the newest entry once changes stop.
+     */
+    private void refreshMostRecentUpdate() {
+        while (true) {
+            WeatherUpdate current = mostRecentUpdate.get();
+            Map.Entry<Recency, WeatherUpdate> newest = updatesByRecency.lastEntry();
+            WeatherUpdate candidate = newest == null ? null : newest.getValue();
+            if (candidate == current) {
+                return;
+            }
+            mostRecentUpdate.compareAndSet(current, candidate);
+        }
     }
 
     public String getMostRecentUpdateJson(String weatherStationId) {
+        WeatherUpdate weatherUpdate = getMostRecentUpdate(weatherStationId);
+        if (weatherUpdate == null) {
+            throw new IllegalArgumentException("No weather data for station: " + weatherStationId);
+        }
+        return weatherUpdate.getWeatherDataJson();
+    }
+
+    /**
+     * Returns the newest update of a station, or the newest update overall for "recent".
+     *
+     * @param weatherStationId The ID of the weather station, or "recent".
+     * @return The update, or null if the station has none.
+     */
+    public WeatherUpdate getMostRecentUpdate(String weatherStationId) {
         if ("recent".equals(weatherStationId)) {
-            return getMostRecentWeatherUpdate().weatherData.toJSONString();
+            return getMostRecentWeatherUpdate();
         } else {
-            return getMostRecentUpdateByStation(weatherStationId).weatherData.toJSONString();
+            return getMostRecentUpdateByStation(weatherStationId);
         }
     }
 
@@ -49,35 +354,89 @@ public class AggregatedWeatherUpdates implements Serializable {
         return mostRecentUpdate == null || weatherUpdate.timestamp.isAfter(mostRecentUpdate.timestamp);
     }
 
-    public void removeStaleContentServer(UUID uuid) {
-        // Remove content server
-        removeContentServer(uuid);
-        // Check the content server UUID from the most recent updates data structure for stale content server
-        mostRecentUpdatesByStation.entrySet().removeIf(entry -> entry.getValue().contentServerUUID.equals(uuid));
+    /**
+     * Checks whether an update's logical timestamp is later than that of its station's current update.
+     *
+     * @param weatherUpdate The received weather update.
+     * @return true if the station has no update yet or the received one is later.
+     */
+    public boolean isLogicalTimestampMoreRecent(WeatherUpdate weatherUpdate) {
+        WeatherUpdate mostRecentUpdate = getMostRecentUpdateByStation(weatherUpdate.weatherStationId);
+        return mostRecentUpdate == null || weatherUpdate.lamportTimestamp > mostRecentUpdate.lamportTimestamp;
     }
 
-    private void removeContentServer(UUID contentServerUUID) {
-        contentServerUpdates.remove(contentServerUUID);
+    public void removeStaleContentServer(UUID uuid) {
+        awaitStationIndex();
+        contentServerUpdates.compute(uuid, (key, updates) -> {
+            // Check the content server UUID from the most recent updates data structure for stale content server
+            removeStationUpdates(uuid, Long.MAX_VALUE);
+            // Remove content server
+            return null;
+        });
     }
 
     public void updateContentServerTimestamp(UUID contentServerUUID) {
-        LinkedList<WeatherUpdate> updates = contentServerUpdates.get(contentServerUUID);
-        if (updates != null && !updates.isEmpty()) {
-            updates.getFirst().timestamp = ZonedDateTime.now();
+        WeatherUpdateHistory updates = contentServerUpdates.get(contentServerUUID);
+        if (updates != null) {
+            updates.markSeen();
         }
     }
 
+    /**
+     * Returns the newest update across all stations, ordered by {@link Recency}.
+     *
+     * @return The newest station entry, or null if no updates exist.
+     */
     public WeatherUpdate getMostRecentWeatherUpdate() {
-        if (!mostRecentUpdatesByStation.isEmpty()) {
-            return mostRecentUpdatesByStation.entrySet().iterator().next().getValue();
-        }
-        throw new RuntimeException("No weather updates exist.");
+        return mostRecentUpdate.get();
     }
 
     public WeatherUpdate getMostRecentUpdateByStation(String weatherStationId) {
         return mostRecentUpdatesByStation.get(weatherStationId);
     }
 
+    /**
+     * Copies the stations each known content server currently feeds.
+     *
+     * @return The station ids of every content server, both sorted.
+     */
+    public Map<UUID, Set<String>> getStationsByContentServer() {
+        awaitStationIndex();
+        Map<UUID, Set<String>> stations = new TreeMap<>();
+        for (UUID contentServerUUID : contentServerUpdates.keySet()) {
+            stations.put(contentServerUUID, new TreeSet<>());
+        }
+        stationsByContentServer.forEach((contentServerUUID, ownedStations) -> {
+            if (!ownedStations.isEmpty()) {
+                stations.computeIfAbsent(contentServerUUID, uuid -> new TreeSet<>()).addAll(ownedStations);
+            }
+        });
+        return stations;
+    }
+
+    /**
+     * Copies the stations a content server currently feeds.
+     *
+     * @param contentServerUUID The UUID of the content server.
+     * @return The sorted station ids, empty if the content server feeds none.
+     */
+    public Set<String> getContentServerStations(UUID contentServerUUID) {
+        awaitStationIndex();
+        Set<String> ownedStations = stationsByContentServer.get(contentServerUUID);
+        return ownedStations == null ? new TreeSet<>() : new TreeSet<>(ownedStations);
+    }
+
+    /**
+     * Copies the update history of a content server, newest first.
+     *
+     * @param contentServerUUID The UUID of the content server.
+     * @return A copy of the history, or null if the content server is unknown.
+     */
+    public List<WeatherUpdate> getContentServerUpdates(UUID contentServerUUID) {
+        WeatherUpdateHistory updates = contentServerUpdates.get(contentServerUUID);
+        return updates == null ? null : updates.snapshot();
+    }
+
     public List<UUID> getStaleContentServerUUIDs() {
         return this.contentServerUpdates.keySet().stream()
             .filter(this::isContentServerStale)
@@ -85,10 +444,54 @@ public class AggregatedWeatherUpdates implements Serializable {
     }
 
     public boolean isContentServerStale(UUID contentServerUUID) {
-        LinkedList<WeatherUpdate> updates = contentServerUpdates.get(contentServerUUID);
-        if (updates == null || updates.isEmpty()) {
-            return true;
+        long staleAtMillis = getStaleAtMillis(contentServerUUID);
+        return staleAtMillis < 0 || staleAtMillis <= System.currentTimeMillis();
+    }
+
+    /**
+     * Returns when a content server becomes stale unless it makes contact again.
+     *
+     * @param contentServerUUID The UUID of the content server.
+     * @return The time in epoch milliseconds, or -1 if the content server is unknown.
+     */
+    public long getStaleAtMillis(UUID contentServerUUID) {
+        WeatherUpdateHistory updates = contentServerUpdates.get(contentServerUUID);
+        if (updates == null) {
+            return -1;
+        }
+        return updates.getLastSeenMillis() + staleThresholdMillis;
+    }
+
+    /**
+     * Orders station entries by Lamport time, then by observation time, then by log position.
+     * The values are captured when the entry is stored, so the key of an entry in the index
+     * never changes even if the update object is modified afterwards.
+     */
+    private static final class Recency implements Comparable<Recency>, Serializable {
+        private static final long serialVersionUID = 1L;
+        private final long lamportTimestamp;
+        private final long observedAtMillis;
+        private final long sequenceNumber;
+        private final String weatherStationId;
+
+        private Recency(WeatherUpdate update, String weatherStationId) {
+            this.lamportTimestamp = update.lamportTimestamp;
+            this.observedAtMillis = update.timestamp.toInstant().toEpochMilli();
+            this.sequenceNumber = update.sequenceNumber;
+            this.weatherStationId = weatherStationId;
+        }
+
+        @Override
+        public int compareTo(Recency other) {
+            int result = Long.compare(lamportTimestamp, other.lamportTimestamp);
+            if (result == 0) {
+                result = Long.compare(observedAtMillis, other.observedAtMillis);
+            }
+            if (result == 0) {
+                result = Long.compare(sequenceNumber, other.sequenceNumber);
+            }
+            // Each station has one entry, so the station id makes every key unique
+            return result != 0 ? result : weatherStationId.compareTo(other.weatherStationId);
         }
-        return updates.getFirst().timestamp.plusSeconds(STALE_DATA_THRESHOLD).isBefore(ZonedDateTime.now());
     }
 }
@@ -2,6 +2,7 @@ package au.edu.adelaide.aggregationserver.data;
 
 import java.io.Serializable;
 import java.util.UUID;
+import java.util.function.Supplier;
 import java.time.ZonedDateTime;
 
 import util.JSONObject;
@@ -12,8 +13,20 @@ public class WeatherUpdate implements Serializable {
     private static final long serialVersionUID = 1L;
     public UUID contentServerUUID;
     public String weatherStationId;
-    public JSONObject weatherData;
+    // Null until first used for an update restored lazily; read through getWeatherData()
+    private volatile JSONObject weatherData;
+    // Supplies the JSON text of a lazily restored update until weatherData is parsed from it
+    private transient volatile Supplier<String> weatherDataSource;
     public ZonedDateTime timestamp;
+    // Position of this update in the write-ahead log, 0 until it has been logged
+    public long sequenceNumber;
+    // Logical time the content server sent this update at: Lamport time, or hybrid time under --clock hlc
+    public long lamportTimestamp;
+    // Complete GET response for this update, encoded once; rebuilt on demand after loading
+    public transient volatile byte[] encodedResponse;
+    // Entity tag and body-less 304 response for this update, set before encodedResponse
+    public transient volatile String entityTag;
+    public transient volatile byte[] encodedNotModifiedResponse;
 
     public WeatherUpdate(UUID contentServerUUID, JSONObject weatherData) {
         this.contentServerUUID = contentServerUUID;
@@ -23,4 +36,82 @@ public class WeatherUpdate implements Serializable {
         // Convert the local date-time to UTC
         this.timestamp = TimeZoneConverter.convertToUTC(weatherData.get("local_date_time_full"), weatherData.get("time_zone"));
     }
+
+    /**
+     * Restores a previously accepted update, keeping its recorded timestamp and log position.
+     */
+    public WeatherUpdate(UUID contentServerUUID, JSONObject weatherData, ZonedDateTime timestamp, long sequenceNumber) {
+        this(contentServerUUID, weatherData, timestamp, sequenceNumber, 0);
+    }
+
+    /**
+     * Restores a previously accepted update, keeping its recorded timestamp, log position and Lamport time.
+     */
+    public WeatherUpdate(UUID contentServerUUID, JSONObject weatherData, ZonedDateTime timestamp, long sequenceNumber,
+                         long lamportTimestamp) {
+        this.contentServerUUID = contentServerUUID;
+        this.weatherStationId = weatherData.get("id");
+        this.weatherData = weatherData;
+        this.timestamp = timestamp;
+        this.sequenceNumber = sequenceNumber;
+        this.lamportTimestamp = lamportTimestamp;
+    }
+
+    /**
+     * Restores a previously accepted update whose data is only read when first used, so a
+     * snapshot of many stations loads without parsing any of them.
+     *
+     * @param weatherDataSource Supplies the data as JSON text; may throw an unchecked exception if it is damaged.
+     */
+    public WeatherUpdate(UUID contentServerUUID, String weatherStationId, ZonedDateTime timestamp, long sequenceNumber,
+                         long lamportTimestamp, Supplier<String> weatherDataSource) {
+        this.contentServerUUID = contentServerUUID;
+        this.weatherStationId = weatherStationId;
+        this.weatherDataSource = weatherDataSource;
+        this.timestamp = timestamp;
+        this.sequenceNumber = sequenceNumber;
+        this.lamportTimestamp = lamportTimestamp;
+    }
+
+    /**
+     * Returns the update's data, parsing it on first use if the update was restored lazily.
+     *
+     * @return The weather data.
+     */
+    public JSONObject getWeatherData() {
+        JSONObject data = weatherData;
+        if (data != null) {
+            return data;
+        }
+        Supplier<String> source = weatherDataSource;
+        if (source == null) {
+            // Parsed by another thread, which sets weatherData before clearing the source
+            return weatherData;
+        }
+        // Read outside the try, so a failure to read the source reaches the caller as it is
+        String json = source.get();
+        try {
+            data = new JSONObject(json);
+        } catch (Exception e) {
+            throw new IllegalStateException("Unreadable weather data for station " + weatherStationId, e);
+        }
+        // Concurrent first uses may both parse it; the results are identical
+        weatherData = data;
+        weatherDataSource = null;
+        return data;
+    }
+
+    /**
+     * Returns the update's data as JSON text, without parsing it if it was restored lazily
+     * and has not been used yet.
+     *
+     * @return The weather data as JSON text.
+     */
+    public String getWeatherDataJson() {
+        Supplier<String> source = weatherDataSource;
+        if (source != null) {
+            return source.get();
+        }
+        return weatherData.toJSONString();
+    }
 }
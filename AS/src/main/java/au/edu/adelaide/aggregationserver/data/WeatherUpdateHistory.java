@@ -0,0 +1,201 @@
+package au.edu.adelaide.aggregationserver.data;
+
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Fixed-capacity history of the most recent updates from one content server.
+ * Updates are kept in a preallocated circular buffer, so appending and evicting the oldest
+ * update are O(1) and allocate nothing per update.
+ * <p>
+ * Only one thread may modify a history at a time; {@link AggregatedWeatherUpdates} guarantees
+ * this by modifying it inside its map entry's compute. Any number of threads may read it
+ * concurrently without locking: readers copy the live window and then check that the writer
+ * has not overwritten any of the copied slots in the meantime, retrying if it has.
+ * One slot more than the capacity is allocated so that the slot being written is never part
+ * of the window a reader can observe.
+ */
+public class WeatherUpdateHistory implements Iterable<WeatherUpdate>, Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final int capacity;
+    private transient AtomicReferenceArray<WeatherUpdate> slots;
+    // Number of updates ever appended; the newest update is at index head - 1
+    private transient volatile long head;
+    // Index of the oldest update still in the history, before the capacity limit is applied
+    private transient volatile long tail;
+    // Last time the content server sent an update or heartbeat
+    private transient volatile long lastSeenMillis;
+
+    /**
+     * Creates an empty history.
+     *
+     * @param capacity The maximum number of updates kept.
+     */
+    public WeatherUpdateHistory(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Capacity must be positive");
+        }
+        this.capacity = capacity;
+        this.slots = new AtomicReferenceArray<>(capacity + 1);
+        this.lastSeenMillis = System.currentTimeMillis();
+    }
+
+    /**
+     * Appends an update as the newest entry, evicting the oldest one once the history is full.
+     *
+     * @param update The update to append.
+     */
+    public void add(WeatherUpdate update) {
+        long index = head;
+        slots.set(slot(index), update);
+        head = index + 1;
+    }
+
+    /**
+     * Returns the newest update without copying the history.
+     *
+     * @return The newest update, or null if the history is empty.
+     */
+    public WeatherUpdate latest() {
+        while (true) {
+            long currentHead = head;
+            if (currentHead <= tail) {
+                return null;
+            }
+            WeatherUpdate update = slots.get(slot(currentHead - 1));
+            // The slot of index i is only reused by the append of index i + capacity + 1
+            if (head < currentHead + capacity) {
+                return update;
+            }
+        }
+    }
+
+    /**
+     * Records contact from the content server, which restarts its staleness threshold.
+     */
+    public void markSeen() {
+        lastSeenMillis = System.currentTimeMillis();
+    }
+
+    public long getLastSeenMillis() {
+        return lastSeenMillis;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public int size() {
+        long currentHead = head;
+        return (int) Math.max(0, currentHead - firstIndex(currentHead, tail));
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * Drops the oldest updates whose sequence number is below the given one.
+     * Their slots are left in place until appends reuse them, so concurrent readers never see a gap.
+     *
+     * @param sequenceNumber The first sequence number to keep.
+     */
+    public void removeOlderThan(long sequenceNumber) {
+        long currentHead = head;
+        long first = firstIndex(currentHead, tail);
+        while (first < currentHead && slots.get(slot(first)).sequenceNumber < sequenceNumber) {
+            first++;
+        }
+        tail = first;
+    }
+
+    /**
+     * Copies the history as it was at one instant, newest update first.
+     *
+     * @return An unmodifiable copy of the history.
+     */
+    public List<WeatherUpdate> snapshot() {
+        WeatherUpdate[] copy = new WeatherUpdate[capacity];
+        while (true) {
+            long currentHead = head;
+            long first = firstIndex(currentHead, tail);
+            int count = (int) Math.max(0, currentHead - first);
+            for (int i = 0; i < count; i++) {
+                copy[i] = slots.get(slot(currentHead - 1 - i));
+            }
+            // The slot of index i is only reused by the append of index i + capacity + 1
+            if (head <= first + capacity) {
+                return Collections.unmodifiableList(Arrays.asList(Arrays.copyOf(copy, count)));
+            }
+        }
+    }
+
+    /**
+     * Iterates over a snapshot of the history, newest update first.
+     */
+    @Override
+    public Iterator<WeatherUpdate> iterator() {
+        return snapshot().iterator();
+    }
+
+    private long firstIndex(long currentHead, long currentTail) {
+        return Math.max(currentTail, currentHead - capacity);
+    }
+
+    private int slot(long index) {
+        return (int) (index % slots.length());
+    }
+
+    /**
+     * Persists the capacity followed by the updates, oldest first.
+     */
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+        List<WeatherUpdate> updates = snapshot();
+        out.writeInt(updates.size());
+        for (int i = updates.size() - 1; i >= 0; i--) {
+            out.writeObject(updates.get(i));
+        }
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        if (capacity < 1) {
+            throw new InvalidObjectException("Invalid history capacity: " + capacity);
+        }
+        slots = new AtomicReferenceArray<>(capacity + 1);
+        // A restored content server gets the full threshold to make contact again
+        lastSeenMillis = System.currentTimeMillis();
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            add((WeatherUpdate) in.readObject());
+        }
+    }
+
+    /**
+     * Builds a history from updates ordered newest first, as the previous list-based format stored them.
+     *
+     * @param updates  The updates, newest first.
+     * @param capacity The maximum number of updates kept.
+     * @return The history holding the newest {@code capacity} updates.
+     */
+    public static WeatherUpdateHistory fromNewestFirst(List<WeatherUpdate> updates, int capacity) {
+        WeatherUpdateHistory history = new WeatherUpdateHistory(capacity);
+        List<WeatherUpdate> oldestFirst = new ArrayList<>(updates.subList(0, Math.min(updates.size(), capacity)));
+        Collections.reverse(oldestFirst);
+        for (WeatherUpdate update : oldestFirst) {
+            history.add(update);
+        }
+        return history;
+    }
+}
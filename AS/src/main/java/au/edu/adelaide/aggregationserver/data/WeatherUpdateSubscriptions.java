@@ -0,0 +1,111 @@
+package au.edu.adelaide.aggregationserver.data;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Wakes clients waiting for the next weather update of a station.
+ * <p>
+ * Each waiter is a future registered under the station it watches, or under "recent" to be
+ * woken by any update. Publishing detaches the waiters of the updated station and of "recent"
+ * in one map removal each, and completes them on a single notifier thread, so the thread
+ * accepting the update never runs subscriber code and a slow subscriber cannot hold it up.
+ * Waiters are only ever woken, never handed data; each one re-reads the current update, so a
+ * wake-up that raced with a newer update or a removal is harmless.
+ */
+public class WeatherUpdateSubscriptions {
+    private static final Logger LOGGER = Logger.getLogger(WeatherUpdateSubscriptions.class.getName());
+    private static final String RECENT = "recent";
+
+    private final Map<String, Set<CompletableFuture<Void>>> waitersByStation = new ConcurrentHashMap<>();
+    private final ExecutorService notifier = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "weather-update-notifier");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Registers a waiter for the next update of a station.
+     * Callers must check the station's current update after registering, since an update
+     * published just before registration does not complete the waiter.
+     *
+     * @param weatherStationId The ID of the weather station, or "recent" for any station.
+     * @return A future completed on the notifier thread when the next update is published.
+     */
+    public CompletableFuture<Void> nextUpdate(String weatherStationId) {
+        CompletableFuture<Void> waiter = new CompletableFuture<>();
+        // Added inside compute, so a waiter never lands in a set publish has already detached
+        waitersByStation.compute(weatherStationId, (id, waiters) -> {
+            if (waiters == null) {
+                waiters = ConcurrentHashMap.newKeySet();
+            }
+            waiters.add(waiter);
+            return waiters;
+        });
+        return waiter;
+    }
+
+    /**
+     * Removes a waiter which is no longer needed, such as one which timed out, and drops the
+     * station's entry once nobody is waiting on it.
+     *
+     * @param weatherStationId The ID the waiter was registered under.
+     * @param waiter           The waiter to remove.
+     */
+    public void cancel(String weatherStationId, CompletableFuture<Void> waiter) {
+        waitersByStation.computeIfPresent(weatherStationId, (id, waiters) -> {
+            waiters.remove(waiter);
+            return waiters.isEmpty() ? null : waiters;
+        });
+    }
+
+    /**
+     * Wakes every waiter of the update's station and every "recent" waiter.
+     * Returns as soon as the waiters are detached; they are completed on the notifier thread.
+     *
+     * @param weatherUpdate The update which has just become visible to readers.
+     */
+    public void publish(WeatherUpdate weatherUpdate) {
+        Set<CompletableFuture<Void>> stationWaiters = waitersByStation.remove(weatherUpdate.weatherStationId);
+        Set<CompletableFuture<Void>> recentWaiters = waitersByStation.remove(RECENT);
+        if (stationWaiters == null && recentWaiters == null) {
+            return;
+        }
+        notifier.execute(() -> {
+            wake(stationWaiters);
+            wake(recentWaiters);
+        });
+    }
+
+    /**
+     * Counts the waiters currently registered.
+     *
+     * @return The number of waiting clients across all stations.
+     */
+    public int getWaiterCount() {
+        int count = 0;
+        for (Set<CompletableFuture<Void>> waiters : waitersByStation.values()) {
+            count += waiters.size();
+        }
+        return count;
+    }
+
+    private static void wake(Set<CompletableFuture<Void>> waiters) {
+        if (waiters == null) {
+            return;
+        }
+        for (CompletableFuture<Void> waiter : waiters) {
+            try {
+                waiter.complete(null);
+            } catch (Exception e) {
+                LOGGER.log(Level.WARNING, "Error waking weather update subscriber", e);
+            }
+        }
+    }
+}
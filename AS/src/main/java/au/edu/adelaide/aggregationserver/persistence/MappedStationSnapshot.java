@@ -0,0 +1,253 @@
+package au.edu.adelaide.aggregationserver.persistence;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.zip.CRC32;
+
+import au.edu.adelaide.aggregationserver.data.WeatherUpdate;
+
+/**
+ * Stores the most recent update of each station as a fixed-layout table which is memory-mapped
+ * when loaded, so restarting with a large number of stations does not parse any weather data.
+ * <p>
+ * The file starts with a {@value #HEADER_SIZE} byte header: the {@link WeatherRecordCodec#MAGIC}
+ * number, the format version, the kind {@link #KIND_STATION_TABLE}, the station count, the slot
+ * size, the offset of the bodies and a CRC of the header, slots and station ids. Each station then
+ * has a {@value #SLOT_SIZE} byte slot holding the content server UUID, the log sequence number,
+ * the logical timestamp, the observation time in epoch milliseconds, the offset, length and CRC
+ * of its body and the position of its station id. The station ids follow the slots as UTF-8,
+ * and the bodies, each the JSON text of the update's data, follow the ids.
+ * <p>
+ * Loading checks the header, slots and ids, and builds every update from its slot alone. A body
+ * is only read, checked against its CRC and parsed when the update's data is first used; a GET
+ * answers with the stored JSON text without parsing it at all. The mapping stays valid once the
+ * file is replaced by a rename, so the next snapshot must never be written over it in place.
+ */
+public final class MappedStationSnapshot {
+    public static final byte KIND_STATION_TABLE = 3;
+    static final int HEADER_SIZE = 32;
+    static final int SLOT_SIZE = 64;
+    private static final int MAX_STATION_ID_LENGTH = 0xFFFF;
+    private static final ZoneId UTC = ZoneId.of("UTC");
+
+    private MappedStationSnapshot() {}
+
+    /**
+     * Encodes the most recent update of each station, leaving out any whose data is damaged.
+     *
+     * @param stationUpdates The station entries.
+     * @return The encoded file.
+     * @see #encode(Map, Collection)
+     */
+    public static byte[] encode(Map<String, WeatherUpdate> stationUpdates) {
+        return encode(stationUpdates, new ArrayList<>());
+    }
+
+    /**
+     * Encodes the most recent update of each station. Updates loaded from an earlier table whose
+     * data was never used are copied as their stored JSON text, without being parsed. An update
+     * whose stored text fails its check is left out, so one damaged record does not keep every
+     * later table from being written.
+     *
+     * @param stationUpdates  The station entries.
+     * @param damagedStations Receives the ids of the stations left out as damaged.
+     * @return The encoded file.
+     */
+    public static byte[] encode(Map<String, WeatherUpdate> stationUpdates, Collection<String> damagedStations) {
+        List<WeatherUpdate> updates = new ArrayList<>(stationUpdates.size());
+        byte[][] stationIds = new byte[stationUpdates.size()][];
+        byte[][] bodies = new byte[stationUpdates.size()][];
+        long idsLength = 0;
+        long bodiesLength = 0;
+        int count = 0;
+        for (Map.Entry<String, WeatherUpdate> entry : stationUpdates.entrySet()) {
+            byte[] stationId = entry.getKey().getBytes(StandardCharsets.UTF_8);
+            if (stationId.length > MAX_STATION_ID_LENGTH) {
+                throw new IllegalArgumentException("Station id too long: " + entry.getKey());
+            }
+            try {
+                bodies[count] = entry.getValue().getWeatherDataJson().getBytes(StandardCharsets.UTF_8);
+            } catch (UncheckedIOException e) {
+                damagedStations.add(entry.getKey());
+                continue;
+            }
+            stationIds[count] = stationId;
+            updates.add(entry.getValue());
+            idsLength += stationId.length;
+            bodiesLength += bodies[count].length;
+            count++;
+        }
+        long idsOffset = HEADER_SIZE + (long) count * SLOT_SIZE;
+        long bodiesOffset = idsOffset + idsLength;
+        if (bodiesOffset + bodiesLength > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Station table too large: " + (bodiesOffset + bodiesLength) + " bytes");
+        }
+
+        ByteBuffer file = ByteBuffer.allocate((int) (bodiesOffset + bodiesLength));
+        file.putInt(WeatherRecordCodec.MAGIC);
+        file.put(WeatherRecordCodec.FORMAT_VERSION);
+        file.put(KIND_STATION_TABLE);
+        file.putShort((short) 0);
+        file.putInt(count);
+        file.putInt(SLOT_SIZE);
+        file.putLong(bodiesOffset);
+        // The header CRC at offset 24 is filled in once the slots and ids are written
+
+        CRC32 crc = new CRC32();
+        int idPosition = 0;
+        long bodyPosition = bodiesOffset;
+        for (int i = 0; i < count; i++) {
+            WeatherUpdate update = updates.get(i);
+            crc.reset();
+            crc.update(bodies[i]);
+            file.position(HEADER_SIZE + i * SLOT_SIZE);
+            file.putLong(update.contentServerUUID.getMostSignificantBits());
+            file.putLong(update.contentServerUUID.getLeastSignificantBits());
+            file.putLong(update.sequenceNumber);
+            file.putLong(update.lamportTimestamp);
+            file.putLong(update.timestamp.toInstant().toEpochMilli());
+            file.putLong(bodyPosition);
+            file.putInt(bodies[i].length);
+            file.putInt((int) crc.getValue());
+            file.putInt(idPosition);
+            file.putShort((short) stationIds[i].length);
+
+            file.position((int) (idsOffset + idPosition));
+            file.put(stationIds[i]);
+            file.position((int) bodyPosition);
+            file.put(bodies[i]);
+            idPosition += stationIds[i].length;
+            bodyPosition += bodies[i].length;
+        }
+        file.putInt(24, tableChecksum(file, (int) bodiesOffset));
+        return file.array();
+    }
+
+    /**
+     * Maps a station table and restores its entries, leaving each update's data to be read on
+     * first use. A station file in the older {@link WeatherRecordCodec#KIND_STATION_UPDATES}
+     * format is decoded in full instead; the next snapshot rewrites it as a table.
+     *
+     * @param file The station file.
+     * @return The most recent update of each station, keyed by station id.
+     * @throws IOException If the file cannot be mapped, or its header, slots or ids are damaged.
+     */
+    public static Map<String, WeatherUpdate> load(Path file) throws IOException {
+        MappedByteBuffer table;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < HEADER_SIZE) {
+                return WeatherRecordCodec.decodeStationUpdates(Files.readAllBytes(file));
+            }
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("Station table too large: " + size + " bytes");
+            }
+            table = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        }
+        if (table.getInt(0) != WeatherRecordCodec.MAGIC) {
+            throw new IOException("Not a weather record file");
+        }
+        byte version = table.get(4);
+        if (version > WeatherRecordCodec.FORMAT_VERSION || version < 1) {
+            throw new IOException("Unsupported weather record format version " + version);
+        }
+        if (table.get(5) == WeatherRecordCodec.KIND_STATION_UPDATES) {
+            return WeatherRecordCodec.decodeStationUpdates(Files.readAllBytes(file));
+        }
+        if (table.get(5) != KIND_STATION_TABLE) {
+            throw new IOException("Expected file kind " + KIND_STATION_TABLE + " but found " + table.get(5));
+        }
+        return restore(table);
+    }
+
+    private static Map<String, WeatherUpdate> restore(ByteBuffer table) throws IOException {
+        int count = table.getInt(8);
+        int slotSize = table.getInt(12);
+        long bodiesOffset = table.getLong(16);
+        long idsOffset = HEADER_SIZE + (long) count * slotSize;
+        if (count < 0 || slotSize < SLOT_SIZE || idsOffset > bodiesOffset || bodiesOffset > table.capacity()) {
+            throw new IOException("Invalid station table header");
+        }
+        if (tableChecksum(table, (int) bodiesOffset) != table.getInt(24)) {
+            throw new IOException("Station table checksum mismatch");
+        }
+
+        Map<String, WeatherUpdate> stationUpdates = new LinkedHashMap<>(Math.max(16, count * 4 / 3 + 1));
+        // Content servers each feed many stations, so their UUIDs are shared between the updates
+        Map<UUID, UUID> contentServers = new HashMap<>();
+        byte[] idBytes = new byte[256];
+        for (int i = 0; i < count; i++) {
+            int slot = (int) (HEADER_SIZE + (long) i * slotSize);
+            long bodyOffset = table.getLong(slot + 40);
+            int bodyLength = table.getInt(slot + 48);
+            int bodyCrc = table.getInt(slot + 52);
+            long idOffset = idsOffset + table.getInt(slot + 56);
+            int idLength = table.getShort(slot + 60) & 0xFFFF;
+            if (bodyLength < 0 || bodyOffset < bodiesOffset || bodyOffset + bodyLength > table.capacity()
+                    || idOffset + idLength > bodiesOffset) {
+                throw new IOException("Invalid slot for station " + i);
+            }
+            if (idBytes.length < idLength) {
+                idBytes = new byte[idLength];
+            }
+            copy(table, (int) idOffset, idBytes, idLength);
+            String weatherStationId = new String(idBytes, 0, idLength, StandardCharsets.UTF_8);
+
+            UUID contentServerUUID = contentServers.computeIfAbsent(
+                    new UUID(table.getLong(slot), table.getLong(slot + 8)), uuid -> uuid);
+            ZonedDateTime timestamp = ZonedDateTime.ofInstant(Instant.ofEpochMilli(table.getLong(slot + 32)), UTC);
+            stationUpdates.put(weatherStationId, new WeatherUpdate(contentServerUUID, weatherStationId, timestamp,
+                    table.getLong(slot + 16), table.getLong(slot + 24),
+                    () -> readBody(table, weatherStationId, (int) bodyOffset, bodyLength, bodyCrc)));
+        }
+        return stationUpdates;
+    }
+
+    private static String readBody(ByteBuffer table, String weatherStationId, int offset, int length, int expectedCrc) {
+        byte[] body = new byte[length];
+        copy(table, offset, body, length);
+        CRC32 crc = new CRC32();
+        crc.update(body);
+        if ((int) crc.getValue() != expectedCrc) {
+            throw new UncheckedIOException(new IOException("Corrupt station table record for " + weatherStationId));
+        }
+        return new String(body, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Copies bytes from an absolute offset through a view, leaving the shared table's position
+     * alone for the lazy reads on other threads.
+     */
+    private static void copy(ByteBuffer table, int offset, byte[] destination, int length) {
+        ByteBuffer view = table.duplicate();
+        view.position(offset);
+        view.get(destination, 0, length);
+    }
+
+    /**
+     * Computes the CRC of the header up to its checksum field, and of the slots and ids.
+     */
+    private static int tableChecksum(ByteBuffer table, int bodiesOffset) {
+        CRC32 crc = new CRC32();
+        crc.update(table.duplicate().position(0).limit(24));
+        crc.update(table.duplicate().position(HEADER_SIZE).limit(bodiesOffset));
+        return (int) crc.getValue();
+    }
+}
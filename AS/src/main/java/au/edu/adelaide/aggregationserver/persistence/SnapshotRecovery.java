@@ -0,0 +1,357 @@
+package au.edu.adelaide.aggregationserver.persistence;
+
+import static au.edu.adelaide.aggregationserver.AggregationServerConstants.*;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import au.edu.adelaide.aggregationserver.data.AggregatedWeatherUpdates;
+import au.edu.adelaide.aggregationserver.data.WeatherUpdate;
+import au.edu.adelaide.aggregationserver.data.WeatherUpdateHistory;
+
+/**
+ * Loads the last snapshot into an empty store on startup.
+ * <p>
+ * Recovery runs in phases, each of which is timed: the data directory is scanned, the content
+ * server files are decoded in parallel on a fork-join pool and merged into the store, the
+ * station shard files, and the single station file of older versions if it is still there, are
+ * mapped in parallel, and the station entries are reconciled with the content server histories. A file which cannot be decoded is moved to the quarantine directory, so it is kept
+ * for inspection without failing every later startup; files whose names are not a content server
+ * UUID are left in place and reported on their own, and temporary files left by a crash before
+ * they were renamed into place are deleted.
+ */
+public final class SnapshotRecovery {
+    private static final Logger LOGGER = Logger.getLogger(SnapshotRecovery.class.getName());
+    // Content server files decoded by one fork-join task before it stops splitting
+    private static final int FILES_PER_TASK = 8;
+
+    private final Path dataDirectory;
+    private final Path stationFile;
+    private final Path stationShardDirectory;
+    private final Path quarantineDirectory;
+    private final int parallelism;
+
+    /**
+     * The outcome of a recovery, with the time taken by each phase.
+     */
+    public static final class Report {
+        public int contentServersLoaded;
+        public int stationsLoaded;
+        public int stationFilesLoaded;
+        // Station entries restored or replaced from the content server histories
+        public int stationsReconciled;
+        // Records skipped within otherwise readable files because they failed their CRC
+        public int corruptRecords;
+        // Temporary files left by a crash before they were renamed into place
+        public int unfinishedFilesDeleted;
+        // Files moved to the quarantine directory because they could not be decoded
+        public final List<String> quarantinedFiles = new ArrayList<>();
+        // Files in the data directory not named after a content server, left in place
+        public final List<String> badFileNames = new ArrayList<>();
+        public final Map<String, Long> phaseMillis = new LinkedHashMap<>();
+
+        /**
+         * Records the time taken by a phase.
+         *
+         * @param phase      The name of the phase.
+         * @param startNanos The {@link System#nanoTime()} at which the phase started.
+         */
+        public void recordPhase(String phase, long startNanos) {
+            phaseMillis.put(phase, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+        }
+
+        @Override
+        public String toString() {
+            long totalMillis = phaseMillis.values().stream().mapToLong(Long::longValue).sum();
+            return "Recovered " + contentServersLoaded + " content server(s) and " + stationsLoaded
+                    + " station(s) from " + stationFilesLoaded + " station file(s), " + stationsReconciled
+                    + " reconciled, in " + totalMillis + " ms " + phaseMillis
+                    + "; " + quarantinedFiles.size() + " file(s) quarantined, " + badFileNames.size()
+                    + " file(s) with bad names, " + unfinishedFilesDeleted + " unfinished file(s) deleted, "
+                    + corruptRecords + " corrupt record(s) skipped";
+        }
+    }
+
+    /**
+     * The result of decoding one content server file.
+     */
+    private static final class DecodedFile {
+        private final Path file;
+        private final UUID contentServerUUID;
+        private WeatherUpdateHistory history;
+        private int corruptRecords;
+        private Exception error;
+
+        private DecodedFile(Path file, UUID contentServerUUID) {
+            this.file = file;
+            this.contentServerUUID = contentServerUUID;
+        }
+    }
+
+    /**
+     * Decodes a range of content server files, splitting it in half until it is small enough.
+     * Each file is decoded into its own slot, so the tasks share nothing.
+     */
+    private static final class DecodeTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final DecodedFile[] files;
+        private final int from;
+        private final int to;
+
+        private DecodeTask(DecodedFile[] files, int from, int to) {
+            this.files = files;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= FILES_PER_TASK) {
+                for (int i = from; i < to; i++) {
+                    decode(files[i]);
+                }
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            invokeAll(new DecodeTask(files, from, middle), new DecodeTask(files, middle, to));
+        }
+    }
+
+    /**
+     * Constructs a SnapshotRecovery for a data directory.
+     *
+     * @param dataDirectory       The directory holding the content server files.
+     * @param stationFile           The single station file written by older versions.
+     * @param stationShardDirectory The directory holding the station shard files.
+     * @param quarantineDirectory   Where files which cannot be decoded are moved to.
+     * @param parallelism           How many threads decode content server and station files.
+     */
+    public SnapshotRecovery(Path dataDirectory, Path stationFile, Path stationShardDirectory, Path quarantineDirectory,
+                            int parallelism) {
+        this.dataDirectory = dataDirectory;
+        this.stationFile = stationFile;
+        this.stationShardDirectory = stationShardDirectory;
+        this.quarantineDirectory = quarantineDirectory;
+        this.parallelism = Math.max(1, parallelism);
+    }
+
+    /**
+     * Loads the snapshot into an empty store.
+     *
+     * @param aggregatedWeatherUpdates The store to load into.
+     * @return What was recovered, quarantined and skipped, and the time each phase took.
+     */
+    public Report recover(AggregatedWeatherUpdates aggregatedWeatherUpdates) {
+        Report report = new Report();
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            long phaseStart = System.nanoTime();
+            List<DecodedFile> contentServerFiles = scan(dataDirectory, report);
+            List<Path> stationFiles = scanStationFiles(report);
+            report.recordPhase("scan", phaseStart);
+
+            phaseStart = System.nanoTime();
+            loadContentServers(pool, contentServerFiles, aggregatedWeatherUpdates, report);
+            report.recordPhase("content servers", phaseStart);
+
+            phaseStart = System.nanoTime();
+            boolean stationFilesIntact = loadStations(pool, stationFiles, aggregatedWeatherUpdates, report);
+            report.recordPhase("stations", phaseStart);
+
+            phaseStart = System.nanoTime();
+            // Without every station file, the missing stations are rebuilt from the histories
+            report.stationsReconciled = aggregatedWeatherUpdates.reconcileStationUpdates(!stationFilesIntact);
+            report.recordPhase("reconcile", phaseStart);
+        } finally {
+            pool.shutdown();
+        }
+        return report;
+    }
+
+    /**
+     * Lists the content server files of a directory, deleting unfinished files and reporting
+     * files with bad names on the way.
+     */
+    private List<DecodedFile> scan(Path directory, Report report) {
+        List<DecodedFile> contentServerFiles = new ArrayList<>();
+        if (!Files.isDirectory(directory)) {
+            return contentServerFiles;
+        }
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) {
+                String fileName = file.getFileName().toString();
+                if (Files.isDirectory(file) || fileName.equals(stationFile.getFileName().toString())) {
+                    continue;
+                }
+                if (fileName.endsWith(FILE_EXTENSION + TEMP_SUFFIX)) {
+                    // Left by a crash before it was renamed into place; the file it was replacing is intact
+                    LOGGER.log(Level.INFO, "Deleting unfinished data file: " + fileName);
+                    Files.deleteIfExists(file);
+                    report.unfinishedFilesDeleted++;
+                    continue;
+                }
+                UUID contentServerUUID = parseContentServerUUID(fileName);
+                if (contentServerUUID == null) {
+                    LOGGER.log(Level.WARNING, "Skipping file not named after a content server: " + fileName);
+                    report.badFileNames.add(fileName);
+                } else {
+                    contentServerFiles.add(new DecodedFile(file, contentServerUUID));
+                }
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.SEVERE, "Failed to list data directory: " + directory, e);
+        }
+        return contentServerFiles;
+    }
+
+    /**
+     * Lists the station files: the single file of older versions first, if it is still there,
+     * then every shard file, whatever shard count they were written with.
+     */
+    private List<Path> scanStationFiles(Report report) {
+        List<Path> stationFiles = new ArrayList<>();
+        if (Files.isRegularFile(stationFile)) {
+            stationFiles.add(stationFile);
+        }
+        if (!Files.isDirectory(stationShardDirectory)) {
+            return stationFiles;
+        }
+        List<Path> shardFiles = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(stationShardDirectory)) {
+            for (Path file : files) {
+                String fileName = file.getFileName().toString();
+                if (fileName.endsWith(FILE_EXTENSION + TEMP_SUFFIX)) {
+                    LOGGER.log(Level.INFO, "Deleting unfinished station file: " + fileName);
+                    Files.deleteIfExists(file);
+                    report.unfinishedFilesDeleted++;
+                } else if (fileName.endsWith(FILE_EXTENSION)) {
+                    shardFiles.add(file);
+                } else {
+                    LOGGER.log(Level.WARNING, "Skipping file not holding stations: " + fileName);
+                    report.badFileNames.add(fileName);
+                }
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.SEVERE, "Failed to list station directory: " + stationShardDirectory, e);
+        }
+        shardFiles.sort(null);
+        stationFiles.addAll(shardFiles);
+        return stationFiles;
+    }
+
+    private static UUID parseContentServerUUID(String fileName) {
+        if (!fileName.endsWith(FILE_EXTENSION)) {
+            return null;
+        }
+        try {
+            return UUID.fromString(fileName.substring(0, fileName.length() - FILE_EXTENSION.length()));
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private void loadContentServers(ForkJoinPool pool, List<DecodedFile> contentServerFiles,
+                                    AggregatedWeatherUpdates aggregatedWeatherUpdates, Report report) {
+        DecodedFile[] files = contentServerFiles.toArray(new DecodedFile[0]);
+        pool.invoke(new DecodeTask(files, 0, files.length));
+
+        for (DecodedFile decoded : files) {
+            if (decoded.error != null) {
+                quarantine(decoded.file, decoded.error, report);
+                continue;
+            }
+            aggregatedWeatherUpdates.contentServerUpdates.put(decoded.contentServerUUID, decoded.history);
+            report.contentServersLoaded++;
+            report.corruptRecords += decoded.corruptRecords;
+        }
+    }
+
+    private static void decode(DecodedFile decoded) {
+        try {
+            WeatherFileConverter.convert(decoded.file);
+            WeatherRecordCodec.Contents contents = WeatherRecordCodec.decode(
+                    Files.readAllBytes(decoded.file), WeatherRecordCodec.KIND_CONTENT_SERVER_HISTORY);
+            decoded.history = WeatherRecordCodec.toHistory(contents);
+            decoded.corruptRecords = contents.corruptRecords;
+        } catch (IOException | RuntimeException e) {
+            decoded.error = e;
+        }
+    }
+
+    /**
+     * Maps the station files in parallel and merges them, keeping the newer entry of a station
+     * found in more than one file, as when the shard count changed before the last snapshot.
+     *
+     * @return true if there were station files and every one of them could be read.
+     */
+    private boolean loadStations(ForkJoinPool pool, List<Path> stationFiles, AggregatedWeatherUpdates aggregatedWeatherUpdates,
+                                 Report report) {
+        if (stationFiles.isEmpty()) {
+            LOGGER.log(Level.INFO, "No station data found. Rebuilding stations from content server data.");
+            return false;
+        }
+        List<Callable<Map<String, WeatherUpdate>>> loads = new ArrayList<>();
+        for (Path file : stationFiles) {
+            loads.add(() -> {
+                WeatherFileConverter.convert(file);
+                return MappedStationSnapshot.load(file);
+            });
+        }
+
+        boolean intact = true;
+        Map<String, WeatherUpdate> stationUpdates = new LinkedHashMap<>();
+        List<Future<Map<String, WeatherUpdate>>> loaded = pool.invokeAll(loads);
+        for (int i = 0; i < stationFiles.size(); i++) {
+            try {
+                for (WeatherUpdate update : loaded.get(i).get().values()) {
+                    stationUpdates.merge(update.weatherStationId, update,
+                            (current, other) -> other.sequenceNumber > current.sequenceNumber ? other : current);
+                }
+                report.stationFilesLoaded++;
+            } catch (ExecutionException e) {
+                Exception error = e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+                if (!(error instanceof NoSuchFileException)) {
+                    quarantine(stationFiles.get(i), error, report);
+                }
+                intact = false;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        aggregatedWeatherUpdates.loadStationUpdates(stationUpdates);
+        report.stationsLoaded = stationUpdates.size();
+        return intact;
+    }
+
+    /**
+     * Moves a file which cannot be decoded out of the data directory, keeping it for inspection.
+     */
+    private void quarantine(Path file, Exception error, Report report) {
+        String fileName = file.getFileName().toString();
+        LOGGER.log(Level.WARNING, "Quarantining unreadable data file " + fileName + ": " + error.getMessage());
+        try {
+            Files.createDirectories(quarantineDirectory);
+            Files.move(file, quarantineDirectory.resolve(fileName + "." + System.currentTimeMillis()));
+            report.quarantinedFiles.add(fileName);
+        } catch (IOException e) {
+            LOGGER.log(Level.SEVERE, "Failed to quarantine data file: " + file, e);
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package au.edu.adelaide.aggregationserver.persistence;
+
+import static au.edu.adelaide.aggregationserver.AggregationServerConstants.*;
+
+/**
+ * Partitions the stations between a number of station files, so a snapshot only rewrites the
+ * files holding stations which changed. Stations are assigned by the hash of their id, which
+ * {@link String#hashCode()} keeps the same across runs; each file is a {@link MappedStationSnapshot}.
+ * File names carry the shard count, so files written with another count are never mistaken for
+ * shards of the current one.
+ */
+public final class StationShards {
+    private static final String SHARD_FILE_PREFIX = "weatherUpdatesByStation-";
+
+    private StationShards() {}
+
+    /**
+     * Returns the shard holding a station.
+     *
+     * @param weatherStationId The station id.
+     * @param shardCount       The number of shards.
+     * @return The shard index, from 0 to {@code shardCount - 1}.
+     */
+    public static int shardOf(String weatherStationId, int shardCount) {
+        return Math.floorMod(weatherStationId.hashCode(), shardCount);
+    }
+
+    /**
+     * Returns the name of a shard's file within the station directory.
+     *
+     * @param shard      The shard index.
+     * @param shardCount The number of shards.
+     * @return The file name.
+     */
+    public static String fileName(int shard, int shardCount) {
+        return SHARD_FILE_PREFIX + shard + "-of-" + shardCount + FILE_EXTENSION;
+    }
+}
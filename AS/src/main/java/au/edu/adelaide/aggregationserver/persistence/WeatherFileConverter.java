@@ -0,0 +1,137 @@
+package au.edu.adelaide.aggregationserver.persistence;
+
+import static au.edu.adelaide.aggregationserver.AggregationServerConstants.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InvalidObjectException;
+import java.io.ObjectInputFilter;
+import java.io.ObjectInputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import au.edu.adelaide.aggregationserver.data.WeatherUpdate;
+import au.edu.adelaide.aggregationserver.data.WeatherUpdateHistory;
+import util.IOUtility;
+
+/**
+ * Migrates {@code .weather} files written with Java serialization to the binary record format
+ * of {@link WeatherRecordCodec}, or to a {@link MappedStationSnapshot} for the station file. The server converts any such file it finds when loading; this
+ * class can also be run on its own to convert a data directory ahead of time:
+ * <pre>
+ *     java au.edu.adelaide.aggregationserver.persistence.WeatherFileConverter [DIRECTORY]
+ * </pre>
+ * Legacy files are only deserialized through a filter allowing the classes the server ever
+ * wrote, so a crafted file cannot instantiate anything else.
+ */
+public final class WeatherFileConverter {
+    private static final Logger LOGGER = Logger.getLogger(WeatherFileConverter.class.getName());
+    private static final ObjectInputFilter LEGACY_CLASSES = ObjectInputFilter.Config.createFilter(
+            "maxdepth=20;maxrefs=1000000;maxbytes=268435456;"
+            + "au.edu.adelaide.aggregationserver.data.WeatherUpdate;"
+            + "au.edu.adelaide.aggregationserver.data.WeatherUpdateHistory;"
+            + "util.JSONObject;"
+            + "java.util.HashMap;java.util.LinkedHashMap;java.util.Map$Entry;java.util.HashSet;java.util.LinkedList;"
+            + "java.util.UUID;java.time.Ser;java.time.ZonedDateTime;java.time.ZoneRegion;java.time.ZoneOffset;"
+            + "java.lang.Number;java.lang.Long;java.lang.Integer;java.lang.String;"
+            + "!*");
+
+    private WeatherFileConverter() {}
+
+    /**
+     * Converts a legacy file in place, leaving files already in the new format untouched.
+     * The converted file is written next to the original, fsynced and renamed over it, so a
+     * failed conversion never leaves a half-written file behind.
+     *
+     * @param file The {@code .weather} file.
+     * @return true if the file was converted.
+     * @throws IOException If the file cannot be read as legacy data or the converted file cannot be written.
+     */
+    public static boolean convert(Path file) throws IOException {
+        if (isEncoded(file)) {
+            return false;
+        }
+        byte[] data = Files.readAllBytes(file);
+        byte[] converted = encode(readLegacy(data));
+        new IOUtility().replaceFileWithBytes(converted, file.toString(), true);
+        LOGGER.log(Level.INFO, "Converted " + file + " (" + data.length + " -> " + converted.length + " bytes)");
+        return true;
+    }
+
+    /**
+     * Converts every legacy {@code .weather} file in a directory.
+     *
+     * @param directory The data directory.
+     * @return The number of files converted.
+     * @throws IOException If the directory cannot be listed.
+     */
+    public static int convertDirectory(Path directory) throws IOException {
+        int converted = 0;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + FILE_EXTENSION)) {
+            for (Path file : files) {
+                try {
+                    if (convert(file)) {
+                        converted++;
+                    }
+                } catch (IOException e) {
+                    LOGGER.log(Level.WARNING, "Could not convert " + file + ": " + e.getMessage());
+                }
+            }
+        }
+        return converted;
+    }
+
+    /**
+     * Checks the magic number alone, so a large converted file is not read just to skip it.
+     */
+    private static boolean isEncoded(Path file) throws IOException {
+        try (InputStream in = Files.newInputStream(file)) {
+            return WeatherRecordCodec.isEncoded(in.readNBytes(4));
+        }
+    }
+
+    private static Object readLegacy(byte[] data) throws IOException {
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(data))) {
+            in.setObjectInputFilter(LEGACY_CLASSES);
+            return in.readObject();
+        } catch (ClassNotFoundException e) {
+            throw new InvalidObjectException("Unknown class in legacy file: " + e.getMessage());
+        }
+    }
+
+    private static byte[] encode(Object legacy) throws IOException {
+        try {
+            return encodeLegacy(legacy);
+        } catch (ClassCastException | NullPointerException e) {
+            throw new InvalidObjectException("Malformed legacy file: " + e.getMessage());
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static byte[] encodeLegacy(Object legacy) throws IOException {
+        if (legacy instanceof WeatherUpdateHistory) {
+            return WeatherRecordCodec.encodeHistory((WeatherUpdateHistory) legacy);
+        } else if (legacy instanceof LinkedList) {
+            // Files written before histories became ring buffers hold a list, newest first
+            return WeatherRecordCodec.encodeHistory(
+                    WeatherUpdateHistory.fromNewestFirst((LinkedList<WeatherUpdate>) legacy, MAX_CONTENT_SERVER_UPDATES));
+        } else if (legacy instanceof Map) {
+            return MappedStationSnapshot.encode((Map<String, WeatherUpdate>) legacy);
+        }
+        throw new InvalidObjectException("Unexpected data type in legacy file: "
+                + (legacy == null ? "null" : legacy.getClass().getName()));
+    }
+
+    public static void main(String[] args) throws IOException {
+        Path directory = Paths.get(args.length > 0 ? args[0] : BASE_STORAGE_PATH + URI_PREFIX);
+        int converted = convertDirectory(directory);
+        System.out.println("Converted " + converted + " file(s) in " + directory);
+    }
+}
@@ -0,0 +1,293 @@
+package au.edu.adelaide.aggregationserver.persistence;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+import au.edu.adelaide.aggregationserver.data.WeatherUpdate;
+import au.edu.adelaide.aggregationserver.data.WeatherUpdateHistory;
+import util.JSONObject;
+
+/**
+ * Encodes the {@code .weather} snapshot files as versioned binary records.
+ * <p>
+ * A file starts with a fixed header: the magic number, the format version, the kind of file,
+ * the history capacity (0 for the station file) and the record count. The header is followed
+ * by the field dictionary, every distinct JSON member name once, and a CRC of the header and
+ * dictionary. Each record is then its payload length, a CRC of the payload and the payload:
+ * the content server UUID as two longs, the log sequence number, the logical timestamp, the
+ * observation time in epoch milliseconds and the fields, each a dictionary index, a raw flag
+ * and the value.
+ * <p>
+ * A record failing its CRC is skipped and counted, so one damaged record does not cost the
+ * rest of the file; a damaged header, dictionary or record length fails the whole file.
+ */
+public final class WeatherRecordCodec {
+    private static final Logger LOGGER = Logger.getLogger(WeatherRecordCodec.class.getName());
+    public static final int MAGIC = 0x57544852; // "WTHR"
+    public static final byte FORMAT_VERSION = 1;
+    public static final byte KIND_CONTENT_SERVER_HISTORY = 1;
+    public static final byte KIND_STATION_UPDATES = 2;
+    private static final int MAX_RECORD_SIZE = 1024 * 1024;
+    private static final int MAX_DICTIONARY_SIZE = 0xFFFF;
+
+    /**
+     * The decoded contents of a file.
+     */
+    public static final class Contents {
+        public final byte kind;
+        public final int capacity;
+        // In the order they were written: oldest first for a history
+        public final List<WeatherUpdate> updates;
+        // Records skipped because they failed their CRC
+        public final int corruptRecords;
+
+        private Contents(byte kind, int capacity, List<WeatherUpdate> updates, int corruptRecords) {
+            this.kind = kind;
+            this.capacity = capacity;
+            this.updates = updates;
+            this.corruptRecords = corruptRecords;
+        }
+    }
+
+    private WeatherRecordCodec() {}
+
+    /**
+     * Encodes a content server history, oldest update first.
+     *
+     * @param history The history to encode.
+     * @return The encoded file.
+     */
+    public static byte[] encodeHistory(WeatherUpdateHistory history) {
+        List<WeatherUpdate> oldestFirst = new ArrayList<>(history.snapshot());
+        Collections.reverse(oldestFirst);
+        return encode(KIND_CONTENT_SERVER_HISTORY, history.getCapacity(), oldestFirst);
+    }
+
+    /**
+     * Encodes the most recent update of each station.
+     *
+     * @param stationUpdates The station entries.
+     * @return The encoded file.
+     */
+    public static byte[] encodeStationUpdates(Map<String, WeatherUpdate> stationUpdates) {
+        return encode(KIND_STATION_UPDATES, 0, stationUpdates.values());
+    }
+
+    /**
+     * Decodes a content server history.
+     *
+     * @param data The encoded file.
+     * @return The history, holding the newest updates that fit its capacity.
+     * @throws IOException If the file is not an intact history file.
+     */
+    public static WeatherUpdateHistory decodeHistory(byte[] data) throws IOException {
+        return toHistory(decode(data, KIND_CONTENT_SERVER_HISTORY));
+    }
+
+    /**
+     * Builds the history held by the decoded contents of a history file.
+     *
+     * @param contents The contents of a {@link #KIND_CONTENT_SERVER_HISTORY} file.
+     * @return The history, holding the newest updates that fit its capacity.
+     */
+    public static WeatherUpdateHistory toHistory(Contents contents) {
+        WeatherUpdateHistory history = new WeatherUpdateHistory(contents.capacity);
+        for (WeatherUpdate update : contents.updates) {
+            history.add(update);
+        }
+        return history;
+    }
+
+    /**
+     * Decodes the station entries, keyed by station id.
+     *
+     * @param data The encoded file.
+     * @return The most recent update of each station.
+     * @throws IOException If the file is not an intact station file.
+     */
+    public static Map<String, WeatherUpdate> decodeStationUpdates(byte[] data) throws IOException {
+        Map<String, WeatherUpdate> stationUpdates = new LinkedHashMap<>();
+        for (WeatherUpdate update : decode(data, KIND_STATION_UPDATES).updates) {
+            stationUpdates.put(update.weatherStationId, update);
+        }
+        return stationUpdates;
+    }
+
+    /**
+     * Checks whether data starts with this format's magic number, as opposed to a file
+     * written by Java serialization.
+     *
+     * @param data The file contents.
+     * @return true if the data is in this format.
+     */
+    public static boolean isEncoded(byte[] data) {
+        return data.length >= 4
+                && ((data[0] & 0xFF) << 24 | (data[1] & 0xFF) << 16 | (data[2] & 0xFF) << 8 | (data[3] & 0xFF)) == MAGIC;
+    }
+
+    private static byte[] encode(byte kind, int capacity, Collection<WeatherUpdate> updates) {
+        Map<String, Integer> dictionary = new LinkedHashMap<>();
+        for (WeatherUpdate update : updates) {
+            for (Map.Entry<String, String> field : update.getWeatherData().entrySet()) {
+                dictionary.putIfAbsent(field.getKey(), dictionary.size());
+            }
+        }
+        if (dictionary.size() > MAX_DICTIONARY_SIZE) {
+            throw new IllegalArgumentException("Too many distinct fields: " + dictionary.size());
+        }
+
+        try {
+            ByteArrayOutputStream fileBytes = new ByteArrayOutputStream(256 + updates.size() * 256);
+            DataOutputStream out = new DataOutputStream(fileBytes);
+            CRC32 crc = new CRC32();
+
+            ByteArrayOutputStream headerBytes = new ByteArrayOutputStream();
+            DataOutputStream header = new DataOutputStream(headerBytes);
+            header.writeInt(MAGIC);
+            header.writeByte(FORMAT_VERSION);
+            header.writeByte(kind);
+            header.writeInt(capacity);
+            header.writeInt(updates.size());
+            header.writeShort(dictionary.size());
+            for (String key : dictionary.keySet()) {
+                header.writeUTF(key);
+            }
+            crc.update(headerBytes.toByteArray());
+            headerBytes.writeTo(out);
+            out.writeInt((int) crc.getValue());
+
+            ByteArrayOutputStream recordBytes = new ByteArrayOutputStream(256);
+            DataOutputStream record = new DataOutputStream(recordBytes);
+            for (WeatherUpdate update : updates) {
+                recordBytes.reset();
+                record.writeLong(update.contentServerUUID.getMostSignificantBits());
+                record.writeLong(update.contentServerUUID.getLeastSignificantBits());
+                record.writeLong(update.sequenceNumber);
+                record.writeLong(update.lamportTimestamp);
+                record.writeLong(update.timestamp.toInstant().toEpochMilli());
+                JSONObject weatherData = update.getWeatherData();
+                record.writeShort(weatherData.entrySet().size());
+                for (Map.Entry<String, String> field : weatherData.entrySet()) {
+                    record.writeShort(dictionary.get(field.getKey()));
+                    record.writeBoolean(weatherData.isRaw(field.getKey()));
+                    record.writeUTF(field.getValue());
+                }
+                crc.reset();
+                crc.update(recordBytes.toByteArray());
+                out.writeInt(recordBytes.size());
+                out.writeInt((int) crc.getValue());
+                recordBytes.writeTo(out);
+            }
+            return fileBytes.toByteArray();
+        } catch (IOException e) {
+            // Only in-memory streams are written
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Decodes a file of the expected kind.
+     *
+     * @param data         The encoded file.
+     * @param expectedKind The kind of file the caller expects.
+     * @return The decoded contents.
+     * @throws IOException If the header or dictionary is damaged, the file is of another kind
+     *                     or a newer version, or a record length is invalid.
+     */
+    public static Contents decode(byte[] data, byte expectedKind) throws IOException {
+        if (!isEncoded(data)) {
+            throw new IOException("Not a weather record file");
+        }
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        CRC32 crc = new CRC32();
+        try {
+            in.readInt();
+            byte version = in.readByte();
+            if (version > FORMAT_VERSION || version < 1) {
+                throw new IOException("Unsupported weather record format version " + version);
+            }
+            byte kind = in.readByte();
+            if (kind != expectedKind) {
+                throw new IOException("Expected file kind " + expectedKind + " but found " + kind);
+            }
+            int capacity = in.readInt();
+            int recordCount = in.readInt();
+            String[] dictionary = new String[in.readUnsignedShort()];
+            for (int i = 0; i < dictionary.length; i++) {
+                dictionary[i] = in.readUTF();
+            }
+            int headerLength = data.length - in.available();
+            crc.update(data, 0, headerLength);
+            if (in.readInt() != (int) crc.getValue()) {
+                throw new IOException("Header checksum mismatch");
+            }
+            if (recordCount < 0 || (kind == KIND_CONTENT_SERVER_HISTORY && capacity < 1)) {
+                throw new IOException("Invalid header");
+            }
+
+            List<WeatherUpdate> updates = new ArrayList<>(Math.min(recordCount, 1024));
+            int corruptRecords = 0;
+            for (int i = 0; i < recordCount; i++) {
+                int length = in.readInt();
+                int expectedCrc = in.readInt();
+                if (length <= 0 || length > MAX_RECORD_SIZE) {
+                    throw new IOException("Invalid record length " + length);
+                }
+                byte[] payload = new byte[length];
+                in.readFully(payload);
+                crc.reset();
+                crc.update(payload, 0, length);
+                if ((int) crc.getValue() != expectedCrc) {
+                    corruptRecords++;
+                    continue;
+                }
+                updates.add(decodeRecord(payload, dictionary));
+            }
+            if (corruptRecords > 0) {
+                LOGGER.log(Level.WARNING, "Skipped " + corruptRecords + " corrupt weather record(s)");
+            }
+            return new Contents(kind, capacity, updates, corruptRecords);
+        } catch (EOFException e) {
+            throw new IOException("Weather record file is truncated", e);
+        }
+    }
+
+    private static WeatherUpdate decodeRecord(byte[] payload, String[] dictionary) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        UUID contentServerUUID = new UUID(in.readLong(), in.readLong());
+        long sequenceNumber = in.readLong();
+        long lamportTimestamp = in.readLong();
+        ZonedDateTime timestamp = ZonedDateTime.ofInstant(Instant.ofEpochMilli(in.readLong()), ZoneId.of("UTC"));
+        int fieldCount = in.readUnsignedShort();
+        JSONObject weatherData = new JSONObject();
+        for (int i = 0; i < fieldCount; i++) {
+            int keyIndex = in.readUnsignedShort();
+            if (keyIndex >= dictionary.length) {
+                throw new IOException("Field index " + keyIndex + " outside dictionary");
+            }
+            if (in.readBoolean()) {
+                weatherData.putRaw(dictionary[keyIndex], in.readUTF());
+            } else {
+                weatherData.putString(dictionary[keyIndex], in.readUTF());
+            }
+        }
+        return new WeatherUpdate(contentServerUUID, weatherData, timestamp, sequenceNumber, lamportTimestamp);
+    }
+}
@@ -0,0 +1,571 @@
+package au.edu.adelaide.aggregationserver.persistence;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+import au.edu.adelaide.aggregationserver.data.WeatherUpdate;
+import util.JSONObject;
+
+/**
+ * Append-only log of every change made to the aggregated weather data.
+ * Each accepted update is appended as a small checksummed record instead of rewriting whole
+ * data files. The log is split into numbered segments; once a snapshot of the in-memory state
+ * has been written, a checkpoint records the first segment still needed and older segments
+ * are deleted. On startup the segments after the checkpoint are replayed over the snapshot.
+ * <p>
+ * Appends only encode the record into a pending batch and return a future for it. A single
+ * committer thread writes each batch with one write and, depending on the {@link FsyncPolicy},
+ * one fsync, so updates arriving concurrently from many request threads share the cost of
+ * making them durable.
+ */
+public class WriteAheadLog implements AutoCloseable {
+    private static final Logger LOGGER = Logger.getLogger(WriteAheadLog.class.getName());
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String CHECKPOINT_FILE = "checkpoint";
+    private static final byte RECORD_UPDATE = 1;
+    private static final byte RECORD_CONTENT_SERVER_REMOVED = 2;
+    private static final int RECORD_HEADER_SIZE = 8;
+    private static final int MAX_RECORD_SIZE = 1024 * 1024;
+
+    /**
+     * When appended records are forced to stable storage.
+     */
+    public enum FsyncPolicy {
+        // Each batch is written and fsynced as soon as it has records; requests arriving during an fsync share the next one
+        PER_REQUEST,
+        // Records are gathered for the batch interval, then written and fsynced together
+        BATCHED,
+        // Records are written as soon as possible and the operating system decides when they reach the disk
+        OS
+    }
+
+    /**
+     * Receives the records found while replaying the log.
+     */
+    public interface RecordHandler {
+        void onUpdate(WeatherUpdate weatherUpdate);
+        void onContentServerRemoved(long sequenceNumber, UUID contentServerUUID);
+    }
+
+    private final Path directory;
+    private final ByteArrayOutputStream recordBytes = new ByteArrayOutputStream(512);
+    private final DataOutputStream recordOut = new DataOutputStream(recordBytes);
+    private final CRC32 crc = new CRC32();
+    private final FsyncPolicy fsyncPolicy;
+    private final long batchIntervalNanos;
+    // Held while a batch is written, so segments only change between batches
+    private final Object writeLock = new Object();
+    // Held while the checkpoint file is replaced, so two checkpoints never share its temporary file
+    private final Object checkpointLock = new Object();
+    private final Thread committer;
+    private ByteArrayOutputStream pendingBatch = new ByteArrayOutputStream(8 * 1024);
+    private CompletableFuture<Void> pendingBatchDurable = new CompletableFuture<>();
+    private long pendingBatchStarted;
+    private boolean closed = false;
+    private long checkpointSegment;
+    private long nextSequenceNumber;
+    private long currentSegment;
+    private FileChannel segmentChannel;
+
+    private WriteAheadLog(Path directory, long checkpointSegment, long nextSequenceNumber,
+                          FsyncPolicy fsyncPolicy, long batchIntervalMillis) {
+        this.directory = directory;
+        this.checkpointSegment = checkpointSegment;
+        this.nextSequenceNumber = nextSequenceNumber;
+        this.fsyncPolicy = fsyncPolicy;
+        this.batchIntervalNanos = fsyncPolicy == FsyncPolicy.BATCHED ? TimeUnit.MILLISECONDS.toNanos(batchIntervalMillis) : 0;
+        this.committer = new Thread(this::runCommitter, "wal-group-commit");
+        this.committer.setDaemon(true);
+    }
+
+    /**
+     * Opens the log stored in the given directory, creating the directory if needed.
+     * Call {@link #replay(RecordHandler)} and then {@link #startNewSegment()} before appending.
+     *
+     * @param directory           The directory holding the log segments.
+     * @param fsyncPolicy         When appended records are forced to stable storage.
+     * @param batchIntervalMillis How long a batch gathers records under {@link FsyncPolicy#BATCHED}.
+     * @return The opened log.
+     * @throws IOException If the directory or checkpoint cannot be read.
+     */
+    public static WriteAheadLog open(String directory, FsyncPolicy fsyncPolicy, long batchIntervalMillis) throws IOException {
+        if (batchIntervalMillis < 0) {
+            throw new IllegalArgumentException("Batch interval must not be negative");
+        }
+        Path path = Paths.get(directory);
+        Files.createDirectories(path);
+
+        long checkpointSegment = 0;
+        long nextSequenceNumber = 1;
+        Path checkpoint = path.resolve(CHECKPOINT_FILE);
+        if (Files.exists(checkpoint)) {
+            try (DataInputStream in = new DataInputStream(Files.newInputStream(checkpoint))) {
+                checkpointSegment = in.readLong();
+                nextSequenceNumber = in.readLong();
+            }
+        }
+        return new WriteAheadLog(path, checkpointSegment, nextSequenceNumber, fsyncPolicy, batchIntervalMillis);
+    }
+
+    /**
+     * Replays every record written since the last checkpoint, oldest first.
+     * A truncated or corrupt record ends the replay of its segment, since it can only be
+     * the tail of a write that was interrupted by a crash.
+     *
+     * @param handler Receives each replayed record.
+     * @return The number of records replayed.
+     * @throws IOException If a segment cannot be read.
+     */
+    public synchronized int replay(RecordHandler handler) throws IOException {
+        int replayed = 0;
+        for (long segment : listSegments()) {
+            if (segment < checkpointSegment) {
+                continue;
+            }
+            replayed += replaySegment(segmentPath(segment), handler);
+        }
+        LOGGER.log(Level.INFO, "Replayed " + replayed + " write-ahead log record(s)");
+        return replayed;
+    }
+
+    private int replaySegment(Path segment, RecordHandler handler) throws IOException {
+        int replayed = 0;
+        try (DataInputStream in = new DataInputStream(Files.newInputStream(segment))) {
+            while (true) {
+                byte[] payload = readRecord(in);
+                if (payload == null) {
+                    break;
+                }
+                applyRecord(payload, handler);
+                replayed++;
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Stopped replaying damaged segment " + segment.getFileName() + ": " + e.getMessage());
+        }
+        return replayed;
+    }
+
+    /**
+     * Reads and verifies one record.
+     *
+     * @return The record payload, or null at a clean end of segment.
+     * @throws IOException If the record is truncated or fails its checksum.
+     */
+    private byte[] readRecord(DataInputStream in) throws IOException {
+        int length;
+        try {
+            length = in.readInt();
+        } catch (EOFException e) {
+            return null;
+        }
+        if (length <= 0 || length > MAX_RECORD_SIZE) {
+            throw new IOException("Invalid record length " + length);
+        }
+        int expectedCrc = in.readInt();
+        byte[] payload = new byte[length];
+        in.readFully(payload);
+
+        crc.reset();
+        crc.update(payload, 0, length);
+        if ((int) crc.getValue() != expectedCrc) {
+            throw new IOException("Record checksum mismatch");
+        }
+        return payload;
+    }
+
+    private void applyRecord(byte[] payload, RecordHandler handler) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        byte type = in.readByte();
+        long sequenceNumber = in.readLong();
+        nextSequenceNumber = Math.max(nextSequenceNumber, sequenceNumber + 1);
+        UUID contentServerUUID = new UUID(in.readLong(), in.readLong());
+
+        switch (type) {
+            case RECORD_UPDATE:
+                long lamportTimestamp = in.readLong();
+                handler.onUpdate(readWeatherUpdate(in, contentServerUUID, sequenceNumber, lamportTimestamp));
+                break;
+            case RECORD_CONTENT_SERVER_REMOVED:
+                handler.onContentServerRemoved(sequenceNumber, contentServerUUID);
+                break;
+            default:
+                throw new IOException("Unknown record type " + type);
+        }
+    }
+
+    private static WeatherUpdate readWeatherUpdate(DataInputStream in, UUID contentServerUUID, long sequenceNumber,
+                                                   long lamportTimestamp) throws IOException {
+        ZonedDateTime timestamp = ZonedDateTime.ofInstant(Instant.ofEpochMilli(in.readLong()), ZoneId.of("UTC"));
+        int fieldCount = in.readInt();
+        JSONObject weatherData = new JSONObject();
+        for (int i = 0; i < fieldCount; i++) {
+            String key = in.readUTF();
+            if (in.readBoolean()) {
+                weatherData.putRaw(key, in.readUTF());
+            } else {
+                weatherData.putString(key, in.readUTF());
+            }
+        }
+        return new WeatherUpdate(contentServerUUID, weatherData, timestamp, sequenceNumber, lamportTimestamp);
+    }
+
+    /**
+     * Starts a fresh segment for new records and the committer which writes them. Segments left
+     * over from before a restart are never appended to, so a torn record at their tail cannot
+     * hide records written after it.
+     *
+     * @throws IOException If the segment cannot be created.
+     */
+    public synchronized void startNewSegment() throws IOException {
+        long lastSegment = checkpointSegment;
+        for (long segment : listSegments()) {
+            lastSegment = Math.max(lastSegment, segment);
+        }
+        openSegment(lastSegment + 1);
+        if (!committer.isAlive()) {
+            committer.start();
+        }
+    }
+
+    /**
+     * Appends an accepted weather update to the pending batch and assigns its sequence number.
+     *
+     * @param weatherUpdate The update to log.
+     * @return A future completed once the batch holding the record is durable under the fsync policy.
+     * @throws IOException If the log is not accepting records.
+     */
+    public synchronized CompletableFuture<Void> appendUpdate(WeatherUpdate weatherUpdate) throws IOException {
+        long sequenceNumber = nextSequenceNumber;
+        beginRecord(RECORD_UPDATE, sequenceNumber, weatherUpdate.contentServerUUID);
+        recordOut.writeLong(weatherUpdate.lamportTimestamp);
+        recordOut.writeLong(weatherUpdate.timestamp.toInstant().toEpochMilli());
+        JSONObject weatherData = weatherUpdate.getWeatherData();
+        int fieldCount = weatherData.entrySet().size();
+        recordOut.writeInt(fieldCount);
+        for (Map.Entry<String, String> field : weatherData.entrySet()) {
+            recordOut.writeUTF(field.getKey());
+            recordOut.writeBoolean(weatherData.isRaw(field.getKey()));
+            recordOut.writeUTF(field.getValue());
+        }
+        CompletableFuture<Void> durable = writeRecord();
+        weatherUpdate.sequenceNumber = sequenceNumber;
+        return durable;
+    }
+
+    /**
+     * Appends several accepted weather updates to the pending batch together, so they are
+     * written and made durable by the same group write.
+     *
+     * @param weatherUpdates The updates to log, in order.
+     * @return A future completed once the batch holding the records is durable under the fsync policy.
+     * @throws IOException If the log is not accepting records.
+     */
+    public synchronized CompletableFuture<Void> appendUpdates(List<WeatherUpdate> weatherUpdates) throws IOException {
+        CompletableFuture<Void> durable = null;
+        for (WeatherUpdate weatherUpdate : weatherUpdates) {
+            // The committer cannot take the batch while this monitor is held, so every record shares one future
+            durable = appendUpdate(weatherUpdate);
+        }
+        return durable != null ? durable : CompletableFuture.completedFuture(null);
+    }
+
+    /**
+     * Appends the removal of a content server and all of its data to the pending batch.
+     *
+     * @param contentServerUUID The UUID of the removed content server.
+     * @return A future completed once the batch holding the record is durable under the fsync policy.
+     * @throws IOException If the log is not accepting records.
+     */
+    public synchronized CompletableFuture<Void> appendContentServerRemoval(UUID contentServerUUID) throws IOException {
+        beginRecord(RECORD_CONTENT_SERVER_REMOVED, nextSequenceNumber, contentServerUUID);
+        return writeRecord();
+    }
+
+    /**
+     * Blocks until a record returned by one of the append methods is durable.
+     *
+     * @param durable The future returned when the record was appended.
+     * @throws IOException If the batch holding the record could not be written.
+     */
+    public static void awaitDurable(CompletableFuture<Void> durable) throws IOException {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    durable.get();
+                    return;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void beginRecord(byte type, long sequenceNumber, UUID contentServerUUID) throws IOException {
+        if (segmentChannel == null || closed) {
+            throw new IOException("Write-ahead log is not open for appending");
+        }
+        recordBytes.reset();
+        // Space for the length and checksum, filled in once the payload is known
+        recordOut.writeLong(0);
+        recordOut.writeByte(type);
+        recordOut.writeLong(sequenceNumber);
+        recordOut.writeLong(contentServerUUID.getMostSignificantBits());
+        recordOut.writeLong(contentServerUUID.getLeastSignificantBits());
+    }
+
+    private CompletableFuture<Void> writeRecord() throws IOException {
+        recordOut.flush();
+        byte[] record = recordBytes.toByteArray();
+        int payloadLength = record.length - RECORD_HEADER_SIZE;
+        crc.reset();
+        crc.update(record, RECORD_HEADER_SIZE, payloadLength);
+
+        ByteBuffer buffer = ByteBuffer.wrap(record);
+        buffer.putInt(0, payloadLength);
+        buffer.putInt(4, (int) crc.getValue());
+        if (pendingBatch.size() == 0) {
+            pendingBatchStarted = System.nanoTime();
+            notifyAll();
+        }
+        pendingBatch.write(record);
+        nextSequenceNumber++;
+        return pendingBatchDurable;
+    }
+
+    /**
+     * Writes pending batches until the log is closed. Under {@link FsyncPolicy#BATCHED} a batch
+     * is held open for the batch interval so that it gathers more records.
+     */
+    private void runCommitter() {
+        while (true) {
+            long batchDue;
+            synchronized (this) {
+                while (pendingBatch.size() == 0 && !closed) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        // Only close() stops the committer
+                    }
+                }
+                if (pendingBatch.size() == 0) {
+                    return;
+                }
+                batchDue = pendingBatchStarted + batchIntervalNanos;
+            }
+
+            long remaining = batchDue - System.nanoTime();
+            if (remaining > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(remaining);
+                } catch (InterruptedException e) {
+                    // Write the batch early
+                }
+            }
+
+            synchronized (writeLock) {
+                try {
+                    commitPendingBatch();
+                } catch (IOException e) {
+                    LOGGER.log(Level.SEVERE, "Failed to write a batch to the write-ahead log", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes the pending batch to the current segment with one write and, unless the OS manages
+     * durability, one fsync, then completes the batch future. Callers hold {@link #writeLock}.
+     *
+     * @throws IOException If the batch cannot be written; its future is completed with the same error.
+     */
+    private void commitPendingBatch() throws IOException {
+        byte[] batch;
+        CompletableFuture<Void> durable;
+        FileChannel channel;
+        synchronized (this) {
+            if (pendingBatch.size() == 0) {
+                return;
+            }
+            batch = pendingBatch.toByteArray();
+            pendingBatch.reset();
+            durable = pendingBatchDurable;
+            pendingBatchDurable = new CompletableFuture<>();
+            channel = segmentChannel;
+        }
+
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(batch);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            if (fsyncPolicy != FsyncPolicy.OS) {
+                channel.force(false);
+            }
+            durable.complete(null);
+        } catch (IOException e) {
+            durable.completeExceptionally(e);
+            // A partly written batch would hide every later record in this segment from replay
+            try {
+                synchronized (this) {
+                    openSegment(currentSegment + 1);
+                }
+            } catch (IOException rollFailure) {
+                e.addSuppressed(rollFailure);
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Writes out the pending batch and switches appends to a new segment. Every record in earlier
+     * segments is reflected in any snapshot taken after this call returns, under the same lock
+     * the caller appends with.
+     *
+     * @return The number of the new segment, to be passed to {@link #checkpoint(long)} once the snapshot is durable.
+     * @throws IOException If the pending batch cannot be written or the new segment cannot be created.
+     */
+    public long rollSegment() throws IOException {
+        synchronized (writeLock) {
+            commitPendingBatch();
+            synchronized (this) {
+                openSegment(currentSegment + 1);
+                return currentSegment;
+            }
+        }
+    }
+
+    /**
+     * Records that a snapshot covers everything before the given segment and deletes those segments.
+     * Checkpoints only move forward: one older than the current checkpoint is ignored.
+     *
+     * @param firstNeededSegment The first segment not covered by the snapshot.
+     * @throws IOException If the checkpoint cannot be written.
+     */
+    public void checkpoint(long firstNeededSegment) throws IOException {
+        synchronized (checkpointLock) {
+            long sequenceNumber;
+            synchronized (this) {
+                if (firstNeededSegment <= checkpointSegment) {
+                    return;
+                }
+                sequenceNumber = nextSequenceNumber;
+            }
+            Path checkpoint = directory.resolve(CHECKPOINT_FILE);
+            Path temporary = directory.resolve(CHECKPOINT_FILE + ".tmp");
+            try (FileChannel out = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                ByteBuffer buffer = ByteBuffer.allocate(2 * Long.BYTES);
+                buffer.putLong(firstNeededSegment).putLong(sequenceNumber).flip();
+                while (buffer.hasRemaining()) {
+                    out.write(buffer);
+                }
+                out.force(false);
+            }
+            Files.move(temporary, checkpoint, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+            synchronized (this) {
+                checkpointSegment = firstNeededSegment;
+            }
+            for (long segment : listSegments()) {
+                if (segment < firstNeededSegment) {
+                    Files.deleteIfExists(segmentPath(segment));
+                }
+            }
+        }
+    }
+
+    private void openSegment(long segment) throws IOException {
+        FileChannel channel = FileChannel.open(segmentPath(segment),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        if (segmentChannel != null) {
+            segmentChannel.close();
+        }
+        segmentChannel = channel;
+        currentSegment = segment;
+    }
+
+    private List<Long> listSegments() throws IOException {
+        List<Long> segments = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            for (Path path : stream) {
+                String name = path.getFileName().toString();
+                try {
+                    segments.add(Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length())));
+                } catch (NumberFormatException e) {
+                    LOGGER.log(Level.WARNING, "Ignoring unexpected file in write-ahead log directory: " + name);
+                }
+            }
+        }
+        Collections.sort(segments);
+        return segments;
+    }
+
+    private Path segmentPath(long segment) {
+        return directory.resolve(String.format("%s%020d%s", SEGMENT_PREFIX, segment, SEGMENT_SUFFIX));
+    }
+
+    /**
+     * Stops accepting records, writes out the pending batch and closes the current segment.
+     *
+     * @throws IOException If the pending batch cannot be written.
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+        try {
+            committer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (writeLock) {
+            try {
+                commitPendingBatch();
+            } finally {
+                synchronized (this) {
+                    if (segmentChannel != null) {
+                        segmentChannel.close();
+                        segmentChannel = null;
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,289 @@
+package au.edu.adelaide.aggregationserver.persistence;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A bounded queue of changes waiting to be written to the data files, drained by a dedicated
+ * writer thread. The writer waits for the flush interval after the first change it finds, so
+ * every change to the same content server or station made in the meantime is written once.
+ * <p>
+ * The queue is bounded by the number of updates waiting to be written, which only drops once the
+ * writer has finished writing them. When it is full, {@link #enqueue} fails at once with a
+ * {@link QueueFullException} instead of blocking, since it may be called on an event loop; the
+ * writer is woken early once the queue is half full.
+ */
+public final class WriteBehindQueue implements AutoCloseable {
+    private static final Logger LOGGER = Logger.getLogger(WriteBehindQueue.class.getName());
+
+    /**
+     * Writes every change made since the last flush.
+     */
+    public interface Flusher {
+        /**
+         * @return The number of files written or deleted.
+         */
+        int flush() throws IOException;
+    }
+
+    /**
+     * Thrown when a change cannot be queued because the writer has fallen behind.
+     */
+    public static final class QueueFullException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public QueueFullException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * A point-in-time view of the queue.
+     */
+    public static final class Metrics {
+        public int queueDepth;
+        public int queueCapacity;
+        public long flushIntervalMillis;
+        public long enqueuedUpdates;
+        public long rejectedUpdates;
+        public long flushes;
+        public long failedFlushes;
+        // The content server and station files written or deleted by the flushes
+        public long filesWritten;
+        // Updates written per file written; higher means more repeated updates were coalesced
+        public double coalescingRatio;
+        // Time from the oldest update of a flush being queued to the flush completing
+        public long lastFlushLagMillis;
+        public long maxFlushLagMillis;
+    }
+
+    /**
+     * The content servers changed by one call to {@link #enqueue}.
+     */
+    private static final class Pending {
+        private final Collection<UUID> contentServers;
+        private final int updates;
+        private final long enqueuedNanos;
+
+        private Pending(Collection<UUID> contentServers, int updates, long enqueuedNanos) {
+            this.contentServers = contentServers;
+            this.updates = updates;
+            this.enqueuedNanos = enqueuedNanos;
+        }
+    }
+
+    private final ConcurrentLinkedQueue<Pending> queue = new ConcurrentLinkedQueue<>();
+    // Updates queued or being written
+    private final AtomicInteger depth = new AtomicInteger();
+    private final int capacity;
+    private final long flushIntervalMillis;
+    private final Flusher flusher;
+    private final Thread writer;
+    private final Object signal = new Object();
+    private volatile boolean running = true;
+
+    private final AtomicLong enqueuedUpdates = new AtomicLong();
+    private final AtomicLong rejectedUpdates = new AtomicLong();
+    // Only written by the writer thread, under the signal lock so metrics are read consistently
+    private long flushedUpdates;
+    private long flushes;
+    private long failedFlushes;
+    private long filesWritten;
+    private long lastFlushLagMillis;
+    private long maxFlushLagMillis;
+
+    /**
+     * Constructs a WriteBehindQueue and starts its writer thread.
+     *
+     * @param capacity            How many updates may wait to be written before changes are rejected.
+     * @param flushIntervalMillis How long the writer gathers changes before each flush.
+     * @param flusher             Writes the changes.
+     */
+    public WriteBehindQueue(int capacity, long flushIntervalMillis, Flusher flusher) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Write-behind queue capacity must be positive: " + capacity);
+        }
+        this.capacity = capacity;
+        this.flushIntervalMillis = Math.max(0, flushIntervalMillis);
+        this.flusher = flusher;
+        this.writer = new Thread(this::runWriter, "write-behind");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    /**
+     * Queues the changes made by a number of updates. A batch larger than the whole queue is
+     * still accepted when the queue is empty, so it is never rejected forever.
+     *
+     * @param contentServers The content servers whose files the updates changed.
+     * @param updates        The number of updates.
+     * @throws QueueFullException If the queue has no room for the updates.
+     */
+    public void enqueue(Collection<UUID> contentServers, int updates) throws QueueFullException {
+        reserve(updates);
+        enqueueReserved(contentServers, updates);
+    }
+
+    /**
+     * Takes room in the queue for a number of updates before they are made, so an update the
+     * queue has no room for can be rejected before anything is changed. The room must be
+     * passed to {@link #enqueueReserved} once the updates are made, or to {@link #release}.
+     *
+     * @param updates The number of updates.
+     * @throws QueueFullException If the queue has no room for the updates.
+     */
+    public void reserve(int updates) throws QueueFullException {
+        if (!running) {
+            throw new QueueFullException("Write-behind queue is closed");
+        }
+        int current;
+        do {
+            current = depth.get();
+            if (current > 0 && current + updates > capacity) {
+                rejectedUpdates.addAndGet(updates);
+                throw new QueueFullException("Write-behind queue full: " + current + " of " + capacity + " updates waiting");
+            }
+        } while (!depth.compareAndSet(current, current + updates));
+    }
+
+    /**
+     * Gives back room taken by {@link #reserve} for updates which were not made.
+     *
+     * @param updates The number of updates.
+     */
+    public void release(int updates) {
+        depth.addAndGet(-updates);
+    }
+
+    /**
+     * Queues the changes made by updates the queue already has room for.
+     *
+     * @param contentServers The content servers whose files the updates changed.
+     * @param updates        The number of updates, as passed to {@link #reserve}.
+     */
+    public void enqueueReserved(Collection<UUID> contentServers, int updates) {
+        queue.add(new Pending(contentServers, updates, System.nanoTime()));
+        enqueuedUpdates.addAndGet(updates);
+        // Room may be reserved by several callers at once, so depth alone cannot tell the first change apart
+        synchronized (signal) {
+            signal.notifyAll();
+        }
+    }
+
+    /**
+     * Returns the current depth of the queue and the totals of every flush so far.
+     *
+     * @return The queue's metrics.
+     */
+    public Metrics metrics() {
+        Metrics metrics = new Metrics();
+        metrics.queueDepth = depth.get();
+        metrics.queueCapacity = capacity;
+        metrics.flushIntervalMillis = flushIntervalMillis;
+        metrics.enqueuedUpdates = enqueuedUpdates.get();
+        metrics.rejectedUpdates = rejectedUpdates.get();
+        synchronized (signal) {
+            metrics.flushes = flushes;
+            metrics.failedFlushes = failedFlushes;
+            metrics.filesWritten = filesWritten;
+            metrics.coalescingRatio = filesWritten == 0 ? 0 : (double) flushedUpdates / filesWritten;
+            metrics.lastFlushLagMillis = lastFlushLagMillis;
+            metrics.maxFlushLagMillis = maxFlushLagMillis;
+        }
+        return metrics;
+    }
+
+    /**
+     * Stops accepting changes and waits for the writer to flush those already queued.
+     */
+    @Override
+    public void close() {
+        running = false;
+        synchronized (signal) {
+            signal.notifyAll();
+        }
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void runWriter() {
+        while (running || !queue.isEmpty()) {
+            try {
+                awaitChanges();
+                List<Pending> batch = new ArrayList<>();
+                for (Pending pending = queue.poll(); pending != null; pending = queue.poll()) {
+                    batch.add(pending);
+                }
+                if (!batch.isEmpty()) {
+                    flush(batch);
+                }
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Waits for a first change, then for the flush interval unless the queue fills to half
+     * its capacity or is closed first.
+     */
+    private void awaitChanges() throws InterruptedException {
+        synchronized (signal) {
+            while (running && queue.isEmpty()) {
+                signal.wait();
+            }
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(flushIntervalMillis);
+            long remaining;
+            while (running && depth.get() < capacity / 2 && (remaining = deadline - System.nanoTime()) > 0) {
+                TimeUnit.NANOSECONDS.timedWait(signal, remaining);
+            }
+        }
+    }
+
+    private void flush(List<Pending> batch) {
+        Set<UUID> contentServers = new HashSet<>();
+        int updates = 0;
+        for (Pending pending : batch) {
+            contentServers.addAll(pending.contentServers);
+            updates += pending.updates;
+        }
+        boolean flushed = false;
+        int files = 0;
+        try {
+            files = flusher.flush();
+            flushed = true;
+        } catch (IOException | RuntimeException e) {
+            // The changes stay marked dirty, so the next flush or snapshot writes them
+            LOGGER.log(Level.SEVERE, "Write-behind flush failed", e);
+        }
+        long lagMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - batch.get(0).enqueuedNanos);
+        synchronized (signal) {
+            if (flushed) {
+                flushes++;
+                flushedUpdates += updates;
+                filesWritten += files;
+                lastFlushLagMillis = lagMillis;
+                maxFlushLagMillis = Math.max(maxFlushLagMillis, lagMillis);
+            } else {
+                failedFlushes++;
+            }
+        }
+        depth.addAndGet(-updates);
+        LOGGER.log(Level.FINE, "Write-behind flush of " + updates + " update(s) from " + contentServers.size()
+                + " content server(s) to " + files + " file(s) after " + lagMillis + " ms");
+    }
+}
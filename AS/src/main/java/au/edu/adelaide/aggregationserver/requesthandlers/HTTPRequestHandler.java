@@ -3,20 +3,33 @@ package au.edu.adelaide.aggregationserver.requesthandlers;
 import static au.edu.adelaide.aggregationserver.AggregationServerConstants.*;
 
 import au.edu.adelaide.aggregationserver.AggregationServer;
+import au.edu.adelaide.aggregationserver.DataManager.PersistenceMode;
 import au.edu.adelaide.aggregationserver.data.WeatherUpdate;
+import au.edu.adelaide.aggregationserver.persistence.WriteBehindQueue;
 
 import java.io.IOException;
 import java.net.ServerSocket;
+import java.nio.charset.StandardCharsets;
 import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import http.HTTPServer;
 import http.messages.HTTPRequest;
+import util.HybridLogicalClock;
 import util.JSONObject;
-import util.LamportClock.EventType;
+import util.LogicalClock.EventType;
 
 /**
  * Handles HTTP requests sent to the aggregation server, such as GET, PUT, POST, and DELETE.
@@ -30,6 +43,11 @@ public class HTTPRequestHandler extends HTTPServer {
     private static final String HEARTBEAT = "heartbeat";
     private static final String WEATHER = "weather";
     private static final String SHUTDOWN = "shutdown";
+    private static final String ADMIN = "admin";
+    private static final String STATIONS = "stations";
+    private static final String PERSISTENCE = "persistence";
+    private static final String SUBSCRIBE = "subscribe";
+    private static final String NDJSON_CONTENT_TYPE = "application/x-ndjson";
 
     /**
      * Constructs a new HTTPRequestHandler.
@@ -42,6 +60,20 @@ public class HTTPRequestHandler extends HTTPServer {
         this.aggregationServer = aggregationServer;
     }
 
+    /**
+     * Constructs a new HTTPRequestHandler using the given execution mode.
+     *
+     * @param serverSocket        The server socket to handle HTTP requests.
+     * @param aggregationServer   The aggregation server to which this handler is attached.
+     * @param executionMode       The strategy used to serve client connections.
+     * @param workerThreads       The number of threads used to run connections or request handlers.
+     */
+    public HTTPRequestHandler(ServerSocket serverSocket, AggregationServer aggregationServer,
+                              ExecutionMode executionMode, int workerThreads) {
+        super(serverSocket, executionMode, workerThreads);
+        this.aggregationServer = aggregationServer;
+    }
+
     /**
      * Main running loop for handling HTTP requests.
      */
@@ -73,6 +105,60 @@ public class HTTPRequestHandler extends HTTPServer {
         }
     }
 
+    /**
+     * Handles GET HTTP requests for weather data by returning the response cached on the
+     * requested update, so nothing is encoded per request. A request whose If-None-Match header
+     * names the update's ETag gets a body-less 304 response. Other GET requests are handled as strings.
+     *
+     * @param httpRequest The HTTP request to be handled.
+     * @return The HTTP response as UTF-8 bytes.
+     */
+    @Override
+    protected byte[] handleGETRequestBytes(HTTPRequest httpRequest) {
+        String weatherStationId = getRequestedWeatherStationId(httpRequest);
+        if (weatherStationId == null) {
+            return super.handleGETRequestBytes(httpRequest);
+        }
+        try {
+            return aggregationServer.getMostRecentUpdateResponse(weatherStationId, httpRequest.getHeader("If-None-Match"));
+        } catch (Exception e) {
+            return handleException(e).getBytes(StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * Handles long-poll subscription requests, which wait for a newer update without holding
+     * a thread. Other GET requests are answered at once. Subscriptions are only served here;
+     * {@link #handleGETRequest} answers them with an error.
+     *
+     * @param httpRequest The HTTP request to be handled.
+     * @return A future completed with the HTTP response as UTF-8 bytes.
+     */
+    @Override
+    protected CompletableFuture<byte[]> handleGETRequestAsync(HTTPRequest httpRequest) {
+        String[] requestURIComponents = getRequestURIComponents(httpRequest);
+        if (requestURIComponents.length > 2 && SUBSCRIBE.equals(requestURIComponents[1])) {
+            return awaitWeatherUpdate(httpRequest, requestURIComponents[2]);
+        }
+        return super.handleGETRequestAsync(httpRequest);
+    }
+
+    /**
+     * Finds which weather data a GET request asks for.
+     *
+     * @param httpRequest The HTTP request.
+     * @return The station ID, "recent" for the most recent update, or null if the request is not for weather data.
+     */
+    private String getRequestedWeatherStationId(HTTPRequest httpRequest) {
+        String[] requestURIComponents = getRequestURIComponents(httpRequest);
+        if (requestURIComponents.length > 2 && WEATHER.equals(requestURIComponents[1])) {
+            return requestURIComponents[2];
+        } else if (requestURIComponents.length <= 1 && isBaseRequestURI(requestURIComponents)) {
+            return "recent";
+        }
+        return null;
+    }
+
     /**
      * Handles PUT HTTP requests, typically involving updating or creating resources.
      *
@@ -81,24 +167,188 @@ public class HTTPRequestHandler extends HTTPServer {
      */
     @Override
     public String handlePUTRequest(HTTPRequest httpRequest) {
-        try {
-            int receivedTimestamp = Integer.parseInt(httpRequest.getHeader("Timestamp"));
-            EventType eventType = aggregationServer.lamportClock.processReceivedTimestamp(receivedTimestamp);
+        return new String(handlePUTRequestAsync(httpRequest).join(), StandardCharsets.UTF_8);
+    }
 
-            // Extract content server UUID and weather data from HTTP request
-            WeatherUpdate weatherUpdate = extractWeatherUpdate(httpRequest);
-            processRequestBasedOnEvent(eventType, weatherUpdate);
+    /**
+     * Handles PUT HTTP requests by logging the update before returning, and applying it and
+     * completing the response once it is durable. Updates are applied in the order they were
+     * logged, so a content server pipelining PUTs on one connection has them applied in order
+     * while their log writes are shared.
+     *
+     * @param httpRequest The HTTP request to be handled.
+     * @return A future completed with the HTTP response as UTF-8 bytes.
+     */
+    @Override
+    protected CompletableFuture<byte[]> handlePUTRequestAsync(HTTPRequest httpRequest) {
+        CompletableFuture<String> response;
+        try {
+            long receivedTimestamp = Long.parseLong(httpRequest.getHeader("Timestamp"));
+            EventType eventType = aggregationServer.logicalClock.processReceivedTimestamp(receivedTimestamp);
+            receivedTimestamp = stampUntimedRequest(receivedTimestamp);
+            if (isBatchRequest(httpRequest)) {
+                response = handleBatchPUTRequest(httpRequest, eventType, receivedTimestamp);
+            } else {
+                // Extract content server UUID and weather data from HTTP request
+                WeatherUpdate weatherUpdate = extractWeatherUpdate(httpRequest);
+                weatherUpdate.lamportTimestamp = receivedTimestamp;
+                CompletableFuture<Void> durable = processRequestBasedOnEvent(eventType, weatherUpdate);
 
-            // Prepare headers for response
-            Map<String, String> headers = HTTPResponseHandler.prepareResponseHeaders(aggregationServer);
+                // Prepare headers for response
+                Map<String, String> headers = HTTPResponseHandler.prepareResponseHeaders(aggregationServer);
+                String statusCode = aggregationServer.checkNewFileStatus() ? HTTP_CREATED_STATUS_CODE : OK_STATUS_CODE;
 
-            // Return appropriate HTTP response
-            return HTTPResponseHandler.buildResponse(aggregationServer.checkNewFileStatus() ? HTTP_CREATED_STATUS_CODE : OK_STATUS_CODE,
-                                                     PUT_RESPONSE + ZonedDateTime.now(),
-                                                     headers);
+                // Return appropriate HTTP response
+                response = durable.thenApply(ignored -> HTTPResponseHandler.buildResponse(statusCode,
+                                                                                         PUT_RESPONSE + ZonedDateTime.now(),
+                                                                                         headers));
+            }
         } catch (Exception e) {
-            return handleException(e);
+            response = CompletableFuture.completedFuture(handleException(e));
         }
+        return response.exceptionally(e -> handleException(e.getCause() instanceof Exception ? (Exception) e.getCause() : new Exception(e)))
+                       .thenApply(responseString -> responseString.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Under a hybrid logical clock, gives a PUT sent without a timestamp, as content servers
+     * not running the clock send 0, a fresh timestamp from the server's clock so it is ordered
+     * by its arrival. Under a Lamport clock the received timestamp is kept as it is.
+     *
+     * @param receivedTimestamp The timestamp the request was sent with.
+     * @return The timestamp the request's updates are ordered by.
+     */
+    private long stampUntimedRequest(long receivedTimestamp) {
+        if (receivedTimestamp == 0 && aggregationServer.logicalClock.tracksPhysicalTime()) {
+            return aggregationServer.logicalClock.tick();
+        }
+        return receivedTimestamp;
+    }
+
+    /**
+     * Checks whether a PUT request carries a batch of observations: a JSON array of objects,
+     * or newline-delimited JSON with one object per line.
+     *
+     * @param httpRequest The HTTP request.
+     * @return true if the body is a batch.
+     */
+    private boolean isBatchRequest(HTTPRequest httpRequest) {
+        if (NDJSON_CONTENT_TYPE.equals(httpRequest.getHeader("Content-Type"))) {
+            return true;
+        }
+        String body = httpRequest.getBody();
+        for (int i = 0; body != null && i < body.length(); i++) {
+            if (!Character.isWhitespace(body.charAt(i))) {
+                return body.charAt(i) == '[';
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Handles a batch PUT request. The whole batch is one logical event, so every observation
+     * shares the request's timestamp, and the accepted observations are logged in one group write.
+     * Observations that cannot be parsed, or are older than the data already held, are reported
+     * without stopping the rest of the batch. When the batch holds several observations of one
+     * station, only the last of them is applied and the earlier ones are reported as superseded.
+     *
+     * @param httpRequest       The HTTP request to be handled.
+     * @param eventType         The logical clock event type of the request.
+     * @param receivedTimestamp The logical timestamp the request was sent at.
+     * @return A future completed with the HTTP response, with a JSON array holding the status of
+     *         each observation, once the accepted observations are durable.
+     * @throws Exception If the content server UUID or the array cannot be parsed, or the batch cannot be logged.
+     */
+    private CompletableFuture<String> handleBatchPUTRequest(HTTPRequest httpRequest, EventType eventType, long receivedTimestamp) throws Exception {
+        UUID contentServerUUID = extractUUIDFromRequestURI(httpRequest.getURI());
+        List<JSONObject> batch = parseBatch(httpRequest);
+
+        WeatherUpdate[] acceptedByIndex = new WeatherUpdate[batch.size()];
+        String[] statuses = new String[batch.size()];
+        Map<String, Integer> lastAcceptedIndexByStation = new HashMap<>();
+        for (int i = 0; i < batch.size(); i++) {
+            try {
+                WeatherUpdate weatherUpdate = new WeatherUpdate(contentServerUUID, batch.get(i));
+                if (weatherUpdate.weatherStationId == null) {
+                    throw new IllegalArgumentException("Weather data has no station id");
+                }
+                weatherUpdate.lamportTimestamp = receivedTimestamp;
+                if (isUpdateApplied(eventType, weatherUpdate)) {
+                    // Observations of one station in the same batch share its timestamp, so the last one wins
+                    Integer supersededIndex = lastAcceptedIndexByStation.put(weatherUpdate.weatherStationId, i);
+                    if (supersededIndex != null) {
+                        acceptedByIndex[supersededIndex] = null;
+                        statuses[supersededIndex] = SUPERSEDED_UPDATE_STATUS_CODE;
+                    }
+                    acceptedByIndex[i] = weatherUpdate;
+                    statuses[i] = OK_STATUS_CODE;
+                } else {
+                    statuses[i] = OUTDATED_UPDATE_STATUS_CODE;
+                }
+            } catch (Exception e) {
+                LOGGER.log(Level.WARNING, "Invalid observation " + i + " in batch from " + contentServerUUID + ": " + e.getMessage());
+                statuses[i] = INVALID_WEATHER_DATA_STATUS_CODE;
+            }
+        }
+
+        List<WeatherUpdate> acceptedUpdates = new ArrayList<>(lastAcceptedIndexByStation.size());
+        List<JSONObject> itemStatuses = new ArrayList<>(batch.size());
+        for (int i = 0; i < batch.size(); i++) {
+            if (acceptedByIndex[i] != null) {
+                acceptedUpdates.add(acceptedByIndex[i]);
+            }
+            JSONObject itemStatus = new JSONObject();
+            itemStatus.putRaw("index", String.valueOf(i));
+            String weatherStationId = batch.get(i) != null ? batch.get(i).get("id") : null;
+            if (weatherStationId != null) {
+                itemStatus.putString("id", weatherStationId);
+            } else {
+                itemStatus.putRaw("id", "null");
+            }
+            itemStatus.putString("status", statuses[i]);
+            itemStatuses.add(itemStatus);
+        }
+        CompletableFuture<Void> durable = aggregationServer.addWeatherUpdatesAsync(acceptedUpdates);
+
+        StringBuilder responseBody = new StringBuilder("[");
+        for (int i = 0; i < itemStatuses.size(); i++) {
+            responseBody.append(i == 0 ? "\n" : ",\n");
+            itemStatuses.get(i).appendJSONString(responseBody);
+        }
+        responseBody.append(itemStatuses.isEmpty() ? "]" : "\n]");
+
+        Map<String, String> headers = HTTPResponseHandler.prepareResponseHeaders(aggregationServer);
+        boolean created = !acceptedUpdates.isEmpty() && aggregationServer.checkNewFileStatus();
+        return durable.thenApply(ignored -> HTTPResponseHandler.buildResponse(created ? HTTP_CREATED_STATUS_CODE : OK_STATUS_CODE,
+                                                                              responseBody.toString(),
+                                                                              headers));
+    }
+
+    /**
+     * Parses the observations of a batch request. A newline-delimited body is parsed line by
+     * line, so an invalid line only invalidates its own observation and is returned as null.
+     *
+     * @param httpRequest The batch request.
+     * @return The observations, in order.
+     * @throws IllegalArgumentException If a JSON array body is not a valid array of objects.
+     */
+    private List<JSONObject> parseBatch(HTTPRequest httpRequest) {
+        if (!NDJSON_CONTENT_TYPE.equals(httpRequest.getHeader("Content-Type"))) {
+            return JSONObject.parseArray(httpRequest.getBody());
+        }
+        List<JSONObject> batch = new ArrayList<>();
+        for (String line : httpRequest.getBody().split("\n")) {
+            if (line.trim().isEmpty()) {
+                continue;
+            }
+            try {
+                // Each line must be a JSON object, not the simple list format
+                batch.add(line.trim().startsWith("{") ? new JSONObject(line) : null);
+            } catch (Exception e) {
+                batch.add(null);
+            }
+        }
+        return batch;
     }
 
     /**
@@ -162,7 +412,8 @@ public class HTTPRequestHandler extends HTTPServer {
      * @return A boolean indicating whether the URI is a base URI.
      */
     private boolean isBaseRequestURI(String[] requestURIComponents) {
-        return requestURIComponents[0].equals("/");
+        // "/".split("/") yields no components at all
+        return requestURIComponents.length == 0 || requestURIComponents[0].isEmpty();
     }
 
     /**
@@ -183,6 +434,17 @@ public class HTTPRequestHandler extends HTTPServer {
             case SHUTDOWN:
                 UUID contentServerUUID2 = UUID.fromString(requestURIComponents[2]);
                 return handleContentServerShutdownRequest(httpRequest, contentServerUUID2);
+            case SUBSCRIBE:
+                // A subscription may wait for the whole timeout, so it is never answered on a blocking thread
+                throw new UnsupportedOperationException("Subscriptions are only served through handleGETRequestAsync");
+            case ADMIN:
+                if (PERSISTENCE.equals(requestURIComponents[2])) {
+                    return handlePersistenceMetricsRequest(httpRequest);
+                }
+                if (!STATIONS.equals(requestURIComponents[2])) {
+                    throw new IllegalArgumentException("Invalid request URI");
+                }
+                return handleStationsByContentServerRequest(httpRequest);
             default:
                 throw new IllegalArgumentException("Invalid request URI");
         }
@@ -191,25 +453,36 @@ public class HTTPRequestHandler extends HTTPServer {
     /**
      * Processes the request based on the event type and updates the weather data if applicable.
      *
-     * @param eventType    The type of the event, in terms of Lamport's logical clock.
+     * @param eventType    The type of the event, in terms of the server's logical clock.
      * @param weatherUpdate The updated weather data.
+     * @return A future completed once the update is durable, or at once if it was not applied.
      * @throws Exception If processing the request fails.
      */
-    private void processRequestBasedOnEvent(EventType eventType, WeatherUpdate weatherUpdate) throws Exception {
+    private CompletableFuture<Void> processRequestBasedOnEvent(EventType eventType, WeatherUpdate weatherUpdate) throws Exception {
+        if (isUpdateApplied(eventType, weatherUpdate)) {
+            return aggregationServer.addWeatherUpdatesAsync(Collections.singletonList(weatherUpdate));
+        }
+        return CompletableFuture.completedFuture(null);
+    }
+
+    /**
+     * Decides whether an update should be applied given the event type of the request carrying it.
+     *
+     * @param eventType     The type of the event, in terms of the server's logical clock.
+     * @param weatherUpdate The received weather data.
+     * @return true if the update is newer than the data already held.
+     */
+    private boolean isUpdateApplied(EventType eventType, WeatherUpdate weatherUpdate) {
         switch (eventType) {
-            case BEFORE:
-                break;
             case CONCURRENT:
                 LOGGER.log(Level.INFO, "Received concurrent event.");
-                // Break ties by comparing weather data timestamps
-                if (aggregationServer.isUpdateMoreRecent(weatherUpdate)) {
-                    aggregationServer.addWeatherUpdate(weatherUpdate);
-                }
-                break;
+                // Break ties by comparing weather data timestamps, or hybrid logical timestamps
+                return aggregationServer.isUpdateMoreRecent(weatherUpdate);
             case AFTER:
                 LOGGER.log(Level.INFO, "Received most recent event.");
-                aggregationServer.addWeatherUpdate(weatherUpdate);
-                break;
+                return true;
+            default:
+                return false;
         }
     }
 
@@ -222,14 +495,91 @@ public class HTTPRequestHandler extends HTTPServer {
      */
     private String handleWeatherRequest(HTTPRequest httpRequest, String weatherStationId) {
         try {
-            String responseBody = aggregationServer.getMostRecentUpdateJson(weatherStationId);
-            return HTTPResponseHandler.buildResponse(OK_STATUS_CODE, 
-                                                     responseBody);
+            return new String(aggregationServer.getMostRecentUpdateResponse(weatherStationId, httpRequest.getHeader("If-None-Match")),
+                              StandardCharsets.UTF_8);
         } catch (Exception e) {
             return handleException(e);
         }
     }
     
+    /**
+     * Handles a long-poll request for a station's next weather update. The response is sent as
+     * soon as the station's most recent update differs from the one named by the request's
+     * If-None-Match header, which is immediately if the request has none; if no newer update
+     * arrives within the subscription timeout, a 304 response is sent instead.
+     *
+     * @param httpRequest      The HTTP request to be handled.
+     * @param weatherStationId The ID of the weather station, or "recent" for any station.
+     * @return A future completed with the HTTP response as UTF-8 bytes.
+     */
+    private CompletableFuture<byte[]> awaitWeatherUpdate(HTTPRequest httpRequest, String weatherStationId) {
+        return aggregationServer.awaitUpdateResponse(weatherStationId, httpRequest.getHeader("If-None-Match"),
+                                                     TimeUnit.SECONDS.toMillis(SUBSCRIPTION_TIMEOUT));
+    }
+
+    /**
+     * Handles an admin request listing the stations each content server currently feeds,
+     * as a JSON object mapping content server UUIDs to arrays of station ids.
+     *
+     * @param httpRequest The HTTP request to be handled.
+     * @return The HTTP response as a string.
+     */
+    private String handleStationsByContentServerRequest(HTTPRequest httpRequest) {
+        try {
+            StringBuilder responseBody = new StringBuilder("{");
+            Iterator<Map.Entry<UUID, Set<String>>> entries = aggregationServer.getStationsByContentServer().entrySet().iterator();
+            while (entries.hasNext()) {
+                Map.Entry<UUID, Set<String>> entry = entries.next();
+                responseBody.append("\n   \"").append(entry.getKey()).append("\": [");
+                Iterator<String> stations = entry.getValue().iterator();
+                while (stations.hasNext()) {
+                    responseBody.append('"').append(stations.next()).append('"');
+                    if (stations.hasNext()) {
+                        responseBody.append(", ");
+                    }
+                }
+                responseBody.append(entries.hasNext() ? "]," : "]\n");
+            }
+            responseBody.append("}");
+            return HTTPResponseHandler.buildResponse(OK_STATUS_CODE,
+                                                     responseBody.toString());
+        } catch (Exception e) {
+            return handleException(e);
+        }
+    }
+
+    /**
+     * Handles an admin request for the persistence mode and, under write-behind persistence,
+     * the depth, coalescing ratio and flush lag of the write-behind queue.
+     *
+     * @param httpRequest The HTTP request to be handled.
+     * @return The HTTP response as a string.
+     */
+    private String handlePersistenceMetricsRequest(HTTPRequest httpRequest) {
+        try {
+            JSONObject responseBody = new JSONObject();
+            responseBody.putString("mode", aggregationServer.getPersistenceMode() == PersistenceMode.WRITE_BEHIND
+                                           ? PERSISTENCE_WRITE_BEHIND : PERSISTENCE_WAL);
+            WriteBehindQueue.Metrics metrics = aggregationServer.getWriteBehindMetrics();
+            if (metrics != null) {
+                responseBody.putRaw("queue_depth", String.valueOf(metrics.queueDepth));
+                responseBody.putRaw("queue_capacity", String.valueOf(metrics.queueCapacity));
+                responseBody.putRaw("flush_interval_ms", String.valueOf(metrics.flushIntervalMillis));
+                responseBody.putRaw("enqueued_updates", String.valueOf(metrics.enqueuedUpdates));
+                responseBody.putRaw("rejected_updates", String.valueOf(metrics.rejectedUpdates));
+                responseBody.putRaw("flushes", String.valueOf(metrics.flushes));
+                responseBody.putRaw("failed_flushes", String.valueOf(metrics.failedFlushes));
+                responseBody.putRaw("files_written", String.valueOf(metrics.filesWritten));
+                responseBody.putRaw("coalescing_ratio", String.format(Locale.ROOT, "%.2f", metrics.coalescingRatio));
+                responseBody.putRaw("last_flush_lag_ms", String.valueOf(metrics.lastFlushLagMillis));
+                responseBody.putRaw("max_flush_lag_ms", String.valueOf(metrics.maxFlushLagMillis));
+            }
+            return HTTPResponseHandler.buildResponse(OK_STATUS_CODE, responseBody.toJSONString());
+        } catch (Exception e) {
+            return handleException(e);
+        }
+    }
+
     /**
      * Handles a request to shutdown a content server gracefully.
      *
@@ -290,6 +640,18 @@ public class HTTPRequestHandler extends HTTPServer {
      * @return The HTTP response as a string, indicating that an internal server error occurred.
      */
     private String handleException(Exception e) {
+        if (e instanceof WriteBehindQueue.QueueFullException) {
+            // Backpressure from write-behind persistence: the content server should retry later
+            LOGGER.log(Level.FINE, "Rejected update: " + e.getMessage());
+            return HTTPResponseHandler.buildResponse(SERVICE_UNAVAILABLE_STATUS_CODE,
+                                                     BUSY_RESPONSE + ZonedDateTime.now());
+        }
+        if (e instanceof HybridLogicalClock.TimestampAheadException) {
+            // The content server's clock is fast; accepting the PUT would drag the server's clock ahead with it
+            LOGGER.log(Level.WARNING, "Rejected update: " + e.getMessage());
+            return HTTPResponseHandler.buildResponse(TIMESTAMP_AHEAD_STATUS_CODE,
+                                                     TIMESTAMP_AHEAD_RESPONSE + ZonedDateTime.now());
+        }
         LOGGER.log(Level.WARNING, "An exception occurred: " + e.getMessage());
         return handleError();
     }
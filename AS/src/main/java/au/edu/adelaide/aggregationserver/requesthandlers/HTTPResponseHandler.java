@@ -1,17 +1,23 @@
 package au.edu.adelaide.aggregationserver.requesthandlers;
 
+import java.nio.charset.StandardCharsets;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.zip.CRC32;
+
+import static au.edu.adelaide.aggregationserver.AggregationServerConstants.NOT_MODIFIED_STATUS_CODE;
+import static au.edu.adelaide.aggregationserver.AggregationServerConstants.OK_STATUS_CODE;
 
 import au.edu.adelaide.aggregationserver.AggregationServer;
+import au.edu.adelaide.aggregationserver.data.WeatherUpdate;
 
 
 public class HTTPResponseHandler {
     public static Map<String, String> prepareResponseHeaders(AggregationServer aggregationServer) {
+        // Connection is left to buildResponse, so the connection stays open for the next request
         Map<String, String> headers = new HashMap<>();
-        headers.put("Connection", "close");
-        headers.put("Timestamp", String.valueOf(aggregationServer.lamportClock.peekTime()));
+        headers.put("Timestamp", String.valueOf(aggregationServer.logicalClock.peekTime()));
         return Collections.unmodifiableMap(headers);
     }
 
@@ -23,9 +29,9 @@ public class HTTPResponseHandler {
         StringBuilder responseBuilder = new StringBuilder();
         responseBuilder.append("HTTP/1.1 " + statusCode + "\r\n");
         responseBuilder.append("Server: AggregationServer/1.0 (Unix)\r\n");
-        responseBuilder.append("Content-Length: " + response.length() + "\r\n");
+        responseBuilder.append("Content-Length: " + response.getBytes(StandardCharsets.UTF_8).length + "\r\n");
         
-        // Default Connection header
+        // Default Connection header; HTTPServer answers a request asking to close with Connection: close
         if (!headers.containsKey("Connection")) {
             responseBuilder.append("Connection: keep-alive\r\n");
         }
@@ -38,4 +44,75 @@ public class HTTPResponseHandler {
         responseBuilder.append(response);
         return responseBuilder.toString();
     }
-}
\ No newline at end of file
+
+    /**
+     * Returns the GET response for a weather update, encoding it on first use.
+     * Updates never change once accepted, so the same bytes are sent to every client.
+     * The response carries an ETag built from the update's Lamport time and a checksum of its body.
+     *
+     * @param weatherUpdate The update to respond with.
+     * @return The complete response as UTF-8 bytes; must not be modified.
+     */
+    public static byte[] getEncodedResponse(WeatherUpdate weatherUpdate) {
+        byte[] encodedResponse = weatherUpdate.encodedResponse;
+        if (encodedResponse == null) {
+            // Concurrent first requests may both encode it; the results are identical
+            String body = weatherUpdate.getWeatherDataJson();
+            String entityTag = createEntityTag(weatherUpdate.lamportTimestamp, body);
+            Map<String, String> headers = Collections.singletonMap("ETag", entityTag);
+            weatherUpdate.entityTag = entityTag;
+            weatherUpdate.encodedNotModifiedResponse = buildResponse(NOT_MODIFIED_STATUS_CODE, "", headers)
+                    .getBytes(StandardCharsets.UTF_8);
+            encodedResponse = buildResponse(OK_STATUS_CODE, body, headers).getBytes(StandardCharsets.UTF_8);
+            weatherUpdate.encodedResponse = encodedResponse;
+        }
+        return encodedResponse;
+    }
+
+    /**
+     * Returns the GET response for a weather update, or a body-less 304 response if the
+     * client's If-None-Match header already names the update's entity tag.
+     *
+     * @param weatherUpdate The update to respond with.
+     * @param ifNoneMatch   The request's If-None-Match header, or null if it had none.
+     * @return The complete response as UTF-8 bytes; must not be modified.
+     */
+    public static byte[] getEncodedResponse(WeatherUpdate weatherUpdate, String ifNoneMatch) {
+        byte[] encodedResponse = getEncodedResponse(weatherUpdate);
+        if (ifNoneMatch != null && matchesEntityTag(ifNoneMatch, weatherUpdate.entityTag)) {
+            return weatherUpdate.encodedNotModifiedResponse;
+        }
+        return encodedResponse;
+    }
+
+    /**
+     * Builds a quoted entity tag from a Lamport time and a CRC-32 of the response body, so
+     * updates sent at the same Lamport time by different content servers still differ.
+     */
+    static String createEntityTag(long lamportTimestamp, String body) {
+        CRC32 checksum = new CRC32();
+        checksum.update(body.getBytes(StandardCharsets.UTF_8));
+        return "\"" + Long.toHexString(lamportTimestamp) + "-" + Long.toHexString(checksum.getValue()) + "\"";
+    }
+
+    /**
+     * Checks an If-None-Match header against an entity tag, using the weak comparison
+     * GET requests call for: a "W/" prefix is ignored and "*" matches any tag.
+     *
+     * @param ifNoneMatch A comma-separated list of entity tags, or "*".
+     * @param entityTag   The current entity tag.
+     * @return true if the header names the entity tag.
+     */
+    static boolean matchesEntityTag(String ifNoneMatch, String entityTag) {
+        for (String candidate : ifNoneMatch.split(",")) {
+            candidate = candidate.trim();
+            if (candidate.startsWith("W/")) {
+                candidate = candidate.substring(2);
+            }
+            if (candidate.equals("*") || candidate.equals(entityTag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
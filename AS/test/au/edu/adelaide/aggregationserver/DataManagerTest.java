@@ -0,0 +1,342 @@
+package au.edu.adelaide.aggregationserver;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.function.BooleanSupplier;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import au.edu.adelaide.aggregationserver.DataManager.PersistenceMode;
+import au.edu.adelaide.aggregationserver.data.AggregatedWeatherUpdates;
+import au.edu.adelaide.aggregationserver.data.WeatherUpdate;
+import au.edu.adelaide.aggregationserver.persistence.StationShards;
+import au.edu.adelaide.aggregationserver.persistence.WriteAheadLog.FsyncPolicy;
+import util.IOUtility;
+import util.JSONObject;
+
+import static org.junit.Assert.*;
+
+public class DataManagerTest {
+
+    private static final UUID CONTENT_SERVER = UUID.randomUUID();
+    private static final FileTime LONG_AGO = FileTime.fromMillis(0);
+    private static final long STALE_THRESHOLD_MILLIS = 300;
+    private static final long EXPIRY_TIMEOUT_MILLIS = 5000;
+
+    private Path storageDirectory;
+
+    @Before
+    public void setUp() throws IOException {
+        storageDirectory = Files.createTempDirectory("storage");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        try (Stream<Path> files = Files.walk(storageDirectory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+        }
+    }
+
+    private DataManager dataManager(int stationShards) {
+        return new DataManager(new IOUtility(), FsyncPolicy.OS, 0, PersistenceMode.WAL, 100, 0, stationShards, storageDirectory);
+    }
+
+    private DataManager dataManager(FsyncPolicy fsyncPolicy, long fsyncIntervalMillis) {
+        return new DataManager(new IOUtility(), fsyncPolicy, fsyncIntervalMillis, PersistenceMode.WAL, 100, 0, 1, storageDirectory);
+    }
+
+    /**
+     * Waits for a condition, failing after {@link #EXPIRY_TIMEOUT_MILLIS}.
+     */
+    private static void await(BooleanSupplier condition, String description) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + EXPIRY_TIMEOUT_MILLIS;
+        while (!condition.getAsBoolean()) {
+            if (System.currentTimeMillis() > deadline) {
+                fail("Timed out waiting until " + description);
+            }
+            Thread.sleep(10);
+        }
+    }
+
+    private static boolean isRemoved(AggregatedWeatherUpdates aggregatedWeatherUpdates) {
+        return !aggregatedWeatherUpdates.contentServerUpdates.containsKey(CONTENT_SERVER)
+               && aggregatedWeatherUpdates.mostRecentUpdatesByStation.isEmpty();
+    }
+
+    private static WeatherUpdate update(String weatherStationId, String airTemp) {
+        JSONObject weatherData = new JSONObject();
+        weatherData.putString("id", weatherStationId);
+        weatherData.putRaw("air_temp", airTemp);
+        return new WeatherUpdate(CONTENT_SERVER, weatherData, ZonedDateTime.now(ZoneId.of("UTC")), 1);
+    }
+
+    private Path shardFile(int shard, int stationShards) {
+        return storageDirectory.resolve("data/stations").resolve(StationShards.fileName(shard, stationShards));
+    }
+
+    private List<String> stationFiles() throws IOException {
+        try (Stream<Path> files = Files.list(storageDirectory.resolve("data/stations"))) {
+            return files.map(file -> file.getFileName().toString()).sorted().collect(Collectors.toList());
+        }
+    }
+
+    /**
+     * Finds a station id in the given shard.
+     */
+    private static String stationInShard(int shard, int stationShards) {
+        for (int i = 0; ; i++) {
+            if (StationShards.shardOf("IDS" + i, stationShards) == shard) {
+                return "IDS" + i;
+            }
+        }
+    }
+
+    /**
+     * Test Name: testWriteSnapshot_RewritesOnlyDirtyShards
+     * Description: A snapshot writes the content server file and the shards of the stations
+     *              which changed, leaves the other shards untouched, reports the number of
+     *              files it wrote, and writes nothing when nothing changed.
+     */
+    @Test
+    public void testWriteSnapshot_RewritesOnlyDirtyShards() throws IOException {
+        List<String> logMessages = new ArrayList<>();
+        logMessages.add("\n--- TEST: testWriteSnapshot_RewritesOnlyDirtyShards ---\n");
+
+        String first = stationInShard(0, 4);
+        String second = stationInShard(2, 4);
+        try {
+            DataManager dataManager = dataManager(4);
+            AggregatedWeatherUpdates aggregatedWeatherUpdates = new AggregatedWeatherUpdates();
+            dataManager.loadDataForAggregationServer(aggregatedWeatherUpdates);
+            dataManager.recordUpdates(aggregatedWeatherUpdates, Arrays.asList(update(first, "13.3"), update(second, "9.1")));
+
+            assertEquals(3, dataManager.writeSnapshot(aggregatedWeatherUpdates));
+            assertEquals(Arrays.asList(StationShards.fileName(0, 4), StationShards.fileName(2, 4)), stationFiles());
+            Files.setLastModifiedTime(shardFile(0, 4), LONG_AGO);
+            Files.setLastModifiedTime(shardFile(2, 4), LONG_AGO);
+
+            dataManager.recordUpdate(aggregatedWeatherUpdates, update(first, "14.0"));
+            int filesWritten = dataManager.writeSnapshot(aggregatedWeatherUpdates);
+            logMessages.add("Files written after one station changed: " + filesWritten);
+            assertEquals(2, filesWritten);
+            assertNotEquals(LONG_AGO, Files.getLastModifiedTime(shardFile(0, 4)));
+            assertEquals(LONG_AGO, Files.getLastModifiedTime(shardFile(2, 4)));
+            assertEquals(0, dataManager.writeSnapshot(aggregatedWeatherUpdates));
+
+            AggregatedWeatherUpdates reloaded = new AggregatedWeatherUpdates();
+            dataManager(4).loadDataForAggregationServer(reloaded);
+            assertTrue(reloaded.getMostRecentUpdateJson(first).contains("14.0"));
+            assertTrue(reloaded.getMostRecentUpdateJson(second).contains("9.1"));
+            logMessages.add("Test passed: Only the changed shard was rewritten.\n");
+        } catch (AssertionError e) {
+            logMessages.add("Test failed: " + e.getMessage() + "\n");
+            throw e;
+        } finally {
+            logMessages.forEach(System.out::println);
+        }
+    }
+
+    /**
+     * Test Name: testWriteSnapshot_DeletesStaleLayoutFiles
+     * Description: After a restart with another shard count, the stations are still loaded from
+     *              the old shards and the single station file of older versions, and the next
+     *              snapshot writes every shard of the new layout and deletes the old files.
+     */
+    @Test
+    public void testWriteSnapshot_DeletesStaleLayoutFiles() throws IOException {
+        List<String> logMessages = new ArrayList<>();
+        logMessages.add("\n--- TEST: testWriteSnapshot_DeletesStaleLayoutFiles ---\n");
+
+        List<WeatherUpdate> updates = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            updates.add(update("IDS" + i, String.valueOf(i)));
+        }
+        try {
+            DataManager oldLayout = dataManager(2);
+            AggregatedWeatherUpdates aggregatedWeatherUpdates = new AggregatedWeatherUpdates();
+            oldLayout.loadDataForAggregationServer(aggregatedWeatherUpdates);
+            oldLayout.recordUpdates(aggregatedWeatherUpdates, updates);
+            oldLayout.writeSnapshot(aggregatedWeatherUpdates);
+            Files.copy(shardFile(0, 2), storageDirectory.resolve("data/weatherUpdatesByStation.weather"));
+            logMessages.add("Old layout: " + stationFiles());
+
+            DataManager newLayout = dataManager(4);
+            AggregatedWeatherUpdates reloaded = new AggregatedWeatherUpdates();
+            newLayout.loadDataForAggregationServer(reloaded);
+            assertEquals(8, reloaded.mostRecentUpdatesByStation.size());
+
+            int filesWritten = newLayout.writeSnapshot(reloaded);
+            logMessages.add("Files written or deleted: " + filesWritten + ", new layout: " + stationFiles());
+            // Four shards written, two old shards and the single station file deleted
+            assertEquals(7, filesWritten);
+            assertEquals(Arrays.asList(StationShards.fileName(0, 4), StationShards.fileName(1, 4),
+                                       StationShards.fileName(2, 4), StationShards.fileName(3, 4)), stationFiles());
+            assertFalse(Files.exists(storageDirectory.resolve("data/weatherUpdatesByStation.weather")));
+
+            AggregatedWeatherUpdates restarted = new AggregatedWeatherUpdates();
+            DataManager restartedManager = dataManager(4);
+            restartedManager.loadDataForAggregationServer(restarted);
+            assertEquals(8, restarted.mostRecentUpdatesByStation.size());
+            assertEquals(0, restartedManager.writeSnapshot(restarted));
+            logMessages.add("Test passed: The old layout was replaced by the new one.\n");
+        } catch (AssertionError e) {
+            logMessages.add("Test failed: " + e.getMessage() + "\n");
+            throw e;
+        } finally {
+            logMessages.forEach(System.out::println);
+        }
+    }
+
+    /**
+     * Test Name: testExpiry_RemovesStaleContentServer
+     * Description: A content server which makes no contact within the stale threshold is removed
+     *              together with its stations.
+     */
+    @Test
+    public void testExpiry_RemovesStaleContentServer() throws IOException, InterruptedException {
+        List<String> logMessages = new ArrayList<>();
+        logMessages.add("\n--- TEST: testExpiry_RemovesStaleContentServer ---\n");
+
+        try {
+            DataManager dataManager = dataManager(FsyncPolicy.OS, 0);
+            AggregatedWeatherUpdates aggregatedWeatherUpdates = new AggregatedWeatherUpdates(STALE_THRESHOLD_MILLIS);
+            dataManager.loadDataForAggregationServer(aggregatedWeatherUpdates);
+            long recordedAt = System.currentTimeMillis();
+            dataManager.recordUpdates(aggregatedWeatherUpdates, Arrays.asList(update("IDS1", "13.3"), update("IDS2", "9.1")));
+            assertEquals(2, aggregatedWeatherUpdates.mostRecentUpdatesByStation.size());
+
+            await(() -> isRemoved(aggregatedWeatherUpdates), "the content server is removed");
+            long removedAfter = System.currentTimeMillis() - recordedAt;
+            logMessages.add("Removed after " + removedAfter + " ms");
+            assertTrue(removedAfter >= STALE_THRESHOLD_MILLIS);
+            logMessages.add("Test passed: The stale content server was removed.\n");
+        } catch (AssertionError e) {
+            logMessages.add("Test failed: " + e.getMessage() + "\n");
+            throw e;
+        } finally {
+            logMessages.forEach(System.out::println);
+        }
+    }
+
+    /**
+     * Test Name: testExpiry_HeartbeatsPostponeExpiry
+     * Description: Heartbeats keep a content server beyond the stale threshold, and it is
+     *              removed once the heartbeats stop.
+     */
+    @Test
+    public void testExpiry_HeartbeatsPostponeExpiry() throws IOException, InterruptedException {
+        List<String> logMessages = new ArrayList<>();
+        logMessages.add("\n--- TEST: testExpiry_HeartbeatsPostponeExpiry ---\n");
+
+        try {
+            DataManager dataManager = dataManager(FsyncPolicy.OS, 0);
+            AggregatedWeatherUpdates aggregatedWeatherUpdates = new AggregatedWeatherUpdates(STALE_THRESHOLD_MILLIS);
+            dataManager.loadDataForAggregationServer(aggregatedWeatherUpdates);
+            dataManager.recordUpdate(aggregatedWeatherUpdates, update("IDS1", "13.3"));
+
+            for (int i = 0; i < 10; i++) {
+                Thread.sleep(STALE_THRESHOLD_MILLIS / 3);
+                aggregatedWeatherUpdates.updateContentServerTimestamp(CONTENT_SERVER);
+            }
+            long lastHeartbeat = System.currentTimeMillis();
+            assertFalse("Removed despite heartbeats", isRemoved(aggregatedWeatherUpdates));
+
+            await(() -> isRemoved(aggregatedWeatherUpdates), "the content server is removed");
+            long removedAfter = System.currentTimeMillis() - lastHeartbeat;
+            logMessages.add("Removed " + removedAfter + " ms after the last heartbeat");
+            assertTrue(removedAfter >= STALE_THRESHOLD_MILLIS);
+            logMessages.add("Test passed: Heartbeats postponed the expiry.\n");
+        } catch (AssertionError e) {
+            logMessages.add("Test failed: " + e.getMessage() + "\n");
+            throw e;
+        } finally {
+            logMessages.forEach(System.out::println);
+        }
+    }
+
+    /**
+     * Test Name: testExpiry_WaitsForPendingUpdates
+     * Description: An expiry which finds logged updates still waiting for their batch keeps the
+     *              content server, and expires it once the stale threshold has passed again
+     *              after the updates are applied.
+     */
+    @Test
+    public void testExpiry_WaitsForPendingUpdates() throws IOException, InterruptedException, ExecutionException {
+        List<String> logMessages = new ArrayList<>();
+        logMessages.add("\n--- TEST: testExpiry_WaitsForPendingUpdates ---\n");
+
+        long batchIntervalMillis = 3 * STALE_THRESHOLD_MILLIS;
+        try {
+            DataManager dataManager = dataManager(FsyncPolicy.BATCHED, batchIntervalMillis);
+            AggregatedWeatherUpdates aggregatedWeatherUpdates = new AggregatedWeatherUpdates(STALE_THRESHOLD_MILLIS);
+            dataManager.loadDataForAggregationServer(aggregatedWeatherUpdates);
+            dataManager.recordUpdate(aggregatedWeatherUpdates, update("IDS1", "13.3"));
+            CompletableFuture<Void> pending = dataManager.recordUpdatesAsync(aggregatedWeatherUpdates,
+                                                                             Arrays.asList(update("IDS1", "14.0")));
+
+            // Stale while the second update waits for its batch, so the expiry has come and gone
+            Thread.sleep(2 * STALE_THRESHOLD_MILLIS);
+            assertFalse(pending.isDone());
+            assertTrue(aggregatedWeatherUpdates.isContentServerStale(CONTENT_SERVER));
+            assertFalse("Removed with updates pending", isRemoved(aggregatedWeatherUpdates));
+
+            pending.get();
+            long appliedAt = System.currentTimeMillis();
+            assertTrue(aggregatedWeatherUpdates.getMostRecentUpdateJson("IDS1").contains("14.0"));
+
+            await(() -> isRemoved(aggregatedWeatherUpdates), "the content server is removed");
+            long removedAfter = System.currentTimeMillis() - appliedAt;
+            logMessages.add("Removed " + removedAfter + " ms after the pending update was applied");
+            assertTrue(removedAfter >= STALE_THRESHOLD_MILLIS);
+            logMessages.add("Test passed: The expiry waited for the pending updates.\n");
+        } catch (AssertionError e) {
+            logMessages.add("Test failed: " + e.getMessage() + "\n");
+            throw e;
+        } finally {
+            logMessages.forEach(System.out::println);
+        }
+    }
+
+    /**
+     * Test Name: testExpiry_ScheduledForContentServerFirstSeenInBatch
+     * Description: A new content server whose first updates wait for their batch longer than the
+     *              stale threshold is still expired once they are applied, rather than being
+     *              left with no expiry scheduled.
+     */
+    @Test
+    public void testExpiry_ScheduledForContentServerFirstSeenInBatch() throws IOException, InterruptedException, ExecutionException {
+        List<String> logMessages = new ArrayList<>();
+        logMessages.add("\n--- TEST: testExpiry_ScheduledForContentServerFirstSeenInBatch ---\n");
+
+        try {
+            DataManager dataManager = dataManager(FsyncPolicy.BATCHED, 2 * STALE_THRESHOLD_MILLIS);
+            AggregatedWeatherUpdates aggregatedWeatherUpdates = new AggregatedWeatherUpdates(STALE_THRESHOLD_MILLIS);
+            dataManager.loadDataForAggregationServer(aggregatedWeatherUpdates);
+            dataManager.recordUpdatesAsync(aggregatedWeatherUpdates, Arrays.asList(update("IDS1", "13.3"))).get();
+            assertFalse(isRemoved(aggregatedWeatherUpdates));
+
+            await(() -> isRemoved(aggregatedWeatherUpdates), "the content server is removed");
+            logMessages.add("Test passed: The new content server was expired.\n");
+        } catch (AssertionError e) {
+            logMessages.add("Test failed: " + e.getMessage() + "\n");
+            throw e;
+        } finally {
+            logMessages.forEach(System.out::println);
+        }
+    }
+}
@@ -0,0 +1,429 @@
+package au.edu.adelaide.aggregationserver.data;
+
+import static au.edu.adelaide.aggregationserver.AggregationServerConstants.MAX_CONTENT_SERVER_UPDATES;
+import static au.edu.adelaide.aggregationserver.AggregationServerConstants.STALE_DATA_THRESHOLD;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
+
+import util.JSONObject;
+
+import static org.junit.Assert.*;
+
+public class AggregatedWeatherUpdatesTest {
+
+    private static final int WRITERS = 8;
+    private static final int READERS = 8;
+    private static final int UPDATES_PER_WRITER = 20000;
+    private static final int STATIONS = 16;
+    private static final int PERMANENT_STATIONS = 4;
+
+    private AggregatedWeatherUpdates aggregatedWeatherUpdates;
+
+    @Before
+    public void setUp() {
+        aggregatedWeatherUpdates = new AggregatedWeatherUpdates();
+    }
+
+    private static WeatherUpdate update(UUID contentServerUUID, String weatherStationId, long sequenceNumber) {
+        JSONObject weatherData = new JSONObject();
+        weatherData.put("id", weatherStationId);
+        weatherData.put("air_temp", String.valueOf(sequenceNumber));
+        return new WeatherUpdate(contentServerUUID, weatherData, ZonedDateTime.now(ZoneId.of("UTC")), sequenceNumber);
+    }
+
+    private static WeatherUpdate update(UUID contentServerUUID, String weatherStationId, long sequenceNumber,
+                                        long lamportTimestamp, ZonedDateTime observedAt) {
+        JSONObject weatherData = new JSONObject();
+        weatherData.put("id", weatherStationId);
+        return new WeatherUpdate(contentServerUUID, weatherData, observedAt, sequenceNumber, lamportTimestamp);
+    }
+
+    /**
+     * Test Name: testConcurrentWritersReadersAndCleanup
+     * Description: Many writers, readers and a cleanup thread share the store without errors,
+     *              and once they finish every history is bounded and ordered and every station
+     *              entry belongs to a content server which still exists.
+     */
+    @Test
+    public void testConcurrentWritersReadersAndCleanup() throws InterruptedException {
+        List<String> logMessages = new ArrayList<>();
+        logMessages.add("\n--- TEST: testConcurrentWritersReadersAndCleanup ---\n");
+
+        UUID permanentContentServer = UUID.randomUUID();
+        // Stations owned by a content server that is never removed, so readers always find data
+        for (int station = 0; station < PERMANENT_STATIONS; station++) {
+            WeatherUpdate update = update(permanentContentServer, "P" + station, station);
+            update.lamportTimestamp = station;
+            aggregatedWeatherUpdates.addUpdate(update, "P" + station);
+        }
+
+        List<UUID> writerContentServers = new ArrayList<>();
+        for (int i = 0; i < WRITERS; i++) {
+            writerContentServers.add(UUID.randomUUID());
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(WRITERS + READERS + 1);
+        CountDownLatch start = new CountDownLatch(1);
+        CountDownLatch writersDone = new CountDownLatch(WRITERS);
+        AtomicBoolean running = new AtomicBoolean(true);
+        Queue<Throwable> failures = new ConcurrentLinkedQueue<>();
+
+        try {
+            for (int i = 0; i < WRITERS; i++) {
+                UUID contentServerUUID = writerContentServers.get(i);
+                int writer = i;
+                executor.submit(() -> {
+                    try {
+                        start.await();
+                        for (int n = 1; n <= UPDATES_PER_WRITER; n++) {
+                            String weatherStationId = "S" + (n % STATIONS);
+                            WeatherUpdate update = update(contentServerUUID, weatherStationId, n);
+                            // Unique Lamport times, so the most recent update is unambiguous
+                            update.lamportTimestamp = (long) n * WRITERS + writer;
+                            aggregatedWeatherUpdates.addUpdate(update, weatherStationId);
+                            if (n % 1000 == 0) {
+                                aggregatedWeatherUpdates.updateContentServerTimestamp(contentServerUUID);
+                            }
+                        }
+                    } catch (Throwable t) {
+                        failures.add(t);
+                    } finally {
+                        writersDone.countDown();
+                    }
+                });
+            }
+
+            for (int i = 0; i < READERS; i++) {
+                executor.submit(() -> {
+                    try {
+                        start.await();
+                        int n = 0;
+                        while (running.get()) {
+                            String weatherStationId = "S" + (n++ % STATIONS);
+                            WeatherUpdate stationUpdate = aggregatedWeatherUpdates.getMostRecentUpdateByStation(weatherStationId);
+                            if (stationUpdate != null) {
+                                assertEquals(weatherStationId, stationUpdate.weatherStationId);
+                            }
+                            assertNotNull(aggregatedWeatherUpdates.getMostRecentWeatherUpdate());
+                            assertNotNull(aggregatedWeatherUpdates.getMostRecentUpdateJson("P0"));
+                            List<WeatherUpdate> history = aggregatedWeatherUpdates.getContentServerUpdates(permanentContentServer);
+                            assertNotNull(history);
+                            assertTrue(history.size() <= MAX_CONTENT_SERVER_UPDATES);
+                        }
+                    } catch (Throwable t) {
+                        failures.add(t);
+                    }
+                });
+            }
+
+            // Keeps removing writer content servers while they are still sending updates
+            executor.submit(() -> {
+                try {
+                    start.await();
+                    int n = 0;
+                    while (running.get()) {
+                        aggregatedWeatherUpdates.removeStaleContentServer(writerContentServers.get(n++ % WRITERS));
+                        aggregatedWeatherUpdates.getStaleContentServerUUIDs();
+                        Thread.yield();
+                    }
+                } catch (Throwable t) {
+                    failures.add(t);
+                }
+            });
+
+            start.countDown();
+            assertTrue("Writers did not finish in time", writersDone.await(60, TimeUnit.SECONDS));
+            running.set(false);
+            executor.shutdown();
+            assertTrue("Readers did not finish in time", executor.awaitTermination(10, TimeUnit.SECONDS));
+
+            if (!failures.isEmpty()) {
+                throw new AssertionError("Concurrent access failed: " + failures.peek(), failures.peek());
+            }
+
+            for (Map.Entry<UUID, WeatherUpdateHistory> entry : aggregatedWeatherUpdates.contentServerUpdates.entrySet()) {
+                List<WeatherUpdate> history = entry.getValue().snapshot();
+                assertTrue(history.size() <= MAX_CONTENT_SERVER_UPDATES);
+                long previous = Long.MAX_VALUE;
+                for (WeatherUpdate update : history) {
+                    assertEquals(entry.getKey(), update.contentServerUUID);
+                    assertTrue("History is not newest first", update.sequenceNumber < previous);
+                    previous = update.sequenceNumber;
+                }
+            }
+            for (Map.Entry<String, WeatherUpdate> entry : aggregatedWeatherUpdates.mostRecentUpdatesByStation.entrySet()) {
+                assertEquals(entry.getKey(), entry.getValue().weatherStationId);
+                assertTrue("Station entry outlived its content server",
+                           aggregatedWeatherUpdates.contentServerUpdates.containsKey(entry.getValue().contentServerUUID));
+            }
+            for (Map.Entry<UUID, Set<String>> entry : aggregatedWeatherUpdates.getStationsByContentServer().entrySet()) {
+                for (String weatherStationId : entry.getValue()) {
+                    assertEquals("Station index disagrees with station entries", entry.getKey(),
+                                 aggregatedWeatherUpdates.getMostRecentUpdateByStation(weatherStationId).contentServerUUID);
+                }
+            }
+            for (Map.Entry<String, WeatherUpdate> entry : aggregatedWeatherUpdates.mostRecentUpdatesByStation.entrySet()) {
+                assertTrue("Station missing from its content server's index",
+                           aggregatedWeatherUpdates.getContentServerStations(entry.getValue().contentServerUUID).contains(entry.getKey()));
+            }
+            WeatherUpdate newest = null;
+            for (WeatherUpdate update : aggregatedWeatherUpdates.mostRecentUpdatesByStation.values()) {
+                if (newest == null || update.lamportTimestamp > newest.lamportTimestamp) {
+                    newest = update;
+                }
+            }
+            assertSame("Most recent update is not the newest station entry", newest, aggregatedWeatherUpdates.getMostRecentWeatherUpdate());
+            for (int station = 0; station < PERMANENT_STATIONS; station++) {
+                assertEquals(permanentContentServer, aggregatedWeatherUpdates.getMostRecentUpdateByStation("P" + station).contentServerUUID);
+            }
+            logMessages.add("Test passed: Store stayed consistent under concurrent writers, readers and cleanup.\n");
+        } catch (AssertionError e) {
+            logMessages.add("Test failed: " + e.getMessage() + "\n");
+            throw e;
+        } finally {
+            running.set(false);
+            executor.shutdownNow();
+            logMessages.forEach(System.out::println);
+        }
+    }
+
+    /**
+     * Test Name: testRemoveStaleContentServer_KeepsOtherServersStations
+     * Description: Removing a content server only removes the station entries it still owns.
+     */
+    @Test
+    public void testRemoveStaleContentServer_KeepsOtherServersStations() {
+        List<String> logMessages = new ArrayList<>();
+        logMessages.add("\n--- TEST: testRemoveStaleContentServer_KeepsOtherServersStations ---\n");
+
+        UUID first = UUID.randomUUID();
+        UUID second = UUID.randomUUID();
+        try {
+            aggregatedWeatherUpdates.addUpdate(update(first, "A", 1), "A");
+            aggregatedWeatherUpdates.addUpdate(update(first, "B", 2), "B");
+            aggregatedWeatherUpdates.addUpdate(update(second, "B", 3), "B");
+
+            aggregatedWeatherUpdates.removeStaleContentServer(first);
+
+            assertNull(aggregatedWeatherUpdates.getMostRecentUpdateByStation("A"));
+            assertEquals(second, aggregatedWeatherUpdates.getMostRecentUpdateByStation("B").contentServerUUID);
+            assertFalse(aggregatedWeatherUpdates.contentServerUpdates.containsKey(first));
+            logMessages.add("Test passed: Only the removed content server's stations were cleared.\n");
+        } catch (AssertionError e) {
+            logMessages.add("Test failed: " + e.getMessage() + "\n");
+            throw e;
+        } finally {
+            logMessages.forEach(System.out::println);
+        }
+    }
+
+    /**
+     * Test Name: testMostRecentWeatherUpdate_OrderedByLamportThenObservationTime
+     * Description: The most recent update is the one with the highest Lamport time, ties are broken
+     *              by observation time, and heartbeats do not change the order.
+     */
+    @Test
+    public void testMostRecentWeatherUpdate_OrderedByLamportThenObservationTime() {
+        List<String> logMessages = new ArrayList<>();
+        logMessages.add("\n--- TEST: testMostRecentWeatherUpdate_OrderedByLamportThenObservationTime ---\n");
+
+        UUID first = UUID.randomUUID();
+        UUID second = UUID.randomUUID();
+        ZonedDateTime now = ZonedDateTime.now(ZoneId.of("UTC"));
+        try {
+            aggregatedWeatherUpdates.addUpdate(update(first, "A", 1, 5, now), "A");
+            aggregatedWeatherUpdates.addUpdate(update(second, "B", 2, 3, now.plusMinutes(10)), "B");
+            assertEquals("A", aggregatedWeatherUpdates.getMostRecentWeatherUpdate().weatherStationId);
+
+            aggregatedWeatherUpdates.addUpdate(update(second, "C", 3, 5, now.plusMinutes(1)), "C");
+            assertEquals("C", aggregatedWeatherUpdates.getMostRecentWeatherUpdate().weatherStationId);
+
+            aggregatedWeatherUpdates.updateContentServerTimestamp(first);
+            assertEquals("C", aggregatedWeatherUpdates.getMostRecentWeatherUpdate().weatherStationId);
+
+            // Replacing the newest entry with an older one falls back to the next newest station
+            aggregatedWeatherUpdates.addUpdate(update(second, "C", 4, 1, now), "C");
+            assertEquals("A", aggregatedWeatherUpdates.getMostRecentWeatherUpdate().weatherStationId);
+            logMessages.add("Test passed: Most recent update followed Lamport and observation time.\n");
+        } catch (AssertionError e) {
+            logMessages.add("Test failed: " + e.getMessage() + "\n");
+            throw e;
+        } finally {
+            logMessages.forEach(System.out::println);
+        }
+    }
+
+    /**
+     * Test Name: testMostRecentWeatherUpdate_FixedUpOnRemoval
+     * Description: Removing the content server owning the most recent update moves the pointer to the
+     *              newest remaining station, and removing the last one leaves no recent update.
+     */
+    @Test
+    public void testMostRecentWeatherUpdate_FixedUpOnRemoval() {
+        List<String> logMessages = new ArrayList<>();
+        logMessages.add("\n--- TEST: testMostRecentWeatherUpdate_FixedUpOnRemoval ---\n");
+
+        UUID first = UUID.randomUUID();
+        UUID second = UUID.randomUUID();
+        ZonedDateTime now = ZonedDateTime.now(ZoneId.of("UTC"));
+        try {
+            aggregatedWeatherUpdates.addUpdate(update(first, "A", 1, 1, now), "A");
+            aggregatedWeatherUpdates.addUpdate(update(first, "B", 2, 2, now), "B");
+            aggregatedWeatherUpdates.addUpdate(update(second, "C", 3, 7, now), "C");
+            aggregatedWeatherUpdates.addUpdate(update(first, "D", 4, 4, now), "D");
+            assertEquals("C", aggregatedWeatherUpdates.getMostRecentWeatherUpdate().weatherStationId);
+
+            aggregatedWeatherUpdates.removeStaleContentServer(second);
+            assertEquals("D", aggregatedWeatherUpdates.getMostRecentWeatherUpdate().weatherStationId);
+
+            aggregatedWeatherUpdates.removeStaleContentServer(first);
+            assertNull("Expected no recent update", aggregatedWeatherUpdates.getMostRecentWeatherUpdate());
+            logMessages.add("Test passed: Most recent update was fixed up after removals.\n");
+        } catch (AssertionError e) {
+            logMessages.add("Test failed: " + e.getMessage() + "\n");
+            throw e;
+        } finally {
+            logMessages.forEach(System.out::println);
+        }
+    }
+
+    /**
+     * Test Name: testStaleAtMillis_HeartbeatMovesDeadline
+     * Description: A content server becomes stale the threshold after it was last seen, heartbeats
+     *              move that deadline and unknown content servers have none.
+     */
+    @Test
+    public void testStaleAtMillis_HeartbeatMovesDeadline() throws InterruptedException {
+        List<String> logMessages = new ArrayList<>();
+        logMessages.add("\n--- TEST: testStaleAtMillis_HeartbeatMovesDeadline ---\n");
+
+        UUID contentServerUUID = UUID.randomUUID();
+        long thresholdMillis = TimeUnit.SECONDS.toMillis(STALE_DATA_THRESHOLD);
+        try {
+            assertEquals(-1, aggregatedWeatherUpdates.getStaleAtMillis(contentServerUUID));
+            assertTrue(aggregatedWeatherUpdates.isContentServerStale(contentServerUUID));
+
+            long before = System.currentTimeMillis();
+            aggregatedWeatherUpdates.addUpdate(update(contentServerUUID, "A", 1), "A");
+            long staleAt = aggregatedWeatherUpdates.getStaleAtMillis(contentServerUUID);
+            assertTrue(staleAt >= before + thresholdMillis);
+            assertTrue(staleAt <= System.currentTimeMillis() + thresholdMillis);
+            assertFalse(aggregatedWeatherUpdates.isContentServerStale(contentServerUUID));
+
+            Thread.sleep(20);
+            aggregatedWeatherUpdates.updateContentServerTimestamp(contentServerUUID);
+            assertTrue(aggregatedWeatherUpdates.getStaleAtMillis(contentServerUUID) > staleAt);
+            logMessages.add("Test passed: Heartbeat moved the stale deadline.\n");
+        } catch (AssertionError e) {
+            logMessages.add("Test failed: " + e.getMessage() + "\n");
+            throw e;
+        } finally {
+            logMessages.forEach(System.out::println);
+        }
+    }
+
+    /**
+     * Test Name: testStationsByContentServer_FollowsTakeoverAndRemoval
+     * Description: The stations listed for a content server follow its updates, move when another
+     *              content server takes a station over and disappear when it is removed.
+     */
+    @Test
+    public void testStationsByContentServer_FollowsTakeoverAndRemoval() {
+        List<String> logMessages = new ArrayList<>();
+        logMessages.add("\n--- TEST: testStationsByContentServer_FollowsTakeoverAndRemoval ---\n");
+
+        UUID first = UUID.randomUUID();
+        UUID second = UUID.randomUUID();
+        try {
+            aggregatedWeatherUpdates.addUpdate(update(first, "B", 1), "B");
+            aggregatedWeatherUpdates.addUpdate(update(first, "A", 2), "A");
+            aggregatedWeatherUpdates.addUpdate(update(second, "C", 3), "C");
+            assertEquals(new TreeSet<>(Arrays.asList("A", "B")), aggregatedWeatherUpdates.getContentServerStations(first));
+
+            aggregatedWeatherUpdates.addUpdate(update(second, "A", 4), "A");
+            assertEquals(new TreeSet<>(Arrays.asList("B")), aggregatedWeatherUpdates.getContentServerStations(first));
+            assertEquals(new TreeSet<>(Arrays.asList("A", "C")), aggregatedWeatherUpdates.getContentServerStations(second));
+
+            aggregatedWeatherUpdates.removeStaleContentServer(second);
+            assertTrue(aggregatedWeatherUpdates.getContentServerStations(second).isEmpty());
+            assertNull(aggregatedWeatherUpdates.getMostRecentUpdateByStation("A"));
+            assertEquals(1, aggregatedWeatherUpdates.getStationsByContentServer().size());
+            assertEquals(new TreeSet<>(Arrays.asList("B")), aggregatedWeatherUpdates.getStationsByContentServer().get(first));
+            logMessages.add("Test passed: Stations by content server followed takeover and removal.\n");
+        } catch (AssertionError e) {
+            logMessages.add("Test failed: " + e.getMessage() + "\n");
+            throw e;
+        } finally {
+            logMessages.forEach(System.out::println);
+        }
+    }
+
+    /**
+     * Test Name: testRepairStationUpdate_RestoresFromHistoryOrRemoves
+     * Description: A loaded station entry whose data is damaged is replaced by the station's
+     *              update in the content server history, removed when no history holds one, and
+     *              left alone once a newer update replaced it.
+     */
+    @Test
+    public void testRepairStationUpdate_RestoresFromHistoryOrRemoves() {
+        List<String> logMessages = new ArrayList<>();
+        logMessages.add("\n--- TEST: testRepairStationUpdate_RestoresFromHistoryOrRemoves ---\n");
+
+        UUID contentServer = UUID.randomUUID();
+        ZonedDateTime now = ZonedDateTime.now(ZoneId.of("UTC"));
+        Supplier<String> damagedSource = () -> {
+            throw new UncheckedIOException(new IOException("Corrupt station table record"));
+        };
+        WeatherUpdate damagedA = new WeatherUpdate(contentServer, "A", now, 1, 1, damagedSource);
+        WeatherUpdate damagedB = new WeatherUpdate(contentServer, "B", now, 2, 2, damagedSource);
+        WeatherUpdate damagedC = new WeatherUpdate(contentServer, "C", now, 3, 3, damagedSource);
+        Map<String, WeatherUpdate> loaded = new LinkedHashMap<>();
+        loaded.put("A", damagedA);
+        loaded.put("B", damagedB);
+        loaded.put("C", damagedC);
+        try {
+            aggregatedWeatherUpdates.addContentServerUpdate(update(contentServer, "A", 1));
+            aggregatedWeatherUpdates.loadStationUpdates(loaded);
+            aggregatedWeatherUpdates.addUpdate(update(contentServer, "C", 4), "C");
+
+            WeatherUpdate repaired = aggregatedWeatherUpdates.repairStationUpdate("A", damagedA);
+            logMessages.add("Station A repaired from sequence number " + repaired.sequenceNumber);
+            assertEquals("1", aggregatedWeatherUpdates.getMostRecentUpdateByStation("A").getWeatherData().get("air_temp"));
+
+            assertNull(aggregatedWeatherUpdates.repairStationUpdate("B", damagedB));
+            assertNull(aggregatedWeatherUpdates.getMostRecentUpdateByStation("B"));
+            assertEquals(new TreeSet<>(Arrays.asList("A", "C")), aggregatedWeatherUpdates.getContentServerStations(contentServer));
+
+            assertEquals(4, aggregatedWeatherUpdates.repairStationUpdate("C", damagedC).sequenceNumber);
+            assertEquals("C", aggregatedWeatherUpdates.getMostRecentWeatherUpdate().weatherStationId);
+            logMessages.add("Test passed: Damaged station entries were repaired.\n");
+        } catch (AssertionError e) {
+            logMessages.add("Test failed: " + e.getMessage() + "\n");
+            throw e;
+        } finally {
+            logMessages.forEach(System.out::println);
+        }
+    }
+}
@@ -0,0 +1,223 @@
+package au.edu.adelaide.aggregationserver.data;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import util.JSONObject;
+
+import static org.junit.Assert.*;
+
+public class WeatherUpdateHistoryTest {
+
+    private static final UUID CONTENT_SERVER = UUID.randomUUID();
+
+    private static WeatherUpdate update(long sequenceNumber) {
+        JSONObject weatherData = new JSONObject();
+        weatherData.put("id", "IDS60901");
+        return new WeatherUpdate(CONTENT_SERVER, weatherData, ZonedDateTime.now(ZoneId.of("UTC")), sequenceNumber);
+    }
+
+    private static List<Long> sequenceNumbers(Iterable<WeatherUpdate> updates) {
+        List<Long> sequenceNumbers = new ArrayList<>();
+        for (WeatherUpdate update : updates) {
+            sequenceNumbers.add(update.sequenceNumber);
+        }
+        return sequenceNumbers;
+    }
+
+    /**
+     * Test Name: testAdd_EvictsOldestWhenFull
+     * Description: Once the capacity is reached each append evicts the oldest update, newest first order is kept.
+     */
+    @Test
+    public void testAdd_EvictsOldestWhenFull() {
+        List<String> logMessages = new ArrayList<>();
+        logMessages.add("\n--- TEST: testAdd_EvictsOldestWhenFull ---\n");
+
+        WeatherUpdateHistory history = new WeatherUpdateHistory(3);
+        try {
+            assertTrue(history.isEmpty());
+            assertNull(history.latest());
+            for (long n = 1; n <= 7; n++) {
+                history.add(update(n));
+            }
+
+            assertEquals(3, history.size());
+            assertEquals(7, history.latest().sequenceNumber);
+            assertEquals(Arrays.asList(7L, 6L, 5L), sequenceNumbers(history));
+            logMessages.add("Test passed: Oldest updates were evicted.\n");
+        } catch (AssertionError e) {
+            logMessages.add("Test failed: " + e.getMessage() + "\n");
+            throw e;
+        } finally {
+            logMessages.forEach(System.out::println);
+        }
+    }
+
+    /**
+     * Test Name: testRemoveOlderThan
+     * Description: Updates below the given sequence number are dropped and later appends still work.
+     */
+    @Test
+    public void testRemoveOlderThan() {
+        List<String> logMessages = new ArrayList<>();
+        logMessages.add("\n--- TEST: testRemoveOlderThan ---\n");
+
+        WeatherUpdateHistory history = new WeatherUpdateHistory(4);
+        try {
+            for (long n = 1; n <= 6; n++) {
+                history.add(update(n));
+            }
+            history.removeOlderThan(5);
+            assertEquals(Arrays.asList(6L, 5L), sequenceNumbers(history));
+
+            history.removeOlderThan(10);
+            assertTrue(history.isEmpty());
+            assertNull(history.latest());
+
+            history.add(update(11));
+            assertEquals(Arrays.asList(11L), sequenceNumbers(history));
+            logMessages.add("Test passed: Older updates were removed.\n");
+        } catch (AssertionError e) {
+            logMessages.add("Test failed: " + e.getMessage() + "\n");
+            throw e;
+        } finally {
+            logMessages.forEach(System.out::println);
+        }
+    }
+
+    /**
+     * Test Name: testSerialization_RoundTrip
+     * Description: A serialized history restores the same updates in the same order.
+     */
+    @Test
+    public void testSerialization_RoundTrip() throws Exception {
+        List<String> logMessages = new ArrayList<>();
+        logMessages.add("\n--- TEST: testSerialization_RoundTrip ---\n");
+
+        WeatherUpdateHistory history = new WeatherUpdateHistory(3);
+        for (long n = 1; n <= 5; n++) {
+            history.add(update(n));
+        }
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+                out.writeObject(history);
+            }
+            WeatherUpdateHistory restored;
+            try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+                restored = (WeatherUpdateHistory) in.readObject();
+            }
+
+            assertEquals(Arrays.asList(5L, 4L, 3L), sequenceNumbers(restored));
+            restored.add(update(6));
+            assertEquals(Arrays.asList(6L, 5L, 4L), sequenceNumbers(restored));
+            logMessages.add("Test passed: History survived serialization.\n");
+        } catch (AssertionError e) {
+            logMessages.add("Test failed: " + e.getMessage() + "\n");
+            throw e;
+        } finally {
+            logMessages.forEach(System.out::println);
+        }
+    }
+
+    /**
+     * Test Name: testFromNewestFirst_ConvertsLegacyList
+     * Description: A list in the previous newest-first format is converted, keeping only the newest updates.
+     */
+    @Test
+    public void testFromNewestFirst_ConvertsLegacyList() {
+        List<String> logMessages = new ArrayList<>();
+        logMessages.add("\n--- TEST: testFromNewestFirst_ConvertsLegacyList ---\n");
+
+        LinkedList<WeatherUpdate> legacy = new LinkedList<>(Arrays.asList(update(4), update(3), update(2), update(1)));
+        try {
+            WeatherUpdateHistory history = WeatherUpdateHistory.fromNewestFirst(legacy, 3);
+
+            assertEquals(Arrays.asList(4L, 3L, 2L), sequenceNumbers(history));
+            logMessages.add("Test passed: Legacy list was converted.\n");
+        } catch (AssertionError e) {
+            logMessages.add("Test failed: " + e.getMessage() + "\n");
+            throw e;
+        } finally {
+            logMessages.forEach(System.out::println);
+        }
+    }
+
+    /**
+     * Test Name: testSnapshot_ConcurrentWithWriter
+     * Description: Snapshots taken while a writer keeps wrapping the buffer are always a contiguous,
+     *              newest-first run of updates no longer than the capacity.
+     */
+    @Test
+    public void testSnapshot_ConcurrentWithWriter() throws InterruptedException {
+        List<String> logMessages = new ArrayList<>();
+        logMessages.add("\n--- TEST: testSnapshot_ConcurrentWithWriter ---\n");
+
+        int capacity = 2;
+        WeatherUpdateHistory history = new WeatherUpdateHistory(capacity);
+        AtomicBoolean running = new AtomicBoolean(true);
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        WeatherUpdate[] updates = new WeatherUpdate[1000];
+        for (int i = 0; i < updates.length; i++) {
+            updates[i] = update(i + 1);
+        }
+
+        Thread writer = new Thread(() -> {
+            // updates[0] is added before the threads start
+            long n = 1;
+            while (running.get()) {
+                history.add(updates[(int) (n++ % updates.length)]);
+            }
+        });
+        Thread reader = new Thread(() -> {
+            try {
+                for (int i = 0; i < 200000; i++) {
+                    List<Long> snapshot = sequenceNumbers(history.snapshot());
+                    assertTrue(snapshot.size() <= capacity);
+                    for (int j = 1; j < snapshot.size(); j++) {
+                        long previous = snapshot.get(j - 1);
+                        long expected = previous == 1 ? updates.length : previous - 1;
+                        assertEquals("Snapshot is not contiguous: " + snapshot, expected, (long) snapshot.get(j));
+                    }
+                    assertNotNull(history.latest());
+                }
+            } catch (Throwable t) {
+                failure.set(t);
+            }
+        });
+
+        try {
+            history.add(updates[0]);
+            writer.start();
+            reader.start();
+            reader.join();
+            running.set(false);
+            writer.join();
+
+            if (failure.get() != null) {
+                throw new AssertionError(failure.get().getMessage(), failure.get());
+            }
+            logMessages.add("Test passed: Snapshots were consistent while the writer wrapped the buffer.\n");
+        } catch (AssertionError e) {
+            logMessages.add("Test failed: " + e.getMessage() + "\n");
+            throw e;
+        } finally {
+            running.set(false);
+            logMessages.forEach(System.out::println);
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package au.edu.adelaide.aggregationserver.data;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import util.JSONObject;
+
+import static org.junit.Assert.*;
+
+public class WeatherUpdateSubscriptionsTest {
+
+    private WeatherUpdateSubscriptions subscriptions;
+
+    @Before
+    public void setUp() {
+        subscriptions = new WeatherUpdateSubscriptions();
+    }
+
+    private static WeatherUpdate createUpdate(String weatherStationId) {
+        JSONObject weatherData = new JSONObject();
+        weatherData.put("id", weatherStationId);
+        return new WeatherUpdate(UUID.randomUUID(), weatherData, ZonedDateTime.now(ZoneId.of("UTC")), 1);
+    }
+
+    /**
+     * Test Name: testPublish_WakesStationAndRecentWaiters
+     * Description: Publishing an update wakes the waiters of its station and of "recent" only,
+     *              and every woken waiter is detached.
+     */
+    @Test
+    public void testPublish_WakesStationAndRecentWaiters() throws Exception {
+        List<String> logMessages = new ArrayList<>();
+        logMessages.add("\n--- TEST: testPublish_WakesStationAndRecentWaiters ---\n");
+
+        try {
+            CompletableFuture<Void> stationWaiter = subscriptions.nextUpdate("IDS60901");
+            CompletableFuture<Void> recentWaiter = subscriptions.nextUpdate("recent");
+            CompletableFuture<Void> otherWaiter = subscriptions.nextUpdate("IDS60902");
+            assertEquals(3, subscriptions.getWaiterCount());
+
+            subscriptions.publish(createUpdate("IDS60901"));
+
+            stationWaiter.get(5, TimeUnit.SECONDS);
+            recentWaiter.get(5, TimeUnit.SECONDS);
+            assertFalse(otherWaiter.isDone());
+            assertEquals(1, subscriptions.getWaiterCount());
+
+            subscriptions.cancel("IDS60902", otherWaiter);
+            assertEquals(0, subscriptions.getWaiterCount());
+            logMessages.add("Test passed: Only the station and recent waiters were woken.\n");
+        } catch (AssertionError e) {
+            logMessages.add("Test failed: " + e.getMessage() + "\n");
+            throw e;
+        } finally {
+            logMessages.forEach(System.out::println);
+        }
+    }
+
+    /**
+     * Test Name: testPublish_SlowSubscriberDoesNotBlockPublisher
+     * Description: A subscriber that blocks when woken holds up neither publishing nor later waiters'
+     *              registration, since waiters are completed off the publishing thread.
+     */
+    @Test
+    public void testPublish_SlowSubscriberDoesNotBlockPublisher() throws Exception {
+        List<String> logMessages = new ArrayList<>();
+        logMessages.add("\n--- TEST: testPublish_SlowSubscriberDoesNotBlockPublisher ---\n");
+
+        CountDownLatch release = new CountDownLatch(1);
+        try {
+            subscriptions.nextUpdate("IDS60901").thenRun(() -> {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+
+            long start = System.nanoTime();
+            for (int i = 0; i < 100; i++) {
+                subscriptions.nextUpdate("IDS60901");
+                subscriptions.publish(createUpdate("IDS60901"));
+            }
+            long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+            assertTrue("Publishing took " + elapsedMillis + " ms", elapsedMillis < 1000);
+            assertEquals(0, subscriptions.getWaiterCount());
+            logMessages.add("Test passed: Publishing did not wait for the slow subscriber.\n");
+        } catch (AssertionError e) {
+            logMessages.add("Test failed: " + e.getMessage() + "\n");
+            throw e;
+        } finally {
+            release.countDown();
+            logMessages.forEach(System.out::println);
+        }
+    }
+}
@@ -0,0 +1,165 @@
+package au.edu.adelaide.aggregationserver.persistence;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import au.edu.adelaide.aggregationserver.data.WeatherUpdate;
+import util.IOUtility;
+
+import static au.edu.adelaide.aggregationserver.persistence.WeatherUpdateFixtures.*;
+import static org.junit.Assert.*;
+
+public class MappedStationSnapshotTest {
+
+    private static final UUID CONTENT_SERVER = UUID.randomUUID();
+
+    private static Map<String, WeatherUpdate> stations(int count) {
+        Map<String, WeatherUpdate> stationUpdates = new LinkedHashMap<>();
+        for (int i = 0; i < count; i++) {
+            stationUpdates.put("IDS" + i, update(CONTENT_SERVER, "IDS" + i, i + 1, LARGE_LAMPORT_TIMESTAMP + i + 1));
+        }
+        return stationUpdates;
+    }
+
+    /**
+     * Test Name: testLoad_RestoresStationsLazily
+     * Description: A table maps back to the same station entries, whose data is served as the
+     *              stored JSON text and parses with its raw members intact; re-encoding the
+     *              loaded entries copies them unchanged.
+     */
+    @Test
+    public void testLoad_RestoresStationsLazily() throws IOException {
+        List<String> logMessages = new ArrayList<>();
+        logMessages.add("\n--- TEST: testLoad_RestoresStationsLazily ---\n");
+
+        Path file = Files.createTempFile("stations", ".weather");
+        try {
+            Map<String, WeatherUpdate> stationUpdates = stations(100);
+            byte[] encoded = MappedStationSnapshot.encode(stationUpdates);
+            Files.write(file, encoded);
+
+            Map<String, WeatherUpdate> loaded = MappedStationSnapshot.load(file);
+            assertEquals(new ArrayList<>(stationUpdates.keySet()), new ArrayList<>(loaded.keySet()));
+            for (WeatherUpdate expected : stationUpdates.values()) {
+                WeatherUpdate actual = loaded.get(expected.weatherStationId);
+                assertEquals(expected.contentServerUUID, actual.contentServerUUID);
+                assertEquals(expected.weatherStationId, actual.weatherStationId);
+                assertEquals(expected.sequenceNumber, actual.sequenceNumber);
+                assertEquals(expected.lamportTimestamp, actual.lamportTimestamp);
+                assertEquals(expected.timestamp.toInstant(), actual.timestamp.toInstant());
+                assertEquals(expected.getWeatherDataJson(), actual.getWeatherDataJson());
+            }
+            assertArrayEquals(encoded, MappedStationSnapshot.encode(loaded));
+
+            WeatherUpdate parsed = loaded.get("IDS7");
+            assertTrue(parsed.getWeatherData().isRaw("air_temp"));
+            assertFalse(parsed.getWeatherData().isRaw("rel_hum"));
+            assertEquals(stationUpdates.get("IDS7").getWeatherDataJson(), parsed.getWeatherDataJson());
+            logMessages.add("Test passed: " + loaded.size() + " stations were restored from the mapped table.\n");
+        } catch (AssertionError e) {
+            logMessages.add("Test failed: " + e.getMessage() + "\n");
+            throw e;
+        } finally {
+            Files.deleteIfExists(file);
+            logMessages.forEach(System.out::println);
+        }
+    }
+
+    /**
+     * Test Name: testLoad_DetectsDamage
+     * Description: A damaged body only fails its own station when that station is first read,
+     *              and is left out when the table is written again, while a damaged slot fails
+     *              the whole table.
+     */
+    @Test
+    public void testLoad_DetectsDamage() throws IOException {
+        List<String> logMessages = new ArrayList<>();
+        logMessages.add("\n--- TEST: testLoad_DetectsDamage ---\n");
+
+        Path file = Files.createTempFile("stations", ".weather");
+        try {
+            byte[] encoded = MappedStationSnapshot.encode(stations(3));
+            byte[] damagedBody = encoded.clone();
+            damagedBody[damagedBody.length - 3] ^= 0x01;
+            Files.write(file, damagedBody);
+
+            Map<String, WeatherUpdate> loaded = MappedStationSnapshot.load(file);
+            assertEquals(3, loaded.size());
+            assertEquals("IDS0", loaded.get("IDS0").getWeatherData().get("id"));
+            try {
+                loaded.get("IDS2").getWeatherData();
+                fail("Expected the damaged record to be detected");
+            } catch (UncheckedIOException e) {
+                logMessages.add("Damaged record detected: " + e.getMessage());
+            }
+
+            List<String> damagedStations = new ArrayList<>();
+            Files.write(file, MappedStationSnapshot.encode(loaded, damagedStations));
+            assertEquals(Arrays.asList("IDS2"), damagedStations);
+            Map<String, WeatherUpdate> rewritten = MappedStationSnapshot.load(file);
+            logMessages.add("Stations after rewriting the damaged table: " + rewritten.keySet());
+            assertEquals(Arrays.asList("IDS0", "IDS1"), new ArrayList<>(rewritten.keySet()));
+            assertEquals("IDS1", rewritten.get("IDS1").getWeatherData().get("id"));
+
+            byte[] damagedSlot = encoded.clone();
+            damagedSlot[MappedStationSnapshot.HEADER_SIZE + 17] ^= 0x01;
+            Files.write(file, damagedSlot);
+            try {
+                MappedStationSnapshot.load(file);
+                fail("Expected the damaged slot to be detected");
+            } catch (IOException e) {
+                logMessages.add("Damaged slot detected: " + e.getMessage());
+            }
+            logMessages.add("Test passed: Damaged bodies and slots were detected.\n");
+        } catch (AssertionError e) {
+            logMessages.add("Test failed: " + e.getMessage() + "\n");
+            throw e;
+        } finally {
+            Files.deleteIfExists(file);
+            logMessages.forEach(System.out::println);
+        }
+    }
+
+    /**
+     * Test Name: testReplaceFile_KeepsMappedStationsReadable
+     * Description: Writing the next snapshot over a mapped table by rename leaves the entries
+     *              loaded from it readable.
+     */
+    @Test
+    public void testReplaceFile_KeepsMappedStationsReadable() throws IOException {
+        List<String> logMessages = new ArrayList<>();
+        logMessages.add("\n--- TEST: testReplaceFile_KeepsMappedStationsReadable ---\n");
+
+        Path directory = Files.createTempDirectory("stations");
+        Path file = directory.resolve("weatherUpdatesByStation.weather");
+        try {
+            Map<String, WeatherUpdate> stationUpdates = stations(50);
+            Files.write(file, MappedStationSnapshot.encode(stationUpdates));
+            Map<String, WeatherUpdate> loaded = MappedStationSnapshot.load(file);
+
+            new IOUtility().replaceFileWithBytes(MappedStationSnapshot.encode(stations(1)), file.toString(), false);
+
+            assertEquals(1, MappedStationSnapshot.load(file).size());
+            assertEquals(stationUpdates.get("IDS49").getWeatherDataJson(), loaded.get("IDS49").getWeatherDataJson());
+            assertFalse(Files.exists(directory.resolve("weatherUpdatesByStation.weather.tmp")));
+            logMessages.add("Test passed: Mapped entries survived the file being replaced.\n");
+        } catch (AssertionError e) {
+            logMessages.add("Test failed: " + e.getMessage() + "\n");
+            throw e;
+        } finally {
+            Files.deleteIfExists(file);
+            Files.deleteIfExists(directory);
+            logMessages.forEach(System.out::println);
+        }
+    }
+}
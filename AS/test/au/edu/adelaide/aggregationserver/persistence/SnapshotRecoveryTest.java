@@ -0,0 +1,212 @@
+package au.edu.adelaide.aggregationserver.persistence;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import au.edu.adelaide.aggregationserver.data.AggregatedWeatherUpdates;
+import au.edu.adelaide.aggregationserver.data.WeatherUpdate;
+import au.edu.adelaide.aggregationserver.data.WeatherUpdateHistory;
+
+import static au.edu.adelaide.aggregationserver.persistence.WeatherUpdateFixtures.*;
+import static org.junit.Assert.*;
+
+public class SnapshotRecoveryTest {
+
+    private static final UUID FIRST = UUID.randomUUID();
+    private static final UUID SECOND = UUID.randomUUID();
+
+    private Path baseDirectory;
+    private Path dataDirectory;
+    private Path stationFile;
+    private Path stationShardDirectory;
+    private Path quarantineDirectory;
+
+    @Before
+    public void setUp() throws IOException {
+        baseDirectory = Files.createTempDirectory("recovery");
+        dataDirectory = Files.createDirectory(baseDirectory.resolve("data"));
+        stationFile = dataDirectory.resolve("weatherUpdatesByStation.weather");
+        stationShardDirectory = dataDirectory.resolve("stations");
+        quarantineDirectory = baseDirectory.resolve("quarantine");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        try (Stream<Path> files = Files.walk(baseDirectory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+        }
+    }
+
+    private void writeHistory(UUID contentServerUUID, WeatherUpdate... updates) throws IOException {
+        WeatherUpdateHistory history = new WeatherUpdateHistory(20);
+        for (WeatherUpdate update : updates) {
+            history.add(update);
+        }
+        Files.write(dataDirectory.resolve(contentServerUUID + ".weather"), WeatherRecordCodec.encodeHistory(history));
+    }
+
+    /**
+     * Test Name: testRecover_QuarantinesCorruptFilesAndReportsBadNames
+     * Description: Unreadable content server and station files are moved to the quarantine
+     *              directory, files with bad names are reported separately and left in place,
+     *              temporary files left by a crash are deleted, and the stations are rebuilt
+     *              from the histories that could be read.
+     */
+    @Test
+    public void testRecover_QuarantinesCorruptFilesAndReportsBadNames() throws IOException {
+        List<String> logMessages = new ArrayList<>();
+        logMessages.add("\n--- TEST: testRecover_QuarantinesCorruptFilesAndReportsBadNames ---\n");
+
+        try {
+            writeHistory(FIRST, update(FIRST, "IDS1", 1), update(FIRST, "IDS2", 2));
+            writeHistory(SECOND, update(SECOND, "IDS3", 3), update(SECOND, "IDS1", 4));
+            for (int i = 0; i < 20; i++) {
+                UUID contentServerUUID = UUID.randomUUID();
+                writeHistory(contentServerUUID, update(contentServerUUID, "IDS" + (100 + i), 10 + i));
+            }
+            String corruptName = UUID.randomUUID() + ".weather";
+            Files.write(dataDirectory.resolve(corruptName), "not weather data".getBytes());
+            Files.write(stationFile, new byte[]{0x57, 0x54, 0x48, 0x52, 1, 3, 0, 0});
+            Files.write(dataDirectory.resolve("notes.txt"), "x".getBytes());
+            Files.write(dataDirectory.resolve("not-a-uuid.weather"), "x".getBytes());
+            Files.write(dataDirectory.resolve(FIRST + ".weather.tmp"), "half-written".getBytes());
+
+            AggregatedWeatherUpdates aggregatedWeatherUpdates = new AggregatedWeatherUpdates();
+            SnapshotRecovery.Report report = new SnapshotRecovery(dataDirectory, stationFile, stationShardDirectory, quarantineDirectory, 4)
+                    .recover(aggregatedWeatherUpdates);
+            logMessages.add(report.toString());
+
+            assertEquals(22, report.contentServersLoaded);
+            assertEquals(Arrays.asList(corruptName, "weatherUpdatesByStation.weather"), report.quarantinedFiles);
+            assertFalse(Files.exists(dataDirectory.resolve(corruptName)));
+            assertFalse(Files.exists(stationFile));
+            try (Stream<Path> quarantined = Files.list(quarantineDirectory)) {
+                assertEquals(2, quarantined.count());
+            }
+            assertEquals(Arrays.asList("not-a-uuid.weather", "notes.txt"), report.badFileNames.stream().sorted().collect(Collectors.toList()));
+            assertTrue(Files.exists(dataDirectory.resolve("notes.txt")));
+            assertEquals(1, report.unfinishedFilesDeleted);
+            assertFalse(Files.exists(dataDirectory.resolve(FIRST + ".weather.tmp")));
+
+            assertEquals(0, report.stationsLoaded);
+            assertEquals(23, report.stationsReconciled);
+            assertEquals(4, aggregatedWeatherUpdates.getMostRecentUpdateByStation("IDS1").sequenceNumber);
+            assertEquals(SECOND, aggregatedWeatherUpdates.getMostRecentUpdateByStation("IDS1").contentServerUUID);
+            assertEquals(Arrays.asList("scan", "content servers", "stations", "reconcile"), new ArrayList<>(report.phaseMillis.keySet()));
+            logMessages.add("Test passed: Corrupt files were quarantined and stations rebuilt from the histories.\n");
+        } catch (AssertionError e) {
+            logMessages.add("Test failed: " + e.getMessage() + "\n");
+            throw e;
+        } finally {
+            logMessages.forEach(System.out::println);
+        }
+    }
+
+    /**
+     * Test Name: testRecover_ReconcilesStationFileWithHistories
+     * Description: A station entry older than a history's update for the same station is
+     *              replaced, while a station missing from an intact station file is not restored.
+     */
+    @Test
+    public void testRecover_ReconcilesStationFileWithHistories() throws IOException {
+        List<String> logMessages = new ArrayList<>();
+        logMessages.add("\n--- TEST: testRecover_ReconcilesStationFileWithHistories ---\n");
+
+        try {
+            writeHistory(FIRST, update(FIRST, "IDS1", 1), update(FIRST, "IDS9", 4), update(FIRST, "IDS1", 5));
+            Map<String, WeatherUpdate> stationUpdates = new LinkedHashMap<>();
+            stationUpdates.put("IDS1", update(FIRST, "IDS1", 1));
+            stationUpdates.put("IDS2", update(FIRST, "IDS2", 2));
+            Files.write(stationFile, MappedStationSnapshot.encode(stationUpdates));
+
+            AggregatedWeatherUpdates aggregatedWeatherUpdates = new AggregatedWeatherUpdates();
+            SnapshotRecovery.Report report = new SnapshotRecovery(dataDirectory, stationFile, stationShardDirectory, quarantineDirectory, 2)
+                    .recover(aggregatedWeatherUpdates);
+            logMessages.add(report.toString());
+
+            assertEquals(1, report.contentServersLoaded);
+            assertEquals(2, report.stationsLoaded);
+            assertEquals(1, report.stationsReconciled);
+            assertTrue(report.quarantinedFiles.isEmpty());
+            assertTrue(report.badFileNames.isEmpty());
+            assertEquals(5, aggregatedWeatherUpdates.getMostRecentUpdateByStation("IDS1").sequenceNumber);
+            assertEquals(2, aggregatedWeatherUpdates.getMostRecentUpdateByStation("IDS2").sequenceNumber);
+            assertNull(aggregatedWeatherUpdates.getMostRecentUpdateByStation("IDS9"));
+            assertEquals("IDS1", aggregatedWeatherUpdates.getMostRecentWeatherUpdate().weatherStationId);
+            logMessages.add("Test passed: The stale station entry was replaced from the history.\n");
+        } catch (AssertionError e) {
+            logMessages.add("Test failed: " + e.getMessage() + "\n");
+            throw e;
+        } finally {
+            logMessages.forEach(System.out::println);
+        }
+    }
+
+    /**
+     * Test Name: testRecover_MergesStationShardsWithOlderStationFile
+     * Description: Station shards are loaded together with the single station file of an older
+     *              version, keeping the newer entry of a station found in both, and a damaged
+     *              shard is quarantined while its stations are rebuilt from the histories.
+     */
+    @Test
+    public void testRecover_MergesStationShardsWithOlderStationFile() throws IOException {
+        List<String> logMessages = new ArrayList<>();
+        logMessages.add("\n--- TEST: testRecover_MergesStationShardsWithOlderStationFile ---\n");
+
+        try {
+            writeHistory(FIRST, update(FIRST, "IDS1", 1), update(FIRST, "IDS2", 2), update(FIRST, "IDS3", 3), update(FIRST, "IDS4", 4));
+            Map<String, WeatherUpdate> olderStations = new LinkedHashMap<>();
+            olderStations.put("IDS1", update(FIRST, "IDS1", 1));
+            olderStations.put("IDS2", update(FIRST, "IDS2", 1));
+            Files.write(stationFile, MappedStationSnapshot.encode(olderStations));
+
+            Files.createDirectories(stationShardDirectory);
+            Map<Integer, Map<String, WeatherUpdate>> shards = new LinkedHashMap<>();
+            for (String weatherStationId : Arrays.asList("IDS2", "IDS3", "IDS4")) {
+                shards.computeIfAbsent(StationShards.shardOf(weatherStationId, 4), shard -> new LinkedHashMap<>())
+                      .put(weatherStationId, update(FIRST, weatherStationId, Long.parseLong(weatherStationId.substring(3))));
+            }
+            int damagedShard = StationShards.shardOf("IDS4", 4);
+            for (Map.Entry<Integer, Map<String, WeatherUpdate>> shard : shards.entrySet()) {
+                byte[] encoded = MappedStationSnapshot.encode(shard.getValue());
+                if (shard.getKey() == damagedShard) {
+                    encoded[MappedStationSnapshot.HEADER_SIZE + 17] ^= 0x01;
+                }
+                Files.write(stationShardDirectory.resolve(StationShards.fileName(shard.getKey(), 4)), encoded);
+            }
+
+            AggregatedWeatherUpdates aggregatedWeatherUpdates = new AggregatedWeatherUpdates();
+            SnapshotRecovery.Report report = new SnapshotRecovery(dataDirectory, stationFile, stationShardDirectory, quarantineDirectory, 2)
+                    .recover(aggregatedWeatherUpdates);
+            logMessages.add(report.toString());
+
+            assertEquals(shards.size(), report.stationFilesLoaded);
+            assertEquals(Collections.singletonList(StationShards.fileName(damagedShard, 4)), report.quarantinedFiles);
+            assertEquals(1, aggregatedWeatherUpdates.getMostRecentUpdateByStation("IDS1").sequenceNumber);
+            assertEquals(2, aggregatedWeatherUpdates.getMostRecentUpdateByStation("IDS2").sequenceNumber);
+            assertEquals(3, aggregatedWeatherUpdates.getMostRecentUpdateByStation("IDS3").sequenceNumber);
+            assertEquals(4, aggregatedWeatherUpdates.getMostRecentUpdateByStation("IDS4").sequenceNumber);
+            logMessages.add("Test passed: Shards and the older station file were merged.\n");
+        } catch (AssertionError e) {
+            logMessages.add("Test failed: " + e.getMessage() + "\n");
+            throw e;
+        } finally {
+            logMessages.forEach(System.out::println);
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package au.edu.adelaide.aggregationserver.persistence;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.stream.Stream;
+
+import au.edu.adelaide.aggregationserver.data.WeatherUpdate;
+import au.edu.adelaide.aggregationserver.data.WeatherUpdateHistory;
+
+import static au.edu.adelaide.aggregationserver.persistence.WeatherUpdateFixtures.*;
+import static org.junit.Assert.*;
+
+public class WeatherRecordCodecTest {
+
+    private static final UUID CONTENT_SERVER = UUID.randomUUID();
+
+    private static void assertSameUpdate(WeatherUpdate expected, WeatherUpdate actual) {
+        assertEquals(expected.contentServerUUID, actual.contentServerUUID);
+        assertEquals(expected.weatherStationId, actual.weatherStationId);
+        assertEquals(expected.sequenceNumber, actual.sequenceNumber);
+        assertEquals(expected.lamportTimestamp, actual.lamportTimestamp);
+        assertEquals(expected.timestamp.toInstant(), actual.timestamp.toInstant());
+        assertEquals(expected.getWeatherData().toJSONString(), actual.getWeatherData().toJSONString());
+    }
+
+    /**
+     * Test Name: testHistory_RoundTrip
+     * Description: A history decodes to the same updates, in the same order, with its capacity,
+     *              raw members and 64-bit logical timestamps intact.
+     */
+    @Test
+    public void testHistory_RoundTrip() throws IOException {
+        List<String> logMessages = new ArrayList<>();
+        logMessages.add("\n--- TEST: testHistory_RoundTrip ---\n");
+
+        try {
+            WeatherUpdateHistory history = new WeatherUpdateHistory(3);
+            for (long n = 1; n <= 4; n++) {
+                history.add(update(CONTENT_SERVER, "IDS" + n, n, LARGE_LAMPORT_TIMESTAMP + n));
+            }
+
+            byte[] encoded = WeatherRecordCodec.encodeHistory(history);
+            WeatherUpdateHistory decoded = WeatherRecordCodec.decodeHistory(encoded);
+
+            assertTrue(WeatherRecordCodec.isEncoded(encoded));
+            assertEquals(3, decoded.getCapacity());
+            assertEquals(history.size(), decoded.size());
+            for (int i = 0; i < history.size(); i++) {
+                assertSameUpdate(history.snapshot().get(i), decoded.snapshot().get(i));
+            }
+            assertTrue(decoded.latest().getWeatherData().isRaw("air_temp"));
+            assertFalse(decoded.latest().getWeatherData().isRaw("rel_hum"));
+            logMessages.add("Test passed: History round-tripped in " + encoded.length + " bytes.\n");
+        } catch (AssertionError e) {
+            logMessages.add("Test failed: " + e.getMessage() + "\n");
+            throw e;
+        } finally {
+            logMessages.forEach(System.out::println);
+        }
+    }
+
+    /**
+     * Test Name: testDecode_SkipsCorruptRecordAndRejectsWrongKind
+     * Description: A record failing its CRC is skipped while the rest of the file loads, and a
+     *              file of another kind is rejected.
+     */
+    @Test
+    public void testDecode_SkipsCorruptRecordAndRejectsWrongKind() throws IOException {
+        List<String> logMessages = new ArrayList<>();
+        logMessages.add("\n--- TEST: testDecode_SkipsCorruptRecordAndRejectsWrongKind ---\n");
+
+        try {
+            Map<String, WeatherUpdate> stationUpdates = new LinkedHashMap<>();
+            stationUpdates.put("IDS1", update(CONTENT_SERVER, "IDS1", 1, LARGE_LAMPORT_TIMESTAMP + 1));
+            stationUpdates.put("IDS2", update(CONTENT_SERVER, "IDS2", 2, LARGE_LAMPORT_TIMESTAMP + 2));
+            byte[] encoded = WeatherRecordCodec.encodeStationUpdates(stationUpdates);
+
+            // The last byte belongs to the value of the second record's last field
+            encoded[encoded.length - 1] ^= 0x01;
+            WeatherRecordCodec.Contents contents = WeatherRecordCodec.decode(encoded, WeatherRecordCodec.KIND_STATION_UPDATES);
+            assertEquals(1, contents.corruptRecords);
+            assertEquals(1, contents.updates.size());
+            assertSameUpdate(stationUpdates.get("IDS1"), contents.updates.get(0));
+
+            try {
+                WeatherRecordCodec.decodeHistory(encoded);
+                fail("Expected a station file to be rejected as a history");
+            } catch (IOException expected) {
+                logMessages.add("Rejected wrong kind: " + expected.getMessage() + "\n");
+            }
+            logMessages.add("Test passed: Corrupt record skipped and wrong kind rejected.\n");
+        } catch (AssertionError e) {
+            logMessages.add("Test failed: " + e.getMessage() + "\n");
+            throw e;
+        } finally {
+            logMessages.forEach(System.out::println);
+        }
+    }
+
+    /**
+     * Test Name: testConvert_MigratesLegacyFilesAndRejectsOtherClasses
+     * Description: Histories, newest-first lists and station maps written with Java
+     *              serialization are converted in place, and a file holding any other class
+     *              is left alone without being deserialized.
+     */
+    @Test
+    public void testConvert_MigratesLegacyFilesAndRejectsOtherClasses() throws IOException {
+        List<String> logMessages = new ArrayList<>();
+        logMessages.add("\n--- TEST: testConvert_MigratesLegacyFilesAndRejectsOtherClasses ---\n");
+
+        Path directory = Files.createTempDirectory("weather-convert");
+        try {
+            WeatherUpdateHistory history = new WeatherUpdateHistory(20);
+            history.add(update(CONTENT_SERVER, "IDS1", 1, LARGE_LAMPORT_TIMESTAMP + 1));
+            history.add(update(CONTENT_SERVER, "IDS2", 2, LARGE_LAMPORT_TIMESTAMP + 2));
+            LinkedList<WeatherUpdate> newestFirst = new LinkedList<>();
+            newestFirst.add(update(CONTENT_SERVER, "IDS4", 4, LARGE_LAMPORT_TIMESTAMP + 4));
+            newestFirst.add(update(CONTENT_SERVER, "IDS3", 3, LARGE_LAMPORT_TIMESTAMP + 3));
+            Map<String, WeatherUpdate> stationUpdates = new LinkedHashMap<>();
+            stationUpdates.put("IDS1", update(CONTENT_SERVER, "IDS1", 1, LARGE_LAMPORT_TIMESTAMP + 1));
+
+            Path historyFile = writeLegacy(directory.resolve(UUID.randomUUID() + ".weather"), history);
+            Path listFile = writeLegacy(directory.resolve(UUID.randomUUID() + ".weather"), newestFirst);
+            Path stationFile = writeLegacy(directory.resolve("weatherUpdatesByStation.weather"), stationUpdates);
+            Path foreignFile = writeLegacy(directory.resolve(UUID.randomUUID() + ".weather"), new ArrayList<>(newestFirst));
+            long foreignSize = Files.size(foreignFile);
+
+            assertEquals(3, WeatherFileConverter.convertDirectory(directory));
+            assertEquals(0, WeatherFileConverter.convertDirectory(directory));
+
+            WeatherUpdateHistory convertedHistory = WeatherRecordCodec.decodeHistory(Files.readAllBytes(historyFile));
+            assertSameUpdate(history.latest(), convertedHistory.latest());
+            WeatherUpdateHistory convertedList = WeatherRecordCodec.decodeHistory(Files.readAllBytes(listFile));
+            assertEquals(4, convertedList.latest().sequenceNumber);
+            assertEquals(2, convertedList.size());
+            Map<String, WeatherUpdate> convertedStations = MappedStationSnapshot.load(stationFile);
+            assertSameUpdate(stationUpdates.get("IDS1"), convertedStations.get("IDS1"));
+            assertFalse(WeatherRecordCodec.isEncoded(Files.readAllBytes(foreignFile)));
+            assertEquals(foreignSize, Files.size(foreignFile));
+            logMessages.add("Test passed: Legacy files were converted and a foreign class was refused.\n");
+        } catch (AssertionError e) {
+            logMessages.add("Test failed: " + e.getMessage() + "\n");
+            throw e;
+        } finally {
+            try (Stream<Path> files = Files.list(directory)) {
+                files.forEach(file -> file.toFile().delete());
+            }
+            Files.deleteIfExists(directory);
+            logMessages.forEach(System.out::println);
+        }
+    }
+
+    private static Path writeLegacy(Path file, Object data) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(data);
+        }
+        return Files.write(file, bytes.toByteArray());
+    }
+}
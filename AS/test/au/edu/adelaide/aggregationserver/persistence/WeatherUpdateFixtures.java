@@ -0,0 +1,42 @@
+package au.edu.adelaide.aggregationserver.persistence;
+
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.util.UUID;
+
+import au.edu.adelaide.aggregationserver.data.WeatherUpdate;
+import util.JSONObject;
+
+/**
+ * Builds the weather updates the persistence tests write and read back.
+ */
+final class WeatherUpdateFixtures {
+
+    // Lamport times from here on no longer fit in an int
+    static final long LARGE_LAMPORT_TIMESTAMP = 5000000000L;
+
+    private WeatherUpdateFixtures() {
+    }
+
+    /**
+     * Builds an update whose Lamport time equals its sequence number.
+     */
+    static WeatherUpdate update(UUID contentServerUUID, String weatherStationId, long sequenceNumber) {
+        return update(contentServerUUID, weatherStationId, sequenceNumber, sequenceNumber);
+    }
+
+    /**
+     * Builds an update holding both raw and quoted values, timestamped by its sequence number.
+     */
+    static WeatherUpdate update(UUID contentServerUUID, String weatherStationId, long sequenceNumber, long lamportTimestamp) {
+        JSONObject weatherData = new JSONObject();
+        weatherData.putString("id", weatherStationId);
+        weatherData.putString("name", "Adelaide (West Terrace / ngayirdapira)");
+        weatherData.putString("local_date_time_full", "20230715160000");
+        weatherData.putRaw("air_temp", "13.3");
+        weatherData.putString("rel_hum", "60");
+        ZonedDateTime timestamp = ZonedDateTime.ofInstant(Instant.ofEpochMilli(1689400800000L + sequenceNumber), ZoneId.of("UTC"));
+        return new WeatherUpdate(contentServerUUID, weatherData, timestamp, sequenceNumber, lamportTimestamp);
+    }
+}
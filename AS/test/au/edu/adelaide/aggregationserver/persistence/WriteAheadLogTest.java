@@ -0,0 +1,415 @@
+package au.edu.adelaide.aggregationserver.persistence;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import au.edu.adelaide.aggregationserver.data.WeatherUpdate;
+
+import static au.edu.adelaide.aggregationserver.persistence.WeatherUpdateFixtures.*;
+import static org.junit.Assert.*;
+
+public class WriteAheadLogTest {
+
+    private static final UUID FIRST = UUID.randomUUID();
+    private static final UUID SECOND = UUID.randomUUID();
+
+    private Path directory;
+
+    /**
+     * Collects the records found while replaying a log.
+     */
+    private static class RecordingHandler implements WriteAheadLog.RecordHandler {
+        final List<WeatherUpdate> updates = new ArrayList<>();
+        final List<UUID> removals = new ArrayList<>();
+
+        @Override
+        public void onUpdate(WeatherUpdate weatherUpdate) {
+            updates.add(weatherUpdate);
+        }
+
+        @Override
+        public void onContentServerRemoved(long sequenceNumber, UUID contentServerUUID) {
+            removals.add(contentServerUUID);
+        }
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("wal");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+        }
+    }
+
+    private WriteAheadLog openLog() throws IOException {
+        return openLog(WriteAheadLog.FsyncPolicy.PER_REQUEST, 0);
+    }
+
+    private WriteAheadLog openLog(WriteAheadLog.FsyncPolicy fsyncPolicy, long batchIntervalMillis) throws IOException {
+        WriteAheadLog log = WriteAheadLog.open(directory.toString(), fsyncPolicy, batchIntervalMillis);
+        log.replay(new RecordingHandler());
+        log.startNewSegment();
+        return log;
+    }
+
+    private RecordingHandler replay() throws IOException {
+        RecordingHandler handler = new RecordingHandler();
+        WriteAheadLog log = WriteAheadLog.open(directory.toString(), WriteAheadLog.FsyncPolicy.PER_REQUEST, 0);
+        try {
+            log.replay(handler);
+        } finally {
+            log.close();
+        }
+        return handler;
+    }
+
+    private List<Path> segments() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(file -> file.getFileName().toString().endsWith(".log")).sorted().collect(Collectors.toList());
+        }
+    }
+
+    /**
+     * Test Name: testReplay_ReturnsAppendedRecordsInOrder
+     * Description: Updates and content server removals appended to the log are replayed in the
+     *              order they were appended, with their sequence numbers, Lamport timestamps and
+     *              member types intact.
+     */
+    @Test
+    public void testReplay_ReturnsAppendedRecordsInOrder() throws Exception {
+        List<String> logMessages = new ArrayList<>();
+        logMessages.add("\n--- TEST: testReplay_ReturnsAppendedRecordsInOrder ---\n");
+
+        try {
+            WriteAheadLog log = openLog();
+            WeatherUpdate first = update(FIRST, "IDS60901", 13);
+            WeatherUpdate second = update(SECOND, "IDS60902", 14);
+            WriteAheadLog.awaitDurable(log.appendUpdate(first));
+            WriteAheadLog.awaitDurable(log.appendUpdate(second));
+            WriteAheadLog.awaitDurable(log.appendContentServerRemoval(FIRST));
+            log.close();
+            assertEquals(1, first.sequenceNumber);
+            assertEquals(2, second.sequenceNumber);
+
+            RecordingHandler handler = replay();
+            logMessages.add("Replayed " + handler.updates.size() + " update(s) and " + handler.removals.size() + " removal(s)");
+            assertEquals(2, handler.updates.size());
+            assertEquals(FIRST, handler.updates.get(0).contentServerUUID);
+            assertEquals(1, handler.updates.get(0).sequenceNumber);
+            assertEquals(13, handler.updates.get(0).lamportTimestamp);
+            assertEquals("IDS60902", handler.updates.get(1).getWeatherData().get("id"));
+            assertEquals(first.timestamp.toInstant(), handler.updates.get(0).timestamp.toInstant());
+            assertTrue(handler.updates.get(1).getWeatherData().isRaw("air_temp"));
+            assertFalse(handler.updates.get(1).getWeatherData().isRaw("id"));
+            assertEquals(1, handler.removals.size());
+            assertEquals(FIRST, handler.removals.get(0));
+
+            log = openLog();
+            WeatherUpdate third = update(FIRST, "IDS60901", 15);
+            WriteAheadLog.awaitDurable(log.appendUpdate(third));
+            log.close();
+            logMessages.add("Sequence number after reopening: " + third.sequenceNumber);
+            assertEquals(4, third.sequenceNumber);
+            logMessages.add("Test passed: Appended records were replayed in order.\n");
+        } catch (AssertionError e) {
+            logMessages.add("Test failed: " + e.getMessage() + "\n");
+            throw e;
+        } finally {
+            logMessages.forEach(System.out::println);
+        }
+    }
+
+    /**
+     * Test Name: testReplay_StopsAtTornTail
+     * Description: A record cut short by a crash, or one whose bytes were damaged, ends the
+     *              replay of its segment without losing the records before it, and records
+     *              written to the next segment after a restart are still replayed.
+     */
+    @Test
+    public void testReplay_StopsAtTornTail() throws Exception {
+        List<String> logMessages = new ArrayList<>();
+        logMessages.add("\n--- TEST: testReplay_StopsAtTornTail ---\n");
+
+        try {
+            WriteAheadLog log = openLog();
+            WriteAheadLog.awaitDurable(log.appendUpdate(update(FIRST, "IDS60901", 13)));
+            WriteAheadLog.awaitDurable(log.appendUpdate(update(FIRST, "IDS60901", 14)));
+            log.close();
+
+            Path segment = segments().get(0);
+            long completeLength = Files.size(segment);
+            WriteAheadLog.awaitDurable(reopenAndAppend(update(FIRST, "IDS60901", 15)));
+            Path secondSegment = segments().get(1);
+            byte[] record = Files.readAllBytes(secondSegment);
+            Files.delete(secondSegment);
+            // Only part of the third record reached the first segment before the crash
+            Files.write(segment, Arrays.copyOf(record, record.length / 2), StandardOpenOption.APPEND);
+            logMessages.add("Segment grew from " + completeLength + " to " + Files.size(segment) + " bytes");
+
+            RecordingHandler handler = replay();
+            assertEquals(2, handler.updates.size());
+            assertEquals(14, handler.updates.get(1).lamportTimestamp);
+
+            log = openLog();
+            WriteAheadLog.awaitDurable(log.appendUpdate(update(SECOND, "IDS60902", 16)));
+            log.close();
+            handler = replay();
+            logMessages.add("Replayed after restart: " + handler.updates.size() + " update(s)");
+            assertEquals(3, handler.updates.size());
+            assertEquals(SECOND, handler.updates.get(2).contentServerUUID);
+
+            // A flipped byte inside a complete record fails its checksum
+            byte[] bytes = Files.readAllBytes(segment);
+            bytes[(int) completeLength - 1] ^= 0x55;
+            Files.write(segment, bytes);
+            handler = replay();
+            logMessages.add("Replayed after corrupting the second record: " + handler.updates.size() + " update(s)");
+            assertEquals(2, handler.updates.size());
+            assertEquals(13, handler.updates.get(0).lamportTimestamp);
+            assertEquals(SECOND, handler.updates.get(1).contentServerUUID);
+            logMessages.add("Test passed: Replay stopped at the damaged tail and kept the later segment.\n");
+        } catch (AssertionError e) {
+            logMessages.add("Test failed: " + e.getMessage() + "\n");
+            throw e;
+        } finally {
+            logMessages.forEach(System.out::println);
+        }
+    }
+
+    private CompletableFuture<Void> reopenAndAppend(WeatherUpdate weatherUpdate) throws IOException {
+        WriteAheadLog log = openLog();
+        try {
+            return log.appendUpdate(weatherUpdate);
+        } finally {
+            log.close();
+        }
+    }
+
+    /**
+     * Test Name: testCheckpoint_DeletesCoveredSegments
+     * Description: After a checkpoint the segments it covers are deleted and only records
+     *              appended after the roll are replayed, while sequence numbers keep counting up.
+     */
+    @Test
+    public void testCheckpoint_DeletesCoveredSegments() throws Exception {
+        List<String> logMessages = new ArrayList<>();
+        logMessages.add("\n--- TEST: testCheckpoint_DeletesCoveredSegments ---\n");
+
+        try {
+            WriteAheadLog log = openLog();
+            WriteAheadLog.awaitDurable(log.appendUpdate(update(FIRST, "IDS60901", 13)));
+            WriteAheadLog.awaitDurable(log.appendUpdate(update(FIRST, "IDS60901", 14)));
+            long firstNeededSegment = log.rollSegment();
+            WriteAheadLog.awaitDurable(log.appendUpdate(update(SECOND, "IDS60902", 15)));
+            assertEquals(2, segments().size());
+
+            log.checkpoint(firstNeededSegment);
+            logMessages.add("Segments after checkpoint: " + segments());
+            assertEquals(1, segments().size());
+            log.close();
+
+            RecordingHandler handler = replay();
+            assertEquals(1, handler.updates.size());
+            assertEquals(3, handler.updates.get(0).sequenceNumber);
+
+            log = openLog();
+            WeatherUpdate next = update(SECOND, "IDS60902", 16);
+            WriteAheadLog.awaitDurable(log.appendUpdate(next));
+            log.close();
+            assertEquals(4, next.sequenceNumber);
+            logMessages.add("Test passed: The checkpoint truncated the log and kept the sequence.\n");
+        } catch (AssertionError e) {
+            logMessages.add("Test failed: " + e.getMessage() + "\n");
+            throw e;
+        } finally {
+            logMessages.forEach(System.out::println);
+        }
+    }
+
+    /**
+     * Test Name: testCheckpoint_OverlappingSnapshotsNeverMoveBack
+     * Description: Two snapshots roll the log one after the other and checkpoint in the opposite
+     *              order, several times over from competing threads. The later checkpoint wins,
+     *              the earlier one neither moves it back nor fails on the shared temporary file,
+     *              and only the records after the later roll are replayed.
+     */
+    @Test
+    public void testCheckpoint_OverlappingSnapshotsNeverMoveBack() throws Exception {
+        List<String> logMessages = new ArrayList<>();
+        logMessages.add("\n--- TEST: testCheckpoint_OverlappingSnapshotsNeverMoveBack ---\n");
+
+        try {
+            WriteAheadLog log = openLog();
+            WriteAheadLog.awaitDurable(log.appendUpdate(update(FIRST, "IDS60901", 13)));
+            long firstSnapshot = log.rollSegment();
+            WriteAheadLog.awaitDurable(log.appendUpdate(update(FIRST, "IDS60901", 14)));
+            long secondSnapshot = log.rollSegment();
+            WriteAheadLog.awaitDurable(log.appendUpdate(update(SECOND, "IDS60902", 15)));
+
+            log.checkpoint(secondSnapshot);
+            List<CompletableFuture<Void>> checkpoints = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                long segment = i % 2 == 0 ? firstSnapshot : secondSnapshot;
+                checkpoints.add(CompletableFuture.runAsync(() -> {
+                    try {
+                        log.checkpoint(segment);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }));
+            }
+            CompletableFuture.allOf(checkpoints.toArray(new CompletableFuture<?>[0])).get(5, TimeUnit.SECONDS);
+            logMessages.add("Segments after checkpoints: " + segments());
+            assertEquals(1, segments().size());
+            long checkpointSegment = ByteBuffer.wrap(Files.readAllBytes(directory.resolve("checkpoint"))).getLong();
+            logMessages.add("Checkpointed segment: " + checkpointSegment);
+            assertEquals(secondSnapshot, checkpointSegment);
+            log.close();
+
+            RecordingHandler handler = replay();
+            assertEquals(1, handler.updates.size());
+            assertEquals(15, handler.updates.get(0).lamportTimestamp);
+            logMessages.add("Test passed: The older checkpoint was ignored.\n");
+        } catch (AssertionError e) {
+            logMessages.add("Test failed: " + e.getMessage() + "\n");
+            throw e;
+        } finally {
+            logMessages.forEach(System.out::println);
+        }
+    }
+
+    /**
+     * Test Name: testAppend_ConcurrentAppendsShareOneBatch
+     * Description: Updates appended by several threads while a batch is open are written by
+     *              the same group commit, so they all wait on the same future and become durable
+     *              together.
+     */
+    @Test
+    public void testAppend_ConcurrentAppendsShareOneBatch() throws Exception {
+        List<String> logMessages = new ArrayList<>();
+        logMessages.add("\n--- TEST: testAppend_ConcurrentAppendsShareOneBatch ---\n");
+
+        WriteAheadLog log = openLog(WriteAheadLog.FsyncPolicy.BATCHED, 500);
+        try {
+            int threads = 8;
+            List<CompletableFuture<Void>> futures = new ArrayList<>();
+            CountDownLatch start = new CountDownLatch(1);
+            List<Thread> appenders = new ArrayList<>();
+            for (int i = 0; i < threads; i++) {
+                int airTemp = i;
+                Thread appender = new Thread(() -> {
+                    try {
+                        start.await();
+                        CompletableFuture<Void> durable = log.appendUpdate(update(airTemp % 2 == 0 ? FIRST : SECOND, "IDS6090" + airTemp, airTemp));
+                        synchronized (futures) {
+                            futures.add(durable);
+                        }
+                    } catch (Exception e) {
+                        throw new RuntimeException(e);
+                    }
+                });
+                appender.start();
+                appenders.add(appender);
+            }
+            start.countDown();
+            for (Thread appender : appenders) {
+                appender.join();
+            }
+
+            assertEquals(threads, futures.size());
+            for (CompletableFuture<Void> durable : futures) {
+                assertSame(futures.get(0), durable);
+            }
+            WriteAheadLog.awaitDurable(futures.get(0));
+            log.close();
+
+            RecordingHandler handler = replay();
+            logMessages.add("Replayed " + handler.updates.size() + " update(s) from one batch");
+            assertEquals(threads, handler.updates.size());
+            logMessages.add("Test passed: Concurrent appends shared one group commit.\n");
+        } catch (AssertionError e) {
+            logMessages.add("Test failed: " + e.getMessage() + "\n");
+            throw e;
+        } finally {
+            log.close();
+            logMessages.forEach(System.out::println);
+        }
+    }
+
+    /**
+     * Test Name: testFsyncPolicy_BatchedWaitsForIntervalOthersDoNot
+     * Description: Under the batched policy a record only becomes durable once its batch has
+     *              gathered records for the batch interval; under the per-request and OS
+     *              policies each batch is written as soon as it has a record. A negative batch
+     *              interval is rejected.
+     */
+    @Test
+    public void testFsyncPolicy_BatchedWaitsForIntervalOthersDoNot() throws Exception {
+        List<String> logMessages = new ArrayList<>();
+        logMessages.add("\n--- TEST: testFsyncPolicy_BatchedWaitsForIntervalOthersDoNot ---\n");
+
+        try {
+            WriteAheadLog log = openLog(WriteAheadLog.FsyncPolicy.BATCHED, 300);
+            long started = System.nanoTime();
+            CompletableFuture<Void> durable = log.appendUpdate(update(FIRST, "IDS60901", 13));
+            assertFalse(durable.isDone());
+            WriteAheadLog.awaitDurable(durable);
+            long batchedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started);
+            log.close();
+            logMessages.add("Batched record durable after " + batchedMillis + " ms");
+            assertTrue(batchedMillis >= 250);
+
+            for (WriteAheadLog.FsyncPolicy fsyncPolicy : new WriteAheadLog.FsyncPolicy[] {
+                    WriteAheadLog.FsyncPolicy.PER_REQUEST, WriteAheadLog.FsyncPolicy.OS }) {
+                // The interval only applies to batched commits
+                log = openLog(fsyncPolicy, 5000);
+                started = System.nanoTime();
+                CompletableFuture<Void> first = log.appendUpdate(update(FIRST, "IDS60901", 14));
+                WriteAheadLog.awaitDurable(first);
+                CompletableFuture<Void> second = log.appendUpdate(update(FIRST, "IDS60901", 15));
+                WriteAheadLog.awaitDurable(second);
+                long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started);
+                log.close();
+                logMessages.add(fsyncPolicy + " records durable after " + elapsedMillis + " ms");
+                assertNotSame(first, second);
+                assertTrue(elapsedMillis < 5000);
+            }
+            assertEquals(5, replay().updates.size());
+
+            try {
+                WriteAheadLog.open(directory.toString(), WriteAheadLog.FsyncPolicy.BATCHED, -1);
+                fail("Expected a negative batch interval to be rejected");
+            } catch (IllegalArgumentException e) {
+                logMessages.add("Rejected: " + e.getMessage());
+            }
+            logMessages.add("Test passed: Each fsync policy committed its batches when expected.\n");
+        } catch (AssertionError e) {
+            logMessages.add("Test failed: " + e.getMessage() + "\n");
+            throw e;
+        } finally {
+            logMessages.forEach(System.out::println);
+        }
+    }
+}
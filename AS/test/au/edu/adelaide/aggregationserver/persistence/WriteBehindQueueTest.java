@@ -0,0 +1,116 @@
+package au.edu.adelaide.aggregationserver.persistence;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class WriteBehindQueueTest {
+
+    private static final UUID FIRST = UUID.randomUUID();
+    private static final UUID SECOND = UUID.randomUUID();
+
+    /**
+     * Test Name: testEnqueue_CoalescesUpdatesIntoOneFlush
+     * Description: Updates queued within one flush interval are written by a single flush, and
+     *              the files the flush reports writing, one per content server and one station
+     *              shard, are counted against them.
+     */
+    @Test
+    public void testEnqueue_CoalescesUpdatesIntoOneFlush() throws Exception {
+        List<String> logMessages = new ArrayList<>();
+        logMessages.add("\n--- TEST: testEnqueue_CoalescesUpdatesIntoOneFlush ---\n");
+
+        AtomicInteger flushes = new AtomicInteger();
+        WriteBehindQueue queue = new WriteBehindQueue(100, 200, () -> {
+            flushes.incrementAndGet();
+            return 3;
+        });
+        try {
+            for (int i = 0; i < 30; i++) {
+                queue.enqueue(Collections.singleton(i % 2 == 0 ? FIRST : SECOND), 1);
+            }
+            assertEquals(30, queue.metrics().queueDepth);
+            queue.close();
+
+            WriteBehindQueue.Metrics metrics = queue.metrics();
+            logMessages.add("Flushes: " + metrics.flushes + ", files written: " + metrics.filesWritten
+                    + ", coalescing ratio: " + metrics.coalescingRatio + ", flush lag: " + metrics.lastFlushLagMillis + " ms");
+            assertEquals(1, flushes.get());
+            assertEquals(1, metrics.flushes);
+            assertEquals(0, metrics.queueDepth);
+            assertEquals(30, metrics.enqueuedUpdates);
+            assertEquals(3, metrics.filesWritten);
+            assertEquals(10.0, metrics.coalescingRatio, 0.001);
+            assertTrue(metrics.lastFlushLagMillis >= 0);
+            logMessages.add("Test passed: 30 updates were coalesced into one flush of 3 files.\n");
+        } catch (AssertionError e) {
+            logMessages.add("Test failed: " + e.getMessage() + "\n");
+            throw e;
+        } finally {
+            queue.close();
+            logMessages.forEach(System.out::println);
+        }
+    }
+
+    /**
+     * Test Name: testEnqueue_RejectsUpdatesWhileQueueIsFull
+     * Description: While the writer is held up, updates beyond the queue's capacity are rejected,
+     *              and are accepted again once the writer has caught up.
+     */
+    @Test
+    public void testEnqueue_RejectsUpdatesWhileQueueIsFull() throws Exception {
+        List<String> logMessages = new ArrayList<>();
+        logMessages.add("\n--- TEST: testEnqueue_RejectsUpdatesWhileQueueIsFull ---\n");
+
+        CountDownLatch flushStarted = new CountDownLatch(1);
+        CountDownLatch releaseFlush = new CountDownLatch(1);
+        WriteBehindQueue queue = new WriteBehindQueue(4, 10, () -> {
+            flushStarted.countDown();
+            try {
+                releaseFlush.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return 1;
+        });
+        try {
+            queue.enqueue(Collections.singleton(FIRST), 4);
+            assertTrue(flushStarted.await(5, TimeUnit.SECONDS));
+            try {
+                queue.enqueue(Collections.singleton(SECOND), 1);
+                fail("Expected the update to be rejected while the queue is full");
+            } catch (WriteBehindQueue.QueueFullException e) {
+                logMessages.add("Rejected: " + e.getMessage());
+            }
+
+            releaseFlush.countDown();
+            long deadline = System.currentTimeMillis() + 5000;
+            while (queue.metrics().queueDepth > 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            queue.enqueue(Collections.singleton(SECOND), 1);
+            queue.close();
+
+            WriteBehindQueue.Metrics metrics = queue.metrics();
+            assertEquals(1, metrics.rejectedUpdates);
+            assertEquals(5, metrics.enqueuedUpdates);
+            assertEquals(0, metrics.queueDepth);
+            logMessages.add("Test passed: The full queue pushed back until the writer caught up.\n");
+        } catch (AssertionError e) {
+            logMessages.add("Test failed: " + e.getMessage() + "\n");
+            throw e;
+        } finally {
+            releaseFlush.countDown();
+            queue.close();
+            logMessages.forEach(System.out::println);
+        }
+    }
+}
@@ -0,0 +1,257 @@
+package au.edu.adelaide.aggregationserver.requesthandlers;
+
+import static au.edu.adelaide.aggregationserver.AggregationServerConstants.INTERNAL_SERVER_ERROR_STATUS_CODE;
+import static au.edu.adelaide.aggregationserver.AggregationServerConstants.INVALID_WEATHER_DATA_STATUS_CODE;
+import static au.edu.adelaide.aggregationserver.AggregationServerConstants.OK_STATUS_CODE;
+import static au.edu.adelaide.aggregationserver.AggregationServerConstants.SUPERSEDED_UPDATE_STATUS_CODE;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+
+import au.edu.adelaide.aggregationserver.AggregationServer;
+import au.edu.adelaide.aggregationserver.DataManager;
+import au.edu.adelaide.aggregationserver.data.AggregatedWeatherUpdates;
+import au.edu.adelaide.aggregationserver.data.WeatherUpdate;
+import au.edu.adelaide.aggregationserver.persistence.SnapshotRecovery;
+import http.HTTPServer.ExecutionMode;
+import http.messages.HTTPRequest;
+import util.JSONObject;
+
+import static org.junit.Assert.*;
+
+public class HTTPRequestHandlerTest {
+
+    private static final int READ_TIMEOUT_MS = 5000;
+
+    private ServerSocketChannel serverChannel;
+    private AggregationServer aggregationServer;
+    private HTTPRequestHandler handler;
+
+    /**
+     * Keeps updates in memory only, applying them as soon as they are recorded, so the
+     * handler can be tested without touching the data directory.
+     */
+    private static class InMemoryDataManager extends DataManager {
+        @Override
+        public SnapshotRecovery.Report loadDataForAggregationServer(AggregatedWeatherUpdates aggregatedWeatherUpdates) {
+            return null;
+        }
+
+        @Override
+        public void startCleanupScheduler(AggregatedWeatherUpdates aggregatedWeatherUpdates) {}
+
+        @Override
+        public void startSnapshotScheduler(AggregatedWeatherUpdates aggregatedWeatherUpdates) {}
+
+        @Override
+        public CompletableFuture<Void> recordUpdatesAsync(AggregatedWeatherUpdates aggregatedWeatherUpdates, List<WeatherUpdate> weatherUpdates) {
+            for (WeatherUpdate weatherUpdate : weatherUpdates) {
+                aggregatedWeatherUpdates.addUpdate(weatherUpdate, weatherUpdate.weatherStationId);
+            }
+            return CompletableFuture.completedFuture(null);
+        }
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress("localhost", 0));
+        aggregationServer = new AggregationServer(new InMemoryDataManager());
+        handler = new HTTPRequestHandler(serverChannel.socket(), aggregationServer, ExecutionMode.SELECTOR, 2);
+        Thread serverThread = new Thread(handler::run);
+        serverThread.setDaemon(true);
+        serverThread.start();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        handler.close();
+    }
+
+    private static WeatherUpdate update(String weatherStationId, String airTemp) {
+        JSONObject weatherData = new JSONObject();
+        weatherData.putString("id", weatherStationId);
+        weatherData.putRaw("air_temp", airTemp);
+        return new WeatherUpdate(UUID.randomUUID(), weatherData, ZonedDateTime.now(ZoneId.of("UTC")), 1);
+    }
+
+    private static HTTPRequest request(String method, String uri) {
+        HTTPRequest httpRequest = new HTTPRequest();
+        httpRequest.setRequestLine(method, uri, "HTTP/1.1");
+        return httpRequest;
+    }
+
+    private static String observation(String weatherStationId, String airTemp) {
+        return "{\"id\": \"" + weatherStationId + "\", \"local_date_time_full\": \"20230715160000\", "
+               + "\"time_zone\": \"CST\", \"air_temp\": " + airTemp + "}";
+    }
+
+    private static HTTPRequest batchRequest(String contentType, String body) {
+        HTTPRequest httpRequest = request("PUT", "/data/" + UUID.randomUUID());
+        httpRequest.setHeader("Timestamp", "1");
+        httpRequest.setHeader("Content-Type", contentType);
+        httpRequest.setBody(body);
+        return httpRequest;
+    }
+
+    /**
+     * Reads the status of each observation from a batch PUT response.
+     */
+    private static List<String> itemStatuses(String response) {
+        List<String> statuses = new ArrayList<>();
+        for (JSONObject itemStatus : JSONObject.parseArray(response.substring(response.indexOf("\r\n\r\n") + 4))) {
+            statuses.add(itemStatus.get("status"));
+        }
+        return statuses;
+    }
+
+    private Socket connect() throws IOException {
+        Socket socket = new Socket("localhost", serverChannel.socket().getLocalPort());
+        socket.setSoTimeout(READ_TIMEOUT_MS);
+        return socket;
+    }
+
+    /**
+     * Reads until the server closes the connection.
+     */
+    private static String readUntilClosed(Socket socket) throws IOException {
+        ByteArrayOutputStream received = new ByteArrayOutputStream();
+        InputStream in = socket.getInputStream();
+        byte[] buffer = new byte[1024];
+        for (int read = in.read(buffer); read != -1; read = in.read(buffer)) {
+            received.write(buffer, 0, read);
+        }
+        return received.toString(StandardCharsets.UTF_8.name());
+    }
+
+    /**
+     * Test Name: testSubscribe_AnsweredWhenUpdateArrives
+     * Description: A subscription to a station without data is left waiting, and is answered
+     *              with the station's update as soon as one is accepted.
+     */
+    @Test
+    public void testSubscribe_AnsweredWhenUpdateArrives() throws Exception {
+        List<String> logMessages = new ArrayList<>();
+        logMessages.add("\n--- TEST: testSubscribe_AnsweredWhenUpdateArrives ---\n");
+
+        try (Socket socket = connect()) {
+            socket.getOutputStream().write("GET /subscribe/IDS60901 HTTP/1.1\r\nConnection: close\r\n\r\n".getBytes(StandardCharsets.UTF_8));
+            socket.getOutputStream().flush();
+            Thread.sleep(300);
+            assertEquals("Subscription was answered before any update arrived", 0, socket.getInputStream().available());
+
+            aggregationServer.addWeatherUpdatesAsync(Collections.singletonList(update("IDS60901", "13.3"))).join();
+
+            String response = readUntilClosed(socket);
+            logMessages.add("Received:\n" + response);
+            assertTrue(response.startsWith("HTTP/1.1 200 OK"));
+            assertTrue(response.contains("\"IDS60901\""));
+            assertTrue(response.contains("13.3"));
+            logMessages.add("Test passed: The subscription was answered with the new update.\n");
+        } catch (AssertionError e) {
+            logMessages.add("Test failed: " + e.getMessage() + "\n");
+            throw e;
+        } finally {
+            logMessages.forEach(System.out::println);
+        }
+    }
+
+    /**
+     * Test Name: testSubscribe_RejectedOnBlockingPath
+     * Description: A subscription handed to the blocking handleGETRequest is answered with an
+     *              error at once instead of holding the calling thread until it times out.
+     */
+    @Test
+    public void testSubscribe_RejectedOnBlockingPath() {
+        List<String> logMessages = new ArrayList<>();
+        logMessages.add("\n--- TEST: testSubscribe_RejectedOnBlockingPath ---\n");
+
+        try {
+            long start = System.nanoTime();
+            String response = handler.handleGETRequest(request("GET", "/subscribe/IDS60901"));
+            long elapsedMillis = (System.nanoTime() - start) / 1_000_000;
+            logMessages.add("Answered in " + elapsedMillis + " ms:\n" + response);
+            assertTrue(response.startsWith("HTTP/1.1 " + INTERNAL_SERVER_ERROR_STATUS_CODE));
+            assertTrue("Blocking subscription waited " + elapsedMillis + " ms", elapsedMillis < 1000);
+            logMessages.add("Test passed: The blocking path rejected the subscription.\n");
+        } catch (AssertionError e) {
+            logMessages.add("Test failed: " + e.getMessage() + "\n");
+            throw e;
+        } finally {
+            logMessages.forEach(System.out::println);
+        }
+    }
+
+    /**
+     * Test Name: testBatchPUT_JSONArrayResolvesDuplicates
+     * Description: A JSON array batch holding two observations of one station applies only the
+     *              last of them and reports the earlier one as superseded, while an observation
+     *              without a time is reported invalid without stopping the rest of the batch.
+     */
+    @Test
+    public void testBatchPUT_JSONArrayResolvesDuplicates() {
+        List<String> logMessages = new ArrayList<>();
+        logMessages.add("\n--- TEST: testBatchPUT_JSONArrayResolvesDuplicates ---\n");
+
+        String body = "[\n" + observation("IDS1", "13.1") + ",\n" + observation("IDS2", "9.0") + ",\n"
+                      + observation("IDS1", "14.2") + ",\n{\"id\": \"IDS3\", \"time_zone\": \"CST\"}\n]";
+        try {
+            String response = handler.handlePUTRequest(batchRequest("application/json", body));
+            logMessages.add("Received:\n" + response);
+            assertEquals(Arrays.asList(SUPERSEDED_UPDATE_STATUS_CODE, OK_STATUS_CODE, OK_STATUS_CODE, INVALID_WEATHER_DATA_STATUS_CODE),
+                         itemStatuses(response));
+            assertTrue(aggregationServer.getMostRecentUpdateJson("IDS1").contains("14.2"));
+            assertTrue(aggregationServer.getMostRecentUpdateJson("IDS2").contains("9.0"));
+            assertFalse(aggregationServer.getStationsByContentServer().values().iterator().next().contains("IDS3"));
+            logMessages.add("Test passed: The last observation of each station was applied.\n");
+        } catch (AssertionError e) {
+            logMessages.add("Test failed: " + e.getMessage() + "\n");
+            throw e;
+        } finally {
+            logMessages.forEach(System.out::println);
+        }
+    }
+
+    /**
+     * Test Name: testBatchPUT_NDJSONReportsMalformedLine
+     * Description: A newline-delimited batch reports a line which is not JSON as invalid, and
+     *              applies the last of two observations of one station around it.
+     */
+    @Test
+    public void testBatchPUT_NDJSONReportsMalformedLine() {
+        List<String> logMessages = new ArrayList<>();
+        logMessages.add("\n--- TEST: testBatchPUT_NDJSONReportsMalformedLine ---\n");
+
+        String body = observation("IDS4", "20.5") + "\n{\"id\": \"IDS4\", \"air_temp\": \n" + observation("IDS4", "21.0") + "\n";
+        try {
+            String response = handler.handlePUTRequest(batchRequest("application/x-ndjson", body));
+            logMessages.add("Received:\n" + response);
+            assertEquals(Arrays.asList(SUPERSEDED_UPDATE_STATUS_CODE, INVALID_WEATHER_DATA_STATUS_CODE, OK_STATUS_CODE),
+                         itemStatuses(response));
+            assertTrue(aggregationServer.getMostRecentUpdateJson("IDS4").contains("21.0"));
+            logMessages.add("Test passed: The malformed line was reported and the last observation applied.\n");
+        } catch (AssertionError e) {
+            logMessages.add("Test failed: " + e.getMessage() + "\n");
+            throw e;
+        } finally {
+            logMessages.forEach(System.out::println);
+        }
+    }
+}
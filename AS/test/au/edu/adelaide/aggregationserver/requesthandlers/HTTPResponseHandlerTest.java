@@ -0,0 +1,98 @@
+package au.edu.adelaide.aggregationserver.requesthandlers;
+
+import static au.edu.adelaide.aggregationserver.AggregationServerConstants.NOT_MODIFIED_STATUS_CODE;
+import static au.edu.adelaide.aggregationserver.AggregationServerConstants.OK_STATUS_CODE;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+import au.edu.adelaide.aggregationserver.data.WeatherUpdate;
+import util.JSONObject;
+
+import static org.junit.Assert.*;
+
+public class HTTPResponseHandlerTest {
+
+    /**
+     * Test Name: testGetEncodedResponse_EncodedOnce
+     * Description: The GET response of an update is the full response for its data, and later
+     *              requests receive the same cached bytes.
+     */
+    @Test
+    public void testGetEncodedResponse_EncodedOnce() {
+        List<String> logMessages = new ArrayList<>();
+        logMessages.add("\n--- TEST: testGetEncodedResponse_EncodedOnce ---\n");
+
+        JSONObject weatherData = new JSONObject();
+        weatherData.put("id", "IDS60901");
+        weatherData.put("name", "Adelaide (West Terrace /  ngayirdapira)");
+        weatherData.put("air_temp", "13.3");
+        WeatherUpdate weatherUpdate = new WeatherUpdate(UUID.randomUUID(), weatherData, ZonedDateTime.now(ZoneId.of("UTC")), 1);
+        try {
+            byte[] encodedResponse = HTTPResponseHandler.getEncodedResponse(weatherUpdate);
+
+            String expected = HTTPResponseHandler.buildResponse(OK_STATUS_CODE, weatherData.toJSONString(),
+                                                                Collections.singletonMap("ETag", weatherUpdate.entityTag));
+            assertEquals(expected, new String(encodedResponse, StandardCharsets.UTF_8));
+            assertSame(encodedResponse, HTTPResponseHandler.getEncodedResponse(weatherUpdate));
+            logMessages.add("Test passed: Response was encoded once and reused.\n");
+        } catch (AssertionError e) {
+            logMessages.add("Test failed: " + e.getMessage() + "\n");
+            throw e;
+        } finally {
+            logMessages.forEach(System.out::println);
+        }
+    }
+
+    /**
+     * Test Name: testGetEncodedResponse_IfNoneMatch
+     * Description: A request naming the update's ETag gets a body-less 304, while a stale tag
+     *              gets the full response, and a new update gets a different ETag.
+     */
+    @Test
+    public void testGetEncodedResponse_IfNoneMatch() {
+        List<String> logMessages = new ArrayList<>();
+        logMessages.add("\n--- TEST: testGetEncodedResponse_IfNoneMatch ---\n");
+
+        JSONObject weatherData = new JSONObject();
+        weatherData.put("id", "IDS60901");
+        weatherData.put("air_temp", "13.3");
+        UUID contentServerUUID = UUID.randomUUID();
+        WeatherUpdate weatherUpdate = new WeatherUpdate(contentServerUUID, weatherData, ZonedDateTime.now(ZoneId.of("UTC")), 1, 7);
+        try {
+            byte[] encodedResponse = HTTPResponseHandler.getEncodedResponse(weatherUpdate, null);
+            String entityTag = weatherUpdate.entityTag;
+            assertTrue(entityTag.startsWith("\"7-") && entityTag.endsWith("\""));
+
+            String notModified = new String(HTTPResponseHandler.getEncodedResponse(weatherUpdate, entityTag), StandardCharsets.UTF_8);
+            assertEquals(HTTPResponseHandler.buildResponse(NOT_MODIFIED_STATUS_CODE, "", Collections.singletonMap("ETag", entityTag)),
+                         notModified);
+            assertTrue(notModified.contains("Content-Length: 0\r\n"));
+            assertSame(weatherUpdate.encodedNotModifiedResponse,
+                       HTTPResponseHandler.getEncodedResponse(weatherUpdate, "\"0-0\", W/" + entityTag));
+            assertSame(weatherUpdate.encodedNotModifiedResponse, HTTPResponseHandler.getEncodedResponse(weatherUpdate, "*"));
+            assertSame(encodedResponse, HTTPResponseHandler.getEncodedResponse(weatherUpdate, "\"0-0\""));
+
+            JSONObject newerData = new JSONObject();
+            newerData.put("id", "IDS60901");
+            newerData.put("air_temp", "14.1");
+            WeatherUpdate newerUpdate = new WeatherUpdate(contentServerUUID, newerData, ZonedDateTime.now(ZoneId.of("UTC")), 2, 7);
+            assertSame(HTTPResponseHandler.getEncodedResponse(newerUpdate),
+                       HTTPResponseHandler.getEncodedResponse(newerUpdate, entityTag));
+            assertNotEquals(entityTag, newerUpdate.entityTag);
+            logMessages.add("Test passed: If-None-Match was answered with 304 only for the current ETag.\n");
+        } catch (AssertionError e) {
+            logMessages.add("Test failed: " + e.getMessage() + "\n");
+            throw e;
+        } finally {
+            logMessages.forEach(System.out::println);
+        }
+    }
+}
@@ -2,21 +2,30 @@ package au.edu.adelaide.contentserver;
 
 import util.CLI;
 import http.HTTPClient;
+import http.messages.HTTPResponse;
+import util.HybridLogicalClock;
 import util.IOUtility;
+import util.JSONObject;
 
 import java.io.IOException;
 import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.UUID;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 import java.io.BufferedReader;
-import java.io.BufferedWriter;
-import java.io.OutputStreamWriter;
-import java.io.InputStreamReader;
 import java.io.Writer;
 
 import static au.edu.adelaide.contentserver.ContentServerConstants.*;
@@ -25,6 +34,8 @@ public class ContentServer extends HTTPClient {
     private UUID uuid;
     private IOUtility ioUtility;
     private ScheduledExecutorService heartbeatScheduler;
+    // Null when PUTs are sent without a timestamp
+    private HybridLogicalClock clock;
 
     public ContentServer(Socket socket, Writer out, BufferedReader in) throws IOException {
         super(socket, out, in);
@@ -32,15 +43,40 @@ public class ContentServer extends HTTPClient {
         ioUtility = new IOUtility();
     }
 
+    public ContentServer(Socket socket) throws IOException {
+        super(socket);
+        uuid = UUID.randomUUID();
+        ioUtility = new IOUtility();
+    }
+
+    /**
+     * Constructs a ContentServer which stamps each PUT with a hybrid logical clock, kept in step
+     * with the timestamps of the server's responses.
+     *
+     * @param socket The connected socket.
+     * @param clock  The clock PUTs are stamped with, or null to send them with timestamp 0.
+     * @throws IOException if the socket streams cannot be opened.
+     */
+    public ContentServer(Socket socket, HybridLogicalClock clock) throws IOException {
+        this(socket);
+        this.clock = clock;
+    }
+
     @Override
     protected String buildRequest(String request_file, String... payload_file) throws IOException {
         String request = ioUtility.readTxtFile(request_file);
         // Replace uuid
         request = request.replace("{{UUID}}", this.uuid.toString());
+        // Sending is a local event, so each request gets the next timestamp
+        if (request.contains("{{timestamp}}")) {
+            request = request.replace("{{timestamp}}", clock != null ? String.valueOf(clock.tick()) : "0");
+        }
         
         // Replace payload if provided
         if (payload_file.length > 0 && payload_file[0] != null) {
-            String payload = ioUtility.readTxtFile(payload_file[0]);
+            String payload = Files.isDirectory(Paths.get(payload_file[0]))
+                    ? buildBatchPayload(payload_file[0])
+                    : ioUtility.readTxtFile(payload_file[0]);
 
             // Replace date in weather data
             DateTimeFormatter dtf = DateTimeFormatter.ofPattern("yyyyMMddHHmmss");
@@ -48,19 +84,85 @@ public class ContentServer extends HTTPClient {
             payload = payload.replace("{{date}}", currentTime);
 
             // Replace payload length and payload in request
-            request = request.replace("{{payload_length}}", String.valueOf(payload.length()))
+            request = request.replace("{{payload_length}}", String.valueOf(payload.getBytes(StandardCharsets.UTF_8).length))
                         .replace("{{payload}}", payload);
         }
         
         return request;
     }
 
+    @Override
+    protected HTTPResponse handleResponse(HTTPResponse httpResponse) {
+        String timestamp = httpResponse.getHeader("Timestamp");
+        if (clock != null && timestamp != null) {
+            try {
+                clock.processReceivedTimestamp(Long.parseLong(timestamp));
+            } catch (NumberFormatException e) {
+                System.out.println("Ignoring invalid Timestamp header: " + timestamp);
+            }
+        }
+        return httpResponse;
+    }
+
+    /**
+     * Builds the body of a batch PUT holding every station file in a directory, as a JSON array
+     * with one object per file in file name order. Files that cannot be read as weather data
+     * are skipped.
+     *
+     * @param directory The directory of station files.
+     * @return The JSON array.
+     * @throws IOException If the directory cannot be listed.
+     */
+    private String buildBatchPayload(String directory) throws IOException {
+        List<Path> stationFiles;
+        try (Stream<Path> files = Files.list(Paths.get(directory))) {
+            stationFiles = files.filter(Files::isRegularFile).sorted().collect(Collectors.toList());
+        }
+
+        StringBuilder payload = new StringBuilder("[");
+        String separator = "\n";
+        for (Path stationFile : stationFiles) {
+            try {
+                JSONObject weatherData = new JSONObject(ioUtility.readTxtFile(stationFile.toString()));
+                payload.append(separator);
+                weatherData.appendJSONString(payload);
+                separator = ",\n";
+            } catch (Exception e) {
+                System.out.println("Skipping " + stationFile + ": not valid weather data");
+            }
+        }
+        return payload.append("\n]").toString();
+    }
+
+    /**
+     * Uploads the same weather data several times, pipelined over the persistent connection,
+     * and reports the throughput achieved.
+     *
+     * @param weatherDataFilePath The station file or directory to upload.
+     * @param count               The number of PUT requests to send.
+     */
+    public void sendWeatherUpdates(String weatherDataFilePath, int count) {
+        long start = System.nanoTime();
+        List<HTTPResponse> responses = sendHTTPRequests(PUT_REQUEST_FILE, Collections.nCopies(count, weatherDataFilePath));
+        long elapsedMillis = Math.max(1, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+
+        long answered = responses.stream().filter(Objects::nonNull).count();
+        System.out.println(answered + " of " + count + " updates answered in " + elapsedMillis + " ms ("
+                + (answered * 1000 / elapsedMillis) + " updates/s)");
+    }
+
     private void startHeartbeat() {
         heartbeatScheduler = Executors.newScheduledThreadPool(1);
         heartbeatScheduler.scheduleAtFixedRate(() -> {
             try {
                 System.out.println("Sending heartbeat\n");
-                sendHTTPRequest(HEARTBEAT_REQUEST_FILE);
+                // Sent without blocking, so a slow server never delays the next heartbeat
+                sendHTTPRequestAsync(HEARTBEAT_REQUEST_FILE, null, TimeUnit.SECONDS.toMillis(HEARTBEAT_INTERVAL))
+                        .whenComplete((httpResponse, e) -> {
+                            if (e != null) {
+                                System.out.println("Heartbeat failed: " + e.getMessage());
+                            }
+                        });
             } catch (Exception e) {
                 e.printStackTrace();
             }
@@ -107,12 +209,22 @@ public class ContentServer extends HTTPClient {
         int port = Integer.parseInt(argMap.getOrDefault("port", DEFAULT_PORT));
         // Socket socket = new Socket(host, port);
         String weatherDataFilePath = argMap.getOrDefault("weather", DEFAULT_WEATHER_DATA_FILE);
+        int repeat = Integer.parseInt(argMap.getOrDefault("repeat", DEFAULT_REPEAT));
+        String clockOption = argMap.getOrDefault("clock", DEFAULT_CLOCK);
+        if (!CLOCK_NONE.equals(clockOption) && !CLOCK_HYBRID.equals(clockOption)) {
+            System.out.println("Unknown clock: " + clockOption);
+            return;
+        }
+        HybridLogicalClock clock = CLOCK_HYBRID.equals(clockOption) ? new HybridLogicalClock() : null;
 
         try (Socket socket = new Socket(host, port);
-            BufferedWriter out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream()));
-            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            ContentServer contentServer = new ContentServer(socket, out, in)) {
+            ContentServer contentServer = new ContentServer(socket, clock)) {
             // contentServer.startHeartbeat();
+            if (repeat > 1) {
+                contentServer.sendWeatherUpdates(weatherDataFilePath, repeat);
+                contentServer.shutdown();
+                return;
+            }
             contentServer.sendHTTPRequest(PUT_REQUEST_FILE, weatherDataFilePath);
             Thread.sleep(1000);
             contentServer.sendHTTPRequest(PUT_REQUEST_FILE, RESOURCE_PATH + "data/London.txt");
@@ -11,4 +11,8 @@ class ContentServerConstants {
     public static final String HEARTBEAT_REQUEST_FILE = RESOURCE_PATH + "requests/HeartbeatRequest.txt";
     public static final String SHUTDOWN_REQUEST_FILE = RESOURCE_PATH + "requests/ShutdownRequest.txt";
     public static final int HEARTBEAT_INTERVAL = 10;
+    public static final String DEFAULT_REPEAT = "1";
+    public static final String CLOCK_NONE = "none";
+    public static final String CLOCK_HYBRID = "hlc";
+    public static final String DEFAULT_CLOCK = CLOCK_NONE;
 }
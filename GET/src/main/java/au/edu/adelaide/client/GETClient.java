@@ -4,11 +4,13 @@ import java.io.IOException;
 import java.net.Socket;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.io.BufferedReader;
-import java.io.BufferedWriter;
-import java.io.OutputStreamWriter;
-import java.io.InputStreamReader;
 import java.io.Writer;
 
 import static au.edu.adelaide.client.GETClientConstants.*;
@@ -21,10 +23,30 @@ import util.IOUtility;
 
 public class GETClient extends HTTPClient {
     private IOUtility ioUtility;
+    private final GETResponseCache responseCache;
 
     public GETClient(Socket socket, Writer out, BufferedReader in) throws IOException {
         super(socket, out, in);
         ioUtility = new IOUtility();
+        responseCache = new GETResponseCache();
+    }
+
+    public GETClient(Socket socket) throws IOException {
+        this(socket, new GETResponseCache());
+    }
+
+    /**
+     * Constructs a GETClient sharing a response cache with earlier clients, so data that
+     * has not changed since an earlier request is not sent again.
+     *
+     * @param socket        The connected socket.
+     * @param responseCache The cache of earlier responses.
+     * @throws IOException if the socket streams cannot be opened.
+     */
+    public GETClient(Socket socket, GETResponseCache responseCache) throws IOException {
+        super(socket);
+        ioUtility = new IOUtility();
+        this.responseCache = responseCache;
     }
 
     private static final String request_location = "client/resources/GETRequest.txt";
@@ -35,7 +57,81 @@ public class GETClient extends HTTPClient {
 
         if (payload_file[0] == null) return request;
         String URI = payload_file[0];
-        return request.replace("{{URI}}", URI);
+        request = request.replace("{{URI}}", URI);
+
+        // Ask for the data only if it changed since the cached response
+        GETResponseCache.Entry cached = responseCache.get(getRequestTarget(request));
+        if (cached != null) {
+            int headersStart = request.indexOf('\n') + 1;
+            request = request.substring(0, headersStart) + "If-None-Match: " + cached.entityTag + "\n"
+                    + request.substring(headersStart);
+        }
+        return request;
+    }
+
+    /**
+     * Caches responses carrying an ETag, and fills in the cached body when the server
+     * answers 304 Not Modified. Responses are cached under the target of the request they
+     * answer, so concurrent requests for different stations do not mix.
+     */
+    @Override
+    protected HTTPResponse handleResponse(String request, HTTPResponse httpResponse) {
+        String requestTarget = getRequestTarget(request);
+        String statusCode = httpResponse.getStatusCode().split(" ")[0];
+        GETResponseCache.Entry cached = responseCache.get(requestTarget);
+
+        if (statusCode.equals("304") && cached != null) {
+            System.out.println("Weather data not modified, using cached copy (ETag " + cached.entityTag + ")\n");
+            httpResponse.setBody(cached.body);
+        } else if (statusCode.equals("200") && httpResponse.getHeader("ETag") != null) {
+            responseCache.put(requestTarget, httpResponse.getHeader("ETag"), httpResponse.getBody());
+        }
+        return httpResponse;
+    }
+
+    /**
+     * Extracts the target of a request from its request line, e.g. /weather/IDS60901.
+     *
+     * @param request The encoded request.
+     * @return The request target, or the whole request line if it has no target.
+     */
+    private static String getRequestTarget(String request) {
+        int lineEnd = request.indexOf('\n');
+        String[] requestLine = (lineEnd < 0 ? request : request.substring(0, lineEnd)).trim().split(" ");
+        return requestLine.length > 1 ? requestLine[1] : requestLine[0];
+    }
+
+    /**
+     * Requests every station's data at once, without a thread per request, and prints each
+     * response as it arrives.
+     *
+     * @param request_location The request template.
+     * @param stationIds       The stations to request.
+     * @param timeoutMillis    How long to wait for each response.
+     * @return The number of stations which answered successfully.
+     */
+    public int fetchStations(String request_location, List<String> stationIds, long timeoutMillis) {
+        List<CompletableFuture<Boolean>> results = new ArrayList<>();
+        for (String stationId : stationIds) {
+            results.add(sendHTTPRequestAsync(request_location, stationId, timeoutMillis).handle((httpResponse, e) -> {
+                if (e != null) {
+                    Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+                    System.out.println(stationId + ": request failed (" + cause + ")\n");
+                    return false;
+                }
+                System.out.println(stationId + ": " + httpResponse.getStatusCode() + "\n" + httpResponse.getBody() + "\n");
+                return httpResponse.getStatusCode().startsWith("200") || httpResponse.getStatusCode().startsWith("304");
+            }));
+        }
+
+        int successful = 0;
+        for (CompletableFuture<Boolean> result : results) {
+            if (result.join()) {
+                successful++;
+            }
+        }
+        System.out.println(successful + " of " + stationIds.size() + " stations answered\n");
+        return successful;
     }
 
     public static void main(String[] args) {
@@ -47,12 +143,39 @@ public class GETClient extends HTTPClient {
         int port = Integer.parseInt(argMap.getOrDefault("port", DEFAULT_PORT));
         String request_location = argMap.getOrDefault("request", GET_REQUEST_FILE);
         String URI = argMap.getOrDefault("URI", "recent");
+        int repeat = Integer.parseInt(argMap.getOrDefault("repeat", DEFAULT_REPEAT));
+        int interval = Integer.parseInt(argMap.getOrDefault("interval", DEFAULT_INTERVAL));
 
+        // Subscribing long-polls the server, which answers as soon as the station has new data
+        boolean subscribe = argMap.containsKey("subscribe");
+        if (subscribe) {
+            request_location = argMap.getOrDefault("request", SUBSCRIBE_REQUEST_FILE);
+            URI = argMap.get("subscribe");
+            repeat = Integer.parseInt(argMap.getOrDefault("repeat", String.valueOf(Integer.MAX_VALUE)));
+        }
+
+        // One client keeps its connection open across repeats, reconnecting if the server drops it
         try (Socket socket = new Socket(host, port);
-            BufferedWriter out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream()));
-            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            GETClient client = new GETClient(socket, out, in)) {
-                client.sendHTTPRequest(request_location, URI);
+            GETClient client = new GETClient(socket)) {
+            if (argMap.containsKey("stations")) {
+                long timeoutMillis = Long.parseLong(argMap.getOrDefault("timeout", DEFAULT_TIMEOUT)) * 1000L;
+                client.fetchStations(request_location, Arrays.asList(argMap.get("stations").split(",")), timeoutMillis);
+                return;
+            }
+
+            boolean failed = false;
+            for (int i = 0; i < repeat; i++) {
+                // Subscriptions ask again at once, and only wait after a failure
+                if (i > 0 && (!subscribe || failed)) {
+                    try {
+                        Thread.sleep(interval * 1000L);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                }
+                failed = !client.sendHTTPRequest(request_location, URI);
+            }
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -3,7 +3,11 @@ package au.edu.adelaide.client;
 public class GETClientConstants {
     public static final String DEFAULT_HOST = "localhost";
     public static final String DEFAULT_PORT = "4567";
+    public static final String DEFAULT_REPEAT = "1";
+    public static final String DEFAULT_INTERVAL = "5"; // seconds
+    public static final String DEFAULT_TIMEOUT = "30"; // seconds
     public static final String RESOURCE_PATH = "src/main/resources/";
     public static final String CLIENT_HELP_FILE = RESOURCE_PATH + "help/ClientHelp.txt";
     public static final String GET_REQUEST_FILE = RESOURCE_PATH + "requests/GETRequest.txt";
+    public static final String SUBSCRIBE_REQUEST_FILE = RESOURCE_PATH + "requests/SubscribeRequest.txt";
 }
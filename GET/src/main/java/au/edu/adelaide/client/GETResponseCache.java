@@ -0,0 +1,46 @@
+package au.edu.adelaide.client;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Keeps the last response body and ETag received for each requested URI, so a repeated
+ * request can ask the server for the data only if it has changed since.
+ */
+public class GETResponseCache {
+    private final Map<String, Entry> entries = new HashMap<>();
+
+    /**
+     * A cached response body and the ETag the server sent with it.
+     */
+    public static class Entry {
+        public final String entityTag;
+        public final String body;
+
+        public Entry(String entityTag, String body) {
+            this.entityTag = entityTag;
+            this.body = body;
+        }
+    }
+
+    /**
+     * Retrieves the cached response for a URI.
+     *
+     * @param URI The requested URI.
+     * @return The cached entry, or null if nothing is cached for the URI.
+     */
+    public synchronized Entry get(String URI) {
+        return entries.get(URI);
+    }
+
+    /**
+     * Caches a response body under its ETag, replacing any previous entry for the URI.
+     *
+     * @param URI       The requested URI.
+     * @param entityTag The ETag sent with the response.
+     * @param body      The response body.
+     */
+    public synchronized void put(String URI, String entityTag, String body) {
+        entries.put(URI, new Entry(entityTag, body));
+    }
+}
@@ -0,0 +1,233 @@
+package http;
+
+import http.messages.HTTPMessage;
+import http.messages.HTTPResponse;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * One non-blocking connection of a {@link ClientEventLoop}.
+ * Requests are written in the order they are sent and each response read is matched to the
+ * oldest unanswered request. A request that timed out keeps its place, so the responses after
+ * it still match, and its response is discarded when it arrives. When the server closes the
+ * connection, or it fails, the unanswered requests go back to the loop to be resent, and a
+ * failed connection is only reopened after an exponential backoff.
+ * Only ever used from its event loop's thread.
+ */
+class ClientConnection {
+    private static final Logger LOGGER = Logger.getLogger(ClientConnection.class.getName());
+    private static final int READ_BUFFER_SIZE = 8 * 1024;
+    private static final int RECONNECT_BASE_DELAY_MS = 100;
+    private static final int RECONNECT_MAX_DELAY_MS = 5000;
+
+    private final ClientEventLoop eventLoop;
+    private final Selector selector;
+    private final SocketAddress serverAddress;
+    private final Deque<ByteBuffer> pendingWrites = new ArrayDeque<>();
+    private final Deque<ClientEventLoop.PendingRequest> unansweredRequests = new ArrayDeque<>();
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+    private final HTTPMessageParser parser = new HTTPMessageParser();
+    private SocketChannel channel;
+    private SelectionKey key;
+    private boolean connected = false;
+    private int failures = 0;
+    private long reconnectAt = 0;
+
+    ClientConnection(ClientEventLoop eventLoop, Selector selector, SocketAddress serverAddress) {
+        this.eventLoop = eventLoop;
+        this.selector = selector;
+        this.serverAddress = serverAddress;
+    }
+
+    int getUnansweredCount() {
+        return unansweredRequests.size();
+    }
+
+    long getReconnectAt() {
+        return reconnectAt;
+    }
+
+    /**
+     * Reports whether the connection is closed and waiting out its backoff before reconnecting.
+     *
+     * @param now The current System.nanoTime().
+     * @return true if the connection may not be reopened yet.
+     */
+    boolean isBackingOff(long now) {
+        return channel == null && now - reconnectAt < 0;
+    }
+
+    /**
+     * Reports whether another request may be sent now, opening the connection if need be.
+     *
+     * @param now The current System.nanoTime().
+     * @return true if the connection has a free pipelining slot and is not backing off.
+     */
+    boolean canSend(long now) {
+        return unansweredRequests.size() < HTTPClient.MAX_PIPELINED_REQUESTS && !isBackingOff(now);
+    }
+
+    /**
+     * Queues a request for writing, opening the connection first if it is closed.
+     *
+     * @param pending The request to send.
+     */
+    void send(ClientEventLoop.PendingRequest pending) {
+        unansweredRequests.add(pending);
+        pendingWrites.add(ByteBuffer.wrap(pending.request));
+        try {
+            if (channel == null) {
+                open();
+            } else if (connected) {
+                onWritable();
+            }
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    private void open() throws IOException {
+        channel = SocketChannel.open();
+        channel.configureBlocking(false);
+        connected = channel.connect(serverAddress);
+        key = channel.register(selector, connected ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_CONNECT, this);
+    }
+
+    /**
+     * Completes a non-blocking connect and starts writing the queued requests.
+     *
+     * @throws IOException If the connection could not be established.
+     */
+    void onConnectable() throws IOException {
+        if (channel.finishConnect()) {
+            connected = true;
+            onWritable();
+        }
+    }
+
+    /**
+     * Writes queued request bytes, waiting for writability only while some remain.
+     *
+     * @throws IOException If writing to the channel fails.
+     */
+    void onWritable() throws IOException {
+        while (!pendingWrites.isEmpty()) {
+            ByteBuffer buffer = pendingWrites.peek();
+            channel.write(buffer);
+            if (buffer.hasRemaining()) {
+                break;
+            }
+            pendingWrites.poll();
+        }
+        key.interestOps(pendingWrites.isEmpty() ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+    }
+
+    /**
+     * Reads whatever bytes are available and completes a request for each whole response.
+     *
+     * @throws IOException If reading fails, the server closes the connection while requests
+     *                     are unanswered, or the bytes are not a valid response.
+     */
+    void onReadable() throws IOException {
+        int bytesRead = channel.read(readBuffer);
+        if (bytesRead == -1) {
+            if (unansweredRequests.isEmpty() && !parser.isMidMessage()) {
+                // The server closed an idle connection; the next request reopens it
+                close();
+                return;
+            }
+            throw new EOFException("Connection closed by server");
+        }
+
+        readBuffer.flip();
+        boolean serverClosing = false;
+        try {
+            HTTPMessage httpMessage;
+            while (!serverClosing && (httpMessage = parser.parse(readBuffer)) != null) {
+                ClientEventLoop.PendingRequest pending = unansweredRequests.poll();
+                if (!(httpMessage instanceof HTTPResponse) || pending == null) {
+                    throw new ProtocolException("Unexpected message from server");
+                }
+                HTTPResponse httpResponse = (HTTPResponse) httpMessage;
+                failures = 0;
+                pending.response.complete(httpResponse);
+                serverClosing = !httpResponse.shouldKeepConnectionAlive();
+            }
+        } finally {
+            readBuffer.compact();
+        }
+
+        if (serverClosing) {
+            // Not a failure: requests the server did not answer are resent without backing off
+            closeAndRequeue(false, new EOFException("Connection closed by server"));
+        }
+    }
+
+    /**
+     * Closes the connection after an error, backing off before it may be reopened, and
+     * resends its unanswered requests on whichever connection is free first.
+     *
+     * @param cause The error.
+     */
+    void fail(IOException cause) {
+        failures++;
+        long delay = Math.min((long) RECONNECT_BASE_DELAY_MS << Math.min(failures - 1, 16), RECONNECT_MAX_DELAY_MS);
+        reconnectAt = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delay);
+        LOGGER.log(Level.FINE, "Connection to " + serverAddress + " failed, reconnecting in " + delay + " ms", cause);
+        closeAndRequeue(true, cause);
+    }
+
+    /**
+     * Closes the connection and fails its unanswered requests instead of resending them.
+     *
+     * @param cause Why the requests failed.
+     */
+    void closeAndFail(IOException cause) {
+        ClientEventLoop.PendingRequest pending;
+        while ((pending = unansweredRequests.poll()) != null) {
+            pending.response.completeExceptionally(cause);
+        }
+        close();
+    }
+
+    private void closeAndRequeue(boolean countAttempt, IOException cause) {
+        List<ClientEventLoop.PendingRequest> unanswered = new ArrayList<>(unansweredRequests);
+        unansweredRequests.clear();
+        close();
+        eventLoop.requeue(unanswered, countAttempt, cause);
+    }
+
+    private void close() {
+        pendingWrites.clear();
+        readBuffer.clear();
+        parser.reset();
+        connected = false;
+        if (channel == null) {
+            return;
+        }
+        if (key != null) {
+            key.cancel();
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Error closing connection to " + serverAddress, e);
+        }
+        channel = null;
+        key = null;
+    }
+}
@@ -0,0 +1,261 @@
+package http;
+
+import http.messages.HTTPResponse;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The asynchronous side of an {@link HTTPClient}: a single selector thread multiplexing any
+ * number of outstanding requests over a few non-blocking connections to one server.
+ * A request goes to the open connection with the fewest unanswered requests, each connection
+ * pipelining up to {@link HTTPClient#MAX_PIPELINED_REQUESTS}; requests beyond that wait in a
+ * shared queue for the first free slot. All connection state is only touched from the loop
+ * thread; other threads hand work to it through {@link #submit} and {@link #close}.
+ */
+class ClientEventLoop implements Runnable, AutoCloseable {
+    private static final Logger LOGGER = Logger.getLogger(ClientEventLoop.class.getName());
+    static final int MAX_ATTEMPTS = 5;
+
+    private final Selector selector;
+    private final ClientConnection[] connections;
+    private final Queue<Runnable> pendingTasks = new ConcurrentLinkedQueue<>();
+    private final Deque<PendingRequest> waitingRequests = new ArrayDeque<>();
+    private final Thread thread;
+    private volatile boolean running = true;
+
+    /**
+     * A request and the future its response completes.
+     */
+    static final class PendingRequest {
+        final byte[] request;
+        final CompletableFuture<HTTPResponse> response = new CompletableFuture<>();
+        int attempts = 0;
+
+        PendingRequest(byte[] request) {
+            this.request = request;
+        }
+    }
+
+    /**
+     * Constructs and starts a ClientEventLoop.
+     *
+     * @param serverAddress   The server every connection is opened to.
+     * @param connectionCount The most connections opened at once.
+     * @throws IOException If the selector cannot be opened.
+     */
+    ClientEventLoop(SocketAddress serverAddress, int connectionCount) throws IOException {
+        this.selector = Selector.open();
+        this.connections = new ClientConnection[connectionCount];
+        for (int i = 0; i < connectionCount; i++) {
+            connections[i] = new ClientConnection(this, selector, serverAddress);
+        }
+        this.thread = new Thread(this, "http-client-" + serverAddress);
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * Queues an encoded request to be sent on the first connection with a free slot.
+     *
+     * @param request       The encoded request.
+     * @param timeoutMillis How long to wait for the response, from now.
+     * @return A future completed with the response, or exceptionally with a TimeoutException
+     *         if none arrives in time, or an IOException if the server cannot be reached.
+     */
+    CompletableFuture<HTTPResponse> submit(byte[] request, long timeoutMillis) {
+        PendingRequest pending = new PendingRequest(request);
+        if (!running) {
+            pending.response.completeExceptionally(new IOException("HTTP client closed"));
+            return pending.response;
+        }
+        pending.response.orTimeout(timeoutMillis, TimeUnit.MILLISECONDS);
+        execute(() -> {
+            waitingRequests.add(pending);
+            dispatchWaitingRequests();
+        });
+        return pending.response;
+    }
+
+    /**
+     * Puts the unanswered requests of a closed connection back at the front of the queue, in
+     * their original order, so they are resent before newer requests. Requests that already
+     * failed too many times are failed instead.
+     *
+     * @param unanswered   The requests written to the connection but not answered.
+     * @param countAttempt Whether the connection failed, rather than being closed by the server.
+     * @param cause        Why the connection closed.
+     */
+    void requeue(List<PendingRequest> unanswered, boolean countAttempt, IOException cause) {
+        for (int i = unanswered.size() - 1; i >= 0; i--) {
+            PendingRequest pending = unanswered.get(i);
+            if (pending.response.isDone()) {
+                continue;
+            }
+            if (countAttempt && ++pending.attempts >= MAX_ATTEMPTS) {
+                pending.response.completeExceptionally(cause);
+            } else {
+                waitingRequests.addFirst(pending);
+            }
+        }
+    }
+
+    private void dispatchWaitingRequests() {
+        long now = System.nanoTime();
+        while (!waitingRequests.isEmpty()) {
+            // Requests that timed out while queued are dropped without being sent
+            if (waitingRequests.peek().response.isDone()) {
+                waitingRequests.poll();
+                continue;
+            }
+            ClientConnection connection = leastLoadedConnection(now);
+            if (connection == null) {
+                return;
+            }
+            connection.send(waitingRequests.poll());
+        }
+    }
+
+    private ClientConnection leastLoadedConnection(long now) {
+        ClientConnection leastLoaded = null;
+        for (ClientConnection connection : connections) {
+            if (connection.canSend(now) && (leastLoaded == null || connection.getUnansweredCount() < leastLoaded.getUnansweredCount())) {
+                leastLoaded = connection;
+            }
+        }
+        return leastLoaded;
+    }
+
+    /**
+     * Sleeps until the next connection backing off may reconnect, if requests are waiting for it.
+     */
+    private long selectTimeoutMillis() {
+        if (waitingRequests.isEmpty()) {
+            return 0;
+        }
+        long now = System.nanoTime();
+        long earliest = Long.MAX_VALUE;
+        for (ClientConnection connection : connections) {
+            if (connection.isBackingOff(now)) {
+                earliest = Math.min(earliest, connection.getReconnectAt() - now);
+            }
+        }
+        // Otherwise a slot is freed by a response, which wakes the selector anyway
+        return earliest == Long.MAX_VALUE ? 0 : TimeUnit.NANOSECONDS.toMillis(earliest) + 1;
+    }
+
+    /**
+     * Schedules a task to run on the loop thread.
+     *
+     * @param task The task to run.
+     */
+    void execute(Runnable task) {
+        pendingTasks.add(task);
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (running) {
+                selector.select(selectTimeoutMillis());
+                runPendingTasks();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    processKey(key);
+                }
+                dispatchWaitingRequests();
+            }
+        } catch (ClosedSelectorException e) {
+            LOGGER.log(Level.FINE, "Client event loop closed: " + thread.getName());
+        } catch (IOException e) {
+            LOGGER.log(Level.SEVERE, "Client event loop stopped unexpectedly: " + thread.getName(), e);
+        } finally {
+            running = false;
+            failAll(new IOException("HTTP client closed"));
+            closeSelector();
+        }
+    }
+
+    private void processKey(SelectionKey key) {
+        ClientConnection connection = (ClientConnection) key.attachment();
+        if (connection == null || !key.isValid()) {
+            return;
+        }
+        try {
+            if (key.isConnectable()) {
+                connection.onConnectable();
+            }
+            if (key.isValid() && key.isReadable()) {
+                connection.onReadable();
+            }
+            if (key.isValid() && key.isWritable()) {
+                connection.onWritable();
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Connection to server failed", e);
+            connection.fail(e);
+        }
+    }
+
+    private void runPendingTasks() {
+        Runnable task;
+        while ((task = pendingTasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (Exception e) {
+                LOGGER.log(Level.WARNING, "Error running client event loop task", e);
+            }
+        }
+    }
+
+    private void failAll(IOException cause) {
+        runPendingTasks();
+        for (ClientConnection connection : connections) {
+            connection.closeAndFail(cause);
+        }
+        PendingRequest pending;
+        while ((pending = waitingRequests.poll()) != null) {
+            pending.response.completeExceptionally(cause);
+        }
+    }
+
+    private void closeSelector() {
+        try {
+            selector.close();
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Error closing selector", e);
+        }
+    }
+
+    /**
+     * Stops the loop, closing its connections and failing every outstanding request.
+     */
+    @Override
+    public void close() {
+        running = false;
+        selector.wakeup();
+        if (Thread.currentThread() != thread) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -0,0 +1,212 @@
+package http;
+
+import http.messages.HTTPRequest;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A single selector thread which owns a set of non-blocking connections.
+ * All channel and connection state is only touched from the loop thread; other threads
+ * hand work to the loop through {@link #execute(Runnable)}.
+ */
+class EventLoop implements Runnable, AutoCloseable {
+    private static final Logger LOGGER = Logger.getLogger(EventLoop.class.getName());
+    private final HTTPServer server;
+    private final ExecutorService workerPool;
+    private final Selector selector;
+    private final Queue<Runnable> pendingTasks = new ConcurrentLinkedQueue<>();
+    private final Thread thread;
+    private volatile boolean running = true;
+
+    /**
+     * Constructs an EventLoop.
+     *
+     * @param server     The server whose handlers process requests.
+     * @param workerPool The pool on which request handlers run.
+     * @param name       The name of the loop thread.
+     * @throws IOException If the selector cannot be opened.
+     */
+    EventLoop(HTTPServer server, ExecutorService workerPool, String name) throws IOException {
+        this.server = server;
+        this.workerPool = workerPool;
+        this.selector = Selector.open();
+        this.thread = new Thread(this, name);
+        this.thread.setDaemon(true);
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    /**
+     * Hands a newly accepted channel to this loop.
+     *
+     * @param channel The non-blocking client channel.
+     */
+    void register(SocketChannel channel) {
+        execute(() -> {
+            try {
+                SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+                key.attach(new NIOConnection(this, channel, key));
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Error registering client connection", e);
+                closeQuietly(channel);
+            }
+        });
+    }
+
+    /**
+     * Schedules a task to run on the loop thread.
+     *
+     * @param task The task to run.
+     */
+    void execute(Runnable task) {
+        pendingTasks.add(task);
+        selector.wakeup();
+    }
+
+    /**
+     * Runs a request handler on the worker pool, lets the connection dispatch its next request
+     * once the handler returns, and hands the response back once it is complete. A response
+     * completed later, such as a long-poll or a PUT awaiting durability, holds no thread while
+     * it waits.
+     *
+     * @param connection  The connection the request arrived on.
+     * @param httpRequest The parsed request.
+     * @param pending     The slot reserved for the request's response.
+     */
+    void dispatch(NIOConnection connection, HTTPRequest httpRequest, NIOConnection.PendingResponse pending) {
+        try {
+            workerPool.execute(() -> {
+                CompletableFuture<byte[]> response;
+                try {
+                    response = server.dispatchRequestAsync(httpRequest, connection.getRemoteAddress());
+                } catch (Exception e) {
+                    response = CompletableFuture.failedFuture(e);
+                }
+                execute(connection::handlerReturned);
+                response.whenComplete((responseBytes, e) -> {
+                    if (e != null) {
+                        LOGGER.log(Level.WARNING, "Unexpected error while processing request from: " + connection.getRemoteAddress(), e);
+                        responseBytes = errorResponse();
+                    }
+                    byte[] completedResponse = HTTPServer.matchConnectionHeader(httpRequest, responseBytes);
+                    execute(() -> connection.completeResponse(pending, completedResponse));
+                });
+            });
+        } catch (RejectedExecutionException e) {
+            connection.close();
+        }
+    }
+
+    /**
+     * Produces the error response for a request that could not be parsed.
+     *
+     * @return The error response as bytes.
+     */
+    byte[] errorResponse() {
+        return server.handleError().getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (running) {
+                selector.select();
+                runPendingTasks();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    processKey(key);
+                }
+            }
+        } catch (ClosedSelectorException e) {
+            LOGGER.log(Level.INFO, "Event loop closed: " + thread.getName());
+        } catch (IOException e) {
+            LOGGER.log(Level.SEVERE, "Event loop stopped unexpectedly: " + thread.getName(), e);
+        } finally {
+            closeAllConnections();
+            closeSelector();
+        }
+    }
+
+    private void processKey(SelectionKey key) {
+        NIOConnection connection = (NIOConnection) key.attachment();
+        if (connection == null || !key.isValid()) {
+            return;
+        }
+        try {
+            if (key.isReadable()) {
+                connection.onReadable();
+            }
+            if (key.isValid() && key.isWritable()) {
+                connection.onWritable();
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Closing connection after I/O error: " + connection.getRemoteAddress(), e);
+            connection.close();
+        }
+    }
+
+    private void runPendingTasks() {
+        Runnable task;
+        while ((task = pendingTasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (Exception e) {
+                LOGGER.log(Level.WARNING, "Error running event loop task", e);
+            }
+        }
+    }
+
+    private void closeAllConnections() {
+        try {
+            for (SelectionKey key : selector.keys()) {
+                if (key.attachment() instanceof NIOConnection) {
+                    ((NIOConnection) key.attachment()).close();
+                }
+            }
+        } catch (ClosedSelectorException e) {
+            // Connections were closed along with the selector
+        }
+    }
+
+    private void closeSelector() {
+        try {
+            selector.close();
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Error closing selector", e);
+        }
+    }
+
+    private static void closeQuietly(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Error closing client channel", e);
+        }
+    }
+
+    /**
+     * Stops the loop; its connections are closed on the loop thread as it exits.
+     */
+    @Override
+    public void close() {
+        running = false;
+        selector.wakeup();
+    }
+}
@@ -1,33 +1,155 @@
 package http;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.Writer;
 import java.net.Socket;
+import java.net.SocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 import http.messages.HTTPResponse;
 
+/**
+ * Sends requests over one persistent HTTP/1.1 connection.
+ * Several requests can be pipelined: they are written ahead of their responses, up to
+ * {@link #MAX_PIPELINED_REQUESTS} at a time, and responses are matched to requests in the order
+ * they were sent. When the server closes the connection, or the connection fails, the client
+ * reconnects with exponential backoff and resends the requests that were not answered.
+ * <p>
+ * {@link #sendHTTPRequestAsync} sends without blocking instead: its requests are multiplexed
+ * by one background thread over up to {@link #ASYNC_CONNECTIONS} further connections, so
+ * hundreds can be outstanding at once without a thread each.
+ */
 public abstract class HTTPClient implements AutoCloseable {
     private static final int MAX_RETRIES = 2;
     private static final int RETRY_DELAY_MS = 2000;
-    private final HTTPConnection httpConn;
-    private String lastRequest;
-    private boolean requestSuccess = false;
-    private boolean connectionClosed = false;
+    private static final int MAX_RECONNECT_ATTEMPTS = 5;
+    private static final int RECONNECT_BASE_DELAY_MS = 100;
+    private static final int RECONNECT_MAX_DELAY_MS = 5000;
+    private static final int CONNECT_TIMEOUT_MS = 5000;
+    public static final int MAX_PIPELINED_REQUESTS = 32;
+    public static final int ASYNC_CONNECTIONS = 4;
+    public static final long DEFAULT_REQUEST_TIMEOUT_MS = 30000;
+
+    // Null when the client was not given a connected socket, in which case it cannot reconnect
+    private final SocketAddress serverAddress;
+    private HTTPConnection httpConn;
+    private final Object asyncLock = new Object();
+    private ClientEventLoop asyncLoop;
 
     public HTTPClient(Socket socket, Writer out, BufferedReader in) throws IOException {
         httpConn = new HTTPConnection(socket, out, in);
+        serverAddress = socket.getRemoteSocketAddress();
+    }
+
+    /**
+     * Constructs an HTTPClient which exchanges raw bytes over the socket's streams.
+     *
+     * @param socket The connected socket.
+     * @throws IOException if the socket streams cannot be opened.
+     */
+    public HTTPClient(Socket socket) throws IOException {
+        httpConn = new HTTPConnection(socket, socket.getInputStream(), socket.getOutputStream());
+        serverAddress = socket.getRemoteSocketAddress();
     }
 
     protected abstract String buildRequest(String request_location, String... payload_file) throws IOException;
 
-    public void sendHTTPRequest(String request_location, String... payload_file) {
+    /**
+     * Sends one request over the persistent connection, retrying if it fails.
+     *
+     * @param request_location The request template.
+     * @param payload_file     The payload file, if the request carries one.
+     * @return true if the server answered with a success status.
+     */
+    public boolean sendHTTPRequest(String request_location, String... payload_file) {
         validateRequestLocation(request_location);
 
         String file = extractFirstPayloadFile(payload_file);
-        lastRequest = buildHttpRequest(request_location, file);
+        String request = buildHttpRequest(request_location, file);
+        return sendRequestWithRetries(request);
+    }
+
+    /**
+     * Sends one request per payload file, pipelined over the persistent connection.
+     *
+     * @param request_location The request template.
+     * @param payload_files    The payload files, one per request.
+     * @return The responses in request order, with null for any request left unanswered
+     *         because the server could not be reached.
+     */
+    public List<HTTPResponse> sendHTTPRequests(String request_location, List<String> payload_files) {
+        validateRequestLocation(request_location);
+
+        List<String> requests = new ArrayList<>(payload_files.size());
+        for (String file : payload_files) {
+            requests.add(buildHttpRequest(request_location, file));
+        }
+        List<HTTPResponse> responses = exchange(requests);
 
-        synchronized (httpConn) {
-            sendRequestWithRetries(MAX_RETRIES);
+        int successful = 0;
+        for (HTTPResponse httpResponse : responses) {
+            if (httpResponse != null && isSuccessful(httpResponse)) {
+                successful++;
+            }
+        }
+        System.out.println(successful + " of " + requests.size() + " pipelined requests successful\n");
+        return responses;
+    }
+
+    /**
+     * Sends one request without blocking, waiting at most {@link #DEFAULT_REQUEST_TIMEOUT_MS}
+     * for its response.
+     *
+     * @param request_location The request template.
+     * @param payload_file     The payload file, if the request carries one.
+     * @return A future completed with the response.
+     */
+    public CompletableFuture<HTTPResponse> sendHTTPRequestAsync(String request_location, String... payload_file) {
+        return sendHTTPRequestAsync(request_location, extractFirstPayloadFile(payload_file), DEFAULT_REQUEST_TIMEOUT_MS);
+    }
+
+    /**
+     * Sends one request without blocking. The request is multiplexed with the client's other
+     * outstanding asynchronous requests, and resent on another connection if its connection
+     * fails before it is answered. Dependent actions attached without an executor run on the
+     * client's I/O thread, so they should not block.
+     *
+     * @param request_location The request template.
+     * @param payload_file     The payload file, or null if the request carries none.
+     * @param timeoutMillis    How long to wait for the response.
+     * @return A future completed with the response, or exceptionally with a TimeoutException
+     *         if none arrives in time, or an IOException if the server cannot be reached.
+     */
+    public CompletableFuture<HTTPResponse> sendHTTPRequestAsync(String request_location, String payload_file, long timeoutMillis) {
+        validateRequestLocation(request_location);
+
+        String request = buildHttpRequest(request_location, payload_file);
+        ClientEventLoop loop;
+        try {
+            loop = getAsyncLoop();
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        return loop.submit(request.getBytes(StandardCharsets.UTF_8), timeoutMillis)
+                   .thenApply(httpResponse -> handleResponse(request, httpResponse));
+    }
+
+    private ClientEventLoop getAsyncLoop() throws IOException {
+        synchronized (asyncLock) {
+            if (asyncLoop == null) {
+                if (serverAddress == null) {
+                    throw new IOException("Server address unknown");
+                }
+                asyncLoop = new ClientEventLoop(serverAddress, ASYNC_CONNECTIONS);
+            }
+            return asyncLoop;
         }
     }
 
@@ -49,26 +171,19 @@ public abstract class HTTPClient implements AutoCloseable {
         }
     }
 
-    private void sendRequestWithRetries(int retriesLeft) {
-        while (retriesLeft > 0 && !requestSuccess && !connectionClosed) {
-            try {
-                httpConn.sendMessage(lastRequest);
-                System.out.println("Request sent to server:\n" + lastRequest + "\n");
-                handleServerResponse();
-            } catch (Exception e) {
-                
+    private boolean sendRequestWithRetries(String request) {
+        for (int attempt = 1; ; attempt++) {
+            HTTPResponse httpResponse = exchange(Collections.singletonList(request)).get(0);
+            if (httpResponse != null && isSuccessful(httpResponse)) {
+                System.out.println("Request successful\n");
+                return true;
             }
-
-            if (!requestSuccess) {
-                waitForRetry();
-                retriesLeft--;
+            if (attempt >= MAX_RETRIES) {
+                System.out.println("Failed to send request after " + MAX_RETRIES + " attempts.");
+                return false;
             }
-        }
-
-        if (!requestSuccess && !connectionClosed) {
-            System.out.println("Failed to send request after " + MAX_RETRIES + " attempts.");
-        } else if (connectionClosed) {
-            System.out.println("Connection closed by server");
+            System.out.println("Request failed. Attempting to resend\n");
+            waitForRetry();
         }
     }
 
@@ -80,34 +195,157 @@ public abstract class HTTPClient implements AutoCloseable {
         }
     }
 
-    private void handleServerResponse() throws IOException {
-        HTTPResponse httpResponse = retrieveHttpResponse();
-        System.out.println("Response from server:\n" + httpResponse + "\n");
+    private static boolean isSuccessful(HTTPResponse httpResponse) {
+        // 304 means the client's cached copy is still current
+        return httpResponse.getStatusCode().split(" ")[0].matches("2\\d\\d|304");
+    }
+
+    /**
+     * Writes the requests over the connection, keeping up to {@link #MAX_PIPELINED_REQUESTS}
+     * unanswered at a time, and matches each response to the oldest unanswered request.
+     * If the server closes the connection or it fails, every request written after the last
+     * answered one is resent on a new connection.
+     *
+     * @param requests The encoded requests, in the order they are sent.
+     * @return The responses in request order, with null for requests left unanswered.
+     */
+    private synchronized List<HTTPResponse> exchange(List<String> requests) {
+        HTTPResponse[] responses = new HTTPResponse[requests.size()];
+        int sent = 0;
+        int received = 0;
+        int failures = 0;
+
+        while (received < requests.size()) {
+            try {
+                HTTPConnection connection = connect(failures);
+                if (sent < requests.size() && sent - received < MAX_PIPELINED_REQUESTS) {
+                    // Fill the window in one write, so pipelined requests share packets
+                    ByteArrayOutputStream window = new ByteArrayOutputStream();
+                    while (sent < requests.size() && sent - received < MAX_PIPELINED_REQUESTS) {
+                        String request = requests.get(sent++);
+                        window.write(request.getBytes(StandardCharsets.UTF_8));
+                        System.out.println("Request sent to server:\n" + request + "\n");
+                    }
+                    connection.sendBytes(window.toByteArray());
+                }
+
+                HTTPResponse httpResponse = handleResponse(requests.get(received), retrieveHttpResponse(connection));
+                System.out.println("Response from server:\n" + httpResponse + "\n");
+                responses[received++] = httpResponse;
+                failures = 0;
+
+                if (!httpResponse.shouldKeepConnectionAlive()) {
+                    System.out.println("Server is closing connection");
+                    disconnect();
+                    sent = received;
+                }
+            } catch (InterruptedIOException e) {
+                disconnect();
+                break;
+            } catch (IOException e) {
+                disconnect();
+                sent = received;
+                if (serverAddress == null || ++failures > MAX_RECONNECT_ATTEMPTS) {
+                    System.out.println("Connection to server lost: " + e.getMessage());
+                    break;
+                }
+            }
+        }
+        return Arrays.asList(responses);
+    }
+
+    /**
+     * Returns the open connection, or opens a new one to the server, first backing off
+     * exponentially after consecutive failures.
+     *
+     * @param failures The number of consecutive failed attempts so far.
+     * @return The open connection.
+     * @throws IOException If the server cannot be reached.
+     */
+    private HTTPConnection connect(int failures) throws IOException {
+        if (httpConn != null) {
+            return httpConn;
+        }
+        if (serverAddress == null) {
+            throw new IOException("Connection closed and server address unknown");
+        }
+        if (failures > 0) {
+            long delay = Math.min((long) RECONNECT_BASE_DELAY_MS << (failures - 1), RECONNECT_MAX_DELAY_MS);
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Reconnect interrupted");
+            }
+        }
 
-        if (httpResponse.getStatusCode().split(" ")[0].matches("2\\d\\d")) {
-            requestSuccess = true;
-            System.out.println("Request successful\n");
+        Socket socket = new Socket();
+        try {
+            socket.connect(serverAddress, CONNECT_TIMEOUT_MS);
+            httpConn = new HTTPConnection(socket, socket.getInputStream(), socket.getOutputStream());
+        } catch (IOException e) {
+            socket.close();
+            throw e;
         }
+        System.out.println("Connected to server " + serverAddress);
+        return httpConn;
+    }
 
-        if (httpResponse.shouldKeepConnectionAlive() && !requestSuccess) {
-            System.out.println("Server is keeping connection alive");
-            System.out.println("Request failed. Attempting to resend\n");
-        } else {
-            System.out.println("Server is closing connection");
-            connectionClosed = true;
+    private void disconnect() {
+        if (httpConn == null) {
+            return;
         }
+        try {
+            httpConn.manuallyClose();
+        } catch (IOException e) {
+            // The connection is being discarded either way
+        }
+        httpConn = null;
     }
 
-    private HTTPResponse retrieveHttpResponse() throws IOException {
+    /**
+     * Called with each response read from the server, before it is reported.
+     * Subclasses can override this to inspect the response or replace it.
+     *
+     * @param httpResponse The response read from the server.
+     * @return The response to report.
+     */
+    protected HTTPResponse handleResponse(HTTPResponse httpResponse) {
+        return httpResponse;
+    }
+
+    /**
+     * Called with each response and the request it answers, before it is reported.
+     * Subclasses that need to know which request a response answers, such as when requests
+     * are outstanding concurrently, override this instead of {@link #handleResponse(HTTPResponse)}.
+     *
+     * @param request      The encoded request the response answers.
+     * @param httpResponse The response read from the server.
+     * @return The response to report.
+     */
+    protected HTTPResponse handleResponse(String request, HTTPResponse httpResponse) {
+        return handleResponse(httpResponse);
+    }
+
+    private HTTPResponse retrieveHttpResponse(HTTPConnection connection) throws IOException {
         HTTPResponse httpResponse = null;
         while (httpResponse == null) {
-            httpResponse = (HTTPResponse) httpConn.readMessage();
+            httpResponse = (HTTPResponse) connection.readMessage();
         }
         return httpResponse;
     }
 
     @Override
-    public void close() throws IOException {
-        httpConn.manuallyClose();
+    public synchronized void close() throws IOException {
+        synchronized (asyncLock) {
+            if (asyncLoop != null) {
+                asyncLoop.close();
+                asyncLoop = null;
+            }
+        }
+        if (httpConn != null) {
+            httpConn.manuallyClose();
+            httpConn = null;
+        }
     }
 }
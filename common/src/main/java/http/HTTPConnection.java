@@ -4,6 +4,8 @@ import http.messages.HTTPMessage;
 
 import java.io.*;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -13,14 +15,23 @@ import java.net.ProtocolException;
  * Manages an HTTP connection, enabling the sending and receiving of HTTP messages.
  */
 public class HTTPConnection implements AutoCloseable {
+    private static final int READ_BUFFER_SIZE = 8 * 1024;
+
     protected Socket socket;
     protected Writer out;
     protected BufferedReader in;
+    protected InputStream inputStream;
+    protected OutputStream outputStream;
+    private ByteBuffer readBuffer;
+    private HTTPMessageParser parser;
 
     private static final Logger logger = Logger.getLogger(HTTPConnection.class.getName());
 
     /**
-     * Constructs an HTTPConnection.
+     * Constructs an HTTPConnection which exchanges messages as characters.
+     * Character streams cannot honour Content-Length for non-ASCII bodies, so new callers should
+     * use {@link #HTTPConnection(Socket, InputStream, OutputStream)}; this form is kept for
+     * {@link HTTPServer#receiveClientRequest} and callers already holding a reader and writer.
      *
      * @param socket The socket to be used for the connection.
      * @throws IOException if an I/O error occurs when creating the input and output streams, or if the socket is closed.
@@ -31,6 +42,23 @@ public class HTTPConnection implements AutoCloseable {
         this.in = in;
     }
 
+    /**
+     * Constructs an HTTPConnection which reads and writes raw bytes, parsing messages
+     * incrementally with an {@link HTTPMessageParser}.
+     *
+     * @param socket       The socket to be used for the connection.
+     * @param inputStream  The stream messages are read from.
+     * @param outputStream The stream messages are written to.
+     */
+    public HTTPConnection(Socket socket, InputStream inputStream, OutputStream outputStream) {
+        this.socket = socket;
+        this.inputStream = inputStream;
+        this.outputStream = outputStream;
+        this.readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        this.readBuffer.flip();
+        this.parser = new HTTPMessageParser();
+    }
+
     /**
      * Sends a message over the HTTP connection.
      *
@@ -38,10 +66,29 @@ public class HTTPConnection implements AutoCloseable {
      * @throws IOException if an I/O error occurs.
      */
     public void sendMessage(String message) throws IOException {
+        if (outputStream != null) {
+            sendBytes(message.getBytes(StandardCharsets.UTF_8));
+            return;
+        }
         out.write(message, 0, message.length());
         out.flush();
     }
 
+    /**
+     * Sends an already encoded message over the HTTP connection.
+     *
+     * @param message The message bytes to be sent.
+     * @throws IOException if an I/O error occurs.
+     */
+    public void sendBytes(byte[] message) throws IOException {
+        if (outputStream == null) {
+            sendMessage(new String(message, StandardCharsets.UTF_8));
+            return;
+        }
+        outputStream.write(message);
+        outputStream.flush();
+    }
+
     /**
      * Reads an HTTP message from the connection.
      *
@@ -49,6 +96,9 @@ public class HTTPConnection implements AutoCloseable {
      * @throws IOException if an I/O error occurs or if the connection is unexpectedly closed.
      */
     public HTTPMessage readMessage() throws IOException {
+        if (parser != null) {
+            return readMessageBytes();
+        }
         HTTPMessage httpMessage = new HTTPMessage();
         httpMessage = readFirstLine(httpMessage);
         if (httpMessage == null) {
@@ -61,6 +111,30 @@ public class HTTPConnection implements AutoCloseable {
     }
 
 
+    /**
+     * Feeds bytes from the input stream to the parser until it produces a complete message.
+     * Bytes of any following pipelined message stay in the read buffer for the next call.
+     */
+    private HTTPMessage readMessageBytes() throws IOException {
+        while (true) {
+            HTTPMessage httpMessage = parser.parse(readBuffer);
+            if (httpMessage != null) {
+                return httpMessage;
+            }
+
+            readBuffer.clear();
+            int bytesRead = inputStream.read(readBuffer.array(), 0, readBuffer.capacity());
+            if (bytesRead == -1) {
+                readBuffer.limit(0);
+                if (parser.isMidMessage()) {
+                    throw new IOException("Connection closed before all data was read");
+                }
+                throw new EOFException("Connection closed");
+            }
+            readBuffer.limit(bytesRead);
+        }
+    }
+
     private HTTPMessage readFirstLine(HTTPMessage httpMessage) throws IOException {
         String line = in.readLine();
 
@@ -179,7 +253,17 @@ public class HTTPConnection implements AutoCloseable {
      * @throws IOException if an I/O error occurs.
      */
     private void closeStreams() throws IOException {
-        in.close();
-        out.close();
+        if (in != null) {
+            in.close();
+        }
+        if (out != null) {
+            out.close();
+        }
+        if (inputStream != null) {
+            inputStream.close();
+        }
+        if (outputStream != null) {
+            outputStream.close();
+        }
     }
 }
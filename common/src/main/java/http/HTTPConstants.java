@@ -4,5 +4,7 @@ public class HTTPConstants {
     public static String HEADER_CONTENT_LENGTH = "Content-Length";
     public static String HEADER_CONTENT_TYPE = "Content-Type";
     public static String HEADER_CONNECTION = "Connection";
+    public static String HEADER_ETAG = "ETag";
+    public static String HEADER_IF_NONE_MATCH = "If-None-Match";
     public static String ERROR_INVALID_CONTENT_LENGTH = "Invalid Content-Length header";
 }
@@ -0,0 +1,315 @@
+package http;
+
+import http.messages.HTTPMessage;
+import http.messages.HTTPRequest;
+import http.messages.HTTPResponse;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Incremental HTTP/1.x message parser working directly on raw bytes.
+ * Bytes are fed through {@link #parse(ByteBuffer)} as they arrive; the parser consumes what it
+ * needs, remembers where it stopped, and returns a message once one is complete. Any bytes
+ * belonging to a following pipelined message are left in the buffer.
+ * Tokens are matched against byte constants, so apart from the header values and body that
+ * end up in the message no intermediate strings are created.
+ * One parser instance belongs to one connection and is not thread safe.
+ */
+public class HTTPMessageParser {
+    public static final int MAX_LINE_LENGTH = 8 * 1024;
+    public static final int MAX_HEADER_COUNT = 100;
+    public static final int MAX_BODY_LENGTH = 8 * 1024 * 1024;
+
+    private static final byte[][] METHODS = bytes("GET", "PUT", "POST", "DELETE");
+    private static final String[] METHOD_NAMES = {"GET", "PUT", "POST", "DELETE"};
+    private static final byte[][] PROTOCOL_VERSIONS = bytes("HTTP/1.1", "HTTP/1.0");
+    private static final String[] PROTOCOL_VERSION_NAMES = {"HTTP/1.1", "HTTP/1.0"};
+    private static final byte[][] HEADER_NAMES = bytes(HTTPMessage.SUPPORTED_HEADERS);
+
+    private enum State {
+        START_LINE,
+        HEADERS,
+        BODY
+    }
+
+    private State state = State.START_LINE;
+    private byte[] line = new byte[256];
+    private int lineLength = 0;
+    private int headerCount = 0;
+    private HTTPMessage message;
+    private byte[] body;
+    private int bodyLength = 0;
+
+    /**
+     * Consumes bytes from the buffer until a complete message has been parsed or the buffer is drained.
+     *
+     * @param buffer A buffer ready for reading; its position is advanced past the consumed bytes.
+     * @return The complete message, or null if more bytes are needed.
+     * @throws ProtocolException If the bytes do not form a valid HTTP message. The parser is reset.
+     */
+    public HTTPMessage parse(ByteBuffer buffer) throws ProtocolException {
+        try {
+            while (buffer.hasRemaining()) {
+                if (state == State.BODY) {
+                    if (readBody(buffer)) {
+                        return complete();
+                    }
+                } else if (readLine(buffer)) {
+                    HTTPMessage completed = (state == State.START_LINE) ? processStartLine() : processHeaderLine();
+                    lineLength = 0;
+                    if (completed != null) {
+                        return completed;
+                    }
+                }
+            }
+            return null;
+        } catch (ProtocolException e) {
+            reset();
+            throw e;
+        } catch (IllegalArgumentException e) {
+            reset();
+            ProtocolException protocolException = new ProtocolException(e.getMessage());
+            protocolException.initCause(e);
+            throw protocolException;
+        }
+    }
+
+    /**
+     * Reports whether the parser is part way through a message.
+     *
+     * @return true if bytes of an incomplete message have been consumed.
+     */
+    public boolean isMidMessage() {
+        return state != State.START_LINE || lineLength > 0;
+    }
+
+    /**
+     * Discards any partially parsed message.
+     */
+    public void reset() {
+        state = State.START_LINE;
+        lineLength = 0;
+        headerCount = 0;
+        message = null;
+        body = null;
+        bodyLength = 0;
+    }
+
+    /**
+     * Copies bytes into the line buffer up to and including the next LF.
+     *
+     * @return true once a full line (without its CRLF or LF terminator) is in the line buffer.
+     */
+    private boolean readLine(ByteBuffer buffer) throws ProtocolException {
+        while (buffer.hasRemaining()) {
+            byte b = buffer.get();
+            if (b == '\n') {
+                if (lineLength > 0 && line[lineLength - 1] == '\r') {
+                    lineLength--;
+                }
+                return true;
+            }
+            if (lineLength == line.length) {
+                if (lineLength >= MAX_LINE_LENGTH) {
+                    throw new ProtocolException("Line exceeds " + MAX_LINE_LENGTH + " bytes");
+                }
+                byte[] larger = new byte[Math.min(line.length * 2, MAX_LINE_LENGTH)];
+                System.arraycopy(line, 0, larger, 0, lineLength);
+                line = larger;
+            }
+            line[lineLength++] = b;
+        }
+        return false;
+    }
+
+    private HTTPMessage processStartLine() throws ProtocolException {
+        // Tolerate blank lines before a message, e.g. a stray CRLF after a previous body
+        if (lineLength == 0) {
+            return null;
+        }
+
+        int firstSpace = indexOf((byte) ' ', 0, lineLength);
+        int secondSpace = firstSpace < 0 ? -1 : indexOf((byte) ' ', firstSpace + 1, lineLength);
+        if (firstSpace <= 0) {
+            throw new ProtocolException("Invalid first line");
+        }
+
+        int method = match(METHODS, 0, firstSpace, false);
+        if (method >= 0) {
+            if (secondSpace < 0) {
+                throw new ProtocolException("Invalid request line");
+            }
+            int version = match(PROTOCOL_VERSIONS, secondSpace + 1, lineLength, false);
+            if (version < 0 || line[firstSpace + 1] != '/' || secondSpace == firstSpace + 1) {
+                throw new ProtocolException("Invalid request line");
+            }
+            HTTPRequest httpRequest = new HTTPRequest();
+            httpRequest.setRequestLine(METHOD_NAMES[method], text(firstSpace + 1, secondSpace), PROTOCOL_VERSION_NAMES[version]);
+            message = httpRequest;
+        } else {
+            int version = match(PROTOCOL_VERSIONS, 0, firstSpace, false);
+            // The reason phrase may be left out, as in "HTTP/1.1 204"
+            int statusCode = parseDecimal(firstSpace + 1, secondSpace < 0 ? lineLength : secondSpace);
+            if (version < 0 || statusCode < 100 || statusCode > 599) {
+                throw new ProtocolException("Invalid first line");
+            }
+            HTTPResponse httpResponse = new HTTPResponse();
+            httpResponse.setResponseLine(text(firstSpace + 1, lineLength), PROTOCOL_VERSION_NAMES[version]);
+            message = httpResponse;
+        }
+
+        state = State.HEADERS;
+        return null;
+    }
+
+    private HTTPMessage processHeaderLine() throws ProtocolException {
+        if (lineLength == 0) {
+            return startBody();
+        }
+        if (++headerCount > MAX_HEADER_COUNT) {
+            throw new ProtocolException("Too many headers");
+        }
+
+        int colon = indexOf((byte) ':', 0, lineLength);
+        if (colon <= 0) {
+            throw new ProtocolException("Invalid header");
+        }
+        int nameEnd = trimEnd(0, colon);
+        int header = match(HEADER_NAMES, 0, nameEnd, true);
+        // Headers the message model does not support are skipped without decoding them
+        if (header >= 0) {
+            int valueStart = trimStart(colon + 1, lineLength);
+            int valueEnd = trimEnd(valueStart, lineLength);
+            message.setHeader(HTTPMessage.SUPPORTED_HEADERS[header], text(valueStart, valueEnd));
+        }
+        return null;
+    }
+
+    private HTTPMessage startBody() throws ProtocolException {
+        String contentLengthHeader = message.getHeader(HTTPConstants.HEADER_CONTENT_LENGTH);
+        int contentLength = contentLengthHeader == null ? 0 : parseContentLength(contentLengthHeader);
+        if (contentLength > MAX_BODY_LENGTH) {
+            throw new ProtocolException("Body exceeds " + MAX_BODY_LENGTH + " bytes");
+        }
+        if (contentLength == 0) {
+            message.setBody("");
+            return complete();
+        }
+        body = new byte[contentLength];
+        bodyLength = 0;
+        state = State.BODY;
+        return null;
+    }
+
+    private boolean readBody(ByteBuffer buffer) {
+        int count = Math.min(buffer.remaining(), body.length - bodyLength);
+        buffer.get(body, bodyLength, count);
+        bodyLength += count;
+        if (bodyLength < body.length) {
+            return false;
+        }
+        message.setBody(new String(body, StandardCharsets.UTF_8));
+        return true;
+    }
+
+    private HTTPMessage complete() {
+        HTTPMessage completed = message;
+        reset();
+        return completed;
+    }
+
+    private static int parseContentLength(String value) throws ProtocolException {
+        long contentLength = 0;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c < '0' || c > '9' || contentLength > Integer.MAX_VALUE) {
+                throw new ProtocolException(HTTPConstants.ERROR_INVALID_CONTENT_LENGTH);
+            }
+            contentLength = contentLength * 10 + (c - '0');
+        }
+        if (value.isEmpty() || contentLength > Integer.MAX_VALUE) {
+            throw new ProtocolException(HTTPConstants.ERROR_INVALID_CONTENT_LENGTH);
+        }
+        return (int) contentLength;
+    }
+
+    private int parseDecimal(int from, int to) {
+        if (to <= from || to - from > 3) {
+            return -1;
+        }
+        int value = 0;
+        for (int i = from; i < to; i++) {
+            if (line[i] < '0' || line[i] > '9') {
+                return -1;
+            }
+            value = value * 10 + (line[i] - '0');
+        }
+        return value;
+    }
+
+    /**
+     * Finds which candidate equals the given slice of the line buffer.
+     *
+     * @return The index of the matching candidate, or -1.
+     */
+    private int match(byte[][] candidates, int from, int to, boolean ignoreCase) {
+        for (int i = 0; i < candidates.length; i++) {
+            byte[] candidate = candidates[i];
+            if (candidate.length == to - from && regionMatches(candidate, from, ignoreCase)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private boolean regionMatches(byte[] candidate, int from, boolean ignoreCase) {
+        for (int i = 0; i < candidate.length; i++) {
+            byte b = line[from + i];
+            if (b != candidate[i] && !(ignoreCase && toLowerCase(b) == toLowerCase(candidate[i]))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int indexOf(byte target, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (line[i] == target) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private int trimStart(int from, int to) {
+        while (from < to && (line[from] == ' ' || line[from] == '\t')) {
+            from++;
+        }
+        return from;
+    }
+
+    private int trimEnd(int from, int to) {
+        while (to > from && (line[to - 1] == ' ' || line[to - 1] == '\t')) {
+            to--;
+        }
+        return to;
+    }
+
+    private String text(int from, int to) {
+        return new String(line, from, to - from, StandardCharsets.UTF_8);
+    }
+
+    private static byte toLowerCase(byte b) {
+        return (b >= 'A' && b <= 'Z') ? (byte) (b + ('a' - 'A')) : b;
+    }
+
+    private static byte[][] bytes(String... values) {
+        byte[][] result = new byte[values.length][];
+        for (int i = 0; i < values.length; i++) {
+            result[i] = values[i].getBytes(StandardCharsets.US_ASCII);
+        }
+        return result;
+    }
+}
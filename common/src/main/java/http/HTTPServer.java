@@ -2,14 +2,20 @@ package http;
 
 import http.messages.HTTPRequest;
 
+import java.io.EOFException;
 import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.ProtocolException;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.nio.Buffer;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.logging.Level;
@@ -20,20 +26,67 @@ import java.util.logging.Logger;
  * and responding according to the implemented HTTP methods.
  */
 public abstract class HTTPServer implements AutoCloseable {
+    /**
+     * The strategies available for serving client connections.
+     */
+    public enum ExecutionMode {
+        THREAD_POOL,
+        VIRTUAL_THREADS,
+        SELECTOR
+    }
+
+    public static final int DEFAULT_WORKER_THREADS = 10;
+    // Idle keep-alive connections are closed after this long, so they do not hold pool threads
+    public static final int KEEP_ALIVE_TIMEOUT_MS = 30000;
+    // The first Java release with virtual threads
+    public static final int VIRTUAL_THREADS_JAVA_VERSION = 21;
+
     private final ServerSocket serverSocket;
+    private final ExecutionMode executionMode;
     private final ExecutorService threadPool;
+    private SelectorEngine selectorEngine;
     private static final Logger LOGGER = Logger.getLogger(HTTPServer.class.getName());
 
     /**
-     * Constructs a HTTPServer.
+     * Constructs a HTTPServer which serves each connection on a fixed thread pool.
      *
      * @param serverSocket The server socket through which the server communicates.
      * @throws RuntimeException If the server socket is invalid.
      */
     public HTTPServer(ServerSocket serverSocket) throws RuntimeException {
+        this(serverSocket, ExecutionMode.THREAD_POOL, DEFAULT_WORKER_THREADS);
+    }
+
+    /**
+     * Constructs a HTTPServer using the given execution mode.
+     * In {@link ExecutionMode#SELECTOR} mode the server socket must have been opened through a
+     * {@link java.nio.channels.ServerSocketChannel}, and the worker threads only run request handlers.
+     * In {@link ExecutionMode#VIRTUAL_THREADS} mode every connection gets its own virtual thread
+     * and the worker thread count is ignored.
+     *
+     * @param serverSocket  The server socket through which the server communicates.
+     * @param executionMode The strategy used to serve client connections.
+     * @param workerThreads The number of threads used to run connections or request handlers.
+     * @throws IllegalArgumentException If the server socket cannot be used with the execution mode.
+     * @throws UnsupportedOperationException If virtual threads are requested on a JVM without them.
+     */
+    public HTTPServer(ServerSocket serverSocket, ExecutionMode executionMode, int workerThreads) {
+        if (executionMode == ExecutionMode.VIRTUAL_THREADS && !areVirtualThreadsSupported()) {
+            throw new UnsupportedOperationException("Virtual threads require Java " + VIRTUAL_THREADS_JAVA_VERSION
+                                                    + " or later; this JVM is Java " + Runtime.version().feature());
+        }
+        if (executionMode == ExecutionMode.SELECTOR && serverSocket.getChannel() == null) {
+            throw new IllegalArgumentException("Selector mode requires a server socket opened through a ServerSocketChannel");
+        }
+        if (workerThreads < 1 && executionMode != ExecutionMode.VIRTUAL_THREADS) {
+            throw new IllegalArgumentException("Worker thread count must be positive");
+        }
         this.serverSocket = serverSocket;
-        threadPool = Executors.newFixedThreadPool(10);
-        LOGGER.log(Level.INFO, "Server started and listening on port " + serverSocket.getLocalPort());
+        this.executionMode = executionMode;
+        threadPool = executionMode == ExecutionMode.VIRTUAL_THREADS
+                ? newVirtualThreadPerTaskExecutor()
+                : Executors.newFixedThreadPool(workerThreads);
+        LOGGER.log(Level.INFO, "Server started and listening on port " + serverSocket.getLocalPort() + " (" + executionMode + ")");
     }
 
     /**
@@ -52,6 +105,43 @@ public abstract class HTTPServer implements AutoCloseable {
     public abstract String handleDELETERequest(HTTPRequest httpRequest);
     public abstract String handleError();
 
+    /**
+     * Handles a GET request and returns the encoded response. Servers which keep responses
+     * already encoded override this to hand them out without building a string.
+     *
+     * @param httpRequest The incoming HTTP request.
+     * @return The server's response as UTF-8 bytes.
+     */
+    protected byte[] handleGETRequestBytes(HTTPRequest httpRequest) {
+        return this.handleGETRequest(httpRequest).getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Handles a GET request whose response may only be ready later, such as a long-poll.
+     * The default answers at once; servers override this to complete the future when the
+     * response is available instead of holding a thread. In the selector engine nothing is held
+     * while the request waits, while the thread-per-connection engines wait on the future.
+     *
+     * @param httpRequest The incoming HTTP request.
+     * @return A future completed with the server's response as UTF-8 bytes.
+     */
+    protected CompletableFuture<byte[]> handleGETRequestAsync(HTTPRequest httpRequest) {
+        return CompletableFuture.completedFuture(this.handleGETRequestBytes(httpRequest));
+    }
+
+    /**
+     * Handles a PUT request whose response may only be ready later, such as once the update is
+     * durable. The request's effects must be applied before this returns, since the next
+     * request on the same connection may be handled as soon as it does; only the response may
+     * complete later. The default answers at once.
+     *
+     * @param httpRequest The incoming HTTP request.
+     * @return A future completed with the server's response as UTF-8 bytes.
+     */
+    protected CompletableFuture<byte[]> handlePUTRequestAsync(HTTPRequest httpRequest) {
+        return CompletableFuture.completedFuture(this.handlePUTRequest(httpRequest).getBytes(StandardCharsets.UTF_8));
+    }
+
     /**
      * Handles the incoming client request by processing the HTTP method
      * and sends back an appropriate response.
@@ -60,41 +150,35 @@ public abstract class HTTPServer implements AutoCloseable {
      * @throws IOException If an I/O error occurs when creating the HTTP connection.
      */
     public void receiveClientRequest(Socket clientSocket, BufferedReader in, BufferedWriter out) throws IOException {
-        try (HTTPConnection conn = new HTTPConnection(clientSocket, out, in)) {
+        serveConnection(new HTTPConnection(clientSocket, out, in), clientSocket);
+    }
+
+    /**
+     * Reads requests from the connection and answers each one until the client asks to close it.
+     *
+     * @param conn         The connection to serve; closed on return.
+     * @param clientSocket The socket connecting to the client.
+     */
+    private void serveConnection(HTTPConnection conn, Socket clientSocket) {
+        try (conn) {
             boolean keepAlive = false;
             HTTPRequest httpRequest = new HTTPRequest();
             do {
                 try {
                     httpRequest = (HTTPRequest) conn.readMessage();
-                } catch (Exception e) {
-                    LOGGER.log(Level.WARNING, "Error reading client request", e.getMessage());
-                    conn.sendMessage(this.handleError());
+                } catch (ProtocolException | IllegalArgumentException | ClassCastException e) {
+                    // The rest of the stream cannot be framed reliably, so answer and close
+                    LOGGER.log(Level.WARNING, "Error reading client request: " + e.getMessage());
+                    conn.sendBytes(withConnectionClose(this.handleError().getBytes(StandardCharsets.UTF_8)));
+                    return;
                 }
 
                 // Check if the HTTP request is valid
                 if (httpRequest == null) {
                     continue;
                 }
-                System.out.println("--------------------------------------");
-                LOGGER.log(Level.INFO, "Received client request from " + clientSocket.getInetAddress() + ":\n" + httpRequest.toString());
-                String httpResponse = null;
-                switch (httpRequest.getRequestMethod() != null ? httpRequest.getRequestMethod() : "") {
-                    case "GET":
-                        httpResponse = this.handleGETRequest(httpRequest);
-                        break;
-                    case "PUT":
-                        httpResponse = this.handlePUTRequest(httpRequest);
-                        break;
-                    case "POST":
-                        httpResponse = this.handlePOSTRequest(httpRequest);
-                        break;
-                    case "DELETE":
-                        httpResponse = this.handleDELETERequest(httpRequest);
-                        break;
-                    default:
-                        LOGGER.log(Level.WARNING, "Received an invalid HTTP method from: " + clientSocket.getInetAddress());
-                        break;
-                }
+                byte[] httpResponse = matchConnectionHeader(httpRequest,
+                        awaitResponse(dispatchRequestAsync(httpRequest, String.valueOf(clientSocket.getInetAddress()))));
 
                 if (keepAlive = httpRequest.shouldKeepConnectionAlive()) {
                     LOGGER.log(Level.INFO, "Keeping the connection alive upon request from: " + clientSocket.getInetAddress());
@@ -102,22 +186,164 @@ public abstract class HTTPServer implements AutoCloseable {
                     LOGGER.log(Level.INFO, "Closing the connection upon completion of the request from: " + clientSocket.getInetAddress());
                 }
 
-                conn.sendMessage(httpResponse);
-                LOGGER.log(Level.INFO, "Sent response to client " + clientSocket.getInetAddress() + ":\n" + httpResponse);
+                conn.sendBytes(httpResponse);
+                if (LOGGER.isLoggable(Level.INFO)) {
+                    LOGGER.log(Level.INFO, "Sent response to client " + clientSocket.getInetAddress() + ":\n"
+                                           + new String(httpResponse, StandardCharsets.UTF_8));
+                }
             } while (keepAlive);
+        } catch (EOFException e) {
+            LOGGER.log(Level.INFO, "Connection closed by client: " + clientSocket.getInetAddress());
+        } catch (SocketTimeoutException e) {
+            LOGGER.log(Level.INFO, "Closing idle connection from: " + clientSocket.getInetAddress());
         } catch (IOException e) {
             LOGGER.log(Level.WARNING, "I/O exception while processing request from: " + clientSocket.getInetAddress(), e);
         } catch (Exception e) {
             LOGGER.log(Level.WARNING, "Unexpected error while processing request from: " + clientSocket.getInetAddress(), e);
         }
     }
-    
+
+    /**
+     * Makes a response's Connection header agree with the request, which closes the connection
+     * after the response when it did not ask to keep it alive.
+     *
+     * @param httpRequest  The request being answered.
+     * @param httpResponse The encoded response; left unchanged.
+     * @return The response, or a copy of it whose Connection header is close.
+     */
+    static byte[] matchConnectionHeader(HTTPRequest httpRequest, byte[] httpResponse) {
+        return httpRequest.shouldKeepConnectionAlive() ? httpResponse : withConnectionClose(httpResponse);
+    }
+
+    /**
+     * Returns a copy of an encoded response whose Connection header is close, replacing a
+     * keep-alive header or adding one after the status line. Handlers may return shared
+     * cached responses, so the response itself is never modified.
+     *
+     * @param httpResponse The encoded response.
+     * @return The response if it already says close or has no header section, otherwise a copy.
+     */
+    static byte[] withConnectionClose(byte[] httpResponse) {
+        // Header bytes are ASCII, so ISO-8859-1 maps them one to one
+        String response = new String(httpResponse, StandardCharsets.ISO_8859_1);
+        int headersEnd = response.indexOf("\r\n\r\n");
+        int statusLineEnd = response.indexOf("\r\n");
+        if (headersEnd < 0) {
+            return httpResponse;
+        }
+        String headers = response.substring(0, headersEnd + 2);
+        if (headers.contains("\r\nConnection: close\r\n")) {
+            return httpResponse;
+        }
+        String closingHeaders = headers.contains("\r\nConnection: keep-alive\r\n")
+                ? headers.replace("\r\nConnection: keep-alive\r\n", "\r\nConnection: close\r\n")
+                : headers.substring(0, statusLineEnd + 2) + "Connection: close\r\n" + headers.substring(statusLineEnd + 2);
+        return (closingHeaders + response.substring(headersEnd + 2)).getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Routes a parsed request to the handler for its HTTP method.
+     * Shared by every execution mode so handlers see the same contract regardless of how the
+     * connection is served.
+     *
+     * @param httpRequest   The parsed HTTP request.
+     * @param clientAddress The address of the client, used for logging.
+     * @return The server's response.
+     */
+    protected String dispatchRequest(HTTPRequest httpRequest, String clientAddress) {
+        logRequest(httpRequest, clientAddress);
+        switch (httpRequest.getRequestMethod() != null ? httpRequest.getRequestMethod() : "") {
+            case "GET":
+                return this.handleGETRequest(httpRequest);
+            case "PUT":
+                return this.handlePUTRequest(httpRequest);
+            case "POST":
+                return this.handlePOSTRequest(httpRequest);
+            case "DELETE":
+                return this.handleDELETERequest(httpRequest);
+            default:
+                // Answered with the error response; the null response sent before cannot be written by the selector engine
+                LOGGER.log(Level.WARNING, "Received an invalid HTTP method from: " + clientAddress);
+                return this.handleError();
+        }
+    }
+
+    /**
+     * Routes a parsed request like {@link #dispatchRequest}, returning the encoded response.
+     * GET requests go through {@link #handleGETRequestBytes}, so cached responses are not copied.
+     *
+     * @param httpRequest   The parsed HTTP request.
+     * @param clientAddress The address of the client, used for logging.
+     * @return The server's response as UTF-8 bytes.
+     */
+    protected byte[] dispatchRequestBytes(HTTPRequest httpRequest, String clientAddress) {
+        if ("GET".equals(httpRequest.getRequestMethod())) {
+            logRequest(httpRequest, clientAddress);
+            return this.handleGETRequestBytes(httpRequest);
+        }
+        return dispatchRequest(httpRequest, clientAddress).getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Routes a parsed request like {@link #dispatchRequestBytes}, except that GET and PUT requests
+     * go through {@link #handleGETRequestAsync} and {@link #handlePUTRequestAsync} and may complete later.
+     *
+     * @param httpRequest   The parsed HTTP request.
+     * @param clientAddress The address of the client, used for logging.
+     * @return A future completed with the server's response as UTF-8 bytes.
+     */
+    protected CompletableFuture<byte[]> dispatchRequestAsync(HTTPRequest httpRequest, String clientAddress) {
+        switch (httpRequest.getRequestMethod() != null ? httpRequest.getRequestMethod() : "") {
+            case "GET":
+                logRequest(httpRequest, clientAddress);
+                return this.handleGETRequestAsync(httpRequest);
+            case "PUT":
+                logRequest(httpRequest, clientAddress);
+                return this.handlePUTRequestAsync(httpRequest);
+            default:
+                return CompletableFuture.completedFuture(dispatchRequest(httpRequest, clientAddress).getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    /**
+     * Waits for a response on the calling connection thread, answering with the error
+     * response if it could not be produced.
+     *
+     * @param response The pending response.
+     * @return The response as UTF-8 bytes.
+     */
+    private byte[] awaitResponse(CompletableFuture<byte[]> response) {
+        try {
+            return response.join();
+        } catch (CompletionException | CancellationException e) {
+            LOGGER.log(Level.WARNING, "Error completing response: " + e.getMessage());
+            return this.handleError().getBytes(StandardCharsets.UTF_8);
+        }
+    }
+
+    private void logRequest(HTTPRequest httpRequest, String clientAddress) {
+        System.out.println("--------------------------------------");
+        LOGGER.log(Level.INFO, "Received client request from " + clientAddress + ":\n" + httpRequest.toString());
+    }
+
     /**
      * Continuously listens for client connections, accepts incoming connections,
-     * and delegates the request handling to a thread pool.
+     * and serves them according to the configured execution mode.
      */
     public void run() {
-        while (true) {
+        if (executionMode == ExecutionMode.SELECTOR) {
+            runSelectorEngine();
+        } else {
+            runThreadPool();
+        }
+    }
+
+    /**
+     * Accepts connections on the blocking server socket and hands each one to the thread pool,
+     * or to a fresh virtual thread in {@link ExecutionMode#VIRTUAL_THREADS} mode.
+     */
+    private void runThreadPool() {
+        while (!serverSocket.isClosed()) {
             try {
                 final Socket clientSocket = serverSocket.accept();
                 threadPool.submit(() -> handleClientSocket(clientSocket));
@@ -127,6 +353,48 @@ public abstract class HTTPServer implements AutoCloseable {
         }
     }
 
+    /**
+     * Serves connections through non-blocking channels multiplexed over a few event loops.
+     */
+    private void runSelectorEngine() {
+        int eventLoops = Math.max(1, Runtime.getRuntime().availableProcessors());
+        try {
+            selectorEngine = new SelectorEngine(this, serverSocket.getChannel(), threadPool, eventLoops);
+            selectorEngine.run();
+        } catch (IOException e) {
+            LOGGER.log(Level.SEVERE, "Selector engine stopped unexpectedly", e);
+        }
+    }
+
+    /**
+     * Checks whether the running JVM has virtual threads, so {@link ExecutionMode#VIRTUAL_THREADS}
+     * can be rejected before a server is started.
+     *
+     * @return true on Java 21 or later.
+     */
+    public static boolean areVirtualThreadsSupported() {
+        return Runtime.version().feature() >= VIRTUAL_THREADS_JAVA_VERSION;
+    }
+
+    /**
+     * Creates an executor which starts a new virtual thread for each task.
+     * Looked up reflectively so the server still builds and runs on JDKs older than 21
+     * when virtual threads are not requested; callers check {@link #areVirtualThreadsSupported()} first.
+     *
+     * @return The virtual-thread-per-task executor.
+     * @throws UnsupportedOperationException If the running JVM has no virtual threads.
+     */
+    private static ExecutorService newVirtualThreadPerTaskExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (NoSuchMethodException | InvocationTargetException e) {
+            throw new UnsupportedOperationException("Virtual threads require Java 21 or later", e);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException("Unable to create a virtual thread executor", e);
+        }
+    }
+
     /**
      * Handles the client socket by processing the request and closing resources afterward.
      *
@@ -134,9 +402,8 @@ public abstract class HTTPServer implements AutoCloseable {
      */
     private void handleClientSocket(Socket clientSocket) {
         try {
-            BufferedReader in = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
-            BufferedWriter out = new BufferedWriter(new OutputStreamWriter(clientSocket.getOutputStream()));
-            this.receiveClientRequest(clientSocket, in, out);
+            clientSocket.setSoTimeout(KEEP_ALIVE_TIMEOUT_MS);
+            serveConnection(new HTTPConnection(clientSocket, clientSocket.getInputStream(), clientSocket.getOutputStream()), clientSocket);
         } catch (IOException e) {
             LOGGER.log(Level.SEVERE, "Error receiving client request", e);
         } finally {
@@ -149,12 +416,16 @@ public abstract class HTTPServer implements AutoCloseable {
     }
 
     /**
-     * Closes the server socket.
+     * Closes the server socket and stops the worker threads.
      *
      * @throws IOException If an I/O error occurs when closing the socket.
      */
     @Override
     public void close() throws IOException {
         serverSocket.close();
+        if (selectorEngine != null) {
+            selectorEngine.close();
+        }
+        threadPool.shutdown();
     }
 }
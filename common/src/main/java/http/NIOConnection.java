@@ -0,0 +1,229 @@
+package http;
+
+import http.messages.HTTPMessage;
+import http.messages.HTTPRequest;
+
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Per-connection state for the selector engine.
+ * Bytes are fed to an incremental parser as they arrive and complete requests are handed to the
+ * worker pool one at a time, so a client's requests take effect in the order they were sent.
+ * The next pipelined request is dispatched as soon as the previous handler returns, without
+ * waiting for its response, and responses are queued in request order and written as each
+ * becomes ready. A client which half-closes its side still has every request it sent
+ * answered before the connection is closed. Only ever used from its event loop's thread.
+ */
+class NIOConnection {
+    private static final Logger LOGGER = Logger.getLogger(NIOConnection.class.getName());
+    private static final int READ_BUFFER_SIZE = 8 * 1024;
+    // Requests awaiting a response before reading pauses, bounding memory per pipelining client
+    private static final int MAX_PENDING_RESPONSES = 64;
+
+    private final EventLoop eventLoop;
+    private final SocketChannel channel;
+    private final SelectionKey key;
+    private final String remoteAddress;
+    private final Deque<ByteBuffer> pendingWrites = new ArrayDeque<>();
+    private final Deque<PendingResponse> pendingResponses = new ArrayDeque<>();
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+    private final HTTPMessageParser parser = new HTTPMessageParser();
+    private boolean handlerRunning = false;
+    private boolean closeRequested = false;
+    // The client has shut down its output; requests already received are still answered
+    private boolean inputShutdown = false;
+
+    /**
+     * The slot for one request's response, held in request order until it can be written.
+     */
+    static final class PendingResponse {
+        private byte[] response;
+    }
+
+    NIOConnection(EventLoop eventLoop, SocketChannel channel, SelectionKey key) {
+        this.eventLoop = eventLoop;
+        this.channel = channel;
+        this.key = key;
+        this.remoteAddress = String.valueOf(channel.socket().getInetAddress());
+    }
+
+    String getRemoteAddress() {
+        return remoteAddress;
+    }
+
+    /**
+     * Reads whatever bytes are available and dispatches a request once one is complete.
+     * At the end of the client's stream the connection stops reading, and closes once the
+     * requests already received have been answered.
+     *
+     * @throws IOException If reading from the channel fails.
+     */
+    void onReadable() throws IOException {
+        if (channel.read(readBuffer) == -1) {
+            inputShutdown = true;
+            onWritable();
+            return;
+        }
+        processBufferedRequest();
+        updateInterestOps();
+    }
+
+    /**
+     * Flushes queued response bytes, closing the connection once the last response to a
+     * request that asked for it, or to the last request before the client half-closed, has
+     * been written.
+     *
+     * @throws IOException If writing to the channel fails.
+     */
+    void onWritable() throws IOException {
+        while (!pendingWrites.isEmpty()) {
+            ByteBuffer buffer = pendingWrites.peek();
+            channel.write(buffer);
+            if (buffer.hasRemaining()) {
+                updateInterestOps();
+                return;
+            }
+            pendingWrites.poll();
+        }
+
+        processBufferedRequest();
+        if ((closeRequested || inputShutdown) && pendingResponses.isEmpty() && !handlerRunning) {
+            close();
+            return;
+        }
+        updateInterestOps();
+    }
+
+    /**
+     * Called once the handler of the dispatched request has returned, so the next pipelined
+     * request may be dispatched even though its response may still be pending.
+     */
+    void handlerReturned() {
+        handlerRunning = false;
+        if (!channel.isOpen()) {
+            return;
+        }
+        try {
+            onWritable();
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Error writing response to: " + remoteAddress, e);
+            close();
+        }
+    }
+
+    /**
+     * Fills in a request's response and writes every response that is now ready in order.
+     *
+     * @param pending  The slot reserved for the request when it was dispatched.
+     * @param response The response bytes.
+     */
+    void completeResponse(PendingResponse pending, byte[] response) {
+        if (!channel.isOpen()) {
+            return;
+        }
+        pending.response = response;
+        while (!pendingResponses.isEmpty() && pendingResponses.peek().response != null) {
+            pendingWrites.add(ByteBuffer.wrap(pendingResponses.poll().response));
+        }
+        try {
+            onWritable();
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Error writing response to: " + remoteAddress, e);
+            close();
+        }
+    }
+
+    /**
+     * Parses one complete request out of the read buffer, if one is available, and dispatches it.
+     */
+    private void processBufferedRequest() {
+        if (handlerRunning || closeRequested || pendingResponses.size() >= MAX_PENDING_RESPONSES || !channel.isOpen()) {
+            return;
+        }
+
+        readBuffer.flip();
+        HTTPRequest httpRequest;
+        try {
+            httpRequest = nextRequest(readBuffer);
+        } catch (Exception e) {
+            LOGGER.log(Level.WARNING, "Error reading client request from: " + remoteAddress + ": " + e.getMessage());
+            readBuffer.clear();
+            rejectRequest();
+            return;
+        }
+        readBuffer.compact();
+
+        if (httpRequest != null) {
+            handlerRunning = true;
+            // Nothing after a request asking to close is read; the connection closes once it is answered
+            closeRequested = !httpRequest.shouldKeepConnectionAlive();
+            PendingResponse pending = new PendingResponse();
+            pendingResponses.add(pending);
+            eventLoop.dispatch(this, httpRequest, pending);
+        }
+    }
+
+    /**
+     * Feeds buffered bytes to the parser, leaving any further pipelined bytes in place.
+     *
+     * @param buffer The read buffer, flipped for reading.
+     * @return The parsed request, or null if the request is not yet complete.
+     * @throws ProtocolException If the buffered bytes are not a valid request.
+     */
+    private HTTPRequest nextRequest(ByteBuffer buffer) throws ProtocolException {
+        HTTPMessage httpMessage = parser.parse(buffer);
+        if (httpMessage != null && !(httpMessage instanceof HTTPRequest)) {
+            throw new ProtocolException("Expected an HTTP request");
+        }
+        return (HTTPRequest) httpMessage;
+    }
+
+    /**
+     * Answers an unparseable request with an error, after the responses still owed to earlier
+     * requests, and closes the connection once it is written.
+     */
+    private void rejectRequest() {
+        closeRequested = true;
+        PendingResponse pending = new PendingResponse();
+        pendingResponses.add(pending);
+        completeResponse(pending, HTTPServer.withConnectionClose(eventLoop.errorResponse()));
+    }
+
+    /**
+     * Reads only while another request may be dispatched, and waits for writability only
+     * while response bytes are queued.
+     */
+    private void updateInterestOps() {
+        if (!key.isValid()) {
+            return;
+        }
+        int interestOps = 0;
+        if (!pendingWrites.isEmpty()) {
+            interestOps |= SelectionKey.OP_WRITE;
+        }
+        if (!handlerRunning && !closeRequested && !inputShutdown && pendingResponses.size() < MAX_PENDING_RESPONSES) {
+            interestOps |= SelectionKey.OP_READ;
+        }
+        key.interestOps(interestOps);
+    }
+
+    /**
+     * Closes the channel and cancels its registration.
+     */
+    void close() {
+        key.cancel();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Error closing client channel: " + remoteAddress, e);
+        }
+    }
+}
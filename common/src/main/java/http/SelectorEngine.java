@@ -0,0 +1,105 @@
+package http;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ExecutorService;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Non-blocking connection engine for {@link HTTPServer}.
+ * The calling thread accepts connections on a non-blocking server channel and spreads them
+ * across a small set of event loops, each of which multiplexes many connections on its own selector.
+ * Request handlers run on the server's worker pool so a slow handler never stalls an event loop.
+ */
+class SelectorEngine implements AutoCloseable {
+    private static final Logger LOGGER = Logger.getLogger(SelectorEngine.class.getName());
+    private final HTTPServer server;
+    private final ServerSocketChannel serverChannel;
+    private final EventLoop[] eventLoops;
+    private final Selector acceptSelector;
+    private volatile boolean running = true;
+    private int nextEventLoop = 0;
+
+    /**
+     * Constructs a SelectorEngine.
+     *
+     * @param server         The server whose handlers process requests.
+     * @param serverChannel  The channel on which connections are accepted.
+     * @param workerPool     The pool on which request handlers run.
+     * @param eventLoopCount The number of event loops to multiplex connections over.
+     * @throws IOException If a selector cannot be opened.
+     */
+    SelectorEngine(HTTPServer server, ServerSocketChannel serverChannel, ExecutorService workerPool, int eventLoopCount) throws IOException {
+        this.server = server;
+        this.serverChannel = serverChannel;
+        this.acceptSelector = Selector.open();
+        this.eventLoops = new EventLoop[eventLoopCount];
+        for (int i = 0; i < eventLoopCount; i++) {
+            eventLoops[i] = new EventLoop(server, workerPool, "http-event-loop-" + i);
+        }
+    }
+
+    /**
+     * Starts the event loops and accepts connections until the engine is closed.
+     *
+     * @throws IOException If the server channel cannot be registered for accepts.
+     */
+    void run() throws IOException {
+        for (EventLoop eventLoop : eventLoops) {
+            eventLoop.start();
+        }
+
+        serverChannel.configureBlocking(false);
+        serverChannel.register(acceptSelector, SelectionKey.OP_ACCEPT);
+        LOGGER.log(Level.INFO, "Accepting connections on " + eventLoops.length + " event loop(s)");
+
+        try {
+            while (running && serverChannel.isOpen()) {
+                acceptSelector.select();
+                Iterator<SelectionKey> keys = acceptSelector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    keys.next();
+                    keys.remove();
+                    acceptPendingConnections();
+                }
+            }
+        } catch (ClosedSelectorException | ClosedChannelException e) {
+            LOGGER.log(Level.INFO, "Selector engine closed");
+        }
+    }
+
+    private void acceptPendingConnections() {
+        SocketChannel clientChannel;
+        try {
+            while ((clientChannel = serverChannel.accept()) != null) {
+                clientChannel.configureBlocking(false);
+                clientChannel.socket().setTcpNoDelay(true);
+                eventLoops[nextEventLoop].register(clientChannel);
+                nextEventLoop = (nextEventLoop + 1) % eventLoops.length;
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.SEVERE, "Error accepting client connection", e);
+        }
+    }
+
+    /**
+     * Stops accepting connections and shuts down every event loop.
+     *
+     * @throws IOException If the accept selector cannot be closed.
+     */
+    @Override
+    public void close() throws IOException {
+        running = false;
+        acceptSelector.close();
+        for (EventLoop eventLoop : eventLoops) {
+            eventLoop.close();
+        }
+    }
+}
@@ -1,7 +1,10 @@
 package http.messages;
 
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
 import java.util.stream.Collectors;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -11,6 +14,15 @@ import java.util.logging.Logger;
  * to determine the type of HTTP message and manipulate headers.
  */
 public class HTTPMessage {
+    /**
+     * Header names accepted by {@link #setHeader(String, String)}; any other header is dropped.
+     */
+    public static final String[] SUPPORTED_HEADERS = {
+        "Connection", "Content-Type", "Content-Length", "Server", "User-Agent", "Timestamp",
+        "ETag", "If-None-Match"
+    };
+    private static final Set<String> SUPPORTED_HEADER_NAMES = new HashSet<>(Arrays.asList(SUPPORTED_HEADERS));
+
     protected Map<String, String> headers;
     protected String body;
     protected String protocolVersion = "HTTP/1.1";
@@ -54,20 +66,36 @@ public class HTTPMessage {
     }
     
     private boolean isRequestMessage(String[] parts) {
-        boolean isValidMethod = parts[0].matches("GET|PUT|POST|DELETE");
+        boolean isValidMethod = isSupportedMethod(parts[0]);
         boolean isValidUri = parts[1].startsWith("/");
-        boolean isValidProtocol = parts[2].matches("HTTP/1.[01]");
+        boolean isValidProtocol = isSupportedProtocol(parts[2]);
         
         return isValidMethod && isValidUri && isValidProtocol;
     }
     
     private boolean isResponseMessage(String[] parts) {
-        boolean isValidProtocol = parts[0].matches("HTTP/1.[01]");
+        boolean isValidProtocol = isSupportedProtocol(parts[0]);
         boolean isValidStatusCode = isValidStatusCode(parts[1]);
     
         return isValidProtocol && isValidStatusCode;
     }
 
+    private static boolean isSupportedMethod(String method) {
+        switch (method) {
+            case "GET":
+            case "PUT":
+            case "POST":
+            case "DELETE":
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private static boolean isSupportedProtocol(String protocol) {
+        return protocol.equals("HTTP/1.1") || protocol.equals("HTTP/1.0");
+    }
+
     private boolean isValidStatusCode(String statusCode) {
         // Check if status code is a valid integer
         Integer statusCodeInt;
@@ -97,17 +125,13 @@ public class HTTPMessage {
             case "Content-Length": 
                 validateAndSetContentLengthHeader(headerValue);
                 break;
-            case "Server":
-                headers.put("Server", headerValue);
-                break;
-            case "User-Agent":
-                headers.put("User-Agent", headerValue);
-                break;
-            case "Timestamp":
-                headers.put("Timestamp", headerValue);
-                break;
             default:
-                LOGGER.log(Level.WARNING, "Header name unsupported: {0}", headerName);
+                // Headers without a validated value are taken as they are
+                if (SUPPORTED_HEADER_NAMES.contains(headerName)) {
+                    headers.put(headerName, headerValue);
+                } else {
+                    LOGGER.log(Level.WARNING, "Header name unsupported: {0}", headerName);
+                }
                 break;
         }
     }
@@ -122,7 +146,8 @@ public class HTTPMessage {
     }
 
     private void validateAndSetContentTypeHeader(String headerValue) {
-        if (headerValue.equals("application/json")) {
+        // Newline-delimited JSON carries one object per line, as in batch requests
+        if (headerValue.equals("application/json") || headerValue.equals("application/x-ndjson")) {
             headers.put("Content-Type", headerValue);
         } else {
             LOGGER.log(Level.WARNING, "Invalid Content-Type header value: {0}", headerValue);
@@ -26,12 +26,17 @@ public class CLI {
         // Placeholder logic: assumes arguments are in format: --key value
         for (int i = 0; i < args.length; i++) {
             if (args[i].startsWith("--")) {
-                // if --help or --default, ignore all other arguments
-                if (args[i].substring(2).equals("help") || args[i].substring(2).equals("default")) {
-                    argMap.put(args[i].substring(2), "");
+                String key = args[i].substring(2);
+                // if --help, ignore all other arguments
+                if (key.equals("help")) {
+                    argMap.put(key, "");
                     break;
                 }
-                String key = args[i].substring(2);
+                // --default takes no value, so the options after it are still read
+                if (key.equals("default")) {
+                    argMap.put(key, "");
+                    continue;
+                }
                 String value = args[i + 1];
                 argMap.put(key, value);
             }
@@ -43,7 +48,7 @@ public class CLI {
         }
 
         if (argMap.containsKey("default") || argMap.containsKey("d")) {
-            argMap.put("port", "4567");
+            argMap.putIfAbsent("port", "4567");
         }
         
         if (argMap.isEmpty()) {
@@ -0,0 +1,149 @@
+package util;
+
+import java.lang.Math;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * A hybrid logical clock: a Lamport clock whose timestamps stay close to wall-clock time.
+ * Each timestamp packs milliseconds since the epoch into its high bits and a logical counter
+ * into its low {@link #LOGICAL_BITS} bits, so timestamps compare as plain longs. The clock never
+ * falls behind physical time and never goes backwards, even if physical time does; events in
+ * the same millisecond are ordered by the counter. A counter which fills its bits carries into
+ * the millisecond, moving the clock slightly ahead of physical time until it catches up.
+ * <p>
+ * A received timestamp further ahead of physical time than the clock's maximum offset is
+ * rejected, so one sender with a fast clock cannot drag every later timestamp into the future.
+ * <p>
+ * Like {@link LamportClock}, the timestamp is one AtomicLong updated by compare-and-set.
+ */
+public class HybridLogicalClock implements LogicalClock {
+    public static final int LOGICAL_BITS = 16;
+    private static final long LOGICAL_MASK = (1L << LOGICAL_BITS) - 1;
+
+    private final AtomicLong timestamp;
+    private final LongSupplier physicalClock;
+    private final long maxOffsetMillis;
+
+    /**
+     * Thrown when a received timestamp is too far ahead of physical time to be accepted.
+     */
+    public static final class TimestampAheadException extends IllegalArgumentException {
+        private static final long serialVersionUID = 1L;
+
+        public TimestampAheadException(String message) {
+            super(message);
+        }
+    }
+
+    public HybridLogicalClock() {
+        this(System::currentTimeMillis);
+    }
+
+    /**
+     * Constructs a HybridLogicalClock reading physical time from the given source, which accepts
+     * received timestamps however far ahead of it they are.
+     *
+     * @param physicalClock The source of physical time, in milliseconds since the epoch.
+     */
+    public HybridLogicalClock(LongSupplier physicalClock) {
+        this(physicalClock, Long.MAX_VALUE);
+    }
+
+    /**
+     * Constructs a HybridLogicalClock reading physical time from the system clock.
+     *
+     * @param maxOffsetMillis How far ahead of physical time a received timestamp may be, in milliseconds.
+     */
+    public HybridLogicalClock(long maxOffsetMillis) {
+        this(System::currentTimeMillis, maxOffsetMillis);
+    }
+
+    /**
+     * Constructs a HybridLogicalClock reading physical time from the given source.
+     *
+     * @param physicalClock   The source of physical time, in milliseconds since the epoch.
+     * @param maxOffsetMillis How far ahead of physical time a received timestamp may be, in milliseconds.
+     */
+    public HybridLogicalClock(LongSupplier physicalClock, long maxOffsetMillis) {
+        if (maxOffsetMillis < 0) {
+            throw new IllegalArgumentException("Maximum clock offset must not be negative: " + maxOffsetMillis);
+        }
+        this.physicalClock = physicalClock;
+        this.maxOffsetMillis = maxOffsetMillis;
+        this.timestamp = new AtomicLong(0);
+    }
+
+    /**
+     * Advances the clock for a local event: to physical time if it has moved on, otherwise
+     * by one logical step.
+     *
+     * @return The timestamp of the event.
+     */
+    @Override
+    public long tick() {
+        long physicalTimestamp = physicalTimestamp();
+        return this.timestamp.updateAndGet(current -> Math.max(current + 1, physicalTimestamp));
+    }
+
+    /**
+     * Retrieves the current value of the hybrid timestamp.
+     *
+     * @return Current hybrid timestamp value.
+     */
+    @Override
+    public long peekTime() {
+        return this.timestamp.get();
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @throws TimestampAheadException If the timestamp is more than the maximum offset ahead of
+     *                                 physical time; the clock is left unchanged.
+     */
+    @Override
+    public EventType processReceivedTimestamp(long receivedTimestamp) {
+        // Moves past both the clock and the received time, or to physical time if that is later
+        long physicalMillis = physicalClock.getAsLong();
+        long aheadMillis = physicalTimeMillis(receivedTimestamp) - physicalMillis;
+        if (aheadMillis > maxOffsetMillis) {
+            throw new TimestampAheadException("Timestamp " + receivedTimestamp + " is " + aheadMillis
+                                              + " ms ahead of physical time, more than the maximum offset of "
+                                              + maxOffsetMillis + " ms");
+        }
+        long physicalTimestamp = physicalMillis << LOGICAL_BITS;
+        long previousTimestamp = this.timestamp.getAndUpdate(
+                current -> Math.max(Math.max(current, receivedTimestamp) + 1, physicalTimestamp));
+        return receivedTimestamp <= previousTimestamp ? EventType.CONCURRENT : EventType.AFTER;
+    }
+
+    @Override
+    public boolean tracksPhysicalTime() {
+        return true;
+    }
+
+    private long physicalTimestamp() {
+        return physicalClock.getAsLong() << LOGICAL_BITS;
+    }
+
+    /**
+     * Extracts the physical part of a hybrid timestamp.
+     *
+     * @param hybridTimestamp The hybrid timestamp.
+     * @return Its time in milliseconds since the epoch.
+     */
+    public static long physicalTimeMillis(long hybridTimestamp) {
+        return hybridTimestamp >>> LOGICAL_BITS;
+    }
+
+    /**
+     * Extracts the logical counter of a hybrid timestamp.
+     *
+     * @param hybridTimestamp The hybrid timestamp.
+     * @return Its counter within the millisecond.
+     */
+    public static long logicalCount(long hybridTimestamp) {
+        return hybridTimestamp & LOGICAL_MASK;
+    }
+}
@@ -1,9 +1,14 @@
 package util;
 
 import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -13,7 +18,23 @@ import java.util.logging.Logger;
  */
 public class IOUtility {
     private static final Logger LOGGER = Logger.getLogger(IOUtility.class.getName());
+    private static final String TEMP_SUFFIX = ".tmp";
+    // The versions of replaced files, so concurrent writers of the same file are collapsed
+    private final ConcurrentHashMap<Path, Replacement> replacements = new ConcurrentHashMap<>();
 
+    /**
+     * The newest version of a file waiting to be written by one of the callers replacing it.
+     */
+    private static final class Replacement {
+        // Held while the file is written, so one caller writes it at a time
+        private final Object writeLock = new Object();
+        // Callers currently replacing the file
+        private int callers;
+        private long version = Long.MIN_VALUE;
+        private boolean pending;
+        // The bytes to write, or null to delete the file
+        private byte[] data;
+    }
 
     public IOUtility() {}
 
@@ -34,6 +55,160 @@ public class IOUtility {
         }
     }
 
+    /**
+     * Replaces a file with the given bytes by writing them to a temporary file beside it and
+     * renaming that over the original, so readers of the old file, including memory mappings
+     * of it, are never left with a truncated or half-written file. Each call is a newer version
+     * of the file than every call made before it.
+     *
+     * @param data     The bytes to be saved.
+     * @param filename The name of the file.
+     * @param sync     Whether to fsync the temporary file before it is renamed, and the directory after.
+     * @throws IOException if an I/O error occurs.
+     */
+    public void replaceFileWithBytes(byte[] data, String filename, boolean sync) throws IOException {
+        replace(data, filename, sync, Long.MIN_VALUE);
+    }
+
+    /**
+     * Replaces a file with a given version of its bytes, like {@link #replaceFileWithBytes(byte[], String, boolean)}.
+     * <p>
+     * Concurrent writers of the same file are collapsed: while one caller writes the file, only
+     * the newest version given by the others is kept, and it is written once by whichever of them
+     * runs next. A version older than one already given is not written at all, until
+     * {@link #forgetVersionsBefore(long)} drops the versions remembered. Either way, the call
+     * returns once a version at least as new as its own is in place.
+     *
+     * @param data     The bytes to be saved.
+     * @param filename The name of the file.
+     * @param sync     Whether to fsync the temporary file before it is renamed, and the directory after.
+     * @param version  The version of the file, increasing with each newer version.
+     * @throws IOException if an I/O error occurs.
+     */
+    public void replaceFileWithBytes(byte[] data, String filename, boolean sync, long version) throws IOException {
+        replace(data, filename, sync, version);
+    }
+
+    /**
+     * Deletes a file as a given version of it, collapsed with concurrent replacements of the
+     * same file like {@link #replaceFileWithBytes(byte[], String, boolean, long)}, so an older
+     * version written late never brings a deleted file back.
+     *
+     * @param filename The name of the file to delete.
+     * @param sync     Whether to fsync the directory once the file is deleted.
+     * @param version  The version of the file, increasing with each newer version.
+     * @throws IOException if an I/O error occurs.
+     */
+    public void deleteFile(String filename, boolean sync, long version) throws IOException {
+        replace(null, filename, sync, version);
+    }
+
+    private void replace(byte[] data, String filename, boolean sync, long version) throws IOException {
+        Path target = Paths.get(filename).toAbsolutePath().normalize();
+        Replacement replacement = replacements.compute(target, (path, existing) -> {
+            Replacement current = existing != null ? existing : new Replacement();
+            current.callers++;
+            return current;
+        });
+        try {
+            synchronized (replacement) {
+                // Without a version, each call is newer than the last
+                long newVersion = version == Long.MIN_VALUE ? replacement.version + 1 : version;
+                if (newVersion > replacement.version) {
+                    replacement.version = newVersion;
+                    replacement.data = data;
+                    replacement.pending = true;
+                }
+            }
+            synchronized (replacement.writeLock) {
+                byte[] next;
+                synchronized (replacement) {
+                    if (!replacement.pending) {
+                        // Already written by another caller, at this version or a newer one
+                        return;
+                    }
+                    next = replacement.data;
+                    replacement.data = null;
+                    replacement.pending = false;
+                }
+                try {
+                    if (next == null) {
+                        deleteFile(target.toString());
+                    } else {
+                        writeAndRename(next, target, sync);
+                    }
+                    if (sync) {
+                        syncDirectory(target.getParent());
+                    }
+                } catch (IOException e) {
+                    synchronized (replacement) {
+                        // Left for the next caller to retry, unless a newer version has arrived
+                        if (!replacement.pending) {
+                            replacement.data = next;
+                            replacement.pending = true;
+                        }
+                    }
+                    throw e;
+                }
+            }
+        } finally {
+            synchronized (replacement) {
+                replacement.callers--;
+            }
+        }
+    }
+
+    /**
+     * Forgets the versions of files no longer being replaced whose newest version is older than
+     * the given one. Call it once no writer older than that version can still be running.
+     *
+     * @param version The oldest version a writer may still give.
+     */
+    public void forgetVersionsBefore(long version) {
+        for (Path path : replacements.keySet()) {
+            replacements.computeIfPresent(path, (key, replacement) -> {
+                synchronized (replacement) {
+                    return replacement.callers == 0 && replacement.version < version ? null : replacement;
+                }
+            });
+        }
+    }
+
+    private void writeAndRename(byte[] data, Path target, boolean sync) throws IOException {
+        Path tempFile = target.resolveSibling(target.getFileName() + TEMP_SUFFIX);
+        try (FileOutputStream fileOut = new FileOutputStream(tempFile.toFile())) {
+            fileOut.write(data);
+            if (sync) {
+                fileOut.getFD().sync();
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.SEVERE, "Error saving to file: " + tempFile, e);
+            throw e;
+        }
+        try {
+            Files.move(tempFile, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            LOGGER.log(Level.SEVERE, "Error replacing file: " + target, e);
+            Files.deleteIfExists(tempFile);
+            throw e;
+        }
+    }
+
+    /**
+     * Forces a directory's entries to stable storage, so a file renamed or deleted in it stays
+     * that way after a crash. Some platforms cannot open a directory for this, which is only logged.
+     */
+    private void syncDirectory(Path directory) {
+        if (directory == null) {
+            return;
+        }
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Could not fsync directory: " + directory, e);
+        }
+    }
+
     /**
      * Loads an object from a file.
      *
@@ -72,7 +247,7 @@ public class IOUtility {
     }
 
     /**
-     * Reads a text file and returns its content as a string.
+     * Reads a UTF-8 text file and returns its content as a string.
      *
      * @param filePath The path to the text file.
      * @return A string containing the content of the text file.
@@ -80,7 +255,7 @@ public class IOUtility {
      */
     public String readTxtFile(String filePath) throws IOException {
         StringBuilder content = new StringBuilder();
-        try (BufferedReader br = new BufferedReader(new FileReader(filePath))) {
+        try (BufferedReader br = Files.newBufferedReader(Paths.get(filePath), StandardCharsets.UTF_8)) {
             String line;
             while ((line = br.readLine()) != null) {
                 content.append(line).append("\n");
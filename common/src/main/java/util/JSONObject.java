@@ -1,27 +1,63 @@
 package util;
 
 import java.util.Map;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
-import java.util.HashMap;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Set;
 
+/**
+ * A JSON object whose members are kept as strings, in the order they were added.
+ * String members hold their decoded value. Numbers, {@code true}, {@code false}, {@code null},
+ * nested objects and arrays are raw members holding their JSON text, which is written back
+ * without quotes. Whether a member is raw is decided once when it is added, so writing the
+ * object never has to inspect the values again.
+ */
 public class JSONObject implements Serializable {
-    private final Map<String, String> keyValMap = new HashMap<>();
+    // Matches the implicit UID of the original class, so existing data files still load
+    private static final long serialVersionUID = -5291155631826672912L;
+    private final Map<String, String> keyValMap = new LinkedHashMap<>();
+    // Absent from objects serialized before raw members were tracked
+    private Set<String> rawKeys = new HashSet<>();
 
     public JSONObject() {}
 
-    public JSONObject(String inputString) throws Exception {
-        try {
-            if (inputString.contains("{")) {
-                parseJsonFormat(inputString);
-            } else {
-                parseSimpleListFormat(inputString);
+    /**
+     * Parses either a JSON object or the simple "key: value" per line format.
+     *
+     * @param inputString The text to parse; any {@link CharSequence}, so a request body is read in place.
+     * @throws Exception If the text is not valid in the format it starts with.
+     */
+    public JSONObject(CharSequence inputString) throws Exception {
+        if (startsWithBrace(inputString)) {
+            JSONParser.parseObject(inputString, this);
+        } else {
+            parseSimpleListFormat(inputString.toString());
+        }
+    }
+
+    /**
+     * Parses a JSON array of objects, such as the body of a batch request.
+     *
+     * @param inputString The JSON text.
+     * @return The objects, in order.
+     * @throws IllegalArgumentException If the text is not an array of objects.
+     */
+    public static List<JSONObject> parseArray(CharSequence inputString) {
+        return JSONParser.parseArray(inputString);
+    }
+
+    private static boolean startsWithBrace(CharSequence input) {
+        for (int i = 0; i < input.length(); i++) {
+            if (!Character.isWhitespace(input.charAt(i))) {
+                return input.charAt(i) == '{';
             }
-        } catch (Exception e) {
-            throw e;
         }
-        
+        return false;
     }
 
     private void parseSimpleListFormat(String simpleListString) throws Exception {
@@ -29,56 +65,128 @@ public class JSONObject implements Serializable {
             String[] keyValPairs = simpleListString.split("\n");
             for (String keyValPair : keyValPairs) {
                 String[] keyVal = keyValPair.split(":");
-                keyValMap.put(keyVal[0].trim(), keyVal[1].trim());
+                put(keyVal[0].trim(), keyVal[1].trim());
             }
         } catch (Exception e) {
             throw e;
         }
-        
+
     }
 
-    private void parseJsonFormat(String jsonString) {
-        try {
-            Pattern pattern = Pattern.compile("\"(.*?)\"\\s*:\\s*(\".*?\"|[-+]?[0-9]*\\.?[0-9]+)");
-            Matcher matcher = pattern.matcher(jsonString);
-            while (matcher.find()) {
-                String key = matcher.group(1);
-                String value = matcher.group(2).replaceAll("\"", "");
-                keyValMap.put(key, value);
-            }
-        } catch (Exception e) {
-            throw e;
-        }
+    /**
+     * Adds a member, written unquoted if the value is a JSON number or null.
+     */
+    public void put(String key, String value) {
+        put(key, value, value == null || JSONParser.isNumber(value));
     }
 
+    /**
+     * Adds a string member, written quoted even if it looks like a number.
+     */
+    public void putString(String key, String value) {
+        put(key, value, false);
+    }
 
-    public void put(String key, String value) {
+    /**
+     * Adds a member holding JSON text, such as a number, literal, nested object or array,
+     * which is written back unchanged.
+     */
+    public void putRaw(String key, String json) {
+        put(key, json, true);
+    }
+
+    void put(String key, String value, boolean raw) {
         keyValMap.put(key, value);
+        if (raw) {
+            rawKeys.add(key);
+        } else {
+            rawKeys.remove(key);
+        }
     }
 
     public String get(String key) {
         return keyValMap.get(key);
     }
 
+    /**
+     * Checks whether a member holds JSON text rather than a string.
+     */
+    public boolean isRaw(String key) {
+        return rawKeys.contains(key);
+    }
+
+    /**
+     * Returns a numeric member as a Long if it is integral and fits, otherwise as a Double.
+     *
+     * @return The number, or null if the member is absent.
+     * @throws NumberFormatException If the member is not a number.
+     */
+    public Number getNumber(String key) {
+        String value = keyValMap.get(key);
+        if (value == null) {
+            return null;
+        }
+        if (!rawKeys.contains(key) || !JSONParser.isNumber(value)) {
+            throw new NumberFormatException("Member is not a number: " + key);
+        }
+        if (value.indexOf('.') < 0 && value.indexOf('e') < 0 && value.indexOf('E') < 0) {
+            try {
+                return Long.parseLong(value);
+            } catch (NumberFormatException e) {
+                // Too large for a long
+            }
+        }
+        return Double.parseDouble(value);
+    }
+
+    /**
+     * Parses a nested object member.
+     *
+     * @return The nested object, or null if the member is absent.
+     * @throws Exception If the member is not an object.
+     */
+    public JSONObject getJSONObject(String key) throws Exception {
+        String value = keyValMap.get(key);
+        if (value == null) {
+            return null;
+        }
+        if (!rawKeys.contains(key) || !value.startsWith("{")) {
+            throw new IllegalArgumentException("Member is not an object: " + key);
+        }
+        return new JSONObject(value);
+    }
+
+    public Set<Map.Entry<String, String>> entrySet() {
+        return Collections.unmodifiableMap(keyValMap).entrySet();
+    }
+
     public String toJSONString() {
-        StringBuilder sb = new StringBuilder();
-        sb.append("{\n");
+        return appendJSONString(new StringBuilder(32 * keyValMap.size() + 4)).toString();
+    }
+
+    /**
+     * Writes the object to out, one member per line.
+     *
+     * @return out, for chaining.
+     */
+    public StringBuilder appendJSONString(StringBuilder out) {
+        if (keyValMap.isEmpty()) {
+            return out.append("{}");
+        }
+        out.append('{');
+        String separator = "\n";
         for (Map.Entry<String, String> entry : keyValMap.entrySet()) {
-            sb.append("   ");
-            sb.append('"').append(entry.getKey()).append('"');
-            sb.append(": ");
-            
-            if (Math.isNumeric(entry.getValue())) {
-                sb.append(entry.getValue());
+            out.append(separator).append("   ");
+            JSONParser.writeString(out, entry.getKey());
+            out.append(": ");
+            if (rawKeys.contains(entry.getKey())) {
+                out.append(entry.getValue());
             } else {
-                sb.append('"').append(entry.getValue()).append('"');
+                JSONParser.writeString(out, entry.getValue());
             }
-
-            sb.append(",\n");
+            separator = ",\n";
         }
-        sb.delete(sb.length()-2, sb.length());
-        sb.append("\n}");
-        return sb.toString();
+        return out.append("\n}");
     }
 
     public String toSimpleListString() {
@@ -88,4 +196,17 @@ public class JSONObject implements Serializable {
         }
         return sb.toString().trim();
     }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        if (rawKeys == null) {
+            // Older objects only ever held strings and numbers
+            rawKeys = new HashSet<>();
+            for (Map.Entry<String, String> entry : keyValMap.entrySet()) {
+                if (JSONParser.isNumber(entry.getValue())) {
+                    rawKeys.add(entry.getKey());
+                }
+            }
+        }
+    }
 }
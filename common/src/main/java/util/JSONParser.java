@@ -0,0 +1,460 @@
+package util;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Single-pass JSON parser reading straight from a {@link CharSequence}, so an HTTP body
+ * can be parsed without copying it first.
+ * <p>
+ * Members of the top-level object are stored in a {@link JSONObject}: strings are decoded,
+ * while numbers, literals, nested objects and arrays are kept as compact JSON text and marked
+ * as raw values, so they are written back unquoted and unchanged. Strings without escapes are
+ * taken as a single substring of the input.
+ */
+final class JSONParser {
+    private final CharSequence input;
+    private final int length;
+    private int position;
+    // Reused for strings containing escapes and for nested values
+    private StringBuilder buffer;
+
+    private JSONParser(CharSequence input) {
+        this.input = input;
+        this.length = input.length();
+    }
+
+    /**
+     * Parses a JSON object into the given target.
+     *
+     * @param input  The JSON text.
+     * @param target The object the members are added to.
+     * @throws IllegalArgumentException If the input is not a single valid JSON object.
+     */
+    static void parseObject(CharSequence input, JSONObject target) {
+        JSONParser parser = new JSONParser(input);
+        parser.skipWhitespace();
+        parser.readObject(target);
+        parser.expectEnd();
+    }
+
+    /**
+     * Parses a JSON array whose elements are all objects.
+     *
+     * @param input The JSON text.
+     * @return The objects, in order.
+     * @throws IllegalArgumentException If the input is not a single valid array of objects.
+     */
+    static List<JSONObject> parseArray(CharSequence input) {
+        JSONParser parser = new JSONParser(input);
+        List<JSONObject> objects = new ArrayList<>();
+        parser.skipWhitespace();
+        parser.expect('[');
+        parser.skipWhitespace();
+        if (parser.peek() == ']') {
+            parser.position++;
+        } else {
+            while (true) {
+                parser.skipWhitespace();
+                JSONObject object = new JSONObject();
+                parser.readObject(object);
+                objects.add(object);
+                parser.skipWhitespace();
+                char separator = parser.next();
+                if (separator == ']') {
+                    break;
+                }
+                if (separator != ',') {
+                    throw parser.error("Expected ',' or ']'");
+                }
+            }
+        }
+        parser.expectEnd();
+        return objects;
+    }
+
+    /**
+     * Reads an object starting at the current position, adding its members to target.
+     */
+    private void readObject(JSONObject target) {
+        expect('{');
+        skipWhitespace();
+        if (peek() == '}') {
+            position++;
+            return;
+        }
+        while (true) {
+            skipWhitespace();
+            expect('"');
+            String key = readString();
+            skipWhitespace();
+            expect(':');
+            skipWhitespace();
+            readMember(key, target);
+            skipWhitespace();
+            char separator = next();
+            if (separator == '}') {
+                return;
+            }
+            if (separator != ',') {
+                throw error("Expected ',' or '}'");
+            }
+        }
+    }
+
+    private void expectEnd() {
+        skipWhitespace();
+        if (position < length) {
+            throw error("Unexpected content after value");
+        }
+    }
+
+    /**
+     * Checks whether a whole string is a JSON number.
+     */
+    static boolean isNumber(CharSequence value) {
+        JSONParser parser = new JSONParser(value);
+        return parser.length > 0 && parser.skipNumber() && parser.position == parser.length;
+    }
+
+    private void readMember(String key, JSONObject target) {
+        char first = peek();
+        if (first == '"') {
+            position++;
+            target.put(key, readString(), false);
+        } else if (first == '{' || first == '[') {
+            StringBuilder out = buffer();
+            copyValue(out);
+            target.put(key, out.toString(), true);
+        } else {
+            int start = position;
+            skipScalar();
+            target.put(key, input.subSequence(start, position).toString(), true);
+        }
+    }
+
+    /**
+     * Reads a string whose opening quote has been consumed, decoding any escapes.
+     */
+    private String readString() {
+        int start = position;
+        while (position < length) {
+            char c = input.charAt(position);
+            if (c == '"') {
+                String value = input.subSequence(start, position).toString();
+                position++;
+                return value;
+            }
+            if (c == '\\') {
+                StringBuilder out = buffer();
+                out.append(input, start, position);
+                decodeRest(out);
+                return out.toString();
+            }
+            if (c < 0x20) {
+                throw error("Unescaped control character in string");
+            }
+            position++;
+        }
+        throw error("Unterminated string");
+    }
+
+    private void decodeRest(StringBuilder out) {
+        while (position < length) {
+            char c = input.charAt(position++);
+            if (c == '"') {
+                return;
+            }
+            if (c < 0x20) {
+                throw error("Unescaped control character in string");
+            }
+            if (c != '\\') {
+                out.append(c);
+                continue;
+            }
+            char escaped = next();
+            switch (escaped) {
+                case '"':
+                case '\\':
+                case '/':
+                    out.append(escaped);
+                    break;
+                case 'b':
+                    out.append('\b');
+                    break;
+                case 'f':
+                    out.append('\f');
+                    break;
+                case 'n':
+                    out.append('\n');
+                    break;
+                case 'r':
+                    out.append('\r');
+                    break;
+                case 't':
+                    out.append('\t');
+                    break;
+                case 'u':
+                    out.append(readHexChar());
+                    break;
+                default:
+                    throw error("Invalid escape '\\" + escaped + "'");
+            }
+        }
+        throw error("Unterminated string");
+    }
+
+    private char readHexChar() {
+        if (position + 4 > length) {
+            throw error("Truncated unicode escape");
+        }
+        int value = 0;
+        for (int i = 0; i < 4; i++) {
+            int digit = Character.digit(input.charAt(position++), 16);
+            if (digit < 0) {
+                throw error("Invalid unicode escape");
+            }
+            value = (value << 4) | digit;
+        }
+        return (char) value;
+    }
+
+    /**
+     * Validates any JSON value and appends it to out without insignificant whitespace.
+     */
+    private void copyValue(StringBuilder out) {
+        char first = peek();
+        if (first == '{') {
+            position++;
+            out.append('{');
+            skipWhitespace();
+            if (peek() == '}') {
+                position++;
+                out.append('}');
+                return;
+            }
+            while (true) {
+                skipWhitespace();
+                expect('"');
+                copyString(out);
+                skipWhitespace();
+                expect(':');
+                out.append(':');
+                skipWhitespace();
+                copyValue(out);
+                skipWhitespace();
+                char separator = next();
+                out.append(separator);
+                if (separator == '}') {
+                    return;
+                }
+                if (separator != ',') {
+                    throw error("Expected ',' or '}'");
+                }
+            }
+        } else if (first == '[') {
+            position++;
+            out.append('[');
+            skipWhitespace();
+            if (peek() == ']') {
+                position++;
+                out.append(']');
+                return;
+            }
+            while (true) {
+                skipWhitespace();
+                copyValue(out);
+                skipWhitespace();
+                char separator = next();
+                out.append(separator);
+                if (separator == ']') {
+                    return;
+                }
+                if (separator != ',') {
+                    throw error("Expected ',' or ']'");
+                }
+            }
+        } else if (first == '"') {
+            position++;
+            copyString(out);
+        } else {
+            int start = position;
+            skipScalar();
+            out.append(input, start, position);
+        }
+    }
+
+    /**
+     * Copies a string whose opening quote has been consumed, keeping its escapes.
+     */
+    private void copyString(StringBuilder out) {
+        int start = position - 1;
+        while (position < length) {
+            char c = input.charAt(position++);
+            if (c == '"') {
+                out.append(input, start, position);
+                return;
+            }
+            if (c < 0x20) {
+                throw error("Unescaped control character in string");
+            }
+            if (c == '\\') {
+                char escaped = next();
+                if (escaped == 'u') {
+                    readHexChar();
+                } else if ("\"\\/bfnrt".indexOf(escaped) < 0) {
+                    throw error("Invalid escape '\\" + escaped + "'");
+                }
+            }
+        }
+        throw error("Unterminated string");
+    }
+
+    private void skipScalar() {
+        char first = peek();
+        if (first == 't') {
+            expectLiteral("true");
+        } else if (first == 'f') {
+            expectLiteral("false");
+        } else if (first == 'n') {
+            expectLiteral("null");
+        } else if (!skipNumber()) {
+            throw error("Unexpected character '" + first + "'");
+        }
+    }
+
+    /**
+     * Skips a number following the JSON grammar: -?(0|[1-9]\d*)(\.\d+)?([eE][+-]?\d+)?
+     *
+     * @return false if the input at the current position is not a valid number.
+     */
+    private boolean skipNumber() {
+        if (position < length && input.charAt(position) == '-') {
+            position++;
+        }
+        if (position >= length) {
+            return false;
+        }
+        if (input.charAt(position) == '0') {
+            position++;
+        } else if (!skipDigits()) {
+            return false;
+        }
+        if (position < length && input.charAt(position) == '.') {
+            position++;
+            if (!skipDigits()) {
+                return false;
+            }
+        }
+        if (position < length && (input.charAt(position) == 'e' || input.charAt(position) == 'E')) {
+            position++;
+            if (position < length && (input.charAt(position) == '+' || input.charAt(position) == '-')) {
+                position++;
+            }
+            return skipDigits();
+        }
+        return true;
+    }
+
+    private boolean skipDigits() {
+        int start = position;
+        while (position < length && input.charAt(position) >= '0' && input.charAt(position) <= '9') {
+            position++;
+        }
+        return position > start;
+    }
+
+    private void expectLiteral(String literal) {
+        for (int i = 0; i < literal.length(); i++) {
+            if (position >= length || input.charAt(position) != literal.charAt(i)) {
+                throw error("Expected '" + literal + "'");
+            }
+            position++;
+        }
+    }
+
+    private void skipWhitespace() {
+        while (position < length) {
+            char c = input.charAt(position);
+            if (c != ' ' && c != '\t' && c != '\n' && c != '\r') {
+                return;
+            }
+            position++;
+        }
+    }
+
+    private void expect(char expected) {
+        if (next() != expected) {
+            position--;
+            throw error("Expected '" + expected + "'");
+        }
+    }
+
+    private char peek() {
+        if (position >= length) {
+            throw error("Unexpected end of input");
+        }
+        return input.charAt(position);
+    }
+
+    private char next() {
+        char c = peek();
+        position++;
+        return c;
+    }
+
+    private StringBuilder buffer() {
+        if (buffer == null) {
+            buffer = new StringBuilder();
+        }
+        buffer.setLength(0);
+        return buffer;
+    }
+
+    private IllegalArgumentException error(String message) {
+        return new IllegalArgumentException(message + " at position " + position);
+    }
+
+    /**
+     * Appends a string as a quoted JSON string, escaping only what JSON requires.
+     */
+    static void writeString(StringBuilder out, String value) {
+        out.append('"');
+        int start = 0;
+        int length = value.length();
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (c != '"' && c != '\\' && c >= 0x20) {
+                continue;
+            }
+            out.append(value, start, i);
+            start = i + 1;
+            switch (c) {
+                case '"':
+                    out.append("\\\"");
+                    break;
+                case '\\':
+                    out.append("\\\\");
+                    break;
+                case '\n':
+                    out.append("\\n");
+                    break;
+                case '\r':
+                    out.append("\\r");
+                    break;
+                case '\t':
+                    out.append("\\t");
+                    break;
+                case '\b':
+                    out.append("\\b");
+                    break;
+                case '\f':
+                    out.append("\\f");
+                    break;
+                default:
+                    out.append(String.format("\\u%04x", (int) c));
+            }
+        }
+        out.append(value, start, length).append('"');
+    }
+}
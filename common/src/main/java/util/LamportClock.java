@@ -1,25 +1,29 @@
 package util;
 
 import java.lang.Math;
+import java.util.concurrent.atomic.AtomicLong;
 
-public class LamportClock {
-    public enum EventType {
-        CONCURRENT,
-        BEFORE,
-        AFTER
-    }    
-
-    private int timestamp;
+/**
+ * A Lamport logical clock shared by every request handler.
+ * The counter is a single AtomicLong updated by compare-and-set, so reading the time never
+ * blocks and concurrent updates never wait on a lock. Each method is one atomic step, with the
+ * same results as if the calls had been made one at a time.
+ */
+public class LamportClock implements LogicalClock {
+    private final AtomicLong timestamp;
 
     public LamportClock() {
-        this.timestamp = 0;
+        this.timestamp = new AtomicLong(0);
     }
 
     /**
      * Increments the Lamport timestamp by one due to a local event.
+     *
+     * @return The incremented Lamport timestamp.
      */
-    public synchronized void tick() {
-        this.timestamp++;
+    @Override
+    public long tick() {
+        return this.timestamp.incrementAndGet();
     }
 
     /**
@@ -27,8 +31,8 @@ public class LamportClock {
      *
      * @param incomingTimestamp The timestamp of a received message.
      */
-    public synchronized void updateTime(int incomingTimestamp) {
-        this.timestamp = Math.max(this.timestamp, incomingTimestamp) + 1;
+    public void updateTime(long incomingTimestamp) {
+        this.timestamp.updateAndGet(current -> Math.max(current, incomingTimestamp) + 1);
     }
 
     /**
@@ -36,19 +40,16 @@ public class LamportClock {
      *
      * @return Current Lamport timestamp value.
      */
-    public synchronized int peekTime() {
-        return this.timestamp;
+    @Override
+    public long peekTime() {
+        return this.timestamp.get();
     }
 
-    public synchronized EventType processReceivedTimestamp(int receivedTimestamp) {
-        int currentTimestamp = peekTime();
-
-        if (receivedTimestamp <= currentTimestamp) {
-            tick(); // Increment for the received event
-            return EventType.CONCURRENT;
-        } else {
-            updateTime(receivedTimestamp);
-            return EventType.AFTER;
-        }
+    @Override
+    public EventType processReceivedTimestamp(long receivedTimestamp) {
+        // Ticks for an event at or behind the clock, otherwise jumps past the received time
+        long previousTimestamp = this.timestamp.getAndUpdate(
+                current -> receivedTimestamp <= current ? current + 1 : receivedTimestamp + 1);
+        return receivedTimestamp <= previousTimestamp ? EventType.CONCURRENT : EventType.AFTER;
     }
-}
\ No newline at end of file
+}
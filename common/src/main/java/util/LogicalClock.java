@@ -0,0 +1,46 @@
+package util;
+
+/**
+ * A logical clock which timestamps local events and orders received ones.
+ * Timestamps are longs, so any implementation fits the {@code Timestamp} header.
+ */
+public interface LogicalClock {
+    enum EventType {
+        CONCURRENT,
+        BEFORE,
+        AFTER
+    }
+
+    /**
+     * Advances the clock for a local event, such as sending a message.
+     *
+     * @return The timestamp of the event.
+     */
+    long tick();
+
+    /**
+     * Retrieves the current timestamp without advancing the clock.
+     *
+     * @return Current timestamp value.
+     */
+    long peekTime();
+
+    /**
+     * Advances the clock for a received event and classifies it against the clock's time
+     * just before the event.
+     *
+     * @param receivedTimestamp The timestamp of the received message.
+     * @return AFTER if the message is ahead of the clock, otherwise CONCURRENT.
+     */
+    EventType processReceivedTimestamp(long receivedTimestamp);
+
+    /**
+     * Reports whether the clock's timestamps stay close to wall-clock time, so that comparing
+     * the timestamps of two events alone decides which happened most recently.
+     *
+     * @return true if timestamps track physical time.
+     */
+    default boolean tracksPhysicalTime() {
+        return false;
+    }
+}
@@ -0,0 +1,235 @@
+package http;
+
+import http.messages.HTTPRequest;
+import http.messages.HTTPResponse;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class HTTPClientTest {
+
+    private ServerSocket serverSocket;
+    private final AtomicInteger connectionsAccepted = new AtomicInteger();
+    private final List<String> requestOrder = new ArrayList<>();
+
+    /**
+     * Requests a path named by the payload, so responses can be matched to requests.
+     */
+    private static class PathClient extends HTTPClient {
+        PathClient(Socket socket) throws IOException {
+            super(socket);
+        }
+
+        @Override
+        protected String buildRequest(String request_location, String... payload_file) {
+            return "GET /" + payload_file[0] + " HTTP/1.1\r\nContent-Length: 0\r\n\r\n";
+        }
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        serverSocket = new ServerSocket(0);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        serverSocket.close();
+    }
+
+    /**
+     * Serves each connection on its own background thread, echoing each request's path as the
+     * body and never answering a request for /hang. The first connection is closed after
+     * answering closeAfter requests.
+     */
+    private void startServer(int closeAfter) {
+        Thread acceptThread = new Thread(() -> {
+            try {
+                while (!serverSocket.isClosed()) {
+                    Socket socket = serverSocket.accept();
+                    boolean first = connectionsAccepted.incrementAndGet() == 1;
+                    Thread connectionThread = new Thread(() -> serveConnection(socket, first ? closeAfter : Integer.MAX_VALUE));
+                    connectionThread.setDaemon(true);
+                    connectionThread.start();
+                }
+            } catch (IOException e) {
+                // Server socket closed
+            }
+        });
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+    }
+
+    private void serveConnection(Socket socket, int closeAfter) {
+        try (Socket client = socket) {
+            HTTPConnection connection = new HTTPConnection(client, client.getInputStream(), client.getOutputStream());
+            for (int answered = 1; ; answered++) {
+                HTTPRequest httpRequest = (HTTPRequest) connection.readMessage();
+                if (httpRequest.getURI().equals("/hang")) {
+                    continue;
+                }
+                synchronized (requestOrder) {
+                    requestOrder.add(httpRequest.getURI());
+                }
+                boolean close = answered == closeAfter;
+                String body = httpRequest.getURI();
+                connection.sendMessage("HTTP/1.1 200 OK\r\nContent-Length: " + body.length()
+                        + "\r\nConnection: " + (close ? "close" : "keep-alive") + "\r\n\r\n" + body);
+                if (close) {
+                    // Half-close and drain, so unread pipelined requests do not reset the connection
+                    client.shutdownOutput();
+                    while (client.getInputStream().read() != -1) {
+                    }
+                    return;
+                }
+            }
+        } catch (IOException e) {
+            // Client closed the connection
+        }
+    }
+
+    private static List<String> bodies(List<HTTPResponse> responses) {
+        List<String> bodies = new ArrayList<>();
+        for (HTTPResponse httpResponse : responses) {
+            bodies.add(httpResponse == null ? null : httpResponse.getBody());
+        }
+        return bodies;
+    }
+
+    /**
+     * Test Name: testSendHTTPRequests_PipelinedOnOneConnection
+     * Description: Pipelined requests share one connection and their responses are matched
+     *              to them in order.
+     */
+    @Test
+    public void testSendHTTPRequests_PipelinedOnOneConnection() throws IOException {
+        List<String> logMessages = new ArrayList<>();
+        logMessages.add("\n--- TEST: testSendHTTPRequests_PipelinedOnOneConnection ---\n");
+
+        startServer(Integer.MAX_VALUE);
+        List<String> paths = new ArrayList<>();
+        for (int i = 0; i < HTTPClient.MAX_PIPELINED_REQUESTS * 2 + 3; i++) {
+            paths.add("station" + i);
+        }
+        try (PathClient client = new PathClient(new Socket("localhost", serverSocket.getLocalPort()))) {
+            List<HTTPResponse> responses = client.sendHTTPRequests("unused", paths);
+            assertTrue(client.sendHTTPRequest("unused", "last"));
+
+            List<String> expected = new ArrayList<>();
+            for (String path : paths) {
+                expected.add("/" + path);
+            }
+            assertEquals(expected, bodies(responses));
+            assertEquals(1, connectionsAccepted.get());
+            logMessages.add("Test passed: Responses matched their pipelined requests on one connection.\n");
+        } catch (AssertionError e) {
+            logMessages.add("Test failed: " + e.getMessage() + "\n");
+            throw e;
+        } finally {
+            logMessages.forEach(System.out::println);
+        }
+    }
+
+    /**
+     * Test Name: testSendHTTPRequests_ReconnectsAfterServerCloses
+     * Description: When the server closes the connection partway through a pipeline, the client
+     *              reconnects and resends the unanswered requests, still in order.
+     */
+    @Test
+    public void testSendHTTPRequests_ReconnectsAfterServerCloses() throws IOException {
+        List<String> logMessages = new ArrayList<>();
+        logMessages.add("\n--- TEST: testSendHTTPRequests_ReconnectsAfterServerCloses ---\n");
+
+        startServer(2);
+        try (PathClient client = new PathClient(new Socket("localhost", serverSocket.getLocalPort()))) {
+            List<HTTPResponse> responses = client.sendHTTPRequests("unused", Arrays.asList("a", "b", "c", "d"));
+
+            assertEquals(Arrays.asList("/a", "/b", "/c", "/d"), bodies(responses));
+            assertEquals(2, connectionsAccepted.get());
+            synchronized (requestOrder) {
+                assertEquals(Arrays.asList("/a", "/b", "/c", "/d"), requestOrder);
+            }
+            logMessages.add("Test passed: Unanswered requests were resent on a new connection.\n");
+        } catch (AssertionError e) {
+            logMessages.add("Test failed: " + e.getMessage() + "\n");
+            throw e;
+        } finally {
+            logMessages.forEach(System.out::println);
+        }
+    }
+
+    /**
+     * Test Name: testSendHTTPRequestAsync_ManyOutstandingRequests
+     * Description: Hundreds of asynchronous requests are outstanding at once over a few shared
+     *              connections, and each future completes with the response to its own request.
+     */
+    @Test
+    public void testSendHTTPRequestAsync_ManyOutstandingRequests() throws IOException {
+        List<String> logMessages = new ArrayList<>();
+        logMessages.add("\n--- TEST: testSendHTTPRequestAsync_ManyOutstandingRequests ---\n");
+
+        startServer(Integer.MAX_VALUE);
+        try (PathClient client = new PathClient(new Socket("localhost", serverSocket.getLocalPort()))) {
+            List<CompletableFuture<HTTPResponse>> responses = new ArrayList<>();
+            for (int i = 0; i < 500; i++) {
+                responses.add(client.sendHTTPRequestAsync("unused", "station" + i, 10000));
+            }
+
+            for (int i = 0; i < responses.size(); i++) {
+                assertEquals("/station" + i, responses.get(i).join().getBody());
+            }
+            // The client's own blocking connection plus the shared asynchronous ones
+            assertTrue(connectionsAccepted.get() <= 1 + HTTPClient.ASYNC_CONNECTIONS);
+            logMessages.add("Test passed: " + responses.size() + " requests shared " + connectionsAccepted.get() + " connections.\n");
+        } catch (AssertionError e) {
+            logMessages.add("Test failed: " + e.getMessage() + "\n");
+            throw e;
+        } finally {
+            logMessages.forEach(System.out::println);
+        }
+    }
+
+    /**
+     * Test Name: testSendHTTPRequestAsync_TimesOut
+     * Description: A request the server never answers fails with a TimeoutException once its
+     *              own timeout passes.
+     */
+    @Test
+    public void testSendHTTPRequestAsync_TimesOut() throws IOException {
+        List<String> logMessages = new ArrayList<>();
+        logMessages.add("\n--- TEST: testSendHTTPRequestAsync_TimesOut ---\n");
+
+        startServer(Integer.MAX_VALUE);
+        try (PathClient client = new PathClient(new Socket("localhost", serverSocket.getLocalPort()))) {
+            CompletableFuture<HTTPResponse> response = client.sendHTTPRequestAsync("unused", "hang", 200);
+            try {
+                response.get(5, TimeUnit.SECONDS);
+                fail("Expected the request to time out");
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof TimeoutException);
+            } catch (InterruptedException | TimeoutException e) {
+                fail("Request was not timed out by the client: " + e);
+            }
+            logMessages.add("Test passed: Unanswered request timed out.\n");
+        } catch (AssertionError e) {
+            logMessages.add("Test failed: " + e.getMessage() + "\n");
+            throw e;
+        } finally {
+            logMessages.forEach(System.out::println);
+        }
+    }
+}
@@ -0,0 +1,239 @@
+package http;
+
+import http.messages.HTTPMessage;
+import http.messages.HTTPRequest;
+import http.messages.HTTPResponse;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class HTTPMessageParserTest {
+
+    private HTTPMessageParser parser;
+
+    @Before
+    public void setUp() {
+        parser = new HTTPMessageParser();
+    }
+
+    private static ByteBuffer buffer(String data) {
+        return ByteBuffer.wrap(data.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Test Name: testParse_ValidRequest
+     * Description: A complete request in one buffer is parsed into an HTTPRequest.
+     */
+    @Test
+    public void testParse_ValidRequest() throws ProtocolException {
+        List<String> logMessages = new ArrayList<>();
+        logMessages.add("\n--- TEST: testParse_ValidRequest ---\n");
+
+        try {
+            HTTPMessage httpMessage = parser.parse(buffer("PUT /data/abc HTTP/1.1\r\nContent-Type: application/json\r\nContent-Length: 2\r\n\r\n{}"));
+
+            assertTrue(httpMessage instanceof HTTPRequest);
+            HTTPRequest httpRequest = (HTTPRequest) httpMessage;
+            assertEquals("PUT", httpRequest.getRequestMethod());
+            assertEquals("/data/abc", httpRequest.getURI());
+            assertEquals("HTTP/1.1", httpRequest.getProtocolVersion());
+            assertEquals("application/json", httpRequest.getHeader("Content-Type"));
+            assertEquals("{}", httpRequest.getBody());
+            logMessages.add("Test passed: Request was parsed correctly.\n");
+        } catch (AssertionError e) {
+            logMessages.add("Test failed: " + e.getMessage() + "\n");
+            throw e;
+        } finally {
+            logMessages.forEach(System.out::println);
+        }
+    }
+
+    /**
+     * Test Name: testParse_ValidResponse
+     * Description: A status line with a reason phrase is parsed into an HTTPResponse.
+     */
+    @Test
+    public void testParse_ValidResponse() throws ProtocolException {
+        List<String> logMessages = new ArrayList<>();
+        logMessages.add("\n--- TEST: testParse_ValidResponse ---\n");
+
+        try {
+            HTTPMessage httpMessage = parser.parse(buffer("HTTP/1.1 201 HTTP_CREATED\r\nContent-Length: 0\r\nConnection: close\r\n\r\n"));
+
+            assertTrue(httpMessage instanceof HTTPResponse);
+            assertEquals("201 HTTP_CREATED", ((HTTPResponse) httpMessage).getStatusCode());
+            assertFalse(httpMessage.shouldKeepConnectionAlive());
+            logMessages.add("Test passed: Response was parsed correctly.\n");
+        } catch (AssertionError e) {
+            logMessages.add("Test failed: " + e.getMessage() + "\n");
+            throw e;
+        } finally {
+            logMessages.forEach(System.out::println);
+        }
+    }
+
+    /**
+     * Test Name: testParse_ResponseWithoutReasonPhrase
+     * Description: A status line which leaves out the reason phrase is parsed into an HTTPResponse.
+     */
+    @Test
+    public void testParse_ResponseWithoutReasonPhrase() throws ProtocolException {
+        List<String> logMessages = new ArrayList<>();
+        logMessages.add("\n--- TEST: testParse_ResponseWithoutReasonPhrase ---\n");
+
+        try {
+            HTTPMessage httpMessage = parser.parse(buffer("HTTP/1.1 204\r\nContent-Length: 0\r\n\r\n"));
+
+            assertTrue(httpMessage instanceof HTTPResponse);
+            assertEquals("204", ((HTTPResponse) httpMessage).getStatusCode());
+            assertEquals("HTTP/1.1", httpMessage.getProtocolVersion());
+            logMessages.add("Test passed: Response without a reason phrase was parsed correctly.\n");
+        } catch (AssertionError e) {
+            logMessages.add("Test failed: " + e.getMessage() + "\n");
+            throw e;
+        } finally {
+            logMessages.forEach(System.out::println);
+        }
+    }
+
+    /**
+     * Test Name: testParse_SplitAcrossBuffers
+     * Description: A request delivered one byte at a time is parsed once its last byte arrives.
+     */
+    @Test
+    public void testParse_SplitAcrossBuffers() throws ProtocolException {
+        List<String> logMessages = new ArrayList<>();
+        logMessages.add("\n--- TEST: testParse_SplitAcrossBuffers ---\n");
+
+        byte[] request = "GET /weather/IDS60901 HTTP/1.1\r\nContent-Length: 3\r\n\r\nabc".getBytes(StandardCharsets.UTF_8);
+        try {
+            HTTPMessage httpMessage = null;
+            for (int i = 0; i < request.length; i++) {
+                assertNull("Message completed early at byte " + i, httpMessage);
+                httpMessage = parser.parse(ByteBuffer.wrap(request, i, 1));
+            }
+
+            assertNotNull(httpMessage);
+            assertEquals("/weather/IDS60901", ((HTTPRequest) httpMessage).getURI());
+            assertEquals("abc", httpMessage.getBody());
+            logMessages.add("Test passed: Request split across buffers was parsed correctly.\n");
+        } catch (AssertionError e) {
+            logMessages.add("Test failed: " + e.getMessage() + "\n");
+            throw e;
+        } finally {
+            logMessages.forEach(System.out::println);
+        }
+    }
+
+    /**
+     * Test Name: testParse_NonAsciiBody
+     * Description: Content-Length counts bytes, so a multi-byte UTF-8 body is read completely.
+     */
+    @Test
+    public void testParse_NonAsciiBody() throws ProtocolException {
+        List<String> logMessages = new ArrayList<>();
+        logMessages.add("\n--- TEST: testParse_NonAsciiBody ---\n");
+
+        String body = "{\"name\": \"Port Lincoln – Ōtautahi\"}";
+        int contentLength = body.getBytes(StandardCharsets.UTF_8).length;
+        try {
+            HTTPMessage httpMessage = parser.parse(buffer("PUT /data/x HTTP/1.1\r\nContent-Length: " + contentLength + "\r\n\r\n" + body));
+
+            assertNotNull(httpMessage);
+            assertEquals(body, httpMessage.getBody());
+            logMessages.add("Test passed: Non-ASCII body was read using its byte length.\n");
+        } catch (AssertionError e) {
+            logMessages.add("Test failed: " + e.getMessage() + "\n");
+            throw e;
+        } finally {
+            logMessages.forEach(System.out::println);
+        }
+    }
+
+    /**
+     * Test Name: testParse_PipelinedRequests
+     * Description: Bytes of a second pipelined request are left in the buffer for the next call.
+     */
+    @Test
+    public void testParse_PipelinedRequests() throws ProtocolException {
+        List<String> logMessages = new ArrayList<>();
+        logMessages.add("\n--- TEST: testParse_PipelinedRequests ---\n");
+
+        ByteBuffer buffer = buffer("GET /weather/A HTTP/1.1\r\nContent-Length: 0\r\n\r\n\nGET /weather/B HTTP/1.1\n\n");
+        try {
+            HTTPRequest first = (HTTPRequest) parser.parse(buffer);
+            assertTrue(buffer.hasRemaining());
+            HTTPRequest second = (HTTPRequest) parser.parse(buffer);
+
+            assertEquals("/weather/A", first.getURI());
+            assertEquals("/weather/B", second.getURI());
+            assertEquals("", second.getBody());
+            assertFalse(buffer.hasRemaining());
+            logMessages.add("Test passed: Pipelined requests were parsed in order.\n");
+        } catch (AssertionError e) {
+            logMessages.add("Test failed: " + e.getMessage() + "\n");
+            throw e;
+        } finally {
+            logMessages.forEach(System.out::println);
+        }
+    }
+
+    /**
+     * Test Name: testParse_UnsupportedHeaderSkipped
+     * Description: Headers the message model does not support are skipped rather than rejected.
+     */
+    @Test
+    public void testParse_UnsupportedHeaderSkipped() throws ProtocolException {
+        List<String> logMessages = new ArrayList<>();
+        logMessages.add("\n--- TEST: testParse_UnsupportedHeaderSkipped ---\n");
+
+        try {
+            HTTPMessage httpMessage = parser.parse(buffer("GET / HTTP/1.1\r\nAccept: */*\r\ncontent-length:  0 \r\n\r\n"));
+
+            assertNotNull(httpMessage);
+            assertNull(httpMessage.getHeader("Accept"));
+            assertEquals("0", httpMessage.getHeader("Content-Length"));
+            logMessages.add("Test passed: Unsupported header was skipped.\n");
+        } catch (AssertionError e) {
+            logMessages.add("Test failed: " + e.getMessage() + "\n");
+            throw e;
+        } finally {
+            logMessages.forEach(System.out::println);
+        }
+    }
+
+    /**
+     * Test Name: testParse_InvalidMethod
+     * Description: An unknown method is rejected with a ProtocolException.
+     */
+    @Test(expected = ProtocolException.class)
+    public void testParse_InvalidMethod() throws ProtocolException {
+        parser.parse(buffer("PATCH / HTTP/1.1\r\n\r\n"));
+    }
+
+    /**
+     * Test Name: testParse_InvalidContentLength
+     * Description: A non-numeric Content-Length is rejected with a ProtocolException.
+     */
+    @Test(expected = ProtocolException.class)
+    public void testParse_InvalidContentLength() throws ProtocolException {
+        parser.parse(buffer("PUT / HTTP/1.1\r\nContent-Length: ten\r\n\r\n"));
+    }
+
+    /**
+     * Test Name: testParse_MalformedHeader
+     * Description: A header line without a colon is rejected with a ProtocolException.
+     */
+    @Test(expected = ProtocolException.class)
+    public void testParse_MalformedHeader() throws ProtocolException {
+        parser.parse(buffer("GET / HTTP/1.1\r\nContent-Length 0\r\n\r\n"));
+    }
+}
@@ -0,0 +1,141 @@
+package http;
+
+import http.messages.HTTPRequest;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class HTTPServerTest {
+
+    /**
+     * Answers each GET request with its path as the body.
+     */
+    private static class EchoServer extends HTTPServer {
+        EchoServer(ServerSocket serverSocket, ExecutionMode executionMode) {
+            super(serverSocket, executionMode, 2);
+        }
+
+        @Override
+        public String handleGETRequest(HTTPRequest httpRequest) {
+            String body = httpRequest.getURI();
+            return "HTTP/1.1 200 OK\r\nContent-Length: " + body.length() + "\r\n\r\n" + body;
+        }
+
+        @Override
+        public String handlePUTRequest(HTTPRequest httpRequest) {
+            return handleError();
+        }
+
+        @Override
+        public String handlePOSTRequest(HTTPRequest httpRequest) {
+            return handleError();
+        }
+
+        @Override
+        public String handleDELETERequest(HTTPRequest httpRequest) {
+            return handleError();
+        }
+
+        @Override
+        public String handleError() {
+            return "HTTP/1.1 500 Internal_server_error\r\nContent-Length: 0\r\n\r\n";
+        }
+    }
+
+    /**
+     * Test Name: testVirtualThreads_OnlyOnSupportedJava
+     * Description: Virtual-thread mode serves requests on Java 21 or later, and is rejected
+     *              with an error naming the required version on older JVMs.
+     */
+    @Test
+    public void testVirtualThreads_OnlyOnSupportedJava() throws IOException {
+        List<String> logMessages = new ArrayList<>();
+        logMessages.add("\n--- TEST: testVirtualThreads_OnlyOnSupportedJava ---\n");
+
+        try (ServerSocket serverSocket = new ServerSocket(0)) {
+            logMessages.add("Running on Java " + Runtime.version().feature());
+            assertEquals(Runtime.version().feature() >= 21, HTTPServer.areVirtualThreadsSupported());
+            if (!HTTPServer.areVirtualThreadsSupported()) {
+                try {
+                    new EchoServer(serverSocket, HTTPServer.ExecutionMode.VIRTUAL_THREADS);
+                    fail("Expected virtual-thread mode to be rejected");
+                } catch (UnsupportedOperationException e) {
+                    logMessages.add("Rejected: " + e.getMessage());
+                    assertTrue(e.getMessage().contains("Java 21"));
+                }
+                logMessages.add("Test passed: Virtual-thread mode was rejected on this JVM.\n");
+                return;
+            }
+
+            EchoServer server = new EchoServer(serverSocket, HTTPServer.ExecutionMode.VIRTUAL_THREADS);
+            Thread serverThread = new Thread(server::run);
+            serverThread.setDaemon(true);
+            serverThread.start();
+            try (Socket socket = new Socket("localhost", serverSocket.getLocalPort())) {
+                socket.setSoTimeout(5000);
+                socket.getOutputStream().write("GET /station1 HTTP/1.1\r\nConnection: close\r\n\r\n".getBytes(StandardCharsets.UTF_8));
+                ByteArrayOutputStream received = new ByteArrayOutputStream();
+                InputStream in = socket.getInputStream();
+                for (int b = in.read(); b != -1; b = in.read()) {
+                    received.write(b);
+                }
+                String response = received.toString(StandardCharsets.UTF_8.name());
+                logMessages.add("Received:\n" + response);
+                assertTrue(response.startsWith("HTTP/1.1 200 OK"));
+                assertTrue(response.endsWith("/station1"));
+            } finally {
+                server.close();
+            }
+            logMessages.add("Test passed: Virtual-thread mode served the request.\n");
+        } catch (AssertionError e) {
+            logMessages.add("Test failed: " + e.getMessage() + "\n");
+            throw e;
+        } finally {
+            logMessages.forEach(System.out::println);
+        }
+    }
+
+    /**
+     * Test Name: testWithConnectionClose_RewritesOrAddsHeader
+     * Description: A response answering a request which asked to close the connection says
+     *              Connection: close, whether it said keep-alive or had no Connection header,
+     *              and the handler's response bytes are left unchanged.
+     */
+    @Test
+    public void testWithConnectionClose_RewritesOrAddsHeader() {
+        List<String> logMessages = new ArrayList<>();
+        logMessages.add("\n--- TEST: testWithConnectionClose_RewritesOrAddsHeader ---\n");
+
+        try {
+            byte[] keepAlive = "HTTP/1.1 200 OK\r\nContent-Length: 2\r\nConnection: keep-alive\r\n\r\n{}".getBytes(StandardCharsets.UTF_8);
+            byte[] closing = HTTPServer.withConnectionClose(keepAlive);
+            assertEquals("HTTP/1.1 200 OK\r\nContent-Length: 2\r\nConnection: close\r\n\r\n{}",
+                         new String(closing, StandardCharsets.UTF_8));
+            assertEquals("HTTP/1.1 200 OK\r\nContent-Length: 2\r\nConnection: keep-alive\r\n\r\n{}",
+                         new String(keepAlive, StandardCharsets.UTF_8));
+
+            byte[] noHeader = "HTTP/1.1 204\r\nContent-Length: 0\r\n\r\n".getBytes(StandardCharsets.UTF_8);
+            assertEquals("HTTP/1.1 204\r\nConnection: close\r\nContent-Length: 0\r\n\r\n",
+                         new String(HTTPServer.withConnectionClose(noHeader), StandardCharsets.UTF_8));
+
+            byte[] alreadyClosing = "HTTP/1.1 200 OK\r\nConnection: close\r\n\r\n".getBytes(StandardCharsets.UTF_8);
+            assertSame(alreadyClosing, HTTPServer.withConnectionClose(alreadyClosing));
+            logMessages.add("Test passed: Connection headers were made to say close.\n");
+        } catch (AssertionError e) {
+            logMessages.add("Test failed: " + e.getMessage() + "\n");
+            throw e;
+        } finally {
+            logMessages.forEach(System.out::println);
+        }
+    }
+}
@@ -0,0 +1,223 @@
+package http;
+
+import http.messages.HTTPRequest;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class SelectorEngineTest {
+
+    private static final int READ_TIMEOUT_MS = 5000;
+
+    private ServerSocketChannel serverChannel;
+    private EchoServer server;
+
+    /**
+     * Answers each GET request with its path as the body. Handlers for /slow paths take a while
+     * to return, so the client's later bytes arrive while the handler is still running, and
+     * /later paths return at once but complete their response a while after.
+     */
+    private static class EchoServer extends HTTPServer {
+        EchoServer(ServerSocketChannel serverChannel) {
+            super(serverChannel.socket(), ExecutionMode.SELECTOR, 2);
+        }
+
+        @Override
+        public String handleGETRequest(HTTPRequest httpRequest) {
+            if (httpRequest.getURI().startsWith("/slow")) {
+                try {
+                    Thread.sleep(300);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            String body = httpRequest.getURI();
+            return "HTTP/1.1 200 OK\r\nContent-Length: " + body.length() + "\r\n\r\n" + body;
+        }
+
+        @Override
+        protected CompletableFuture<byte[]> handleGETRequestAsync(HTTPRequest httpRequest) {
+            if (httpRequest.getURI().startsWith("/later")) {
+                return CompletableFuture.supplyAsync(() -> handleGETRequestBytes(httpRequest),
+                                                     CompletableFuture.delayedExecutor(300, TimeUnit.MILLISECONDS));
+            }
+            return super.handleGETRequestAsync(httpRequest);
+        }
+
+        @Override
+        public String handlePUTRequest(HTTPRequest httpRequest) {
+            return handleError();
+        }
+
+        @Override
+        public String handlePOSTRequest(HTTPRequest httpRequest) {
+            return handleError();
+        }
+
+        @Override
+        public String handleDELETERequest(HTTPRequest httpRequest) {
+            return handleError();
+        }
+
+        @Override
+        public String handleError() {
+            return "HTTP/1.1 500 Internal_server_error\r\nContent-Length: 0\r\n\r\n";
+        }
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress("localhost", 0));
+        server = new EchoServer(serverChannel);
+        Thread serverThread = new Thread(server::run);
+        serverThread.setDaemon(true);
+        serverThread.start();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        server.close();
+    }
+
+    private Socket connect() throws IOException {
+        Socket socket = new Socket("localhost", serverChannel.socket().getLocalPort());
+        socket.setTcpNoDelay(true);
+        socket.setSoTimeout(READ_TIMEOUT_MS);
+        return socket;
+    }
+
+    private static String request(String path, boolean close) {
+        return "GET " + path + " HTTP/1.1\r\nContent-Length: 0\r\n" + (close ? "Connection: close\r\n" : "") + "\r\n";
+    }
+
+    /**
+     * Reads until the server closes the connection.
+     */
+    private static String readUntilClosed(Socket socket) throws IOException {
+        ByteArrayOutputStream received = new ByteArrayOutputStream();
+        InputStream in = socket.getInputStream();
+        byte[] buffer = new byte[1024];
+        for (int read = in.read(buffer); read != -1; read = in.read(buffer)) {
+            received.write(buffer, 0, read);
+        }
+        return received.toString(StandardCharsets.UTF_8.name());
+    }
+
+    private static List<String> bodies(String responses) {
+        List<String> bodies = new ArrayList<>();
+        for (String response : responses.split("HTTP/1.1 ")) {
+            if (!response.isEmpty()) {
+                bodies.add(response.substring(response.indexOf("\r\n\r\n") + 4));
+            }
+        }
+        return bodies;
+    }
+
+    /**
+     * Test Name: testRequest_SplitAcrossPackets
+     * Description: A request whose bytes arrive in several writes, split inside the request
+     *              line and inside a header, is answered once its last byte has arrived.
+     */
+    @Test
+    public void testRequest_SplitAcrossPackets() throws Exception {
+        List<String> logMessages = new ArrayList<>();
+        logMessages.add("\n--- TEST: testRequest_SplitAcrossPackets ---\n");
+
+        try (Socket socket = connect()) {
+            byte[] request = request("/station1", true).getBytes(StandardCharsets.UTF_8);
+            OutputStream out = socket.getOutputStream();
+            int[] splits = {0, 6, 20, 31, request.length};
+            for (int i = 1; i < splits.length; i++) {
+                out.write(request, splits[i - 1], splits[i] - splits[i - 1]);
+                out.flush();
+                Thread.sleep(50);
+            }
+
+            String responses = readUntilClosed(socket);
+            logMessages.add("Received:\n" + responses);
+            assertTrue(responses.startsWith("HTTP/1.1 200 OK"));
+            assertTrue("Response to a closing request must say so", responses.contains("\r\nConnection: close\r\n"));
+            assertEquals(Arrays.asList("/station1"), bodies(responses));
+            logMessages.add("Test passed: The split request was reassembled and answered.\n");
+        } catch (AssertionError e) {
+            logMessages.add("Test failed: " + e.getMessage() + "\n");
+            throw e;
+        } finally {
+            logMessages.forEach(System.out::println);
+        }
+    }
+
+    /**
+     * Test Name: testRequests_PipelinedInOneWrite
+     * Description: Several requests sent in one write, the first of them slow, are answered
+     *              in the order they were sent on the same connection.
+     */
+    @Test
+    public void testRequests_PipelinedInOneWrite() throws Exception {
+        List<String> logMessages = new ArrayList<>();
+        logMessages.add("\n--- TEST: testRequests_PipelinedInOneWrite ---\n");
+
+        try (Socket socket = connect()) {
+            String requests = request("/slow1", false) + request("/station2", false) + request("/station3", true);
+            socket.getOutputStream().write(requests.getBytes(StandardCharsets.UTF_8));
+            socket.getOutputStream().flush();
+
+            String responses = readUntilClosed(socket);
+            logMessages.add("Response bodies: " + bodies(responses));
+            assertEquals(Arrays.asList("/slow1", "/station2", "/station3"), bodies(responses));
+            logMessages.add("Test passed: Pipelined requests were answered in order.\n");
+        } catch (AssertionError e) {
+            logMessages.add("Test failed: " + e.getMessage() + "\n");
+            throw e;
+        } finally {
+            logMessages.forEach(System.out::println);
+        }
+    }
+
+    /**
+     * Test Name: testRequest_PartialThenHalfClosed
+     * Description: A client which sends requests and then shuts down its output, while their
+     *              responses are still being completed, receives every response before the
+     *              server closes the connection; an incomplete request left at the end is dropped.
+     */
+    @Test
+    public void testRequest_PartialThenHalfClosed() throws Exception {
+        List<String> logMessages = new ArrayList<>();
+        logMessages.add("\n--- TEST: testRequest_PartialThenHalfClosed ---\n");
+
+        try (Socket socket = connect()) {
+            String requests = request("/later1", false) + request("/later2", false) + "GET /unfinished HTTP/1.1\r\nCont";
+            socket.getOutputStream().write(requests.getBytes(StandardCharsets.UTF_8));
+            socket.getOutputStream().flush();
+            socket.shutdownOutput();
+
+            String responses = readUntilClosed(socket);
+            logMessages.add("Response bodies: " + bodies(responses));
+            assertEquals(Arrays.asList("/later1", "/later2"), bodies(responses));
+            logMessages.add("Test passed: Requests sent before the half-close were answered.\n");
+        } catch (AssertionError e) {
+            logMessages.add("Test failed: " + e.getMessage() + "\n");
+            throw e;
+        } finally {
+            logMessages.forEach(System.out::println);
+        }
+    }
+}
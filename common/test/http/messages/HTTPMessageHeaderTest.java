@@ -48,6 +48,28 @@ public class HTTPMessageHeaderTest {
         }
     }
 
+    @Test
+    public void testSetHeader_ConditionalRequestHeaders() {
+        List<String> logMessages = new ArrayList<>();
+        logMessages.add("\n--- TEST: testSetHeader_ConditionalRequestHeaders ---\n");
+
+        try {
+            String entityTag = "\"2a-5f3c9e1d\"";
+            logMessages.add("Setting the ETag and If-None-Match headers:\n" + entityTag + "\n");
+            httpMessage.setHeader("ETag", entityTag);
+            httpMessage.setHeader("If-None-Match", entityTag);
+
+            assertEquals(entityTag, httpMessage.getHeader("ETag"));
+            assertEquals(entityTag, httpMessage.getHeader("If-None-Match"));
+            logMessages.add("Test passed: Conditional request headers were set successfully.\n");
+        } catch (AssertionError e) {
+            logMessages.add("Test failed: Conditional request headers were not set.\n");
+            throw e;
+        } finally {
+            logMessages.forEach(System.out::println);
+        }
+    }
+
     public void testSetHeader_InvalidHeaderValue() {
         List<String> logMessages = new ArrayList<>();
         logMessages.add("\n--- TEST: testSetHeader_InvalidHeaderValue ---\n");
@@ -0,0 +1,43 @@
+package util;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class CLITest {
+
+    /**
+     * Test Name: testParseCLIArguments_DefaultKeepsOtherOptions
+     * Description: --default fills in the default port without hiding the options given
+     *              before or after it, and an explicit port wins over the default.
+     */
+    @Test
+    public void testParseCLIArguments_DefaultKeepsOtherOptions() {
+        List<String> logMessages = new ArrayList<>();
+        logMessages.add("\n--- TEST: testParseCLIArguments_DefaultKeepsOtherOptions ---\n");
+
+        try {
+            CLI cli = new CLI("help");
+            Map<String, String> argMap = cli.parseCLIArguments(new String[] {"--fsync", "os", "--default", "--engine", "virtual"});
+            logMessages.add("Parsed: " + argMap);
+            assertEquals("virtual", argMap.get("engine"));
+            assertEquals("os", argMap.get("fsync"));
+            assertEquals("4567", argMap.get("port"));
+
+            argMap = cli.parseCLIArguments(new String[] {"--default", "--port", "5000"});
+            assertEquals("5000", argMap.get("port"));
+
+            assertNull(cli.parseCLIArguments(new String[] {"--help", "--engine", "virtual"}));
+            logMessages.add("Test passed: --default kept the other options.\n");
+        } catch (AssertionError e) {
+            logMessages.add("Test failed: " + e.getMessage() + "\n");
+            throw e;
+        } finally {
+            logMessages.forEach(System.out::println);
+        }
+    }
+}
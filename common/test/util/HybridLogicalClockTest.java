@@ -0,0 +1,158 @@
+package util;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+public class HybridLogicalClockTest {
+
+    private static long hybrid(long millis, long count) {
+        return (millis << HybridLogicalClock.LOGICAL_BITS) + count;
+    }
+
+    /**
+     * Test Name: testTick_FollowsPhysicalTimeAndNeverGoesBack
+     * Description: Ticks take physical time when it moves forward, count within a millisecond,
+     *              and keep counting when physical time moves backwards.
+     */
+    @Test
+    public void testTick_FollowsPhysicalTimeAndNeverGoesBack() {
+        List<String> logMessages = new ArrayList<>();
+        logMessages.add("\n--- TEST: testTick_FollowsPhysicalTimeAndNeverGoesBack ---\n");
+
+        try {
+            AtomicLong physicalTime = new AtomicLong(1000);
+            HybridLogicalClock clock = new HybridLogicalClock(physicalTime::get);
+
+            assertEquals(hybrid(1000, 0), clock.tick());
+            assertEquals(hybrid(1000, 1), clock.tick());
+            physicalTime.set(1005);
+            assertEquals(hybrid(1005, 0), clock.tick());
+            physicalTime.set(900);
+            assertEquals(hybrid(1005, 1), clock.tick());
+            assertEquals(1005, HybridLogicalClock.physicalTimeMillis(clock.peekTime()));
+            assertEquals(1, HybridLogicalClock.logicalCount(clock.peekTime()));
+            logMessages.add("Test passed: Ticks followed physical time and stayed monotonic.\n");
+        } catch (AssertionError e) {
+            logMessages.add("Test failed: " + e.getMessage() + "\n");
+            throw e;
+        } finally {
+            logMessages.forEach(System.out::println);
+        }
+    }
+
+    /**
+     * Test Name: testProcessReceivedTimestamp_ClassifiesAndMerges
+     * Description: A timestamp ahead of the clock is after and moves the clock past it, one
+     *              behind it is concurrent, and physical time still wins once it passes both.
+     */
+    @Test
+    public void testProcessReceivedTimestamp_ClassifiesAndMerges() {
+        List<String> logMessages = new ArrayList<>();
+        logMessages.add("\n--- TEST: testProcessReceivedTimestamp_ClassifiesAndMerges ---\n");
+
+        try {
+            AtomicLong physicalTime = new AtomicLong(1000);
+            HybridLogicalClock clock = new HybridLogicalClock(physicalTime::get);
+            clock.tick();
+
+            // A sender whose physical clock runs ahead
+            assertEquals(LogicalClock.EventType.AFTER, clock.processReceivedTimestamp(hybrid(1010, 3)));
+            assertEquals(hybrid(1010, 4), clock.peekTime());
+            assertEquals(LogicalClock.EventType.CONCURRENT, clock.processReceivedTimestamp(hybrid(1002, 0)));
+            assertEquals(hybrid(1010, 5), clock.peekTime());
+            physicalTime.set(1020);
+            assertEquals(LogicalClock.EventType.CONCURRENT, clock.processReceivedTimestamp(hybrid(1008, 0)));
+            assertEquals(hybrid(1020, 0), clock.peekTime());
+            assertTrue(clock.tracksPhysicalTime());
+            logMessages.add("Test passed: Received timestamps were classified and merged.\n");
+        } catch (AssertionError e) {
+            logMessages.add("Test failed: " + e.getMessage() + "\n");
+            throw e;
+        } finally {
+            logMessages.forEach(System.out::println);
+        }
+    }
+
+    /**
+     * Test Name: testProcessReceivedTimestamp_RejectsTimestampsBeyondMaxOffset
+     * Description: A timestamp up to the maximum offset ahead of physical time is merged, one
+     *              further ahead is rejected without moving the clock, and the same timestamp
+     *              is accepted once physical time has caught up to within the offset.
+     */
+    @Test
+    public void testProcessReceivedTimestamp_RejectsTimestampsBeyondMaxOffset() {
+        List<String> logMessages = new ArrayList<>();
+        logMessages.add("\n--- TEST: testProcessReceivedTimestamp_RejectsTimestampsBeyondMaxOffset ---\n");
+
+        try {
+            AtomicLong physicalTime = new AtomicLong(1000);
+            HybridLogicalClock clock = new HybridLogicalClock(physicalTime::get, 100);
+            clock.tick();
+
+            assertEquals(LogicalClock.EventType.AFTER, clock.processReceivedTimestamp(hybrid(1100, 7)));
+            assertEquals(hybrid(1100, 8), clock.peekTime());
+            try {
+                clock.processReceivedTimestamp(hybrid(1101, 0));
+                fail("Expected a timestamp beyond the maximum offset to be rejected");
+            } catch (HybridLogicalClock.TimestampAheadException e) {
+                logMessages.add("Rejected: " + e.getMessage());
+            }
+            try {
+                clock.processReceivedTimestamp(Long.MAX_VALUE);
+                fail("Expected the largest timestamp to be rejected");
+            } catch (HybridLogicalClock.TimestampAheadException e) {
+                logMessages.add("Rejected: " + e.getMessage());
+            }
+            assertEquals(hybrid(1100, 8), clock.peekTime());
+
+            physicalTime.set(1001);
+            assertEquals(LogicalClock.EventType.AFTER, clock.processReceivedTimestamp(hybrid(1101, 0)));
+            assertEquals(hybrid(1101, 1), clock.peekTime());
+            logMessages.add("Test passed: Timestamps beyond the maximum offset were rejected.\n");
+        } catch (AssertionError e) {
+            logMessages.add("Test failed: " + e.getMessage() + "\n");
+            throw e;
+        } finally {
+            logMessages.forEach(System.out::println);
+        }
+    }
+
+    /**
+     * Test Name: testTick_ConcurrentTicksAreUnique
+     * Description: Ticks from many threads in the same millisecond all get distinct timestamps.
+     */
+    @Test
+    public void testTick_ConcurrentTicksAreUnique() throws InterruptedException {
+        List<String> logMessages = new ArrayList<>();
+        logMessages.add("\n--- TEST: testTick_ConcurrentTicksAreUnique ---\n");
+
+        try {
+            HybridLogicalClock clock = new HybridLogicalClock(() -> 1000);
+            Thread[] threads = new Thread[8];
+            for (int t = 0; t < threads.length; t++) {
+                threads[t] = new Thread(() -> {
+                    for (int i = 0; i < 1000; i++) {
+                        clock.tick();
+                    }
+                });
+                threads[t].start();
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+
+            assertEquals(hybrid(1000, threads.length * 1000L - 1), clock.peekTime());
+            logMessages.add("Test passed: Concurrent ticks were all distinct.\n");
+        } catch (AssertionError e) {
+            logMessages.add("Test failed: " + e.getMessage() + "\n");
+            throw e;
+        } finally {
+            logMessages.forEach(System.out::println);
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package util;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+public class IOUtilityTest {
+
+    private static String read(Path file) throws IOException {
+        return new String(Files.readAllBytes(file), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Test Name: testReplaceFileWithBytes_KeepsNewestVersion
+     * Description: A version older than one already written is not written, a deletion is a
+     *              version like any other, and a newer version brings the file back.
+     */
+    @Test
+    public void testReplaceFileWithBytes_KeepsNewestVersion() throws IOException {
+        List<String> logMessages = new ArrayList<>();
+        logMessages.add("\n--- TEST: testReplaceFileWithBytes_KeepsNewestVersion ---\n");
+
+        Path directory = Files.createTempDirectory("replace");
+        Path file = directory.resolve("station.weather");
+        try {
+            IOUtility ioUtility = new IOUtility();
+            ioUtility.replaceFileWithBytes("v2".getBytes(StandardCharsets.UTF_8), file.toString(), true, 2);
+            ioUtility.replaceFileWithBytes("v1".getBytes(StandardCharsets.UTF_8), file.toString(), true, 1);
+            assertEquals("v2", read(file));
+
+            ioUtility.deleteFile(file.toString(), true, 3);
+            assertFalse(Files.exists(file));
+            ioUtility.replaceFileWithBytes("v4".getBytes(StandardCharsets.UTF_8), file.toString(), true, 4);
+            assertEquals("v4", read(file));
+            assertFalse(Files.exists(directory.resolve("station.weather.tmp")));
+            logMessages.add("Test passed: Only the newest version of the file was kept.\n");
+        } catch (AssertionError e) {
+            logMessages.add("Test failed: " + e.getMessage() + "\n");
+            throw e;
+        } finally {
+            Files.deleteIfExists(file);
+            Files.deleteIfExists(directory);
+            logMessages.forEach(System.out::println);
+        }
+    }
+
+    /**
+     * Test Name: testReplaceFileWithBytes_CollapsesConcurrentWriters
+     * Description: Many threads replacing the same file at once never share its temporary file,
+     *              and once they have all returned the file holds the newest version.
+     */
+    @Test
+    public void testReplaceFileWithBytes_CollapsesConcurrentWriters() throws Exception {
+        List<String> logMessages = new ArrayList<>();
+        logMessages.add("\n--- TEST: testReplaceFileWithBytes_CollapsesConcurrentWriters ---\n");
+
+        Path directory = Files.createTempDirectory("replace");
+        Path file = directory.resolve("station.weather");
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            IOUtility ioUtility = new IOUtility();
+            AtomicLong nextVersion = new AtomicLong();
+            CountDownLatch start = new CountDownLatch(1);
+            List<Future<?>> writers = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                writers.add(executor.submit(() -> {
+                    start.await();
+                    for (int j = 0; j < 25; j++) {
+                        long version = nextVersion.incrementAndGet();
+                        // Large enough that a torn write would show
+                        String data = ("version " + version + "\n").repeat(1000);
+                        ioUtility.replaceFileWithBytes(data.getBytes(StandardCharsets.UTF_8), file.toString(), false, version);
+                    }
+                    return null;
+                }));
+            }
+            start.countDown();
+            for (Future<?> writer : writers) {
+                writer.get();
+            }
+
+            assertEquals(("version 200\n").repeat(1000), read(file));
+            assertFalse(Files.exists(directory.resolve("station.weather.tmp")));
+            logMessages.add("Test passed: Concurrent writers left the newest version in place.\n");
+        } catch (AssertionError e) {
+            logMessages.add("Test failed: " + e.getMessage() + "\n");
+            throw e;
+        } finally {
+            executor.shutdownNow();
+            Files.deleteIfExists(file);
+            Files.deleteIfExists(directory);
+            logMessages.forEach(System.out::println);
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package util;
+
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Compares the streaming JSON parser and writer with the previous regex-based implementation.
+ * Run with: java -cp "lib/*:bin/src/main/java:bin/test" util.JSONObjectBenchmark [iterations]
+ * <p>
+ * Each case runs warmup rounds before the measured round, and reports the average time and the
+ * bytes allocated by the benchmark thread per operation.
+ */
+public class JSONObjectBenchmark {
+    private static final String WEATHER_JSON = "{\n" +
+            "   \"id\" : \"IDS60901\",\n" +
+            "   \"name\" : \"Adelaide (West Terrace /  ngayirdapira)\",\n" +
+            "   \"state\" : \"SA\",\n" +
+            "   \"time_zone\" : \"CST\",\n" +
+            "   \"lat\": -34.9,\n" +
+            "   \"lon\": 138.6,\n" +
+            "   \"local_date_time\": \"15/04:00pm\",\n" +
+            "   \"local_date_time_full\": \"20230715160000\",\n" +
+            "   \"air_temp\": 13.3,\n" +
+            "   \"apparent_t\": 9.5,\n" +
+            "   \"cloud\": \"Partly cloudy\",\n" +
+            "   \"dewpt\": 5.7,\n" +
+            "   \"press\": 1023.9,\n" +
+            "   \"rel_hum\": 60,\n" +
+            "   \"wind_dir\": \"S\",\n" +
+            "   \"wind_spd_kmh\": 15,\n" +
+            "   \"wind_spd_kt\": 8\n" +
+            "}";
+    private static final int WARMUP_ROUNDS = 5;
+
+    private static volatile Object sink;
+
+    public static void main(String[] args) throws Exception {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+        JSONObject parsed = new JSONObject(WEATHER_JSON);
+        Map<String, String> legacyParsed = LegacyJSON.parse(WEATHER_JSON);
+
+        System.out.printf("%-16s %12s %14s%n", "case", "ns/op", "bytes/op");
+        run("parse regex", iterations, () -> sink = LegacyJSON.parse(WEATHER_JSON));
+        run("parse stream", iterations, () -> sink = new JSONObject(WEATHER_JSON));
+        run("write regex", iterations, () -> sink = LegacyJSON.toJSONString(legacyParsed));
+        run("write stream", iterations, () -> sink = parsed.toJSONString());
+    }
+
+    private interface Operation {
+        void run() throws Exception;
+    }
+
+    private static void run(String name, int iterations, Operation operation) throws Exception {
+        for (int round = 0; round < WARMUP_ROUNDS; round++) {
+            for (int i = 0; i < iterations; i++) {
+                operation.run();
+            }
+        }
+        long allocatedBefore = allocatedBytes();
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            operation.run();
+        }
+        long elapsed = System.nanoTime() - start;
+        long allocated = allocatedBytes() - allocatedBefore;
+        System.out.printf("%-16s %12.1f %14d%n", name, (double) elapsed / iterations, allocated / iterations);
+    }
+
+    private static long allocatedBytes() {
+        java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return 0;
+    }
+
+    /**
+     * The previous implementation, kept here as the baseline.
+     */
+    private static final class LegacyJSON {
+        static Map<String, String> parse(String jsonString) {
+            Map<String, String> keyValMap = new HashMap<>();
+            Pattern pattern = Pattern.compile("\"(.*?)\"\\s*:\\s*(\".*?\"|[-+]?[0-9]*\\.?[0-9]+)");
+            Matcher matcher = pattern.matcher(jsonString);
+            while (matcher.find()) {
+                keyValMap.put(matcher.group(1), matcher.group(2).replaceAll("\"", ""));
+            }
+            return keyValMap;
+        }
+
+        static String toJSONString(Map<String, String> keyValMap) {
+            StringBuilder sb = new StringBuilder();
+            sb.append("{\n");
+            for (Map.Entry<String, String> entry : keyValMap.entrySet()) {
+                sb.append("   ");
+                sb.append('"').append(entry.getKey()).append('"');
+                sb.append(": ");
+                if (entry.getValue().matches("-?\\d+(\\.\\d+)?")) {
+                    sb.append(entry.getValue());
+                } else {
+                    sb.append('"').append(entry.getValue()).append('"');
+                }
+                sb.append(",\n");
+            }
+            sb.delete(sb.length() - 2, sb.length());
+            sb.append("\n}");
+            return sb.toString();
+        }
+    }
+}
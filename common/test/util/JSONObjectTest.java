@@ -0,0 +1,201 @@
+package util;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class JSONObjectTest {
+
+    private static final String WEATHER_JSON = "{\n" +
+            "   \"id\" : \"IDS60901\",\n" +
+            "   \"name\" : \"Adelaide (West Terrace /  ngayirdapira)\",\n" +
+            "   \"local_date_time_full\": \"20230715160000\",\n" +
+            "   \"air_temp\": 13.3,\n" +
+            "   \"rel_hum\": 60,\n" +
+            "   \"press\": -1.5e3\n" +
+            "}";
+
+    /**
+     * Test Name: testParse_FlatObjectWithTypedNumbers
+     * Description: Strings are decoded and numbers are kept as raw members in their original form.
+     */
+    @Test
+    public void testParse_FlatObjectWithTypedNumbers() throws Exception {
+        List<String> logMessages = new ArrayList<>();
+        logMessages.add("\n--- TEST: testParse_FlatObjectWithTypedNumbers ---\n");
+
+        try {
+            JSONObject jsonObject = new JSONObject(WEATHER_JSON);
+
+            assertEquals("IDS60901", jsonObject.get("id"));
+            assertEquals("Adelaide (West Terrace /  ngayirdapira)", jsonObject.get("name"));
+            assertFalse(jsonObject.isRaw("local_date_time_full"));
+            assertEquals("13.3", jsonObject.get("air_temp"));
+            assertEquals(13.3, jsonObject.getNumber("air_temp"));
+            assertEquals(60L, jsonObject.getNumber("rel_hum"));
+            assertEquals(-1500.0, jsonObject.getNumber("press"));
+            assertTrue(jsonObject.isRaw("press"));
+            logMessages.add("Test passed: Members and typed numbers were parsed.\n");
+        } catch (AssertionError e) {
+            logMessages.add("Test failed: " + e.getMessage() + "\n");
+            throw e;
+        } finally {
+            logMessages.forEach(System.out::println);
+        }
+    }
+
+    /**
+     * Test Name: testParse_EscapesRoundTrip
+     * Description: Escaped strings are decoded when parsed and escaped again when written.
+     */
+    @Test
+    public void testParse_EscapesRoundTrip() throws Exception {
+        List<String> logMessages = new ArrayList<>();
+        logMessages.add("\n--- TEST: testParse_EscapesRoundTrip ---\n");
+
+        try {
+            JSONObject jsonObject = new JSONObject("{\"text\": \"say \\\"hi\\\"\\\\\\n caf\\u00e9 \\/\"}");
+            assertEquals("say \"hi\"\\\n café /", jsonObject.get("text"));
+
+            String written = jsonObject.toJSONString();
+            assertEquals("{\n   \"text\": \"say \\\"hi\\\"\\\\\\n café /\"\n}", written);
+            assertEquals(jsonObject.get("text"), new JSONObject(written).get("text"));
+            logMessages.add("Test passed: Escapes survived a round trip.\n");
+        } catch (AssertionError e) {
+            logMessages.add("Test failed: " + e.getMessage() + "\n");
+            throw e;
+        } finally {
+            logMessages.forEach(System.out::println);
+        }
+    }
+
+    /**
+     * Test Name: testParse_NestedObjectsAndArrays
+     * Description: Nested values and literals are kept as compact JSON and written back unquoted.
+     */
+    @Test
+    public void testParse_NestedObjectsAndArrays() throws Exception {
+        List<String> logMessages = new ArrayList<>();
+        logMessages.add("\n--- TEST: testParse_NestedObjectsAndArrays ---\n");
+
+        try {
+            JSONObject jsonObject = new JSONObject("{ \"station\": { \"id\": \"A\", \"pos\": [ 1, -2.5, \"x,}\" ] },"
+                                                   + " \"tags\": [ ], \"active\": true, \"note\": null }");
+
+            assertEquals("{\"id\":\"A\",\"pos\":[1,-2.5,\"x,}\"]}", jsonObject.get("station"));
+            assertEquals("[]", jsonObject.get("tags"));
+            assertEquals("true", jsonObject.get("active"));
+            assertTrue(jsonObject.isRaw("note"));
+            assertEquals("A", jsonObject.getJSONObject("station").get("id"));
+            assertEquals("[1,-2.5,\"x,}\"]", jsonObject.getJSONObject("station").get("pos"));
+            assertEquals("{\n   \"station\": {\"id\":\"A\",\"pos\":[1,-2.5,\"x,}\"]},\n   \"tags\": [],\n"
+                         + "   \"active\": true,\n   \"note\": null\n}", jsonObject.toJSONString());
+            logMessages.add("Test passed: Nested values were kept.\n");
+        } catch (AssertionError e) {
+            logMessages.add("Test failed: " + e.getMessage() + "\n");
+            throw e;
+        } finally {
+            logMessages.forEach(System.out::println);
+        }
+    }
+
+    /**
+     * Test Name: testParse_MalformedInput
+     * Description: Invalid JSON objects are rejected with an IllegalArgumentException.
+     */
+    @Test
+    public void testParse_MalformedInput() throws Exception {
+        List<String> logMessages = new ArrayList<>();
+        logMessages.add("\n--- TEST: testParse_MalformedInput ---\n");
+
+        String[] malformed = {
+            "{\"a\": \"unterminated}",
+            "{\"a\": 1,}",
+            "{\"a\" 1}",
+            "{\"a\": 01}",
+            "{\"a\": [1, 2}",
+            "{\"a\": tru}",
+            "{\"a\": \"\\x\"}",
+            "{\"a\": 1} trailing"
+        };
+        try {
+            for (String input : malformed) {
+                try {
+                    new JSONObject(input);
+                    fail("Expected IllegalArgumentException for: " + input);
+                } catch (IllegalArgumentException expected) {
+                    // Expected
+                }
+            }
+            logMessages.add("Test passed: Malformed input was rejected.\n");
+        } catch (AssertionError e) {
+            logMessages.add("Test failed: " + e.getMessage() + "\n");
+            throw e;
+        } finally {
+            logMessages.forEach(System.out::println);
+        }
+    }
+
+    /**
+     * Test Name: testParse_CharSequenceAndSimpleList
+     * Description: Any CharSequence can be parsed, and the simple list format is still supported.
+     */
+    @Test
+    public void testParse_CharSequenceAndSimpleList() throws Exception {
+        List<String> logMessages = new ArrayList<>();
+        logMessages.add("\n--- TEST: testParse_CharSequenceAndSimpleList ---\n");
+
+        try {
+            JSONObject fromBuilder = new JSONObject(new StringBuilder(WEATHER_JSON));
+            assertEquals("IDS60901", fromBuilder.get("id"));
+
+            JSONObject simpleList = new JSONObject("id: IDS60901\nair_temp: 13.3");
+            assertEquals("IDS60901", simpleList.get("id"));
+            assertEquals("{\n   \"id\": \"IDS60901\",\n   \"air_temp\": 13.3\n}", simpleList.toJSONString());
+            assertEquals("{}", new JSONObject("{ }").toJSONString());
+            logMessages.add("Test passed: CharSequence and simple list input were parsed.\n");
+        } catch (AssertionError e) {
+            logMessages.add("Test failed: " + e.getMessage() + "\n");
+            throw e;
+        } finally {
+            logMessages.forEach(System.out::println);
+        }
+    }
+
+    /**
+     * Test Name: testParseArray_ObjectsInOrder
+     * Description: An array of objects is parsed in order, and arrays holding anything else are rejected.
+     */
+    @Test
+    public void testParseArray_ObjectsInOrder() throws Exception {
+        List<String> logMessages = new ArrayList<>();
+        logMessages.add("\n--- TEST: testParseArray_ObjectsInOrder ---\n");
+
+        try {
+            List<JSONObject> objects = JSONObject.parseArray(" [ " + WEATHER_JSON + ",\n{\"id\": \"IDS60902\", \"air_temp\": 9.5} ]\n");
+            assertEquals(2, objects.size());
+            assertEquals("IDS60901", objects.get(0).get("id"));
+            assertEquals(9.5, objects.get(1).getNumber("air_temp"));
+            assertTrue(JSONObject.parseArray("[]").isEmpty());
+
+            String[] malformed = { "[{\"a\": 1},]", "[1]", "[{\"a\": 1}", "{\"a\": 1}", "[{\"a\": 1}] []" };
+            for (String input : malformed) {
+                try {
+                    JSONObject.parseArray(input);
+                    fail("Expected IllegalArgumentException for: " + input);
+                } catch (IllegalArgumentException expected) {
+                    // Expected
+                }
+            }
+            logMessages.add("Test passed: Array of objects was parsed.\n");
+        } catch (AssertionError e) {
+            logMessages.add("Test failed: " + e.getMessage() + "\n");
+            throw e;
+        } finally {
+            logMessages.forEach(System.out::println);
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package util;
+
+import java.lang.Math;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Compares the lock-free LamportClock with the previous synchronized implementation under
+ * contention. Run with: java -cp "lib/*:bin/src/main/java:bin/test" util.LamportClockBenchmark [millis]
+ * <p>
+ * Each thread count runs a warmup round before the measured round. Every operation is what the
+ * server does per PUT: one processReceivedTimestamp followed by one peekTime for the response.
+ */
+public class LamportClockBenchmark {
+    private static final int[] THREAD_COUNTS = {1, 2, 4, 8, 16, 32, 64};
+    private static final int WARMUP_ROUNDS = 1;
+
+    private static volatile long sink;
+
+    public static void main(String[] args) throws Exception {
+        long millis = args.length > 0 ? Long.parseLong(args[0]) : 1000;
+
+        System.out.printf("%-8s %16s %16s %8s%n", "threads", "synchronized/s", "atomic/s", "speedup");
+        for (int threads : THREAD_COUNTS) {
+            SynchronizedLamportClock synchronizedClock = new SynchronizedLamportClock();
+            LamportClock atomicClock = new LamportClock();
+            double synchronizedRate = run(threads, millis, received -> {
+                synchronizedClock.processReceivedTimestamp(received);
+                return synchronizedClock.peekTime();
+            });
+            double atomicRate = run(threads, millis, received -> {
+                atomicClock.processReceivedTimestamp(received);
+                return atomicClock.peekTime();
+            });
+            System.out.printf("%-8d %16.0f %16.0f %7.2fx%n", threads, synchronizedRate, atomicRate, atomicRate / synchronizedRate);
+        }
+    }
+
+    private interface Operation {
+        long run(long receivedTimestamp);
+    }
+
+    private static double run(int threads, long millis, Operation operation) throws InterruptedException {
+        for (int round = 0; round < WARMUP_ROUNDS; round++) {
+            measure(threads, millis, operation);
+        }
+        return measure(threads, millis, operation);
+    }
+
+    private static double measure(int threads, long millis, Operation operation) throws InterruptedException {
+        LongAdder operations = new LongAdder();
+        CountDownLatch start = new CountDownLatch(1);
+        Thread[] workers = new Thread[threads];
+        long[] deadline = new long[1];
+        for (int t = 0; t < threads; t++) {
+            workers[t] = new Thread(() -> {
+                long count = 0;
+                long last = 0;
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                while (System.nanoTime() - deadline[0] < 0) {
+                    // Alternate between timestamps behind and ahead of the clock
+                    last = operation.run((count & 1) == 0 ? last - 1 : last + 2);
+                    count++;
+                }
+                sink = last;
+                operations.add(count);
+            });
+            workers[t].start();
+        }
+        long begin = System.nanoTime();
+        deadline[0] = begin + millis * 1_000_000;
+        start.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        long elapsed = System.nanoTime() - begin;
+        return operations.sum() * 1e9 / elapsed;
+    }
+
+    /**
+     * The previous LamportClock, which took the clock's monitor for every call.
+     */
+    private static class SynchronizedLamportClock {
+        private long timestamp = 0;
+
+        public synchronized void tick() {
+            timestamp++;
+        }
+
+        public synchronized void updateTime(long incomingTimestamp) {
+            timestamp = Math.max(timestamp, incomingTimestamp) + 1;
+        }
+
+        public synchronized long peekTime() {
+            return timestamp;
+        }
+
+        public synchronized LamportClock.EventType processReceivedTimestamp(long receivedTimestamp) {
+            if (receivedTimestamp <= timestamp) {
+                tick();
+                return LamportClock.EventType.CONCURRENT;
+            }
+            updateTime(receivedTimestamp);
+            return LamportClock.EventType.AFTER;
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package util;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class LamportClockTest {
+
+    /**
+     * Test Name: testProcessReceivedTimestamp_ClassifiesAndAdvances
+     * Description: A timestamp at or behind the clock is concurrent and ticks the clock, and one
+     *              ahead of it is after and moves the clock past it.
+     */
+    @Test
+    public void testProcessReceivedTimestamp_ClassifiesAndAdvances() {
+        List<String> logMessages = new ArrayList<>();
+        logMessages.add("\n--- TEST: testProcessReceivedTimestamp_ClassifiesAndAdvances ---\n");
+
+        try {
+            LamportClock clock = new LamportClock();
+
+            assertEquals(LamportClock.EventType.CONCURRENT, clock.processReceivedTimestamp(0));
+            assertEquals(1, clock.peekTime());
+            assertEquals(LamportClock.EventType.AFTER, clock.processReceivedTimestamp(5));
+            assertEquals(6, clock.peekTime());
+            assertEquals(LamportClock.EventType.CONCURRENT, clock.processReceivedTimestamp(6));
+            assertEquals(7, clock.peekTime());
+            clock.updateTime(3);
+            assertEquals(8, clock.peekTime());
+            logMessages.add("Test passed: Received timestamps were classified and the clock advanced.\n");
+        } catch (AssertionError e) {
+            logMessages.add("Test failed: " + e.getMessage() + "\n");
+            throw e;
+        } finally {
+            logMessages.forEach(System.out::println);
+        }
+    }
+
+    /**
+     * Test Name: testProcessReceivedTimestamp_BeyondIntRange
+     * Description: Timestamps past Integer.MAX_VALUE advance the clock without overflowing.
+     */
+    @Test
+    public void testProcessReceivedTimestamp_BeyondIntRange() {
+        List<String> logMessages = new ArrayList<>();
+        logMessages.add("\n--- TEST: testProcessReceivedTimestamp_BeyondIntRange ---\n");
+
+        try {
+            LamportClock clock = new LamportClock();
+            long received = Integer.MAX_VALUE + 10L;
+
+            assertEquals(LamportClock.EventType.AFTER, clock.processReceivedTimestamp(received));
+            assertEquals(received + 1, clock.peekTime());
+            logMessages.add("Test passed: Clock advanced past the int range.\n");
+        } catch (AssertionError e) {
+            logMessages.add("Test failed: " + e.getMessage() + "\n");
+            throw e;
+        } finally {
+            logMessages.forEach(System.out::println);
+        }
+    }
+
+    /**
+     * Test Name: testTick_ConcurrentTicksAreNotLost
+     * Description: Every tick from many threads at once advances the clock exactly once.
+     */
+    @Test
+    public void testTick_ConcurrentTicksAreNotLost() throws InterruptedException {
+        List<String> logMessages = new ArrayList<>();
+        logMessages.add("\n--- TEST: testTick_ConcurrentTicksAreNotLost ---\n");
+
+        try {
+            LamportClock clock = new LamportClock();
+            Thread[] threads = new Thread[16];
+            for (int t = 0; t < threads.length; t++) {
+                threads[t] = new Thread(() -> {
+                    for (int i = 0; i < 10000; i++) {
+                        clock.processReceivedTimestamp(0);
+                    }
+                });
+                threads[t].start();
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+
+            assertEquals(threads.length * 10000L, clock.peekTime());
+            logMessages.add("Test passed: " + clock.peekTime() + " concurrent ticks were counted.\n");
+        } catch (AssertionError e) {
+            logMessages.add("Test failed: " + e.getMessage() + "\n");
+            throw e;
+        } finally {
+            logMessages.forEach(System.out::println);
+        }
+    }
+}